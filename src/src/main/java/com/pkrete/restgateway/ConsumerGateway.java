@@ -1,7 +1,18 @@
 package com.pkrete.restgateway;
 
-import com.pkrete.xrd4j.client.SOAPClient;
-import com.pkrete.xrd4j.client.SOAPClientImpl;
+import com.pkrete.restgateway.async.VirtualThreadDispatcher;
+import com.pkrete.restgateway.cache.CacheKeyBuilder;
+import com.pkrete.restgateway.cache.CachedResponse;
+import com.pkrete.restgateway.cache.RequestCoalescer;
+import com.pkrete.restgateway.cache.ResponseCache;
+import com.pkrete.restgateway.client.PooledSOAPClient;
+import com.pkrete.restgateway.client.ResponseAttachment;
+import com.pkrete.restgateway.client.SOAPHeaderTemplate;
+import com.pkrete.restgateway.client.SOAPRequestWriter;
+import com.pkrete.restgateway.client.SOAPResponseReader;
+import com.pkrete.restgateway.client.SecurityServer;
+import com.pkrete.restgateway.client.SecurityServerBalancer;
+import com.pkrete.restgateway.client.StreamingResponseDeserializer;
 import com.pkrete.xrd4j.client.deserializer.AbstractResponseDeserializer;
 import com.pkrete.xrd4j.client.deserializer.ServiceResponseDeserializer;
 import com.pkrete.xrd4j.client.serializer.AbstractServiceRequestSerializer;
@@ -12,22 +23,42 @@ import com.pkrete.xrd4j.common.message.ServiceResponse;
 import com.pkrete.xrd4j.common.util.MessageHelper;
 import com.pkrete.xrd4j.common.util.PropertiesUtil;
 import com.pkrete.xrd4j.common.util.SOAPHelper;
-import com.pkrete.xrd4j.rest.converter.XMLToJSONConverter;
 import com.pkrete.restgateway.endpoint.ConsumerEndpoint;
+import com.pkrete.restgateway.io.AttachmentWriter;
+import com.pkrete.restgateway.io.RequestBody;
+import com.pkrete.restgateway.io.RequestBodyTooLargeException;
+import com.pkrete.restgateway.io.ResponseBodyWriter;
+import com.pkrete.restgateway.io.ResponseCompression;
+import com.pkrete.restgateway.router.ConsumerRouter;
+import com.pkrete.restgateway.router.RouteMatch;
+import com.pkrete.restgateway.router.UnconfiguredEndpointCache;
 import com.pkrete.restgateway.util.Constants;
 import com.pkrete.restgateway.util.ConsumerGatewayUtil;
 import com.pkrete.restgateway.util.RESTGatewayUtil;
+import com.pkrete.restgateway.util.UrlRewriter;
+import com.pkrete.restgateway.xml.FieldProjection;
+import com.pkrete.restgateway.xml.ResponseUnwrapper;
+import com.pkrete.restgateway.xml.XMLToJSONWriter;
+import com.pkrete.restgateway.xml.XMLToNDJSONWriter;
+import com.pkrete.restgateway.xml.XMLUtil;
 import com.pkrete.xrd4j.common.exception.XRd4JException;
 import com.pkrete.xrd4j.common.security.Decrypter;
 import com.pkrete.xrd4j.common.security.Encrypter;
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.activation.DataHandler;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -38,6 +69,7 @@ import javax.xml.soap.SOAPElement;
 import javax.xml.soap.SOAPEnvelope;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
+import javax.xml.stream.XMLStreamReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,19 +80,47 @@ import org.slf4j.LoggerFactory;
  * returning the responses to the requesters. Requests and responses can be
  * converted from JSON to XML.
  *
+ * The servlet registers itself as a servlet context attribute during
+ * initialization, so that ConsumerURIFilter can dispatch requests to it
+ * directly without a RequestDispatcher forward.
+ *
  * @author Petteri Kivimäki
  */
 public class ConsumerGateway extends HttpServlet {
 
+    /**
+     * Name of the servlet context attribute that holds the initialized
+     * ConsumerGateway instance.
+     */
+    public static final String CONTEXT_ATTRIBUTE = ConsumerGateway.class.getName();
+
     private Properties props;
     private Map<String, ConsumerEndpoint> endpoints;
+    private ConsumerRouter router;
     private static final Logger logger = LoggerFactory.getLogger(ConsumerGateway.class);
+    // Error bodies that are encoded in advance using UTF-8
+    private static final Map<String, byte[]> XML_ERROR_BODIES = createErrorBodies(Constants.TEXT_XML);
+    private static final Map<String, byte[]> JSON_ERROR_BODIES = createErrorBodies(Constants.APPLICATION_JSON);
     private boolean serviceCallsByXRdServiceId;
+    private UnconfiguredEndpointCache unconfiguredEndpointCache;
     private Decrypter asymmetricDecrypter;
-    private final Map<String, Encrypter> asymmetricEncrypterCache = new HashMap<>();
+    private final Map<String, Encrypter> asymmetricEncrypterCache = new ConcurrentHashMap<>();
     private String publicKeyFile;
     private String publicKeyFilePassword;
     private int keyLength;
+    private int requestBodyMemoryThreshold;
+    private File tempDir;
+    private boolean streamingRequestWriter;
+    private boolean streamingResponseReader;
+    private Map<ConsumerEndpoint, SOAPHeaderTemplate> headerTemplates;
+    private Map<ConsumerEndpoint, UrlRewriter> urlRewriters;
+    private Map<ConsumerEndpoint, ResponseCache> responseCaches;
+    private Map<ConsumerEndpoint, RequestCoalescer> requestCoalescers;
+    private PooledSOAPClient soapClient;
+    private SecurityServerBalancer securityServers;
+    private VirtualThreadDispatcher virtualThreadDispatcher;
+    private ResponseCompression responseCompression;
+    private int responseBufferMaxSize;
 
     @Override
     public void init() throws ServletException {
@@ -79,23 +139,78 @@ public class ConsumerGateway extends HttpServlet {
         logger.debug("Setting Consumer and ConsumerGateway properties");
         String serviceCallsByXRdServiceIdStr = this.props.getProperty(Constants.CONSUMER_PROPS_SVC_CALLS_BY_XRD_SVC_ID_ENABLED);
         this.serviceCallsByXRdServiceId = serviceCallsByXRdServiceIdStr == null ? false : "true".equalsIgnoreCase(serviceCallsByXRdServiceIdStr);
-        logger.debug("Security server URL : \"{}\".", this.props.getProperty(Constants.CONSUMER_PROPS_SECURITY_SERVER_URL));
+        logger.debug("Security server URLs : \"{}\".", this.props.getProperty(Constants.CONSUMER_PROPS_SECURITY_SERVER_URL));
         logger.debug("Default client id : \"{}\".", this.props.getProperty(Constants.CONSUMER_PROPS_ID_CLIENT));
         logger.debug("Default namespace for incoming ServiceResponses : \"{}\".", this.props.getProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_DESERIALIZE));
         logger.debug("Default namespace for outgoing ServiceRequests : \"{}\".", this.props.getProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_SERIALIZE));
         logger.debug("Default namespace prefix for outgoing ServiceRequests : \"{}\".", this.props.getProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_PREFIX_SERIALIZE));
         logger.debug("Service calls by X-Road service id are enabled : {}.", this.serviceCallsByXRdServiceId);
+        if (this.serviceCallsByXRdServiceId) {
+            int cacheSize = RESTGatewayUtil.getPositiveIntProperty(this.props, Constants.CONSUMER_PROPS_SVC_CALLS_BY_XRD_SVC_ID_CACHE_SIZE, UnconfiguredEndpointCache.DEFAULT_MAX_SIZE);
+            this.unconfiguredEndpointCache = new UnconfiguredEndpointCache(cacheSize);
+            logger.debug("Unconfigured endpoint cache size : {}.", cacheSize);
+        }
         this.publicKeyFile = props.getProperty(Constants.ENCRYPTION_PROPS_PUBLIC_KEY_FILE);
         this.publicKeyFilePassword = props.getProperty(Constants.ENCRYPTION_PROPS_PUBLIC_KEY_FILE_PASSWORD);
         this.keyLength = RESTGatewayUtil.getKeyLength(props);
         logger.debug("Symmetric key length : \"{}\".", this.keyLength);
+        this.requestBodyMemoryThreshold = RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_REQUEST_BODY_MEMORY_THRESHOLD, RequestBody.DEFAULT_MEMORY_THRESHOLD);
+        this.tempDir = (File) getServletContext().getAttribute("javax.servlet.context.tempdir");
+        logger.debug("Request body memory threshold : {} bytes. Temporary directory : \"{}\".", this.requestBodyMemoryThreshold, this.tempDir);
+        this.streamingRequestWriter = !Constants.CONSUMER_PROPS_REQUEST_WRITER_SAAJ.equalsIgnoreCase(props.getProperty(Constants.CONSUMER_PROPS_REQUEST_WRITER));
+        logger.debug("Streaming StAX request writer is enabled : {}.", this.streamingRequestWriter);
+        this.streamingResponseReader = !Constants.CONSUMER_PROPS_RESPONSE_READER_SAAJ.equalsIgnoreCase(props.getProperty(Constants.CONSUMER_PROPS_RESPONSE_READER));
+        logger.debug("Streaming StAX response reader is enabled : {}.", this.streamingResponseReader);
+        try {
+            this.soapClient = PooledSOAPClient.create(this.props);
+            this.securityServers = SecurityServerBalancer.create(this.props);
+        } catch (SOAPException | IllegalArgumentException ex) {
+            logger.error(ex.getMessage(), ex);
+            throw new ServletException("Creating security server client failed.", ex);
+        }
+        this.virtualThreadDispatcher = VirtualThreadDispatcher.create(this.props, "consumer-gateway-");
+        logger.debug("Virtual threads are used : {}.", this.virtualThreadDispatcher != null);
+        this.responseCompression = ResponseCompression.create(this.props);
+        this.responseBufferMaxSize = RESTGatewayUtil.getPositiveIntProperty(this.props, Constants.CONSUMER_PROPS_RESPONSE_BUFFER_MAX_SIZE, ResponseBodyWriter.DEFAULT_BUFFER_MAX_SIZE);
+        logger.debug("Response buffer max size : {} bytes.", this.responseBufferMaxSize);
         logger.debug("Extracting individual consumers from properties");
         this.endpoints = ConsumerGatewayUtil.extractConsumers(endpointProps, this.props);
+        logger.debug("Building routing index for consumers");
+        this.router = new ConsumerRouter(this.endpoints);
+        logger.debug("Compiling URL rewriters for consumers");
+        this.urlRewriters = ConsumerGatewayUtil.createUrlRewriters(this.endpoints);
+        logger.debug("Creating response caches for consumers");
+        this.responseCaches = ConsumerGatewayUtil.createResponseCaches(this.endpoints);
+        // Requests wait for an identical request at most as long as it may
+        // take to get a response from the security server
+        long coalesceWaitTimeout = (long) this.soapClient.getAcquireTimeout() + this.soapClient.getConnectTimeout() + this.soapClient.getReadTimeout();
+        this.requestCoalescers = ConsumerGatewayUtil.createRequestCoalescers(this.endpoints, coalesceWaitTimeout);
+        if (this.streamingRequestWriter) {
+            logger.debug("Precomputing X-Road header templates for consumers");
+            this.headerTemplates = ConsumerGatewayUtil.createHeaderTemplates(this.endpoints);
+        }
         // Check encryption properties. The method also sets the values of
         // asymmetricEncrypterCache.
         if (ConsumerGatewayUtil.checkEncryptionProperties(props, endpoints, this.asymmetricEncrypterCache)) {
             this.asymmetricDecrypter = RESTGatewayUtil.checkPrivateKey(props);
         }
+        // Publish this instance for direct dispatch
+        getServletContext().setAttribute(CONTEXT_ATTRIBUTE, this);
+    }
+
+    @Override
+    public void destroy() {
+        // Another instance may have been published after this one
+        if (getServletContext().getAttribute(CONTEXT_ATTRIBUTE) == this) {
+            getServletContext().removeAttribute(CONTEXT_ATTRIBUTE);
+        }
+        if (this.virtualThreadDispatcher != null) {
+            this.virtualThreadDispatcher.close();
+        }
+        if (this.soapClient != null) {
+            this.soapClient.close();
+        }
+        super.destroy();
     }
 
     /**
@@ -109,16 +224,128 @@ public class ConsumerGateway extends HttpServlet {
      */
     protected void processRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        String responseStr;
         // Get resourcePath attribute
         String resourcePath = (String) request.getAttribute("resourcePath");
+        this.dispatch(request, response, resourcePath);
+    }
+
+    /**
+     * Processes the given request using the given resource path. This method
+     * is called by ConsumerURIFilter in direct dispatch mode, and by the
+     * servlet itself when the request has been forwarded to it. If virtual
+     * threads are enabled and the request supports async processing, the
+     * request is processed by a virtual thread of its own and the calling
+     * thread returns right away.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @param resourcePath resource path of the request or null
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    public void dispatch(HttpServletRequest request, HttpServletResponse response, final String resourcePath)
+            throws ServletException, IOException {
+        if (this.virtualThreadDispatcher != null && request.isAsyncSupported()) {
+            logger.trace("Process request in a virtual thread.");
+            this.virtualThreadDispatcher.dispatch(request, response, new VirtualThreadDispatcher.Task() {
+                @Override
+                public void run(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+                    process(req, res, resourcePath);
+                }
+            });
+            return;
+        }
+        this.process(request, response, resourcePath);
+    }
+
+    /**
+     * Processes the given request using the given resource path. The route is
+     * resolved once and requests that don't match any endpoint get 404
+     * response right away. Requests with an expectation other than
+     * "100-continue" get 417 response and requests whose Content-Length
+     * exceeds the max size of the endpoint get 413 response. All the checks
+     * are done before the request body is read, so the container doesn't send
+     * "100 Continue" to clients that sent "Expect: 100-continue" header and the
+     * body is never transferred. If the request has a body, the connection is
+     * closed after the rejection.
+     *
+     * Request parameters are never read using getParameter methods, because
+     * the container would parse form bodies without a size limit. X-Road
+     * headers are read from the query string and HTTP headers, and form
+     * bodies are read by this class with the max size of the endpoint.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @param resourcePath resource path of the request or null
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    private void process(HttpServletRequest request, HttpServletResponse response, String resourcePath)
+            throws ServletException, IOException {
+        // Resolve the route and check the body size before anything reads
+        // the request body
+        RouteMatch match = resourcePath == null ? null : this.resolve(request.getMethod(), resourcePath);
+        if (match == null) {
+            // No resource path was defined or no endpoint was found
+            // -> return 404
+            this.reject(request, response, HttpServletResponse.SC_NOT_FOUND, Constants.ERROR_404);
+            // Quit processing
+            return;
+        }
+        String expect = request.getHeader("Expect");
+        if (expect != null && !"100-continue".equalsIgnoreCase(expect.trim())) {
+            logger.info("Unsupported expectation \"{}\". Resource path : \"{}\".", expect, resourcePath);
+            this.reject(request, response, HttpServletResponse.SC_EXPECTATION_FAILED, Constants.ERROR_417);
+            return;
+        }
+        long maxSize = match.getEndpoint().getRequestMaxSize();
+        long contentLength = getContentLength(request);
+        if (maxSize > 0 && contentLength > maxSize) {
+            logger.info("Request body is too large. Content-Length : {}, max size : {}. Resource path : \"{}\".", contentLength, maxSize, resourcePath);
+            this.reject(request, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, Constants.ERROR_413);
+            return;
+        }
+
+        String responseStr;
+        // Error message, if an error response is sent
+        String error = null;
+        // Is the response converted to JSON while it's written
+        boolean convertToJson = false;
+        // Fields that are selected while the response is written
+        FieldProjection selection = null;
+        // URL rewriter and servlet URL, if the URLs are rewritten while
+        // the response is written
+        UrlRewriter urlRewriter = null;
+        String servletUrl = null;
+        // SOAP attachment that's passed through as it is
+        AttachmentPart attachment = null;
+        // Response data that's read from the security server while it's
+        // written, the connection is released when it's closed
+        XMLStreamReader responseBody = null;
+        // SOAP attachment that's read from the security server while it's
+        // passed through, the connection is released when it's closed
+        ResponseAttachment responseAttachment = null;
+        // Is the encoded response captured for the response cache and
+        // coalesced requests
+        boolean captureResponse = false;
         // Get HTTP headers
-        String userId = processUserId(this.getXRdHeader(request, Constants.XRD_HEADER_USER_ID));
-        String messageId = processMessageId(this.getXRdHeader(request, Constants.XRD_HEADER_MESSAGE_ID));
-        String namespace = this.getXRdHeader(request, Constants.XRD_HEADER_NAMESPACE_SERIALIZE);
-        String prefix = this.getXRdHeader(request, Constants.XRD_HEADER_NAMESPACE_PREFIX_SERIALIZE);
+        String userId = processUserId(this.getXRdHeaderBeforeBody(request, Constants.XRD_HEADER_USER_ID));
+        String messageId = processMessageId(this.getXRdHeaderBeforeBody(request, Constants.XRD_HEADER_MESSAGE_ID));
+        String namespace = this.getXRdHeaderBeforeBody(request, Constants.XRD_HEADER_NAMESPACE_SERIALIZE);
+        String prefix = this.getXRdHeaderBeforeBody(request, Constants.XRD_HEADER_NAMESPACE_PREFIX_SERIALIZE);
+        // Fields of the response that are sent to the client, null if all
+        FieldProjection projection = FieldProjection.parse(this.getXRdHeaderBeforeBody(request, Constants.XRD_HEADER_FIELDS));
         String contentType = request.getHeader(Constants.HTTP_HEADER_CONTENT_TYPE);
-        String acceptHeader = this.getXRdHeader(request, Constants.HTTP_HEADER_ACCEPT) == null ? Constants.TEXT_XML : this.getXRdHeader(request, Constants.HTTP_HEADER_ACCEPT);
+        String acceptHeader = this.getXRdHeaderBeforeBody(request, Constants.HTTP_HEADER_ACCEPT) == null ? Constants.TEXT_XML : this.getXRdHeaderBeforeBody(request, Constants.HTTP_HEADER_ACCEPT);
+        // Request parameters. Form body is read with the max size.
+        Map<String, String[]> parameters;
+        try {
+            parameters = this.readRequestParameters(request, maxSize);
+        } catch (RequestBodyTooLargeException ex) {
+            logger.info("Form body is too large. {} Resource path : \"{}\".", ex.getMessage(), resourcePath);
+            this.reject(request, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, Constants.ERROR_413);
+            return;
+        }
         logger.info("Request received. Method : \"{}\". Resource path : \"{}\".", request.getMethod(), resourcePath);
 
         // Check accept header
@@ -127,100 +354,219 @@ public class ConsumerGateway extends HttpServlet {
         response.setContentType(accept);
 
         // Omit response namespace, if response is wanted in JSON
-        boolean omitNamespace = accept.startsWith(Constants.APPLICATION_JSON);
+        boolean omitNamespace = isJson(accept);
+        // NDJSON responses are written one line at a time
+        boolean ndjson = accept.startsWith(Constants.APPLICATION_NDJSON);
 
         // Set userId and messageId to response
         response.addHeader(Constants.XRD_HEADER_USER_ID, userId);
         response.addHeader(Constants.XRD_HEADER_MESSAGE_ID, messageId);
 
-        if (resourcePath == null) {
-            // No resource path was defined -> return 404
-            responseStr = this.generateError(Constants.ERROR_404, accept);
-            response.setStatus(404);
-            // Send response
-            this.writeResponse(response, responseStr);
-            // Quit processing
-            return;
-        }
-
         // Build the service id for the incoming request
         String serviceId = request.getMethod() + " " + resourcePath;
-        logger.debug("Incoming service id to be looked for : \"{}\"", serviceId);
-        // Try to find a configured endpoint matching the request's
-        // service id
-        ConsumerEndpoint endpoint = ConsumerGatewayUtil.findMatch(serviceId, endpoints);
 
-        // If endpoint is null, try to use resourcePath as service id
-        if (endpoint == null) {
-            if (this.serviceCallsByXRdServiceId) {
-                logger.info("Endpoint is null, use resource path as service id. Resource path : \"{}\"", resourcePath);
-                endpoint = ConsumerGatewayUtil.createUnconfiguredEndpoint(this.props, resourcePath);
-            } else {
-                logger.info("Endpoint is null and service calls by X-Road service id are disabled. Nothing to do here.");
+        // Use namespace and prefix received from header, if not null or empty
+        match = processNamespaceAndPrefix(match, namespace, prefix);
+        ConsumerEndpoint endpoint = match.getEndpoint();
+
+        logger.info("Starting to process \"{}\" service. X-Road id : \"{}\". Message id : \"{}\".", serviceId, endpoint.getServiceId(), messageId);
+        // Send the cached response, if the responses of the endpoint are
+        // cached and the response is found from the cache. NDJSON responses
+        // are streamed, so they're not cached or shared.
+        ResponseCache cache = ndjson ? null : this.getResponseCache(request, endpoint);
+        RequestCoalescer coalescer = ndjson ? null : this.getRequestCoalescer(request, endpoint);
+        String requestKey = null;
+        if (cache != null || coalescer != null) {
+            requestKey = this.createRequestKey(request, match, parameters, accept, userId, namespace, prefix, projection);
+        }
+        if (cache != null) {
+            CachedResponse cachedResponse = cache.get(requestKey);
+            logger.debug("Response cache of \"{}\" : {}", endpoint.getResourcePath(), cache.getStats());
+            if (cachedResponse != null) {
+                logger.info("Response to \"{}\" service found from cache. X-Road id : \"{}\". Message id : \"{}\".", serviceId, endpoint.getServiceId(), messageId);
+                this.writeCachedResponse(request, response, endpoint, cachedResponse);
+                return;
             }
         }
-        // If endpoint is still null, return error message
-        if (endpoint == null) {
-            // No endpoint was found -> return 404
-            responseStr = this.generateError(Constants.ERROR_404, accept);
-            response.setStatus(404);
-            // Send response
-            this.writeResponse(response, responseStr);
-            // Quit processing
-            return;
+        // Wait for the response of an identical request, if one is in flight
+        RequestCoalescer.Call call = null;
+        if (coalescer != null) {
+            call = coalescer.join(requestKey);
+            if (call != null && !call.isLeader()) {
+                CachedResponse sharedResponse = call.await();
+                logger.debug("Request coalescer of \"{}\" : {}", endpoint.getResourcePath(), coalescer.getStats());
+                if (sharedResponse != null) {
+                    logger.info("Response to \"{}\" service shared with an identical request. X-Road id : \"{}\". Message id : \"{}\".", serviceId, endpoint.getServiceId(), messageId);
+                    this.writeCachedResponse(request, response, endpoint, sharedResponse);
+                    return;
+                }
+                // Identical request failed, send this request
+                call = null;
+            }
         }
-
-        // Set namespace and prefix received from header, if not null or empty
-        processNamespaceAndPrefix(endpoint, namespace, prefix);
-
-        logger.info("Starting to process \"{}\" service. X-Road id : \"{}\". Message id : \"{}\".", serviceId, endpoint.getServiceId(), messageId);
+        RequestBody requestBody = null;
         try {
             // Create ServiceRequest object
-            ServiceRequest<Map<String, String[]>> serviceRequest = new ServiceRequest<>(endpoint.getConsumer(), endpoint.getProducer(), messageId);
+            ServiceRequest<Map<String, String[]>> serviceRequest = new ServiceRequest<>(match.getConsumer(), match.getProducer(), messageId);
             // Set userId
             serviceRequest.setUserId(userId);
             // Set HTTP request parameters as request data
-            serviceRequest.setRequestData(this.filterRequestParameters(request.getParameterMap()));
+            serviceRequest.setRequestData(parameters);
             // Set request wrapper processing
             if (endpoint.isProcessingWrappers() != null) {
                 serviceRequest.setProcessingWrappers(endpoint.isProcessingWrappers());
             }
-            // Serializer that converts the request to SOAP
-            ServiceRequestSerializer serializer = getRequestSerializer(endpoint, this.readRequestBody(request), contentType);
+            requestBody = this.readRequestBody(request, maxSize);
+            // Writer or serializer that converts the request to SOAP.
+            // Encrypted requests are always serialized using SAAJ.
+            SOAPRequestWriter writer = null;
+            ServiceRequestSerializer serializer = null;
+            if (this.streamingRequestWriter && !endpoint.isRequestEncrypted()) {
+                // Precomputed header template is used if the request uses the
+                // producer and wrappers of a configured endpoint
+                writer = new SOAPRequestWriter(serviceRequest, match.getResourceId(), requestBody, contentType, this.headerTemplates.get(endpoint));
+            } else {
+                serializer = getRequestSerializer(match, requestBody, this.getCharset(request), contentType);
+            }
             // Deserializer that converts the response from SOAP to XML/JSON
             ServiceResponseDeserializer deserializer = getResponseDeserializer(endpoint, omitNamespace);
-            // SOAP client that makes the service call
-            SOAPClient client = new SOAPClientImpl();
-            logger.info("Send request ({}) to the security server. URL : \"{}\".", messageId, props.getProperty(Constants.CONSUMER_PROPS_SECURITY_SERVER_URL));
-            // Make the service call that returns the service response
-            ServiceResponse serviceResponse = client.send(serviceRequest, props.getProperty(Constants.CONSUMER_PROPS_SECURITY_SERVER_URL), serializer, deserializer);
-            logger.info("Received response ({}) from the security server.", messageId);
+            // Make the service call using the shared pooled client
+            ServiceResponse serviceResponse = this.send(serviceRequest, messageId, writer, serializer, deserializer);
             // Set response wrapper processing
             if (endpoint.isProcessingWrappers() != null) {
                 serviceResponse.setProcessingWrappers(endpoint.isProcessingWrappers());
             }
-            // Generate response message
-            responseStr = handleResponse(response, serviceResponse);
+            // Attachment is read from the connection only if it's passed
+            // through and the response doesn't contain an error
+            responseAttachment = getResponseAttachment(serviceResponse);
+            if (responseAttachment != null) {
+                // The first attachment is sent to the client as it is
+                // while it's read from the security server
+                logger.debug("Use SOAP attachment as response message.");
+                responseStr = null;
+            } else if (isAttachmentPassthrough(endpoint) && !serviceResponse.hasError() && hasAttachments(serviceResponse)) {
+                // The first attachment is sent to the client as it is
+                logger.debug("Use SOAP attachment as response message.");
+                attachment = (AttachmentPart) serviceResponse.getSoapMessage().getAttachments().next();
+                responseStr = null;
+            } else {
+                // Fields are selected only from successful responses
+                // without attachments
+                if (!serviceResponse.hasError() && !hasAttachments(serviceResponse)) {
+                    selection = projection;
+                }
+                // Generate response message, unless the response data is
+                // read from the connection while it's written
+                responseBody = getResponseBody(serviceResponse);
+                responseStr = responseBody == null ? handleResponse(response, serviceResponse, selection) : null;
 
-            // Check if the URLs in the response should be rewritten
-            // to point this servlet
-            if (endpoint.isModifyUrl()) {
-                // Get ConsumerGateway URL
-                String servletUrl = this.getServletUrl(request);
-                // Modify the response
-                responseStr = ConsumerGatewayUtil.rewriteUrl(servletUrl, resourcePath, responseStr);
+                // Check if the URLs in the response should be rewritten
+                // to point this servlet
+                if (endpoint.isModifyUrl()) {
+                    // Get ConsumerGateway URL
+                    servletUrl = this.getServletUrl(request);
+                    // The response is modified while it's written
+                    urlRewriter = this.getUrlRewriter(endpoint);
+                }
+                // If content type is JSON and the SOAP message doesn't have
+                // attachments, the response must be converted
+                convertToJson = omitNamespace && !hasAttachments(serviceResponse);
+                // Only successful responses are cached and shared
+                captureResponse = requestKey != null && !serviceResponse.hasError();
             }
             logger.info("Processing \"{}\" service successfully completed. X-Road id : \"{}\". Message id : \"{}\".", serviceId, endpoint.getServiceId(), messageId);
+        } catch (RequestBodyTooLargeException ex) {
+            // Body without Content-Length exceeded the max size
+            logger.info("Processing \"{}\" service failed. {} Message id : \"{}\".", serviceId, ex.getMessage(), messageId);
+            responseStr = null;
+            error = Constants.ERROR_413;
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            response.setHeader("Connection", "close");
         } catch (Exception ex) {
             logger.error(ex.getMessage(), ex);
             logger.error("Processing \"{}\" service failed. X-Road id : \"{}\". Message id : \"{}\".", serviceId, endpoint.getServiceId(), messageId);
             // Internal server error -> return 500
-            responseStr = this.generateError(Constants.ERROR_500, accept);
+            responseStr = null;
+            error = Constants.ERROR_500;
             response.setStatus(500);
+        } finally {
+            // Remove temporary file, if request body was spilled to disk
+            if (requestBody != null) {
+                requestBody.close();
+            }
         }
 
         // Send response
-        this.writeResponse(response, responseStr);
+        byte[] body = null;
+        try {
+            if (error != null) {
+                this.writeError(response, error, accept);
+            } else if (responseAttachment != null) {
+                this.writeAttachment(response, responseAttachment, this.getContentEncoding(request, response, endpoint, responseAttachment.getContentType()));
+            } else if (attachment != null) {
+                this.writeAttachment(response, attachment, this.getContentEncoding(request, response, endpoint, attachment.getContentType()));
+            } else {
+                String contentEncoding = this.getContentEncoding(request, response, endpoint, response.getContentType());
+                if (convertToJson && ndjson) {
+                    this.writeNdjsonResponse(response, responseStr, responseBody, selection, urlRewriter, servletUrl, contentEncoding);
+                } else if (convertToJson) {
+                    body = this.writeJsonResponse(response, responseStr, responseBody, selection, urlRewriter, servletUrl, contentEncoding, captureResponse);
+                } else {
+                    body = this.writeResponse(response, responseStr, responseBody, selection, urlRewriter, servletUrl, contentEncoding, captureResponse);
+                }
+                if (cache != null && cache.put(requestKey, response.getContentType(), body)) {
+                    logger.debug("Response added to cache. Response cache of \"{}\" : {}", endpoint.getResourcePath(), cache.getStats());
+                }
+            }
+        } finally {
+            // Release the connection to the security server
+            XMLUtil.close(responseBody);
+            close(responseAttachment);
+            // Release the identical requests that are waiting for this one.
+            // They're processed independently, if there's no body to share.
+            if (call != null) {
+                coalescer.complete(call, response.getContentType(), body);
+                logger.debug("Request coalescer of \"{}\" : {}", endpoint.getResourcePath(), coalescer.getStats());
+            }
+        }
+    }
+
+    /**
+     * Sends the given request to the security server selected by the
+     * balancer and updates the health information of the server.
+     * Transport errors and bad HTTP responses are counted as failures, SOAP
+     * faults are not.
+     *
+     * @param serviceRequest ServiceRequest to be sent
+     * @param messageId message id of the request
+     * @param writer writer that writes the request using StAX, or null if
+     * the request is serialized using SAAJ
+     * @param serializer serializer that converts the request to SOAP using
+     * SAAJ, used if writer is null
+     * @param deserializer deserializer that converts the response
+     * @return ServiceResponse
+     * @throws SOAPException if sending the request fails
+     */
+    private ServiceResponse send(ServiceRequest serviceRequest, String messageId, SOAPRequestWriter writer, ServiceRequestSerializer serializer, ServiceResponseDeserializer deserializer) throws SOAPException {
+        SecurityServer server = this.securityServers.acquire();
+        logger.info("Send request ({}) to the security server. URL : \"{}\".", messageId, server.getUrl());
+        long start = System.currentTimeMillis();
+        boolean failed = true;
+        try {
+            ServiceResponse serviceResponse;
+            if (writer != null) {
+                serviceResponse = this.soapClient.send(writer, server.getUrl(), deserializer);
+            } else {
+                serviceResponse = this.soapClient.send(serviceRequest, server.getUrl(), serializer, deserializer);
+            }
+            failed = false;
+            logger.info("Received response ({}) from the security server.", messageId);
+            return serviceResponse;
+        } finally {
+            this.securityServers.release(server, System.currentTimeMillis() - start, failed);
+            logger.debug("Security servers : {}", this.securityServers.getStats());
+            logger.debug("Security server connection pool : {}", this.soapClient.getStats());
+        }
     }
 
     /**
@@ -228,36 +574,37 @@ public class ConsumerGateway extends HttpServlet {
      * The implementation of the ServiceRequestSerializer is decided based on
      * the given parameters.
      *
-     * @param endpoint ConsumerEndpoint that's processed using the serializer
+     * @param match RouteMatch that's processed using the serializer
+     * @param charset character set of the request body, used if the body
+     * must be encrypted
      * @param requestBody request body that's being processed
      * @param contentType content type of the request
      * @return new ServiceRequestSerializer object
      * @throws XRd4JException
      */
-    private ServiceRequestSerializer getRequestSerializer(ConsumerEndpoint endpoint, String requestBody, String contentType) throws XRd4JException {
+    private ServiceRequestSerializer getRequestSerializer(RouteMatch match, RequestBody requestBody, Charset charset, String contentType) throws XRd4JException {
         // Type of the serializer depends on the encryption
-        if (endpoint.isRequestEncrypted()) {
+        if (match.getEndpoint().isRequestEncrypted()) {
             logger.debug("Endpoint requires that request is encrypted.");
-            String providerId = endpoint.getProducer().toString();
-            Encrypter asymmetricEncrypter;
+            String providerId = match.getProducer().toString();
             // Check if encrypter already exists in cache - it should as all
             // the encrypters are loaded during start up
-            if (this.asymmetricEncrypterCache.containsKey(providerId)) {
-                asymmetricEncrypter = RESTGatewayUtil.getEncrypter(this.publicKeyFile, this.publicKeyFilePassword, providerId);
+            Encrypter asymmetricEncrypter = this.asymmetricEncrypterCache.get(providerId);
+            if (asymmetricEncrypter != null) {
                 logger.trace("Asymmetric encrypter for provider \"{}\" loaded from cache.", providerId);
             } else {
                 // Create new encrypter if it does not exist already for some reason
                 asymmetricEncrypter = RESTGatewayUtil.getEncrypter(this.publicKeyFile, this.publicKeyFilePassword, providerId);
+                if (asymmetricEncrypter == null) {
+                    throw new XRd4JException("No public key found when encryption is required.");
+                }
                 // Add new encrypter to the cache
                 this.asymmetricEncrypterCache.put(providerId, asymmetricEncrypter);
                 logger.trace("Asymmetric encrypter for provider \"{}\" not found from cache. New ecrypter created.", providerId);
             }
-            if (asymmetricEncrypter == null) {
-                throw new XRd4JException("No public key found when encryption is required.");
-            }
-            return new EncryptingRequestSerializer(endpoint.getResourceId(), requestBody, contentType, asymmetricEncrypter, this.keyLength);
+            return new EncryptingRequestSerializer(match.getResourceId(), requestBody, charset, contentType, asymmetricEncrypter, this.keyLength);
         } else {
-            return new RequestSerializer(endpoint.getResourceId(), requestBody, contentType);
+            return new RequestSerializer(match.getResourceId(), requestBody, contentType);
         }
     }
 
@@ -280,9 +627,13 @@ public class ConsumerGateway extends HttpServlet {
                 throw new XRd4JException("No private key available when decryption is required.");
             }
             return new EncryptingResponseDeserializer(omitNamespace, this.asymmetricDecrypter);
+        } else if (this.streamingResponseReader) {
+            // Deserializer that reads the response using StAX if it doesn't
+            // have attachments
+            return new StreamingDeserializer(omitNamespace, isAttachmentPassthrough(endpoint));
         } else {
             // Deserializer that converts the response from SOAP to XML/JSON string
-            return new ResponseDeserializer(omitNamespace);
+            return new ResponseDeserializer(omitNamespace, isAttachmentPassthrough(endpoint));
         }
     }
 
@@ -322,24 +673,76 @@ public class ConsumerGateway extends HttpServlet {
     }
 
     /**
-     * Checks namespace and prefix for null and empty, and sets them to endpoint
-     * if a value is found.
+     * Finds the endpoint matching the given HTTP verb and resource path. If
+     * no configured endpoint is found and service calls by X-Road service id
+     * are enabled, the resource path is used as service id.
      *
-     * @param endpoint ConsumerEndpoint object
+     * @param httpVerb HTTP verb of the request
+     * @param resourcePath resource path of the request
+     * @return RouteMatch holding the endpoint or null
+     */
+    private RouteMatch resolve(String httpVerb, String resourcePath) {
+        logger.debug("Incoming service id to be looked for : \"{} {}\"", httpVerb, resourcePath);
+        // Try to find a configured endpoint matching the request's
+        // service id
+        RouteMatch match = this.router.route(httpVerb, resourcePath);
+        // If endpoint is null, try to use resourcePath as service id
+        if (match == null) {
+            if (this.serviceCallsByXRdServiceId) {
+                logger.info("Endpoint is null, use resource path as service id. Resource path : \"{}\"", resourcePath);
+                match = this.getUnconfiguredEndpoint(resourcePath);
+            } else {
+                logger.info("Endpoint is null and service calls by X-Road service id are disabled. Nothing to do here.");
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Returns an endpoint that uses the given resource path as service id.
+     * Endpoints are cached by service id, so that parsing the ids is done
+     * only once per service, and the resource id of the request is added to
+     * the cached endpoint. Service ids that can't be parsed are not cached.
+     *
+     * @param resourcePath resource path of the request
+     * @return RouteMatch holding the endpoint or null
+     */
+    private RouteMatch getUnconfiguredEndpoint(String resourcePath) {
+        String[] ids = ConsumerGatewayUtil.parseUnconfiguredResourcePath(resourcePath);
+        RouteMatch match = this.unconfiguredEndpointCache.get(ids[0]);
+        if (match == null) {
+            match = ConsumerGatewayUtil.createUnconfiguredEndpoint(this.props, ids[0]);
+            this.unconfiguredEndpointCache.put(ids[0], match);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Unconfigured endpoint cache : {}", this.unconfiguredEndpointCache.getStats());
+        }
+        if (match == null || ids[1] == null) {
+            return match;
+        }
+        return new RouteMatch(match.getEndpoint(), ids[1]);
+    }
+
+    /**
+     * Checks namespace and prefix for null and empty, and returns a RouteMatch
+     * that uses them if a value is found. The shared endpoint is never
+     * modified.
+     *
+     * @param match RouteMatch object
      * @param namespace namespace HTTP header String
      * @param prefix prefix HTTP header String
+     * @return RouteMatch using the given namespace and prefix
      */
-    private void processNamespaceAndPrefix(ConsumerEndpoint endpoint, String namespace, String prefix) {
-        // Set namespace received from header, if not null or empty
+    private RouteMatch processNamespaceAndPrefix(RouteMatch match, String namespace, String prefix) {
+        // Use namespace received from header, if not null or empty
         if (!RESTGatewayUtil.isNullOrEmpty(namespace)) {
-            endpoint.getProducer().setNamespaceUrl(namespace);
             logger.debug("\"{}\" HTTP header found. Value : \"{}\".", Constants.XRD_HEADER_NAMESPACE_SERIALIZE, namespace);
         }
-        // Set prefix received from header, if not null or empty
+        // Use prefix received from header, if not null or empty
         if (!RESTGatewayUtil.isNullOrEmpty(prefix)) {
-            endpoint.getProducer().setNamespacePrefix(prefix);
             logger.debug("\"{}\" HTTP header found. Value : \"{}\".", Constants.XRD_HEADER_NAMESPACE_PREFIX_SERIALIZE, prefix);
         }
+        return match.withNamespaceAndPrefix(namespace, prefix);
     }
 
     /**
@@ -350,9 +753,10 @@ public class ConsumerGateway extends HttpServlet {
      * @return sanitized Accept header value
      */
     private String processAcceptHeader(String accept) {
-        // Accept header must be "text/xml" or "application/json"
+        // Accept header must be "text/xml", "application/json" or
+        // "application/x-ndjson"
         logger.debug("Incoming accept header value : \"{}\"", accept);
-        if (!accept.startsWith(Constants.TEXT_XML) && !accept.startsWith(Constants.APPLICATION_JSON)) {
+        if (!accept.startsWith(Constants.TEXT_XML) && !isJson(accept)) {
             logger.trace("Accept header value set to \"{}\".", Constants.TEXT_XML);
             return Constants.TEXT_XML + "; " + Constants.CHARSET_UTF8;
         }
@@ -369,9 +773,11 @@ public class ConsumerGateway extends HttpServlet {
      *
      * @param response HttpServletResponse object
      * @param serviceResponse ServiceResponse object
+     * @param projection fields that are selected from an XML response, or
+     * null
      * @return response message as a String
      */
-    private String handleResponse(HttpServletResponse response, ServiceResponse serviceResponse) {
+    private String handleResponse(HttpServletResponse response, ServiceResponse serviceResponse, FieldProjection projection) {
         String responseStr;
         // Check that response doesn't contain SOAP fault
         if (!serviceResponse.hasError()) {
@@ -386,10 +792,10 @@ public class ConsumerGateway extends HttpServlet {
             responseStr = this.generateFault(serviceResponse.getErrorMessage());
         }
         // SOAP message doesn't have attachments
-        if (!SOAPHelper.hasAttachments(serviceResponse.getSoapMessage())) {
+        if (!hasAttachments(serviceResponse)) {
             // Convert the response according to content type and remove
             // response tag if possible
-            responseStr = handleResponseBody(response, responseStr);
+            responseStr = handleResponseBody(response, responseStr, projection);
         } else {
             // SOAP message has attachments. Use attachment's
             // content type.
@@ -401,65 +807,463 @@ public class ConsumerGateway extends HttpServlet {
     }
 
     /**
-     * Checks the content type and tries to convert the response accordingly. In
-     * addition, the method tries to remove the response tag and its namespace
-     * prefixes from the response string.
+     * Checks the content type and tries to remove the response tag and its
+     * namespace prefixes from the response string. The selected fields are
+     * copied while the tag is removed. JSON responses are returned as XML,
+     * they're converted and their fields are selected when the response is
+     * written.
      *
      * @param response HttpServletResponse object
      * @param responseStr response message as a String
+     * @param projection selected fields or null
      * @return modified response message as a String
      */
-    private String handleResponseBody(HttpServletResponse response, String responseStr) {
-        // If content type is JSON and the SOAP message doesn't have
-        // attachments, the response must be converted
-        if (response.getContentType().startsWith(Constants.APPLICATION_JSON)) {
-            logger.debug("Convert response from XML to JSON.");
-            // Remove response tag and its namespace prefixes 
-            String tmp = ConsumerGatewayUtil.removeResponseTag(responseStr);
-            return new XMLToJSONConverter().convert(tmp);
+    private String handleResponseBody(HttpServletResponse response, String responseStr, FieldProjection projection) {
+        if (isJson(response.getContentType())) {
+            // Response tag is removed and the response is converted to JSON
+            // while it's written
+            return responseStr;
         } else if (response.getContentType().startsWith(Constants.TEXT_XML)) {
-            // Remove response tag and its namespace prefixes
-            String responseStrTemp = ConsumerGatewayUtil.removeResponseTag(responseStr);
-            // Try to convert modified response to SOAP element
-            if (SOAPHelper.xmlStrToSOAPElement(responseStrTemp) != null) {
+            // Remove response tag and its namespace prefixes. The result is
+            // checked while removing the tag, no need to parse it again.
+            ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap(responseStr, projection);
+            if (result.isWellFormed()) {
                 logger.debug("Response tag was removed from the response string.");
-                // If conversion succeeded response tag was only
+                // If the result is well-formed response tag was only
                 // a wrapper that can be removed
-                return responseStrTemp;
+                return result.getContent();
             } else {
                 logger.debug("Response tag is the root element and cannot be removed.");
+                return result.getMessage();
             }
         }
         return responseStr;
     }
 
     /**
-     * Sends the response to the requester.
+     * Sends an error response to the requester. The bodies of the fixed error
+     * messages are encoded in advance, so they're written as they are.
+     *
+     * @param response HttpServletResponse object
+     * @param error error message
+     * @param contentType content type of the response
+     */
+    private void writeError(HttpServletResponse response, String error, String contentType) {
+        try {
+            logger.debug("Send error response.");
+            ResponseBodyWriter.write(response, getErrorBody(error, contentType, response.getCharacterEncoding()));
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            logger.debug("Request was successfully processed.");
+        }
+    }
+
+    /**
+     * Sends the response to the requester. If URL rewriter is given, the URLs
+     * are rewritten while the response is written. If content encoding is
+     * given, the response is compressed while it's written. The response is
+     * encoded to bytes once and sent with Content-Length, unless it's larger
+     * than the max size of the response buffer. If the reader of the response
+     * data is given, the response tag is removed and the fields are selected
+     * while the response data is read from the security server.
      *
      * @param response HttpServletResponse object
-     * @param responseStr response payload as a String
+     * @param responseStr response payload as a String, used if the reader of
+     * the response data is not given
+     * @param responseBody reader of the response data or null
+     * @param projection fields that are written or null, used if the reader
+     * of the response data is given
+     * @param urlRewriter URL rewriter or null
+     * @param servletUrl URL of this servlet, used if URL rewriter is given
+     * @param contentEncoding content encoding or null
+     * @param captureBody is the encoded body returned
+     * @return encoded body, if it was captured and the response was sent
+     * successfully; otherwise null
      */
-    private void writeResponse(HttpServletResponse response, String responseStr) {
-        PrintWriter out = null;
+    private byte[] writeResponse(HttpServletResponse response, String responseStr, XMLStreamReader responseBody, FieldProjection projection, UrlRewriter urlRewriter, String servletUrl, String contentEncoding, boolean captureBody) {
+        Writer out = null;
         try {
             logger.debug("Send response.");
 
             logger.debug("Response content type : \"{}\".", response.getContentType());
             // Get writer
-            out = response.getWriter();
+            ResponseBodyWriter bodyWriter = this.getResponseBodyWriter(response, contentEncoding);
+            bodyWriter.setCaptureBody(captureBody);
+            out = getResponseWriter(bodyWriter, urlRewriter, servletUrl);
             // Send response
-            out.println(responseStr);
-            logger.trace("Consumer Gateway response : \"{}\"", responseStr);
+            if (responseBody != null) {
+                ResponseUnwrapper.write(responseBody, projection, out);
+            } else {
+                out.write(responseStr);
+                logger.trace("Consumer Gateway response : \"{}\"", responseStr);
+            }
+            out.close();
+            return bodyWriter.getBody();
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
+            return null;
         } finally {
-            if (out != null) {
-                out.close();
+            close(out);
+            logger.debug("Request was successfully processed.");
+        }
+    }
+
+    /**
+     * Converts the XML response to JSON and sends it to the requester. The
+     * JSON is written directly to the output stream of the response, no JSON
+     * string is created. If URL rewriter is given, the URLs are rewritten
+     * while the JSON is written. If content encoding is given, the JSON is
+     * compressed while it's written. If the reader of the response data is
+     * given, the JSON is written while the response data is read from the
+     * security server.
+     *
+     * @param response HttpServletResponse object
+     * @param responseStr XML response payload as a String, used if the
+     * reader of the response data is not given
+     * @param responseBody reader of the response data or null
+     * @param projection fields that are written or null
+     * @param urlRewriter URL rewriter or null
+     * @param servletUrl URL of this servlet, used if URL rewriter is given
+     * @param contentEncoding content encoding or null
+     * @param captureBody is the encoded body returned
+     * @return encoded body, if it was captured and the response was sent
+     * successfully; otherwise null
+     */
+    private byte[] writeJsonResponse(HttpServletResponse response, String responseStr, XMLStreamReader responseBody, FieldProjection projection, UrlRewriter urlRewriter, String servletUrl, String contentEncoding, boolean captureBody) {
+        Writer out = null;
+        try {
+            logger.debug("Convert response from XML to JSON and send response.");
+
+            logger.debug("Response content type : \"{}\".", response.getContentType());
+            // Get writer that encodes the response using the character set
+            // of the content type
+            ResponseBodyWriter bodyWriter = this.getResponseBodyWriter(response, contentEncoding);
+            bodyWriter.setCaptureBody(captureBody);
+            out = new BufferedWriter(getResponseWriter(bodyWriter, urlRewriter, servletUrl));
+            // Send response
+            if (responseBody != null) {
+                XMLToJSONWriter.write(responseBody, projection, out);
+            } else {
+                XMLToJSONWriter.write(responseStr, projection, out);
+            }
+            out.close();
+            return bodyWriter.getBody();
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        } finally {
+            close(out);
+            logger.debug("Request was successfully processed.");
+        }
+    }
+
+    /**
+     * Converts the XML response to NDJSON and sends it to the requester. Each
+     * record is written on its own line and the output stream is flushed
+     * after each line, so Content-Length is not set and the body is never
+     * captured. If URL rewriter is given, the URLs are rewritten while the
+     * lines are written. If content encoding is given, the lines are
+     * compressed and each flush sends the lines written so far. If the reader
+     * of the response data is given, each record is written as soon as it
+     * has been read from the security server.
+     *
+     * @param response HttpServletResponse object
+     * @param responseStr XML response payload as a String, used if the
+     * reader of the response data is not given
+     * @param responseBody reader of the response data or null
+     * @param projection fields that are written or null
+     * @param urlRewriter URL rewriter or null
+     * @param servletUrl URL of this servlet, used if URL rewriter is given
+     * @param contentEncoding content encoding or null
+     */
+    private void writeNdjsonResponse(HttpServletResponse response, String responseStr, XMLStreamReader responseBody, FieldProjection projection, UrlRewriter urlRewriter, String servletUrl, String contentEncoding) {
+        Writer out = null;
+        try {
+            logger.debug("Convert response from XML to NDJSON and send response.");
+
+            logger.debug("Response content type : \"{}\".", response.getContentType());
+            ResponseBodyWriter bodyWriter = this.getResponseBodyWriter(response, contentEncoding);
+            bodyWriter.startStreaming();
+            out = new BufferedWriter(getResponseWriter(bodyWriter, urlRewriter, servletUrl));
+            // Send response
+            int lines;
+            if (responseBody != null) {
+                lines = XMLToNDJSONWriter.write(responseBody, projection, out);
+            } else {
+                lines = XMLToNDJSONWriter.write(responseStr, projection, out);
+            }
+            logger.debug("{} lines sent.", lines);
+            out.close();
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            close(out);
+            logger.debug("Request was successfully processed.");
+        }
+    }
+
+    /**
+     * Sends the given SOAP attachment to the requester as it is. The raw
+     * content is copied to the output stream of the response, it's not
+     * decoded to characters. If content encoding is given, the attachment is
+     * compressed while it's written.
+     *
+     * @param response HttpServletResponse object
+     * @param attachment SOAP attachment
+     * @param contentEncoding content encoding or null
+     */
+    private void writeAttachment(HttpServletResponse response, AttachmentPart attachment, String contentEncoding) {
+        try {
+            logger.debug("Send SOAP attachment as response.");
+            long count = AttachmentWriter.write(attachment, response, this.responseCompression, contentEncoding);
+            logger.debug("{} bytes of attachment sent.", count);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            logger.debug("Request was successfully processed.");
+        }
+    }
+
+    /**
+     * Sends the given SOAP attachment to the requester as it is while it's
+     * read from the security server. The raw content is copied from the
+     * connection to the output stream of the response, it's not decoded to
+     * characters or held in memory. If content encoding is given, the
+     * attachment is compressed while it's written.
+     *
+     * @param response HttpServletResponse object
+     * @param attachment SOAP attachment that's read from the security server
+     * @param contentEncoding content encoding or null
+     */
+    private void writeAttachment(HttpServletResponse response, ResponseAttachment attachment, String contentEncoding) {
+        try {
+            logger.debug("Send SOAP attachment as response.");
+            long count = AttachmentWriter.write(attachment.getRawContent(), attachment.getContentType(), attachment.getMimeHeader(AttachmentWriter.CONTENT_TRANSFER_ENCODING),
+                    attachment.getSize(), response, this.responseCompression, contentEncoding);
+            logger.debug("{} bytes of attachment sent.", count);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            logger.debug("Request was successfully processed.");
+        }
+    }
+
+    /**
+     * Returns the SOAP attachment, if it's read from the connection to the
+     * security server while it's passed through to the client. Otherwise
+     * null is returned.
+     *
+     * @param serviceResponse ServiceResponse object
+     * @return SOAP attachment or null
+     */
+    private static ResponseAttachment getResponseAttachment(ServiceResponse serviceResponse) {
+        Object responseData = serviceResponse.getResponseData();
+        return responseData instanceof ResponseAttachment ? (ResponseAttachment) responseData : null;
+    }
+
+    /**
+     * Returns the reader of the response data, if the response data is read
+     * from the connection to the security server while the response is
+     * written. Otherwise null is returned.
+     *
+     * @param serviceResponse ServiceResponse object
+     * @return reader of the response data or null
+     */
+    private static XMLStreamReader getResponseBody(ServiceResponse serviceResponse) {
+        Object responseData = serviceResponse.getResponseData();
+        return responseData instanceof XMLStreamReader ? (XMLStreamReader) responseData : null;
+    }
+
+    /**
+     * Returns true if the given response has SOAP attachments. Responses that
+     * were read using SOAPResponseReader don't have a SOAP message and never
+     * have attachments.
+     *
+     * @param serviceResponse ServiceResponse object
+     * @return true if the response has attachments; otherwise false
+     */
+    private static boolean hasAttachments(ServiceResponse serviceResponse) {
+        return serviceResponse.getSoapMessage() != null && SOAPHelper.hasAttachments(serviceResponse.getSoapMessage());
+    }
+
+    /**
+     * Returns true if SOAP attachments of the given endpoint's responses are
+     * passed through to the client as they are. Encrypted attachments must
+     * be decrypted and URLs can be rewritten only if the attachment is
+     * converted to string.
+     *
+     * @param endpoint ConsumerEndpoint object
+     * @return true if attachments are passed through; otherwise false
+     */
+    private static boolean isAttachmentPassthrough(ConsumerEndpoint endpoint) {
+        return !endpoint.isResponseEncrypted() && !endpoint.isModifyUrl();
+    }
+
+    /**
+     * Returns the content encoding that's used for compressing the response,
+     * or null if the response is not compressed. Compression must be enabled
+     * for the endpoint, the content type must be textual and the client must
+     * accept gzip or deflate encoding. Vary header is set for compressible
+     * responses, because their encoding depends on Accept-Encoding header.
+     *
+     * @param request HttpServletRequest object
+     * @param response HttpServletResponse object
+     * @param endpoint ConsumerEndpoint object
+     * @param contentType content type of the response
+     * @return content encoding or null
+     */
+    private String getContentEncoding(HttpServletRequest request, HttpServletResponse response, ConsumerEndpoint endpoint, String contentType) {
+        if (!this.responseCompression.isEnabled() || !endpoint.isCompressResponse() || !ResponseCompression.isCompressible(contentType)) {
+            return null;
+        }
+        response.addHeader("Vary", "Accept-Encoding");
+        return ResponseCompression.negotiate(request.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Returns a writer that encodes the response using the character set of
+     * the content type. If content encoding is given, the response is
+     * compressed using it, unless it's smaller than the minimum size of
+     * compression. Responses that are sent uncompressed get Content-Length
+     * in both cases.
+     *
+     * @param response HttpServletResponse object
+     * @param contentEncoding content encoding or null
+     * @return writer
+     */
+    private ResponseBodyWriter getResponseBodyWriter(HttpServletResponse response, String contentEncoding) {
+        if (contentEncoding == null) {
+            return new ResponseBodyWriter(response, this.responseBufferMaxSize);
+        }
+        return new ResponseBodyWriter(response, this.responseCompression.getOutputStream(response, contentEncoding), this.responseBufferMaxSize);
+    }
+
+    /**
+     * Sends the given cached response to the requester. The body is written
+     * as it is, or compressed if the requester accepts it.
+     *
+     * @param request HttpServletRequest object
+     * @param response HttpServletResponse object
+     * @param endpoint ConsumerEndpoint object
+     * @param cachedResponse cached response
+     */
+    private void writeCachedResponse(HttpServletRequest request, HttpServletResponse response, ConsumerEndpoint endpoint, CachedResponse cachedResponse) {
+        try {
+            logger.debug("Send cached response.");
+            response.setContentType(cachedResponse.getContentType());
+            String contentEncoding = this.getContentEncoding(request, response, endpoint, cachedResponse.getContentType());
+            if (contentEncoding == null) {
+                ResponseBodyWriter.write(response, cachedResponse.getBody());
+            } else {
+                try (OutputStream out = this.responseCompression.getOutputStream(response, contentEncoding)) {
+                    out.write(cachedResponse.getBody());
+                }
             }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        } finally {
             logger.debug("Request was successfully processed.");
         }
     }
 
+    /**
+     * Returns the response cache of the given endpoint, or null if the
+     * responses are not cached. Only GET requests are cached.
+     *
+     * @param request HttpServletRequest object
+     * @param endpoint ConsumerEndpoint object
+     * @return response cache or null
+     */
+    private ResponseCache getResponseCache(HttpServletRequest request, ConsumerEndpoint endpoint) {
+        if (this.responseCaches.isEmpty() || !"GET".equals(request.getMethod())) {
+            return null;
+        }
+        return this.responseCaches.get(endpoint);
+    }
+
+    /**
+     * Returns the request coalescer of the given endpoint, or null if the
+     * requests are not coalesced. Only GET requests are coalesced.
+     *
+     * @param request HttpServletRequest object
+     * @param endpoint ConsumerEndpoint object
+     * @return request coalescer or null
+     */
+    private RequestCoalescer getRequestCoalescer(HttpServletRequest request, ConsumerEndpoint endpoint) {
+        if (this.requestCoalescers.isEmpty() || !"GET".equals(request.getMethod())) {
+            return null;
+        }
+        return this.requestCoalescers.get(endpoint);
+    }
+
+    /**
+     * Creates the key of the given request that's used by the response
+     * cache and the request coalescer. The key consists of the X-Road service
+     * id, resource id, request parameters, Accept header, the namespace
+     * headers and the selected fields. UserId is part of the key if it's
+     * configured for the endpoint, and the servlet URL if the URLs of the
+     * response are rewritten.
+     *
+     * @param request HttpServletRequest object
+     * @param match RouteMatch of the request
+     * @param parameters filtered request parameters
+     * @param accept processed Accept header
+     * @param userId userId of the request
+     * @param namespace namespace header or null
+     * @param prefix namespace prefix header or null
+     * @param projection selected fields or null
+     * @return cache key
+     */
+    private String createRequestKey(HttpServletRequest request, RouteMatch match, Map<String, String[]> parameters, String accept, String userId, String namespace, String prefix, FieldProjection projection) {
+        ConsumerEndpoint endpoint = match.getEndpoint();
+        CacheKeyBuilder builder = new CacheKeyBuilder()
+                .append(endpoint.getServiceId())
+                .append(match.getResourceId())
+                .append(parameters)
+                .append(accept)
+                .append(namespace)
+                .append(prefix)
+                .append(projection == null ? null : projection.toString());
+        if (endpoint.isCacheKeyByUserId()) {
+            builder.append(userId);
+        }
+        if (endpoint.isModifyUrl()) {
+            builder.append(this.getServletUrl(request));
+        }
+        return builder.build();
+    }
+
+    private static Writer getResponseWriter(Writer out, UrlRewriter urlRewriter, String servletUrl) {
+        if (urlRewriter == null) {
+            return out;
+        }
+        logger.debug("Rewrite URLs \"http(s)://{}\" in the response to point Consumer Gateway \"{}\".", urlRewriter.getResourcePath(), servletUrl);
+        return urlRewriter.wrap(out, servletUrl);
+    }
+
+    private static void close(Closeable out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns the URL rewriter of the given endpoint. Rewriters of the
+     * configured endpoints are compiled when the servlet is initialized.
+     *
+     * @param endpoint ConsumerEndpoint object
+     * @return URL rewriter
+     */
+    private UrlRewriter getUrlRewriter(ConsumerEndpoint endpoint) {
+        UrlRewriter rewriter = this.urlRewriters.get(endpoint);
+        return rewriter != null ? rewriter : new UrlRewriter(endpoint.getResourcePath());
+    }
+
     /**
      * Handles the HTTP <code>GET</code> method.
      *
@@ -516,9 +1320,19 @@ public class ConsumerGateway extends HttpServlet {
         processRequest(request, response);
     }
 
-    private String generateError(String errorMsg, String contentType) {
+    /**
+     * Returns true if the given content type is JSON or NDJSON.
+     *
+     * @param contentType content type
+     * @return true if the content type is JSON; otherwise false
+     */
+    private static boolean isJson(String contentType) {
+        return contentType.startsWith(Constants.APPLICATION_JSON) || contentType.startsWith(Constants.APPLICATION_NDJSON);
+    }
+
+    private static String generateError(String errorMsg, String contentType) {
         StringBuilder builder = new StringBuilder();
-        if (contentType.startsWith(Constants.APPLICATION_JSON)) {
+        if (isJson(contentType)) {
             builder.append("{\"error\":\"").append(errorMsg).append("\"}");
         } else {
             builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
@@ -527,6 +1341,37 @@ public class ConsumerGateway extends HttpServlet {
         return builder.toString();
     }
 
+    /**
+     * Returns the encoded body of the given error message. Bodies of the
+     * fixed error messages are encoded in advance using UTF-8, and they're
+     * used if the response is encoded using UTF-8.
+     *
+     * @param errorMsg error message
+     * @param contentType content type of the response
+     * @param charset character set of the response
+     * @return encoded error body
+     * @throws UnsupportedEncodingException if the character set is not
+     * supported
+     */
+    private static byte[] getErrorBody(String errorMsg, String contentType, String charset) throws UnsupportedEncodingException {
+        boolean json = isJson(contentType);
+        if (StandardCharsets.UTF_8.name().equalsIgnoreCase(charset)) {
+            byte[] body = json ? JSON_ERROR_BODIES.get(errorMsg) : XML_ERROR_BODIES.get(errorMsg);
+            if (body != null) {
+                return body;
+            }
+        }
+        return generateError(errorMsg, contentType).getBytes(charset);
+    }
+
+    private static Map<String, byte[]> createErrorBodies(String contentType) {
+        Map<String, byte[]> bodies = new HashMap<>();
+        for (String errorMsg : new String[]{Constants.ERROR_404, Constants.ERROR_413, Constants.ERROR_500}) {
+            bodies.put(errorMsg, generateError(errorMsg, contentType).getBytes(StandardCharsets.UTF_8));
+        }
+        return bodies;
+    }
+
     private String generateFault(ErrorMessage err) {
         StringBuilder builder = new StringBuilder();
         builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
@@ -567,23 +1412,80 @@ public class ConsumerGateway extends HttpServlet {
     }
 
     /**
-     * Checks if URL parameter (1) or HTTP header (2) with the given name exists
-     * and returns its value. If no URL parameter or HTTP header is found, null
-     * is returned. URL parameters are the primary source, and HTTP headers
-     * secondary source.
+     * Returns the value of the given X-Road header without reading the
+     * request body. Checks if URL parameter (1) or HTTP header (2) with the
+     * given name exists and returns its value. If no URL parameter or HTTP
+     * header is found, null is returned. The URL parameter is read from the
+     * query string, because getParameter would parse form bodies without a
+     * size limit.
      *
      * @param request HTTP request
      * @param header name of the header
-     * @return value of the header
+     * @return value of the header or null
      */
-    private String getXRdHeader(HttpServletRequest request, String header) {
-        String headerValue = request.getParameter(header);
+    private String getXRdHeaderBeforeBody(HttpServletRequest request, String header) {
+        String headerValue = ConsumerGatewayUtil.getQueryParameter(request.getQueryString(), header);
         if (headerValue != null && !headerValue.isEmpty()) {
             return headerValue;
         }
         return request.getHeader(header);
     }
 
+    /**
+     * Returns the value of the Content-Length header of the request.
+     *
+     * @param request HTTP request
+     * @return content length or -1 if it's not known
+     */
+    private static long getContentLength(HttpServletRequest request) {
+        String value = request.getHeader("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns true if the request has a body, i.e. it has a positive
+     * Content-Length or it's sent using a transfer encoding.
+     *
+     * @param request HTTP request
+     * @return true if the request has a body; otherwise false
+     */
+    private static boolean hasRequestBody(HttpServletRequest request) {
+        return getContentLength(request) > 0 || request.getHeader("Transfer-Encoding") != null;
+    }
+
+    /**
+     * Sends an error response without reading the request body. If the
+     * request has a body, the connection is closed after the response, so
+     * that the container doesn't have to read the unread body before the
+     * connection can be reused.
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param status HTTP status code
+     * @param error error message
+     * @throws IOException if writing the response fails
+     */
+    private void reject(HttpServletRequest request, HttpServletResponse response, int status, String error) throws IOException {
+        String acceptHeader = this.getXRdHeaderBeforeBody(request, Constants.HTTP_HEADER_ACCEPT);
+        String accept = processAcceptHeader(acceptHeader == null ? Constants.TEXT_XML : acceptHeader);
+        response.setContentType(accept);
+        response.addHeader(Constants.XRD_HEADER_USER_ID, processUserId(this.getXRdHeaderBeforeBody(request, Constants.XRD_HEADER_USER_ID)));
+        response.addHeader(Constants.XRD_HEADER_MESSAGE_ID, processMessageId(this.getXRdHeaderBeforeBody(request, Constants.XRD_HEADER_MESSAGE_ID)));
+        response.setStatus(status);
+        if (hasRequestBody(request)) {
+            response.setHeader("Connection", "close");
+        }
+        logger.info("Request rejected. Method : \"{}\". Status : {}.", request.getMethod(), status);
+        this.writeError(response, error, accept);
+    }
+
     /**
      * Removes all the X-Road specific HTTP and SOAP headers from the request
      * parameters map. This method must be called before writing the parameters
@@ -592,7 +1494,7 @@ public class ConsumerGateway extends HttpServlet {
      * @param parameters HTTP request parameters map
      * @return filtered parameters map
      */
-    private Map filterRequestParameters(Map<String, String[]> parameters) {
+    private Map<String, String[]> filterRequestParameters(Map<String, String[]> parameters) {
         // Request parameters map is unmodifiable so we need to copy it
         Map<String, String[]> params = new HashMap<>(parameters);
         // Remove X-Road headers
@@ -601,42 +1503,104 @@ public class ConsumerGateway extends HttpServlet {
         params.remove(Constants.XRD_HEADER_NAMESPACE_SERIALIZE);
         params.remove(Constants.XRD_HEADER_NAMESPACE_PREFIX_SERIALIZE);
         params.remove(Constants.HTTP_HEADER_ACCEPT);
+        params.remove(Constants.XRD_HEADER_FIELDS);
         // Return copied parameters Map
         return params;
     }
 
     /**
-     * Reads the request body from the request and returns it as a String.
+     * Returns the request parameters without the X-Road headers. Parameters
+     * are read from the query string and from the body of form requests. Form
+     * bodies are read with the given max size, so a form body sent using
+     * chunked transfer encoding can't exceed it either.
+     *
+     * @param request HTTP request
+     * @param maxSize max size of the body in bytes, zero means no limit
+     * @return filtered parameters map
+     * @throws RequestBodyTooLargeException if the form body exceeds the max
+     * size
+     */
+    private Map<String, String[]> readRequestParameters(HttpServletRequest request, long maxSize) throws RequestBodyTooLargeException {
+        Map<String, String[]> parameters = new HashMap<>();
+        ConsumerGatewayUtil.addParameters(parameters, request.getQueryString(), StandardCharsets.UTF_8);
+        if (isFormRequest(request)) {
+            try (RequestBody body = RequestBody.read(request.getInputStream(), this.requestBodyMemoryThreshold, this.tempDir, maxSize)) {
+                logger.debug("Form body read. Size : {} bytes.", body.getSize());
+                ConsumerGatewayUtil.addParameters(parameters, body.toString(this.getCharset(request)), this.getCharset(request));
+            } catch (RequestBodyTooLargeException e) {
+                throw e;
+            } catch (Exception e) {
+                logger.error("Failed to read the form body from the request.", e);
+            }
+        }
+        return this.filterRequestParameters(parameters);
+    }
+
+    /**
+     * Returns true if the request has an URL encoded form body.
+     *
+     * @param request HTTP request
+     * @return true if the content type of the request is form; otherwise
+     * false
+     */
+    private static boolean isFormRequest(HttpServletRequest request) {
+        String contentType = request.getHeader(Constants.HTTP_HEADER_CONTENT_TYPE);
+        return contentType != null && contentType.toLowerCase().startsWith(Constants.APPLICATION_X_WWW_FORM_URLENCODED);
+    }
+
+    /**
+     * Reads the request body from the request. Bodies that exceed the given
+     * max size are rejected, also when the request has no Content-Length.
      *
      * @param request HttpServletRequest that contains the request body
-     * @return request body as a String or null
+     * @param maxSize max size of the body in bytes, zero means no limit
+     * @return request body or null
+     * @throws RequestBodyTooLargeException if the body exceeds the max size
      */
-    private String readRequestBody(HttpServletRequest request) {
+    private RequestBody readRequestBody(HttpServletRequest request, long maxSize) throws RequestBodyTooLargeException {
         try {
-            // Read from request
-            StringBuilder buffer = new StringBuilder();
-            BufferedReader reader = request.getReader();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                buffer.append(line);
-            }
-            return buffer.toString();
+            // Read from request. Large bodies are written to a temporary
+            // file instead of keeping them in memory.
+            RequestBody body = RequestBody.read(request.getInputStream(), this.requestBodyMemoryThreshold, this.tempDir, maxSize);
+            logger.debug("Request body read. Size : {} bytes. Written to disk : {}.", body.getSize(), body.isSpilled());
+            return body;
+        } catch (RequestBodyTooLargeException e) {
+            throw e;
         } catch (Exception e) {
             logger.error("Failed to read the request body from the request.", e);
         }
         return null;
     }
 
+    /**
+     * Returns the character set of the request body. If the request does not
+     * define character encoding or it's not supported, UTF-8 is used.
+     *
+     * @param request HTTP servlet request
+     * @return character set of the request body
+     */
+    private Charset getCharset(HttpServletRequest request) {
+        String encoding = request.getCharacterEncoding();
+        if (encoding != null) {
+            try {
+                return Charset.forName(encoding);
+            } catch (IllegalArgumentException ex) {
+                logger.warn("Unsupported character encoding \"{}\". Use UTF-8.", encoding);
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
     /**
      * Serializes GET, POST, PUT and DELETE requests to SOAP.
      */
     private class RequestSerializer extends AbstractServiceRequestSerializer {
 
         protected final String resourceId;
-        protected final String requestBody;
+        protected final RequestBody requestBody;
         protected final String contentType;
 
-        public RequestSerializer(String resourceId, String requestBody, String contentType) {
+        public RequestSerializer(String resourceId, RequestBody requestBody, String contentType) {
             this.resourceId = resourceId;
             this.requestBody = requestBody;
             this.contentType = contentType;
@@ -647,7 +1611,9 @@ public class ConsumerGateway extends HttpServlet {
         protected void serializeRequest(ServiceRequest request, SOAPElement soapRequest, SOAPEnvelope envelope) throws SOAPException {
             handleBody(request, soapRequest);
             if (this.requestBody != null && !this.requestBody.isEmpty()) {
-                handleAttachment(request, soapRequest, envelope, this.requestBody);
+                // Stream request body to the attachment as bytes
+                DataHandler dataHandler = new DataHandler(this.requestBody.getDataSource(this.contentType));
+                handleAttachment(request, soapRequest, envelope, request.getSoapMessage().createAttachmentPart(dataHandler));
             }
         }
 
@@ -667,11 +1633,10 @@ public class ConsumerGateway extends HttpServlet {
             }
         }
 
-        protected void handleAttachment(ServiceRequest request, SOAPElement soapRequest, SOAPEnvelope envelope, String attachmentData) throws SOAPException {
+        protected void handleAttachment(ServiceRequest request, SOAPElement soapRequest, SOAPEnvelope envelope, AttachmentPart attachPart) throws SOAPException {
             logger.debug("Request body was found from the request. Add request body as SOAP attachment. Content type is \"{}\".", this.contentType);
             SOAPElement data = soapRequest.addChildElement(envelope.createName(Constants.PARAM_REQUEST_BODY));
             data.addAttribute(envelope.createName("href"), Constants.PARAM_REQUEST_BODY);
-            AttachmentPart attachPart = request.getSoapMessage().createAttachmentPart(attachmentData, this.contentType);
             attachPart.setContentId(Constants.PARAM_REQUEST_BODY);
             request.getSoapMessage().addAttachmentPart(attachPart);
 
@@ -682,9 +1647,11 @@ public class ConsumerGateway extends HttpServlet {
 
         private final Encrypter asymmetricEncrypter;
         private final int keyLength;
+        private final Charset charset;
 
-        public EncryptingRequestSerializer(String resourceId, String requestBody, String contentType, Encrypter asymmetricEncrypter, int keyLength) {
+        public EncryptingRequestSerializer(String resourceId, RequestBody requestBody, Charset charset, String contentType, Encrypter asymmetricEncrypter, int keyLength) {
             super(resourceId, requestBody, contentType);
+            this.charset = charset;
             this.asymmetricEncrypter = asymmetricEncrypter;
             this.keyLength = keyLength;
             logger.debug("New EncryptingRequestSerializer created.");
@@ -700,14 +1667,16 @@ public class ConsumerGateway extends HttpServlet {
                 handleBody(request, payload);
                 // Process request body 
                 if (this.requestBody != null && !this.requestBody.isEmpty()) {
-                    handleAttachment(request, payload, envelope, symmetricEncrypter.encrypt(this.requestBody));
+                    // Encryption requires the whole body as a String
+                    String encryptedBody = symmetricEncrypter.encrypt(this.requestBody.toString(this.charset));
+                    handleAttachment(request, payload, envelope, request.getSoapMessage().createAttachmentPart(encryptedBody, this.contentType));
                 }
                 // Encrypt message with symmetric AES encryption
                 String encryptedData = symmetricEncrypter.encrypt(SOAPHelper.toString(payload));
                 // Build message body that includes enrypted data,
                 // encrypted session key and IV
                 RESTGatewayUtil.buildEncryptedBody(symmetricEncrypter, asymmetricEncrypter, soapRequest, encryptedData);
-            } catch (NoSuchAlgorithmException ex) {
+            } catch (NoSuchAlgorithmException | IOException ex) {
                 logger.error(ex.getMessage(), ex);
                 throw new SOAPException("Encrypting SOAP request failed.", ex);
             }
@@ -720,9 +1689,11 @@ public class ConsumerGateway extends HttpServlet {
     private class ResponseDeserializer extends AbstractResponseDeserializer<Map, String> {
 
         protected boolean omitNamespace;
+        protected boolean attachmentPassthrough;
 
-        public ResponseDeserializer(boolean omitNamespace) {
+        public ResponseDeserializer(boolean omitNamespace, boolean attachmentPassthrough) {
             this.omitNamespace = omitNamespace;
+            this.attachmentPassthrough = attachmentPassthrough;
         }
 
         @Override
@@ -737,6 +1708,12 @@ public class ConsumerGateway extends HttpServlet {
 
             // If message has attachments, return the first attachment
             if (message.countAttachments() > 0) {
+                if (this.attachmentPassthrough) {
+                    // Attachment is written to the client from the message,
+                    // it's not converted to string
+                    logger.debug("SOAP attachment detected. Attachment is passed through as response.");
+                    return null;
+                }
                 logger.debug("SOAP attachment detected. Use attachment as response data.");
                 return SOAPHelper.toString((AttachmentPart) message.getAttachments().next());
             }
@@ -752,6 +1729,63 @@ public class ConsumerGateway extends HttpServlet {
         }
     }
 
+    /**
+     * Deserializes SOAP responses. Responses that don't have attachments are
+     * read using SOAPResponseReader, and the response data is the reader of
+     * the body: it's read directly from the connection input stream while
+     * the response is written, and namespaces are removed while it's read.
+     * No SOAP message or response string is created. If attachments are
+     * passed through, only the SOAP part of the response is parsed, and the
+     * response data is the first attachment that's read directly from the
+     * connection input stream while it's written. Otherwise responses that
+     * have attachments are deserialized to String.
+     */
+    private class StreamingDeserializer extends ResponseDeserializer implements StreamingResponseDeserializer {
+
+        public StreamingDeserializer(boolean omitNamespace, boolean attachmentPassthrough) {
+            super(omitNamespace, attachmentPassthrough);
+        }
+
+        @Override
+        public ServiceResponse deserialize(SOAPResponseReader reader, ServiceRequest request) throws SOAPException {
+            String id = reader.getHeader("id");
+            ServiceResponse<Map, Object> response = new ServiceResponse<>(request.getConsumer(), request.getProducer(), id == null ? request.getId() : id);
+            response.setUserId(reader.getHeader("userId"));
+            response.setProcessingWrappers(request.isProcessingWrappers());
+            if (this.omitNamespace) {
+                logger.debug("Remove namespaces from response.");
+            }
+            if (reader.isMultipart()) {
+                // SOAP part is read before the attachment, non-technical
+                // errors are detected while it's read
+                String responseData = reader.readBody(this.omitNamespace);
+                if (reader.hasError()) {
+                    response.setErrorMessage(reader.getErrorMessage());
+                    return response;
+                }
+                ResponseAttachment attachment = reader.openAttachment();
+                if (attachment != null) {
+                    logger.debug("SOAP attachment detected. Attachment is passed through as response.");
+                }
+                response.setResponseData(attachment != null ? attachment : responseData);
+                return response;
+            }
+            // Non-technical errors are detected when the body is opened
+            XMLStreamReader responseData = reader.openBody(this.omitNamespace);
+            if (reader.hasError()) {
+                response.setErrorMessage(reader.getErrorMessage());
+            } else {
+                response.setResponseData(responseData);
+            }
+            return response;
+        }
+
+        @Override
+        public boolean isStreamingAttachments() {
+            return this.attachmentPassthrough;
+        }
+    }
+
     /**
      * Deserializes SOAP responses to String.
      */
@@ -760,7 +1794,7 @@ public class ConsumerGateway extends HttpServlet {
         private final Decrypter asymmetricDecrypter;
 
         public EncryptingResponseDeserializer(boolean omitNamespace, Decrypter asymmetricDecrypter) {
-            super(omitNamespace);
+            super(omitNamespace, false);
             this.asymmetricDecrypter = asymmetricDecrypter;
             logger.debug("New EncryptingResponseDeserializer created.");
         }
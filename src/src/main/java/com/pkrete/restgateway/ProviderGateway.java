@@ -14,18 +14,26 @@ import com.pkrete.xrd4j.server.deserializer.AbstractCustomRequestDeserializer;
 import com.pkrete.xrd4j.server.deserializer.CustomRequestDeserializer;
 import com.pkrete.xrd4j.server.serializer.AbstractServiceResponseSerializer;
 import com.pkrete.xrd4j.server.serializer.ServiceResponseSerializer;
+import com.pkrete.restgateway.async.VirtualThreadDispatcher;
+import com.pkrete.restgateway.client.PooledRESTClient;
 import com.pkrete.restgateway.endpoint.ProviderEndpoint;
 import com.pkrete.restgateway.util.Constants;
 import com.pkrete.restgateway.util.ProviderGatewayUtil;
 import com.pkrete.restgateway.util.RESTGatewayUtil;
 import com.pkrete.xrd4j.common.security.Decrypter;
 import com.pkrete.xrd4j.common.security.Encrypter;
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.soap.AttachmentPart;
 import javax.xml.soap.Node;
 import javax.xml.soap.SOAPElement;
@@ -42,6 +50,13 @@ import org.slf4j.LoggerFactory;
  * the responses to the requesters. Responses can be converted from JSON to XML,
  * or they can be transmitted as SOAP attachments.
  *
+ * If virtual threads are enabled, each request is processed by a virtual
+ * thread of its own, and the container thread is released while the REST
+ * backend is called.
+ *
+ * Requests to the REST backends are sent using a pooled client per backend
+ * host, so connections are kept alive and reused between the requests.
+ *
  * @author Petteri Kivimäki
  */
 public class ProviderGateway extends AbstractAdapterServlet {
@@ -54,6 +69,8 @@ public class ProviderGateway extends AbstractAdapterServlet {
     private int keyLength;
     private String publicKeyFile;
     private String publicKeyFilePassword;
+    private VirtualThreadDispatcher virtualThreadDispatcher;
+    private Map<ProviderEndpoint, PooledRESTClient> restClients;
 
     @Override
     public void init() {
@@ -82,9 +99,84 @@ public class ProviderGateway extends AbstractAdapterServlet {
         if (ProviderGatewayUtil.checkPrivateKeyProperties(props, endpoints)) {
             this.asymmetricDecrypter = RESTGatewayUtil.checkPrivateKey(props);
         }
+        // Pooled REST clients are used unless the XRd4J clients are
+        // explicitly configured
+        if (Constants.PROVIDER_PROPS_BACKEND_CLIENT_XRD4J.equalsIgnoreCase(this.props.getProperty(Constants.PROVIDER_PROPS_BACKEND_CLIENT))) {
+            this.restClients = Collections.emptyMap();
+        } else {
+            this.restClients = ProviderGatewayUtil.createRESTClients(this.endpoints, this.props);
+        }
+        logger.debug("Pooled REST clients are used : {}.", !this.restClients.isEmpty());
+        this.virtualThreadDispatcher = VirtualThreadDispatcher.create(this.props, "provider-gateway-");
+        logger.debug("Virtual threads are used : {}.", this.virtualThreadDispatcher != null);
         logger.debug("Provider REST Gateway initialized.");
     }
 
+    @Override
+    public void destroy() {
+        if (this.virtualThreadDispatcher != null) {
+            this.virtualThreadDispatcher.close();
+        }
+        // Endpoints of the same host share the client
+        for (PooledRESTClient client : new HashSet<>(this.restClients.values())) {
+            client.close();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Processes the request in a virtual thread if virtual threads are enabled
+     * and the request supports async processing. Otherwise the request is
+     * processed in the calling thread.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (this.virtualThreadDispatcher != null && request.isAsyncSupported()) {
+            this.virtualThreadDispatcher.dispatch(request, response, new VirtualThreadDispatcher.Task() {
+                @Override
+                public void run(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+                    ProviderGateway.super.service(req, res);
+                }
+            });
+            return;
+        }
+        super.service(request, response);
+    }
+
+    /**
+     * Sends the request to the given endpoint using the pooled client of the
+     * backend host. If the endpoint doesn't have a pooled client, a new
+     * XRd4J REST client is created for the request.
+     *
+     * @param endpoint endpoint that's called
+     * @param requestBody request body or null
+     * @param params request parameters
+     * @param headers HTTP headers of the request
+     * @return response of the endpoint
+     * @throws SOAPException if sending the request fails
+     */
+    private ClientResponse send(ProviderEndpoint endpoint, String requestBody, Map<String, List<String>> params, Map<String, String> headers) throws SOAPException {
+        PooledRESTClient pooledClient = this.restClients.get(endpoint);
+        if (pooledClient == null) {
+            // Create a REST client, endpoint's HTTP verb defines the type
+            // of the client that's returned
+            RESTClient restClient = RESTClientFactory.createRESTClient(endpoint.getHttpVerb());
+            return restClient.send(endpoint.getUrl(), requestBody, params, headers);
+        }
+        try {
+            return pooledClient.send(endpoint.getHttpVerb(), endpoint.getUrl(), requestBody, params, headers);
+        } catch (IOException ex) {
+            throw new SOAPException("Sending request to \"" + endpoint.getUrl() + "\" failed.", ex);
+        } finally {
+            logger.debug("Connection pool of \"{}\" : {}", pooledClient.getHost(), pooledClient.getStats());
+        }
+    }
+
     /**
      * Must return the absolute path of the WSDL file.
      *
@@ -152,13 +244,10 @@ public class ProviderGateway extends AbstractAdapterServlet {
         // Get HTTP headers for the request
         Map<String, String> headers = ProviderGatewayUtil.generateHttpHeaders(request, endpoint);
         logger.debug("Fetch data from service...");
-        // Create a REST client, endpoint's HTTP verb defines the type
-        // of the client that's returned
-        RESTClient restClient = RESTClientFactory.createRESTClient(endpoint.getHttpVerb());
         // Get request body
         String requestBody = ProviderGatewayUtil.getRequestBody((Map<String, List<String>>) request.getRequestData());
         // Send request to the service endpoint
-        ClientResponse restResponse = restClient.send(endpoint.getUrl(), requestBody, (Map<String, List<String>>) request.getRequestData(), headers);
+        ClientResponse restResponse = this.send(endpoint, requestBody, (Map<String, List<String>>) request.getRequestData(), headers);
         logger.debug("...done!");
 
         String data = restResponse.getData();
@@ -0,0 +1,160 @@
+package com.pkrete.restgateway.async;
+
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.xrd4j.common.util.MessageHelper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class processes each request in a virtual thread of its own. The
+ * request is put to asynchronous mode using Servlet 3.0 async support and the
+ * processing is handed over to a new virtual thread, so that the container
+ * thread is released right away and it can accept new requests. The async
+ * context is completed by the virtual thread when the processing is done.
+ *
+ * The virtual thread blocks for the whole processing, including the security
+ * server or REST backend call, but a blocked virtual thread doesn't hold a
+ * platform thread. Therefore the number of requests in progress is not
+ * limited by the size of the container thread pool.
+ *
+ * @author Petteri Kivimäki
+ */
+public class VirtualThreadDispatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadDispatcher.class);
+
+    private final ExecutorService executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Constructs and initializes a new VirtualThreadDispatcher object that
+     * uses the given executor. The executor is shut down when the dispatcher
+     * is closed.
+     *
+     * @param executor executor that processes the requests
+     */
+    public VirtualThreadDispatcher(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a new VirtualThreadDispatcher that's configured using the given
+     * properties. If virtual threads are not enabled or the Java runtime
+     * doesn't support them, null is returned and the requests are processed
+     * in the container threads.
+     *
+     * @param props gateway properties
+     * @param namePrefix prefix of the virtual thread names
+     * @return new VirtualThreadDispatcher or null
+     */
+    public static VirtualThreadDispatcher create(Properties props, String namePrefix) {
+        if (!MessageHelper.strToBool(props.getProperty(Constants.PROPS_VIRTUAL_THREADS, "false"))) {
+            return null;
+        }
+        ExecutorService executor = WorkerExecutors.newVirtualThreadExecutor(namePrefix);
+        if (executor == null) {
+            logger.warn("Virtual threads are not supported by the Java runtime {}. Requests are processed in container threads.", System.getProperty("java.version"));
+            return null;
+        }
+        logger.info("Virtual thread executor created.");
+        return new VirtualThreadDispatcher(executor);
+    }
+
+    /**
+     * Puts the given request to asynchronous mode and processes it using the
+     * given task. The async context is completed after the task has been run
+     * even if the task fails.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @param task task that processes the request
+     */
+    public void dispatch(HttpServletRequest request, HttpServletResponse response, final Task task) {
+        final AsyncContext context = request.startAsync(request, response);
+        // The security server call is bounded by the client timeouts, so
+        // the container must not time out the request
+        context.setTimeout(0);
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                process(context, task);
+            }
+        };
+        try {
+            this.executor.execute(runnable);
+        } catch (RejectedExecutionException ex) {
+            // Executor has been shut down
+            logger.debug("Virtual thread executor is shut down. Process request in the calling thread.");
+            runnable.run();
+        }
+    }
+
+    private void process(AsyncContext context, Task task) {
+        this.inFlight.incrementAndGet();
+        try {
+            task.run((HttpServletRequest) context.getRequest(), (HttpServletResponse) context.getResponse());
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+            HttpServletResponse response = (HttpServletResponse) context.getResponse();
+            if (!response.isCommitted()) {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            this.inFlight.decrementAndGet();
+            context.complete();
+        }
+    }
+
+    /**
+     * Returns the number of requests that are being processed.
+     *
+     * @return number of requests in progress
+     */
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * Shuts down the executor. Requests in progress are allowed to complete.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Virtual thread dispatcher closed.");
+    }
+
+    /**
+     * Processes a single request.
+     */
+    public interface Task {
+
+        /**
+         * Processes the given request and writes the response.
+         *
+         * @param request servlet request
+         * @param response servlet response
+         * @throws ServletException if a servlet-specific error occurs
+         * @throws IOException if an I/O error occurs
+         */
+        void run(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+    }
+}
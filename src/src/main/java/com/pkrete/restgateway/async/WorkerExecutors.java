@@ -0,0 +1,113 @@
+package com.pkrete.restgateway.async;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class creates the executors that process requests in virtual
+ * threads, so that each request gets a thread of its own.
+ *
+ * Virtual threads are available on Java 21 and later, but the project is
+ * built for Java 8. Therefore virtual threads are created using reflection
+ * and the availability is checked at runtime.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class WorkerExecutors {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkerExecutors.class);
+
+    /**
+     * Reflective access to virtual threads, or null if virtual threads are
+     * not supported by the runtime.
+     */
+    private static final VirtualThreadSupport VIRTUAL_THREADS = VirtualThreadSupport.load();
+
+    /**
+     * This a utility class providing only static methods which is why it should
+     * not be initiated.
+     */
+    private WorkerExecutors() {
+    }
+
+    /**
+     * Returns true if and only if the runtime supports virtual threads.
+     *
+     * @return true if virtual threads are supported; otherwise false
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. The
+     * threads are named using the given prefix. If virtual threads are not
+     * supported, null is returned.
+     *
+     * @param namePrefix prefix of the thread names
+     * @return new executor or null
+     */
+    public static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+        if (VIRTUAL_THREADS == null) {
+            return null;
+        }
+        try {
+            return VIRTUAL_THREADS.newExecutor(namePrefix);
+        } catch (ReflectiveOperationException ex) {
+            logger.error(ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Reflective access to Thread.ofVirtual() and
+     * Executors.newThreadPerTaskExecutor(ThreadFactory).
+     */
+    private static final class VirtualThreadSupport {
+
+        private final Method ofVirtual;
+        private final Method name;
+        private final Method factory;
+        private final Method newThreadPerTaskExecutor;
+
+        private VirtualThreadSupport(Method ofVirtual, Method name, Method factory, Method newThreadPerTaskExecutor) {
+            this.ofVirtual = ofVirtual;
+            this.name = name;
+            this.factory = factory;
+            this.newThreadPerTaskExecutor = newThreadPerTaskExecutor;
+        }
+
+        static VirtualThreadSupport load() {
+            try {
+                Method ofVirtual = Thread.class.getMethod("ofVirtual");
+                // Methods must be looked up from the public interface, the
+                // implementation class is not accessible
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Method name = builder.getMethod("name", String.class, long.class);
+                Method factory = builder.getMethod("factory");
+                Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return new VirtualThreadSupport(ofVirtual, name, factory, newThreadPerTaskExecutor);
+            } catch (ClassNotFoundException | NoSuchMethodException ex) {
+                logger.debug("Virtual threads are not supported.");
+                return null;
+            }
+        }
+
+        ExecutorService newExecutor(String namePrefix) throws ReflectiveOperationException {
+            try {
+                Object builder = this.ofVirtual.invoke(null);
+                builder = this.name.invoke(builder, namePrefix, 1L);
+                ThreadFactory threadFactory = (ThreadFactory) this.factory.invoke(builder);
+                return (ExecutorService) this.newThreadPerTaskExecutor.invoke(null, threadFactory);
+            } catch (InvocationTargetException ex) {
+                // Unwrap e.g. UnsupportedOperationException
+                throw new ReflectiveOperationException(ex.getCause());
+            }
+        }
+    }
+}
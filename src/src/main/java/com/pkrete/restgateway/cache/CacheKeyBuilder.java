@@ -0,0 +1,65 @@
+package com.pkrete.restgateway.cache;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class builds keys of the response cache. Every part of the key is
+ * prefixed with its length, so the key is unambiguous regardless of the
+ * characters that the parts contain. Null and empty parts are different.
+ * Request parameters are normalized: they're sorted by name and the order of
+ * the values of a parameter is preserved.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class CacheKeyBuilder {
+
+    private final StringBuilder key = new StringBuilder(128);
+
+    /**
+     * Appends the given part to the key.
+     *
+     * @param part part of the key or null
+     * @return this builder
+     */
+    public CacheKeyBuilder append(String part) {
+        if (part == null) {
+            this.key.append('-');
+        } else {
+            this.key.append(part.length()).append(':').append(part);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the given request parameters to the key.
+     *
+     * @param params request parameters or null
+     * @return this builder
+     */
+    public CacheKeyBuilder append(Map<String, String[]> params) {
+        if (params == null || params.isEmpty()) {
+            this.key.append('0');
+            return this;
+        }
+        this.key.append(params.size()).append('{');
+        for (Map.Entry<String, String[]> param : new TreeMap<>(params).entrySet()) {
+            this.append(param.getKey());
+            String[] values = param.getValue() == null ? new String[0] : param.getValue();
+            this.key.append(values.length).append('[');
+            for (String value : values) {
+                this.append(value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the key.
+     *
+     * @return key
+     */
+    public String build() {
+        return this.key.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package com.pkrete.restgateway.cache;
+
+/**
+ * This class represents a response that's stored in the response cache. The
+ * body is the final encoded body of the response before possible
+ * compression, and it's written to the client as it is. The objects are
+ * immutable and they're shared by all the request threads, so the body array
+ * must never be modified.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class CachedResponse {
+
+    private final String contentType;
+    private final byte[] body;
+    private final long expires;
+
+    /**
+     * Constructs and initializes a new CachedResponse object.
+     *
+     * @param contentType content type of the response
+     * @param body encoded body of the response
+     * @param expires expiration time in milliseconds
+     */
+    CachedResponse(String contentType, byte[] body, long expires) {
+        this.contentType = contentType;
+        this.body = body;
+        this.expires = expires;
+    }
+
+    /**
+     * Returns the content type of the response.
+     *
+     * @return content type
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the encoded body of the response.
+     *
+     * @return encoded body
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the expiration time of the response in milliseconds.
+     *
+     * @return expiration time in milliseconds
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * Returns true if the response is expired at the given time.
+     *
+     * @param now current time in milliseconds
+     * @return true if the response is expired; otherwise false
+     */
+    boolean isExpired(long now) {
+        return now >= this.expires;
+    }
+}
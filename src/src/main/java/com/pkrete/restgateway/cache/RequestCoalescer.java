@@ -0,0 +1,263 @@
+package com.pkrete.restgateway.cache;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class coalesces identical concurrent requests of an endpoint. The
+ * first request of a key is the leader that sends the request to the
+ * security server. Identical requests that arrive while the leader is in
+ * flight wait for the leader to complete and share its response, so only one
+ * security server round trip is made.
+ *
+ * The number of waiting requests per key is limited. Requests that exceed the
+ * limit are processed independently. Only successful responses are shared:
+ * if the leader fails or doesn't complete within the wait timeout, the
+ * waiting requests are processed independently too.
+ *
+ * All the operations are thread safe and lock free except waiting for the
+ * leader.
+ *
+ * @author Petteri Kivimäki
+ */
+public class RequestCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    /**
+     * Default maximum number of requests that wait for the same leader.
+     */
+    public static final int DEFAULT_MAX_WAITERS = 100;
+
+    private final int maxWaiters;
+    private final long waitTimeout;
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Constructs and initializes a new RequestCoalescer object.
+     *
+     * @param maxWaiters maximum number of requests that wait for the same
+     * leader, must be positive
+     * @param waitTimeout maximum time to wait for the leader in milliseconds,
+     * must be positive
+     */
+    public RequestCoalescer(int maxWaiters, long waitTimeout) {
+        if (maxWaiters <= 0 || waitTimeout <= 0) {
+            throw new IllegalArgumentException("Max waiters and wait timeout must be positive.");
+        }
+        this.maxWaiters = maxWaiters;
+        this.waitTimeout = waitTimeout;
+    }
+
+    /**
+     * Joins the flight of the given key. If no identical request is in
+     * flight, the caller becomes the leader and it must call complete when
+     * the response has been sent. Otherwise the caller must call await to
+     * get the response of the leader. If the waiter limit has been reached,
+     * null is returned and the request must be processed independently.
+     *
+     * @param key request key
+     * @return Call object or null
+     */
+    public Call join(String key) {
+        Flight flight = new Flight(key);
+        Flight existing = this.flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            this.leaders.incrementAndGet();
+            logger.trace("Request is the leader of a new flight.");
+            return new Call(flight, true);
+        }
+        if (!existing.addWaiter(this.maxWaiters)) {
+            this.rejected.incrementAndGet();
+            logger.debug("Max number of waiters ({}) reached. Request is processed independently.", this.maxWaiters);
+            return null;
+        }
+        logger.trace("Identical request is in flight. Wait for its response.");
+        return new Call(existing, false);
+    }
+
+    /**
+     * Completes the flight of the given leader and releases the waiting
+     * requests. If body is null, the leader failed and the waiting requests
+     * are processed independently. Calling this method on a waiting request
+     * has no effect.
+     *
+     * @param call Call object of the leader
+     * @param contentType content type of the response
+     * @param body encoded body of the response or null
+     */
+    public void complete(Call call, String contentType, byte[] body) {
+        if (!call.leader) {
+            return;
+        }
+        Flight flight = call.flight;
+        if (body != null) {
+            flight.response = new CachedResponse(contentType, body, Long.MAX_VALUE);
+        }
+        this.flights.remove(flight.key, flight);
+        flight.done.countDown();
+        logger.trace("Flight completed. {} requests were waiting.", flight.waiters.get());
+    }
+
+    /**
+     * Returns the number of flights in progress.
+     *
+     * @return number of flights in progress
+     */
+    public int getInFlight() {
+        return this.flights.size();
+    }
+
+    /**
+     * Returns the number of requests that were sent to the security server
+     * as leaders.
+     *
+     * @return number of leaders
+     */
+    public long getLeaders() {
+        return this.leaders.get();
+    }
+
+    /**
+     * Returns the number of requests that got the response of the leader
+     * and weren't sent to the security server.
+     *
+     * @return number of collapsed requests
+     */
+    public long getCollapsed() {
+        return this.collapsed.get();
+    }
+
+    /**
+     * Returns the number of requests that weren't coalesced, because the
+     * waiter limit was reached.
+     *
+     * @return number of rejected requests
+     */
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    /**
+     * Returns the number of waiting requests that were processed
+     * independently, because the leader failed or timed out.
+     *
+     * @return number of fallbacks
+     */
+    public long getFallbacks() {
+        return this.fallbacks.get();
+    }
+
+    /**
+     * Returns the maximum number of requests that wait for the same leader.
+     *
+     * @return maximum number of waiters
+     */
+    public int getMaxWaiters() {
+        return maxWaiters;
+    }
+
+    /**
+     * Returns the statistics as a String.
+     *
+     * @return statistics
+     */
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "inFlight=%d, leaders=%d, collapsed=%d, rejected=%d, fallbacks=%d",
+                this.flights.size(), this.leaders.get(), this.collapsed.get(), this.rejected.get(), this.fallbacks.get());
+    }
+
+    /**
+     * Request that takes part in a flight either as the leader or as a
+     * waiting request.
+     */
+    public final class Call {
+
+        private final Flight flight;
+        private final boolean leader;
+
+        private Call(Flight flight, boolean leader) {
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        /**
+         * Returns true if this request is the leader.
+         *
+         * @return true if this request is the leader; otherwise false
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Waits for the leader to complete and returns its response. If the
+         * leader failed or it didn't complete within the wait timeout, null
+         * is returned and the request must be processed independently.
+         *
+         * @return response of the leader or null
+         */
+        public CachedResponse await() {
+            if (this.leader) {
+                throw new IllegalStateException("Leader can't wait for itself.");
+            }
+            try {
+                if (!this.flight.done.await(waitTimeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Identical request didn't complete in {} ms. Request is processed independently.", waitTimeout);
+                    fallbacks.incrementAndGet();
+                    return null;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                fallbacks.incrementAndGet();
+                return null;
+            }
+            CachedResponse response = this.flight.response;
+            if (response == null) {
+                logger.debug("Identical request failed. Request is processed independently.");
+                fallbacks.incrementAndGet();
+            } else {
+                collapsed.incrementAndGet();
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Request of a key that's in flight.
+     */
+    private static class Flight {
+
+        private final String key;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger waiters = new AtomicInteger();
+        private volatile CachedResponse response;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        boolean addWaiter(int maxWaiters) {
+            while (true) {
+                int count = this.waiters.get();
+                if (count >= maxWaiters) {
+                    return false;
+                }
+                if (this.waiters.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.pkrete.restgateway.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class implements a bounded response cache of an endpoint. Responses
+ * are stored with a time to live, and the cache is bounded by the number of
+ * entries and by the estimated memory use of the entries.
+ *
+ * Entries are evicted using segmented LRU. New entries are added to the
+ * probationary segment, and an entry is moved to the protected segment when
+ * it's requested again. The protected segment is limited to
+ * PROTECTED_RATIO of the limits, and when it's full its least recently used
+ * entry is moved back to the probationary segment. When the cache is full,
+ * the least recently used entry of the probationary segment is evicted first,
+ * so entries that are requested only once don't push out the popular ones.
+ * Expired entries are removed when they're requested, and otherwise they're
+ * evicted like the other entries.
+ *
+ * All the operations are thread safe. The critical section consists of a few
+ * map operations, and the number of hits, misses, evictions and expirations
+ * is tracked with atomic counters outside of it.
+ *
+ * @author Petteri Kivimäki
+ */
+public class ResponseCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+    /**
+     * Default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    /**
+     * Default maximum memory use in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 10485760;
+    /**
+     * Share of the limits that's reserved for the protected segment.
+     */
+    static final double PROTECTED_RATIO = 0.8;
+    // Estimated memory use of an entry in addition to the key and the body
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long ttl;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxProtectedEntries;
+    private final long maxProtectedBytes;
+    // Maps are in access order, so that the eldest entry is the least
+    // recently used
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Constructs and initializes a new ResponseCache object.
+     *
+     * @param ttl time to live of the entries in milliseconds, must be
+     * positive
+     * @param maxEntries maximum number of entries, must be positive
+     * @param maxBytes maximum memory use in bytes, must be positive
+     */
+    public ResponseCache(long ttl, int maxEntries, long maxBytes) {
+        if (ttl <= 0 || maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache TTL and size must be positive.");
+        }
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxProtectedEntries = (int) (maxEntries * PROTECTED_RATIO);
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+    }
+
+    /**
+     * Returns the cached response of the given key. If the key is not in the
+     * cache or the response is expired, null is returned.
+     *
+     * @param key cache key
+     * @return cached response or null
+     */
+    public CachedResponse get(String key) {
+        CachedResponse response = null;
+        boolean expired = false;
+        long now = this.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = this.protectedSegment.get(key);
+            if (entry == null) {
+                entry = this.probation.get(key);
+            }
+            if (entry != null) {
+                if (entry.response.isExpired(now)) {
+                    this.remove(entry);
+                    expired = true;
+                } else {
+                    if (!entry.isProtected) {
+                        this.promote(entry);
+                    }
+                    response = entry.response;
+                }
+            }
+        }
+        if (expired) {
+            this.expirations.incrementAndGet();
+        }
+        if (response == null) {
+            this.misses.incrementAndGet();
+            logger.trace("Response not found from cache. Expired : {}.", expired);
+        } else {
+            this.hits.incrementAndGet();
+            logger.trace("Response loaded from cache.");
+        }
+        return response;
+    }
+
+    /**
+     * Adds the given response to the cache. Responses that are larger than
+     * the maximum memory use are not cached.
+     *
+     * @param key cache key
+     * @param contentType content type of the response
+     * @param body encoded body of the response
+     * @return true if the response was added; otherwise false
+     */
+    public boolean put(String key, String contentType, byte[] body) {
+        if (body == null) {
+            return false;
+        }
+        Entry entry = new Entry(key, new CachedResponse(contentType, body, this.currentTimeMillis() + this.ttl));
+        if (entry.weight > this.maxBytes) {
+            logger.debug("Response of {} bytes is too large to be cached.", body.length);
+            return false;
+        }
+        int evicted = 0;
+        synchronized (this) {
+            Entry existing = this.protectedSegment.get(key);
+            if (existing == null) {
+                existing = this.probation.get(key);
+            }
+            if (existing != null) {
+                this.remove(existing);
+            }
+            this.probation.put(key, entry);
+            this.probationBytes += entry.weight;
+            while (this.size() > this.maxEntries || this.getBytes() > this.maxBytes) {
+                if (!this.evict(entry)) {
+                    break;
+                }
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            this.evictions.addAndGet(evicted);
+            logger.trace("{} responses evicted from cache.", evicted);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return this.probation.size() + this.protectedSegment.size();
+    }
+
+    /**
+     * Returns the estimated memory use of the entries in bytes.
+     *
+     * @return memory use in bytes
+     */
+    public synchronized long getBytes() {
+        return this.probationBytes + this.protectedBytes;
+    }
+
+    /**
+     * Returns the number of entries in the protected segment.
+     *
+     * @return number of protected entries
+     */
+    public synchronized int getProtectedSize() {
+        return this.protectedSegment.size();
+    }
+
+    /**
+     * Returns the number of lookups that were found from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that were not found from the cache.
+     * Expired entries are counted as misses.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the share of the lookups that were found from the cache.
+     *
+     * @return hit ratio between 0 and 1
+     */
+    public double getHitRatio() {
+        long hitCount = this.hits.get();
+        long total = hitCount + this.misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Returns the number of entries that were evicted, because the cache was
+     * full.
+     *
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Returns the number of entries that were removed, because they were
+     * expired.
+     *
+     * @return number of expirations
+     */
+    public long getExpirations() {
+        return this.expirations.get();
+    }
+
+    /**
+     * Returns the maximum number of entries.
+     *
+     * @return maximum number of entries
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the maximum memory use in bytes.
+     *
+     * @return maximum memory use in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the statistics of the cache as a String.
+     *
+     * @return statistics of the cache
+     */
+    public String getStats() {
+        int entries;
+        int protectedEntries;
+        long bytes;
+        synchronized (this) {
+            entries = this.size();
+            protectedEntries = this.protectedSegment.size();
+            bytes = this.getBytes();
+        }
+        return String.format(Locale.ENGLISH, "entries=%d/%d, protected=%d, bytes=%d/%d, hits=%d, misses=%d, hitRatio=%.3f, evictions=%d, expirations=%d",
+                entries, this.maxEntries, protectedEntries, bytes, this.maxBytes, this.hits.get(), this.misses.get(),
+                this.getHitRatio(), this.evictions.get(), this.expirations.get());
+    }
+
+    /**
+     * Returns the current time in milliseconds.
+     *
+     * @return current time in milliseconds
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void promote(Entry entry) {
+        this.probation.remove(entry.key);
+        this.probationBytes -= entry.weight;
+        entry.isProtected = true;
+        this.protectedSegment.put(entry.key, entry);
+        this.protectedBytes += entry.weight;
+        // Demote the least recently used protected entries
+        Iterator<Entry> iterator = this.protectedSegment.values().iterator();
+        while ((this.protectedSegment.size() > this.maxProtectedEntries || this.protectedBytes > this.maxProtectedBytes)
+                && this.protectedSegment.size() > 1) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            this.protectedBytes -= eldest.weight;
+            eldest.isProtected = false;
+            this.probation.put(eldest.key, eldest);
+            this.probationBytes += eldest.weight;
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entry.isProtected) {
+            this.protectedSegment.remove(entry.key);
+            this.protectedBytes -= entry.weight;
+        } else {
+            this.probation.remove(entry.key);
+            this.probationBytes -= entry.weight;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entry of the probationary segment, or of
+     * the protected segment if the probationary segment is empty. The given
+     * entry that was just added is not evicted.
+     *
+     * @param added entry that was just added
+     * @return true if an entry was evicted; otherwise false
+     */
+    private boolean evict(Entry added) {
+        Entry victim = getEldest(this.probation, added);
+        if (victim == null) {
+            victim = getEldest(this.protectedSegment, added);
+        }
+        if (victim == null) {
+            return false;
+        }
+        this.remove(victim);
+        return true;
+    }
+
+    private static Entry getEldest(Map<String, Entry> segment, Entry excluded) {
+        for (Entry entry : segment.values()) {
+            if (entry != excluded) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Entry of the cache.
+     */
+    private static class Entry {
+
+        private final String key;
+        private final CachedResponse response;
+        private final long weight;
+        private boolean isProtected;
+
+        Entry(String key, CachedResponse response) {
+            this.key = key;
+            this.response = response;
+            this.weight = (long) response.getBody().length + 2L * key.length() + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.pkrete.restgateway.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class reads the parts of a MIME multipart message from an input
+ * stream one at a time. The content of each part is read from the input
+ * stream through a fixed size buffer, and it ends at the next boundary
+ * delimiter, so the parts are never held in memory. Only the headers of the
+ * current part are kept. Moving to the next part skips the rest of the
+ * current part. The preamble and the epilogue of the message are skipped.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class MultipartReader {
+
+    /**
+     * Size of the read buffer in bytes.
+     */
+    public static final int BUFFER_SIZE = 8192;
+    // Max length of a header line or a delimiter line
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int head;
+    private int tail;
+    private boolean eof;
+    private boolean finished;
+    private PartInputStream content;
+    private Map<String, List<String>> headers;
+
+    /**
+     * Constructs and initializes a new MultipartReader object that reads the
+     * parts from the given input stream. The parts are separated by the
+     * given boundary.
+     *
+     * @param in input stream that contains the multipart message
+     * @param boundary boundary of the message
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[BUFFER_SIZE + this.delimiter.length];
+        // The first delimiter may be at the start of the message, so the
+        // message is read as if it started with a line break. The preamble
+        // is read as a part that's skipped.
+        this.buffer[0] = CR;
+        this.buffer[1] = LF;
+        this.tail = 2;
+        this.content = new PartInputStream();
+    }
+
+    /**
+     * Moves to the next part. The rest of the current part is skipped, and
+     * the headers of the next part are read. Returns false if the message
+     * doesn't have more parts.
+     *
+     * @return true if the reader was moved to the next part; otherwise false
+     * @throws IOException if reading the message fails or if the message
+     * ends before the closing delimiter
+     */
+    public boolean next() throws IOException {
+        if (this.finished) {
+            return false;
+        }
+        this.content.skipRest();
+        this.content = null;
+        this.headers = null;
+        // Closing delimiter ends with "--", otherwise the rest of the
+        // delimiter line is transport padding
+        if (this.readLine().startsWith("--")) {
+            this.finished = true;
+            return false;
+        }
+        Map<String, List<String>> partHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String name = null;
+        String line;
+        while (!(line = this.readLine()).isEmpty()) {
+            if (name != null && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                // Folded header value continues on this line
+                List<String> values = partHeaders.get(name);
+                int last = values.size() - 1;
+                values.set(last, values.get(last) + " " + line.trim());
+                continue;
+            }
+            int index = line.indexOf(':');
+            if (index <= 0) {
+                throw new IOException("Invalid header in multipart message : \"" + line + "\"");
+            }
+            name = line.substring(0, index).trim();
+            List<String> values = partHeaders.get(name);
+            if (values == null) {
+                values = new ArrayList<>();
+                partHeaders.put(name, values);
+            }
+            values.add(line.substring(index + 1).trim());
+        }
+        this.headers = partHeaders;
+        this.content = new PartInputStream();
+        return true;
+    }
+
+    /**
+     * Returns the first value of the given header of the current part.
+     *
+     * @param name name of the header, case insensitive
+     * @return value of the header or null
+     */
+    public String getHeader(String name) {
+        String[] values = this.getHeaders(name);
+        return values == null ? null : values[0];
+    }
+
+    /**
+     * Returns all the values of the given header of the current part.
+     *
+     * @param name name of the header, case insensitive
+     * @return values of the header or null
+     */
+    public String[] getHeaders(String name) {
+        if (this.headers == null) {
+            return null;
+        }
+        List<String> values = this.headers.get(name);
+        return values == null ? null : values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Returns an input stream that reads the content of the current part.
+     * The stream ends at the delimiter that ends the part. Closing the
+     * stream doesn't close the input stream of the message.
+     *
+     * @return content of the current part
+     * @throws IllegalStateException if the reader is not at a part
+     */
+    public InputStream getContent() {
+        if (this.headers == null) {
+            throw new IllegalStateException("Multipart reader is not at a part.");
+        }
+        return this.content;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (this.head == this.tail && this.fill() == -1) {
+                // Closing delimiter may end the message without a line break
+                if (line.length() > 0) {
+                    return line.toString();
+                }
+                throw new IOException("Multipart message ended unexpectedly.");
+            }
+            byte b = this.buffer[this.head++];
+            if (b == LF) {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == CR) {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Line in multipart message is too long.");
+            }
+            line.append((char) (b & 0xff));
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads more bytes
+     * after them.
+     *
+     * @return number of bytes read, or -1 if the end of the stream has been
+     * reached
+     * @throws IOException if reading fails
+     */
+    private int fill() throws IOException {
+        if (this.eof) {
+            return -1;
+        }
+        if (this.head > 0) {
+            System.arraycopy(this.buffer, this.head, this.buffer, 0, this.tail - this.head);
+            this.tail -= this.head;
+            this.head = 0;
+        }
+        int count = this.in.read(this.buffer, this.tail, this.buffer.length - this.tail);
+        if (count == -1) {
+            this.eof = true;
+            return -1;
+        }
+        this.tail += count;
+        return count;
+    }
+
+    /**
+     * Returns the index of the delimiter in the unread bytes, or -1 if the
+     * unread bytes don't contain it.
+     */
+    private int findDelimiter() {
+        int last = this.tail - this.delimiter.length;
+        for (int i = this.head; i <= last; i++) {
+            int j = 0;
+            while (j < this.delimiter.length && this.buffer[i + j] == this.delimiter[j]) {
+                j++;
+            }
+            if (j == this.delimiter.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the content of a part until the delimiter that ends it.
+     */
+    private class PartInputStream extends InputStream {
+
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = this.read(b, 0, 1);
+            return count == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.ended) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int available = this.available();
+            while (available == 0) {
+                if (this.ended) {
+                    return -1;
+                }
+                if (fill() == -1) {
+                    throw new IOException("Multipart message ended unexpectedly.");
+                }
+                available = this.available();
+            }
+            int count = Math.min(len, available);
+            System.arraycopy(buffer, head, b, off, count);
+            head += count;
+            return count;
+        }
+
+        /**
+         * Returns the number of bytes that can be read from the buffer
+         * before the delimiter. The last bytes of the buffer are not
+         * available, if the delimiter may start from them. If the delimiter
+         * is the next thing in the buffer, it's consumed and the part ends.
+         */
+        @Override
+        public int available() {
+            if (this.ended) {
+                return 0;
+            }
+            int index = findDelimiter();
+            if (index == head) {
+                head += delimiter.length;
+                this.ended = true;
+                return 0;
+            } else if (index > head) {
+                return index - head;
+            }
+            return Math.max(0, tail - head - delimiter.length + 1);
+        }
+
+        private void skipRest() throws IOException {
+            byte[] b = new byte[BUFFER_SIZE];
+            while (this.read(b, 0, b.length) != -1) {
+                // Skip the rest of the part
+            }
+        }
+
+        @Override
+        public void close() {
+            // The input stream of the message is not closed
+        }
+    }
+}
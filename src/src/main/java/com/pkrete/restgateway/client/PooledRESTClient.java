@@ -0,0 +1,380 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.restgateway.util.RESTGatewayUtil;
+import com.pkrete.xrd4j.rest.ClientResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class implements a REST client that sends the requests to a single
+ * backend host using a pool of persistent HTTP connections. One instance is
+ * created per backend host when Provider Gateway is initialized and it's
+ * shared by all the endpoints of the host and all the request threads, so TCP
+ * and TLS connections are reused between requests instead of opening a new
+ * connection for each request.
+ *
+ * The request URL is built the same way as the XRd4J REST clients build it:
+ * the resource id parameter is appended to the path, and the other request
+ * parameters are added to the query string. Compressed responses are
+ * decoded transparently.
+ *
+ * The size of the pool, connect and read timeouts and idle connection eviction
+ * are configured in provider-gateway.properties. The client also keeps track
+ * of the pool saturation the same way as PooledSOAPClient.
+ *
+ * @author Petteri Kivimäki
+ */
+public class PooledRESTClient implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PooledRESTClient.class);
+
+    /**
+     * Default max number of connections per backend host.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    /**
+     * Default connect timeout in milliseconds.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    /**
+     * Default read timeout in milliseconds.
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 60000;
+    /**
+     * Default time to wait for a free connection in milliseconds.
+     */
+    public static final int DEFAULT_ACQUIRE_TIMEOUT = 10000;
+    /**
+     * Default time after which idle connections are closed in milliseconds.
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private final String host;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final int maxConnections;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int acquireTimeout;
+    private final int idleTimeout;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicLong acquireTimeouts = new AtomicLong();
+
+    /**
+     * Constructs and initializes a new PooledRESTClient object.
+     *
+     * @param host backend host, e.g. "https://example.com:443"
+     * @param maxConnections max number of connections to the host
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout read timeout in milliseconds
+     * @param acquireTimeout time to wait for a free connection in
+     * milliseconds
+     * @param idleTimeout time after which idle connections are closed in
+     * milliseconds
+     */
+    public PooledRESTClient(String host, int maxConnections, int connectTimeout, int readTimeout, int acquireTimeout, int idleTimeout) {
+        this.host = host;
+        this.maxConnections = maxConnections;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.acquireTimeout = acquireTimeout;
+        this.idleTimeout = idleTimeout;
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+        // Check pooled connections that have been idle for a while before
+        // reusing them
+        this.connectionManager.setValidateAfterInactivity(1000);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(acquireTimeout)
+                .build();
+        // Content compression is enabled by default: gzip and deflate are
+        // accepted and the responses are decoded
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(this.connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                .build();
+        logger.info("Connection pool to \"{}\" created. Max connections : {}, connect timeout : {} ms, read timeout : {} ms, acquire timeout : {} ms, idle timeout : {} ms.", host, maxConnections, connectTimeout, readTimeout, acquireTimeout, idleTimeout);
+    }
+
+    /**
+     * Creates a new PooledRESTClient for the given backend host that's
+     * configured using the given properties. Default values are used for the
+     * properties that are not defined.
+     *
+     * @param host backend host
+     * @param props provider gateway properties
+     * @return new PooledRESTClient object
+     */
+    public static PooledRESTClient create(String host, Properties props) {
+        return new PooledRESTClient(host,
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.PROVIDER_PROPS_BACKEND_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.PROVIDER_PROPS_BACKEND_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.PROVIDER_PROPS_BACKEND_READ_TIMEOUT, DEFAULT_READ_TIMEOUT),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.PROVIDER_PROPS_BACKEND_ACQUIRE_TIMEOUT, DEFAULT_ACQUIRE_TIMEOUT),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.PROVIDER_PROPS_BACKEND_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT));
+    }
+
+    /**
+     * Returns the host of the given URL including the scheme and the port,
+     * e.g. "https://example.com:443". URLs that have the same host share
+     * the same connection pool. Returns null if the URL is not a valid
+     * absolute HTTP(S) URL.
+     *
+     * @param url URL
+     * @return host of the URL or null
+     */
+    public static String getHost(String url) {
+        try {
+            URI uri = new URI(url.trim());
+            String scheme = uri.getScheme();
+            if (uri.getHost() == null || scheme == null) {
+                return null;
+            }
+            scheme = scheme.toLowerCase(Locale.ENGLISH);
+            int port = uri.getPort();
+            if ("http".equals(scheme)) {
+                port = port == -1 ? 80 : port;
+            } else if ("https".equals(scheme)) {
+                port = port == -1 ? 443 : port;
+            } else {
+                return null;
+            }
+            return scheme + "://" + uri.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+        } catch (URISyntaxException ex) {
+            logger.warn("Invalid URL \"{}\". {}", url, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Builds the request URL from the given URL and request parameters. The
+     * resource id parameter is appended to the path and removed from the
+     * parameters, and the other parameters are added to the query string.
+     *
+     * @param url URL of the backend service
+     * @param params request parameters or null
+     * @return request URL
+     */
+    public static String buildUrl(String url, Map<String, List<String>> params) {
+        if (params == null || params.isEmpty()) {
+            return url;
+        }
+        StringBuilder builder = new StringBuilder(url);
+        List<String> resourceId = params.remove(Constants.PARAM_RESOURCE_ID);
+        if (resourceId != null && !resourceId.isEmpty()) {
+            if (builder.charAt(builder.length() - 1) != '/') {
+                builder.append('/');
+            }
+            builder.append(resourceId.get(0));
+        }
+        char separator = url.indexOf('?') == -1 ? '?' : '&';
+        for (Map.Entry<String, List<String>> param : params.entrySet()) {
+            for (String value : param.getValue()) {
+                builder.append(separator).append(encode(param.getKey())).append('=').append(encode(value));
+                separator = '&';
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Sends a request to the given URL using a pooled connection and returns
+     * the response. The whole response is read, so that the connection is
+     * released back to the pool before this method returns.
+     *
+     * @param httpVerb HTTP verb of the request
+     * @param url URL of the backend service
+     * @param body request body or null, sent only in POST and PUT requests
+     * @param params request parameters or null
+     * @param headers HTTP headers of the request
+     * @return response of the backend service
+     * @throws IOException if sending the request or reading the response
+     * fails
+     */
+    public ClientResponse send(String httpVerb, String url, String body, Map<String, List<String>> params, Map<String, String> headers) throws IOException {
+        String method = httpVerb.toUpperCase(Locale.ENGLISH);
+        RequestBuilder builder = RequestBuilder.create(method).setUri(buildUrl(url, params));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.setHeader(header.getKey(), header.getValue());
+        }
+        if (body != null && ("POST".equals(method) || "PUT".equals(method))) {
+            // Content-Type is set in the headers
+            builder.setEntity(new StringEntity(body, StandardCharsets.UTF_8));
+        }
+        this.requests.incrementAndGet();
+        if (this.connectionManager.getTotalStats().getLeased() >= this.maxConnections) {
+            this.saturated.incrementAndGet();
+            logger.debug("Connection pool to \"{}\" is saturated. {}", this.host, this.getStats());
+        }
+        logger.debug("Send {} request to \"{}\".", method, url);
+        try (CloseableHttpResponse response = this.httpClient.execute(builder.build())) {
+            HttpEntity entity = response.getEntity();
+            String data = entity == null ? null : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+            String contentType = entity == null || entity.getContentType() == null ? null : entity.getContentType().getValue();
+            return new ClientResponse(data, contentType, response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
+        } catch (ConnectionPoolTimeoutException ex) {
+            this.acquireTimeouts.incrementAndGet();
+            logger.warn("No free connection to \"{}\" available. {}", this.host, this.getStats());
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the backend host of this client.
+     *
+     * @return backend host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns the current statistics of the connection pool.
+     *
+     * @return pool statistics
+     */
+    public PoolStats getPoolStats() {
+        return this.connectionManager.getTotalStats();
+    }
+
+    /**
+     * Returns the number of requests sent using this client.
+     *
+     * @return number of requests
+     */
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * Returns the number of requests that found all the connections leased.
+     *
+     * @return number of requests that had to wait for a connection
+     */
+    public long getSaturated() {
+        return this.saturated.get();
+    }
+
+    /**
+     * Returns the number of requests that timed out while waiting for a
+     * connection.
+     *
+     * @return number of connection acquire timeouts
+     */
+    public long getAcquireTimeouts() {
+        return this.acquireTimeouts.get();
+    }
+
+    /**
+     * Returns the max number of connections to the host.
+     *
+     * @return max number of connections
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Returns the connect timeout in milliseconds.
+     *
+     * @return connect timeout
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Returns the read timeout in milliseconds.
+     *
+     * @return read timeout
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Returns the time to wait for a free connection in milliseconds.
+     *
+     * @return acquire timeout
+     */
+    public int getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * Returns the time after which idle connections are closed in
+     * milliseconds.
+     *
+     * @return idle timeout
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Returns the pool statistics and saturation metrics as a String that's
+     * suitable for logging.
+     *
+     * @return pool statistics
+     */
+    public String getStats() {
+        PoolStats stats = this.connectionManager.getTotalStats();
+        return "Leased : " + stats.getLeased() + ", available : " + stats.getAvailable()
+                + ", pending : " + stats.getPending() + ", max : " + stats.getMax()
+                + ", requests : " + this.requests.get() + ", saturated : " + this.saturated.get()
+                + ", acquire timeouts : " + this.acquireTimeouts.get() + ".";
+    }
+
+    /**
+     * Closes the HTTP client and all the pooled connections.
+     */
+    @Override
+    public void close() {
+        try {
+            this.httpClient.close();
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+        logger.info("Connection pool to \"{}\" closed. {}", this.host, this.getStats());
+    }
+}
@@ -0,0 +1,599 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.restgateway.util.RESTGatewayUtil;
+import com.pkrete.xrd4j.client.SOAPClientImpl;
+import com.pkrete.xrd4j.client.deserializer.ServiceResponseDeserializer;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import com.pkrete.xrd4j.common.message.ServiceResponse;
+import com.pkrete.xrd4j.common.util.MessageHelper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.MimeHeader;
+import javax.xml.soap.MimeHeaders;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.ParseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class implements a SOAP client that sends the requests to the security
+ * server using a pool of persistent HTTP connections. One instance is created
+ * when Consumer Gateway is initialized and it's shared by all the request
+ * threads, so TCP and TLS connections are reused between requests instead of
+ * opening a new connection for each request.
+ *
+ * The size of the pool, connect and read timeouts and idle connection eviction
+ * are configured in consumer-gateway.properties. The client also keeps track
+ * of the pool saturation: the number of requests that found all the
+ * connections leased, and the number of requests that timed out while waiting
+ * for a connection.
+ *
+ * Requests are sent with Content-Length by default. The requests written by
+ * SOAPRequestWriter can be sent using chunked transfer encoding instead, so
+ * that large request bodies are streamed to the security server without
+ * buffering them. Chunking is not used by default, because the security
+ * server must support chunked requests.
+ *
+ * @author Petteri Kivimäki
+ */
+public class PooledSOAPClient extends SOAPClientImpl implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PooledSOAPClient.class);
+
+    /**
+     * Default max number of connections in the pool.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 100;
+    /**
+     * Default connect timeout in milliseconds.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    /**
+     * Default read timeout in milliseconds.
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 60000;
+    /**
+     * Default time to wait for a free connection in milliseconds.
+     */
+    public static final int DEFAULT_ACQUIRE_TIMEOUT = 10000;
+    /**
+     * Default time after which idle connections are closed in milliseconds.
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+    private static final String XML_MIME_TYPE = "text/xml";
+    private static final String MULTIPART_MIME_TYPE = "multipart/related";
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final MessageFactory messageFactory;
+    private final int maxConnections;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int acquireTimeout;
+    private final int idleTimeout;
+    private final boolean chunkedRequests;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicLong acquireTimeouts = new AtomicLong();
+
+    /**
+     * Constructs and initializes a new PooledSOAPClient object.
+     *
+     * @param maxConnections max number of connections in the pool, this is
+     * also the max number of connections per security server
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout read timeout in milliseconds
+     * @param acquireTimeout time to wait for a free connection in
+     * milliseconds
+     * @param idleTimeout time after which idle connections are closed in
+     * milliseconds
+     * @throws SOAPException if creating the client fails
+     */
+    public PooledSOAPClient(int maxConnections, int connectTimeout, int readTimeout, int acquireTimeout, int idleTimeout) throws SOAPException {
+        this(maxConnections, connectTimeout, readTimeout, acquireTimeout, idleTimeout, false);
+    }
+
+    /**
+     * Constructs and initializes a new PooledSOAPClient object.
+     *
+     * @param maxConnections max number of connections in the pool, this is
+     * also the max number of connections per security server
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout read timeout in milliseconds
+     * @param acquireTimeout time to wait for a free connection in
+     * milliseconds
+     * @param idleTimeout time after which idle connections are closed in
+     * milliseconds
+     * @param chunkedRequests are the requests written by SOAPRequestWriter
+     * sent using chunked transfer encoding
+     * @throws SOAPException if creating the client fails
+     */
+    public PooledSOAPClient(int maxConnections, int connectTimeout, int readTimeout, int acquireTimeout, int idleTimeout, boolean chunkedRequests) throws SOAPException {
+        this.chunkedRequests = chunkedRequests;
+        this.maxConnections = maxConnections;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.acquireTimeout = acquireTimeout;
+        this.idleTimeout = idleTimeout;
+        this.messageFactory = MessageFactory.newInstance();
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+        // Check pooled connections that have been idle for a while before
+        // reusing them
+        this.connectionManager.setValidateAfterInactivity(1000);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(acquireTimeout)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(this.connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                .build();
+        logger.info("Security server connection pool created. Max connections : {}, connect timeout : {} ms, read timeout : {} ms, acquire timeout : {} ms, idle timeout : {} ms, chunked requests : {}.", maxConnections, connectTimeout, readTimeout, acquireTimeout, idleTimeout, chunkedRequests);
+    }
+
+    /**
+     * Creates a new PooledSOAPClient that's configured using the given
+     * properties. Default values are used for the properties that are not
+     * defined.
+     *
+     * @param props consumer gateway properties
+     * @return new PooledSOAPClient object
+     * @throws SOAPException if creating the client fails
+     */
+    public static PooledSOAPClient create(Properties props) throws SOAPException {
+        return new PooledSOAPClient(
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_SS_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_SS_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_SS_READ_TIMEOUT, DEFAULT_READ_TIMEOUT),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_SS_ACQUIRE_TIMEOUT, DEFAULT_ACQUIRE_TIMEOUT),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_SS_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT),
+                MessageHelper.strToBool(props.getProperty(Constants.CONSUMER_PROPS_SS_CHUNKED_REQUESTS, "false")));
+    }
+
+    /**
+     * Sends the given message to the given URL using a pooled connection and
+     * returns the response.
+     *
+     * @param request SOAP message to be sent
+     * @param url target URL
+     * @return SOAP response
+     * @throws SOAPException if sending the message or parsing the response
+     * fails
+     */
+    @Override
+    public SOAPMessage send(final SOAPMessage request, final String url) throws SOAPException {
+        if (request.saveRequired()) {
+            request.saveChanges();
+        }
+        HttpPost post = new HttpPost(url);
+        Iterator<MimeHeader> it = request.getMimeHeaders().getAllHeaders();
+        while (it.hasNext()) {
+            MimeHeader header = it.next();
+            // Content length is set by the HTTP client
+            if (!"Content-Length".equalsIgnoreCase(header.getName())) {
+                post.addHeader(header.getName(), header.getValue());
+            }
+        }
+        // The message is in memory already, so it's sent with Content-Length
+        RequestBuffer buffer = new RequestBuffer();
+        try {
+            request.writeTo(buffer);
+        } catch (IOException ex) {
+            throw new SOAPException("Writing SOAP message failed.", ex);
+        }
+        post.setEntity(buffer.toEntity(null));
+        return this.execute(post, url);
+    }
+
+    /**
+     * Sends the request written by the given SOAPRequestWriter to the given
+     * URL using a pooled connection. The request is written directly to the
+     * connection output stream without creating a SOAPMessage. The response is
+     * converted to a ServiceResponse using the given deserializer. If the
+     * deserializer is a StreamingResponseDeserializer, responses that don't
+     * have attachments are read from the connection input stream using
+     * SOAPResponseReader without creating a SOAPMessage. Multipart responses
+     * are read the same way, if the deserializer streams attachments: only
+     * the SOAP part, which must be the first part, is parsed. If the
+     * deserializer opens the response data using SOAPResponseReader.openBody
+     * or the attachment using openAttachment, the connection stays leased
+     * after this method returns, and it's released when the caller closes
+     * the reader of the response data or the attachment.
+     *
+     * @param writer writer that writes the SOAP request
+     * @param url target URL
+     * @param deserializer deserializer that converts the response
+     * @return ServiceResponse
+     * @throws SOAPException if sending the request or parsing the response
+     * fails
+     */
+    public ServiceResponse send(final SOAPRequestWriter writer, final String url, final ServiceResponseDeserializer deserializer) throws SOAPException {
+        HttpPost post = new HttpPost(url);
+        if (this.chunkedRequests) {
+            post.setEntity(new SOAPRequestWriterEntity(writer));
+        } else {
+            RequestBuffer buffer = new RequestBuffer();
+            try {
+                writer.writeTo(buffer);
+            } catch (IOException ex) {
+                throw new SOAPException("Writing SOAP request failed.", ex);
+            }
+            post.setEntity(buffer.toEntity(writer.getContentType()));
+        }
+        ServiceRequest request = writer.getRequest();
+        if (deserializer instanceof StreamingResponseDeserializer) {
+            return this.execute(post, url, request, (StreamingResponseDeserializer) deserializer);
+        }
+        SOAPMessage response = this.execute(post, url);
+        return deserializer.deserialize(response, getProducerNamespace(request), request.isProcessingWrappers());
+    }
+
+    private SOAPMessage execute(HttpPost post, String url) throws SOAPException {
+        this.countRequest(url);
+        try (CloseableHttpResponse response = this.httpClient.execute(post)) {
+            return this.createMessage(response);
+        } catch (IOException ex) {
+            throw this.handleException(ex, url);
+        }
+    }
+
+    private ServiceResponse execute(HttpPost post, String url, ServiceRequest request, StreamingResponseDeserializer deserializer) throws SOAPException {
+        this.countRequest(url);
+        // Resource that releases the connection, unless the response data
+        // is read after this method returns
+        Closeable lease = null;
+        try {
+            CloseableHttpResponse response = this.httpClient.execute(post);
+            lease = response;
+            HttpEntity entity = response.getEntity();
+            ContentType contentType = entity == null ? null : ContentType.get(entity);
+            String mimeType = contentType == null ? null : contentType.getMimeType();
+            String boundary = contentType == null ? null : contentType.getParameter("boundary");
+            boolean multipart = MULTIPART_MIME_TYPE.equalsIgnoreCase(mimeType) && boundary != null && deserializer.isStreamingAttachments();
+            if (!XML_MIME_TYPE.equalsIgnoreCase(mimeType) && !multipart) {
+                // Other responses with attachments are parsed using SAAJ
+                logger.debug("Response is not plain XML, parse it using SAAJ.");
+                return deserializer.deserialize(this.createMessage(response), getProducerNamespace(request), request.isProcessingWrappers());
+            }
+            checkStatus(response);
+            InputStream in = entity.getContent();
+            lease = new LeasedResponse(in, response);
+            SOAPResponseReader reader;
+            if (multipart) {
+                // Only the SOAP part is parsed, the attachment is read from
+                // the connection by the caller
+                logger.debug("Response is a multipart message, read the SOAP part.");
+                MultipartReader parts = new MultipartReader(in, boundary);
+                if (!parts.next()) {
+                    throw new SOAPException("SOAP part is missing from the multipart response.");
+                }
+                String partType = parts.getHeader("Content-Type");
+                reader = SOAPResponseReader.read(parts.getContent(), partType == null ? null : getCharset(ContentType.parse(partType)), request.isProcessingWrappers());
+                reader.setParts(parts);
+            } else {
+                reader = SOAPResponseReader.read(in, getCharset(contentType), request.isProcessingWrappers());
+            }
+            reader.setSource(lease);
+            lease = reader;
+            ServiceResponse serviceResponse = deserializer.deserialize(reader, request);
+            if (reader.isBodyOpen() || reader.isAttachmentOpen()) {
+                // Response data is read from the connection by the caller,
+                // and the connection is released when it's closed
+                logger.debug("Response data is read after the response has been deserialized.");
+                lease = null;
+            }
+            return serviceResponse;
+        } catch (IOException | ParseException | UnsupportedCharsetException ex) {
+            throw this.handleException(ex, url);
+        } finally {
+            close(lease);
+        }
+    }
+
+    private void countRequest(String url) {
+        this.requests.incrementAndGet();
+        if (this.connectionManager.getTotalStats().getLeased() >= this.maxConnections) {
+            this.saturated.incrementAndGet();
+            logger.debug("Security server connection pool is saturated. {}", this.getStats());
+        }
+        logger.debug("Send new SOAP message to \"{}\".", url);
+    }
+
+    private SOAPMessage createMessage(CloseableHttpResponse response) throws IOException, SOAPException {
+        checkStatus(response);
+        HttpEntity entity = response.getEntity();
+        MimeHeaders headers = new MimeHeaders();
+        for (Header header : response.getAllHeaders()) {
+            headers.addHeader(header.getName(), header.getValue());
+        }
+        // The MIME parts are parsed from the connection input stream, so the
+        // response is not copied to a byte array first. Closing the stream
+        // reads the rest of the response, so that the connection is released
+        // back to the pool.
+        try (InputStream in = entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent()) {
+            SOAPMessage message = this.messageFactory.createMessage(headers, in);
+            // SAAJ may parse the SOAP part and the attachments lazily, so
+            // they're parsed before the stream is closed
+            message.getSOAPPart().getEnvelope();
+            message.countAttachments();
+            return message;
+        }
+    }
+
+    private SOAPException handleException(Exception ex, String url) {
+        if (ex instanceof ConnectionPoolTimeoutException) {
+            this.acquireTimeouts.incrementAndGet();
+            logger.warn("No free connection to the security server available. {}", this.getStats());
+            return new SOAPException("Timeout waiting for a connection to the security server.", ex);
+        }
+        return new SOAPException("Sending SOAP message to \"" + url + "\" failed.", ex);
+    }
+
+    private static void checkStatus(CloseableHttpResponse response) throws SOAPException {
+        int status = response.getStatusLine().getStatusCode();
+        // SOAP faults are returned with status 500
+        if (status != HttpStatus.SC_OK && status != HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            // Read the rest of the response so that the connection is
+            // released back to the pool
+            EntityUtils.consumeQuietly(response.getEntity());
+            throw new SOAPException("Bad response from the security server : (" + status + ") " + response.getStatusLine().getReasonPhrase());
+        }
+    }
+
+    private static void close(Closeable lease) {
+        if (lease != null) {
+            try {
+                lease.close();
+            } catch (IOException ex) {
+                logger.warn(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private static String getCharset(ContentType contentType) {
+        return contentType.getCharset() == null ? null : contentType.getCharset().name();
+    }
+
+    private static String getProducerNamespace(ServiceRequest request) {
+        String producerNamespace = request.getProducer().getNamespaceUrl();
+        if (producerNamespace == null || producerNamespace.isEmpty()) {
+            return "*";
+        }
+        return producerNamespace;
+    }
+
+    /**
+     * Returns the current statistics of the connection pool.
+     *
+     * @return pool statistics
+     */
+    public PoolStats getPoolStats() {
+        return this.connectionManager.getTotalStats();
+    }
+
+    /**
+     * Returns the number of requests sent using this client.
+     *
+     * @return number of requests
+     */
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * Returns the number of requests that found all the connections leased.
+     *
+     * @return number of requests that had to wait for a connection
+     */
+    public long getSaturated() {
+        return this.saturated.get();
+    }
+
+    /**
+     * Returns the number of requests that timed out while waiting for a
+     * connection.
+     *
+     * @return number of connection acquire timeouts
+     */
+    public long getAcquireTimeouts() {
+        return this.acquireTimeouts.get();
+    }
+
+    /**
+     * Returns the max number of connections in the pool.
+     *
+     * @return max number of connections
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Returns the connect timeout in milliseconds.
+     *
+     * @return connect timeout
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Returns the read timeout in milliseconds.
+     *
+     * @return read timeout
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Returns the time to wait for a free connection in milliseconds.
+     *
+     * @return acquire timeout
+     */
+    public int getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * Returns the time after which idle connections are closed in
+     * milliseconds.
+     *
+     * @return idle timeout
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Returns true if the requests written by SOAPRequestWriter are sent
+     * using chunked transfer encoding.
+     *
+     * @return true if the requests are chunked; otherwise false
+     */
+    public boolean isChunkedRequests() {
+        return chunkedRequests;
+    }
+
+    /**
+     * Returns the pool statistics and saturation metrics as a String that's
+     * suitable for logging.
+     *
+     * @return pool statistics
+     */
+    public String getStats() {
+        PoolStats stats = this.connectionManager.getTotalStats();
+        return "Leased : " + stats.getLeased() + ", available : " + stats.getAvailable()
+                + ", pending : " + stats.getPending() + ", max : " + stats.getMax()
+                + ", requests : " + this.requests.get() + ", saturated : " + this.saturated.get()
+                + ", acquire timeouts : " + this.acquireTimeouts.get() + ".";
+    }
+
+    /**
+     * Closes the HTTP client and all the pooled connections.
+     */
+    @Override
+    public void close() {
+        try {
+            this.httpClient.close();
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+        logger.info("Security server connection pool closed. {}", this.getStats());
+    }
+
+    /**
+     * HTTP entity that writes the request using SOAPRequestWriter directly to
+     * the connection output stream using chunked transfer encoding.
+     */
+    private static class SOAPRequestWriterEntity extends AbstractHttpEntity {
+
+        private final SOAPRequestWriter writer;
+
+        SOAPRequestWriterEntity(SOAPRequestWriter writer) {
+            this.writer = writer;
+            this.setContentType(writer.getContentType());
+            this.setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            throw new UnsupportedOperationException("SOAP request entity can only be written to a stream.");
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            this.writer.writeTo(out);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * Content stream of a response and the response that holds the pooled
+     * connection. Closing the stream reads the rest of the response, so that
+     * the connection is released back to the pool, and the response is closed
+     * after that.
+     */
+    private static class LeasedResponse implements Closeable {
+
+        private final InputStream in;
+        private final CloseableHttpResponse response;
+
+        LeasedResponse(InputStream in, CloseableHttpResponse response) {
+            this.in = in;
+            this.response = response;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.in.close();
+            } finally {
+                this.response.close();
+            }
+        }
+    }
+
+    /**
+     * Buffer that holds a request that's sent with Content-Length. The
+     * buffered bytes are sent as they are without copying them.
+     */
+    private static class RequestBuffer extends ByteArrayOutputStream {
+
+        RequestBuffer() {
+            super(4096);
+        }
+
+        HttpEntity toEntity(String contentType) {
+            ByteArrayEntity entity = new ByteArrayEntity(this.buf, 0, this.count);
+            entity.setContentType(contentType);
+            return entity;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.pkrete.restgateway.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class represents an attachment of a SOAP response that's read from
+ * the connection to the security server while it's written. The raw content
+ * of the attachment is read directly from the input stream of the multipart
+ * response, so it's never held in memory. The connection stays leased until
+ * the attachment is closed.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class ResponseAttachment implements Closeable {
+
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private final MultipartReader parts;
+    private final Closeable owner;
+
+    /**
+     * Constructs and initializes a new ResponseAttachment object. The
+     * attachment is the current part of the given multipart reader.
+     *
+     * @param parts multipart reader that's at the attachment part
+     * @param owner resource that's closed with the attachment
+     */
+    ResponseAttachment(MultipartReader parts, Closeable owner) {
+        this.parts = parts;
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the content type of the attachment.
+     *
+     * @return content type or null
+     */
+    public String getContentType() {
+        return this.parts.getHeader(CONTENT_TYPE);
+    }
+
+    /**
+     * Returns all the values of the given MIME header of the attachment.
+     *
+     * @param name name of the header, case insensitive
+     * @return values of the header or null
+     */
+    public String[] getMimeHeader(String name) {
+        return this.parts.getHeaders(name);
+    }
+
+    /**
+     * Returns the size of the attachment as it's received. The size is known
+     * only if the attachment part has a Content-Length header, otherwise -1
+     * is returned.
+     *
+     * @return size of the attachment in bytes or -1
+     */
+    public long getSize() {
+        String length = this.parts.getHeader(CONTENT_LENGTH);
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns an input stream that reads the raw content of the attachment
+     * from the connection. The attachment must not be closed before the
+     * content has been read.
+     *
+     * @return raw content of the attachment
+     */
+    public InputStream getRawContent() {
+        return this.parts.getContent();
+    }
+
+    /**
+     * Closes the attachment and releases the connection it's read from.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        this.owner.close();
+    }
+}
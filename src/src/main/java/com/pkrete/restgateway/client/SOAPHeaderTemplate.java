@@ -0,0 +1,222 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.xrd4j.common.member.ConsumerMember;
+import com.pkrete.xrd4j.common.member.ProducerMember;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * This class holds the serialized parts of an X-Road SOAP request that are
+ * the same on every call of an endpoint: the envelope with the namespace
+ * declarations, the client and service headers, the protocol version and the
+ * start and end of the service element. Only the message id, user id and the
+ * request parameters are written per request.
+ *
+ * The parts are written once using StAX and stored as UTF-8 bytes:
+ *
+ * head : Envelope start tag, Header start tag, client and service
+ * headers
+ * middle : protocolVersion header, Header end tag, Body start tag, service
+ * element start tag and request wrapper start tag
+ * tail : request wrapper end tag, service element end tag, Body and
+ * Envelope end tags
+ *
+ * Templates are immutable and they're shared by all the request threads.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class SOAPHeaderTemplate {
+
+    static final String NS_SOAP_ENV_PREFIX = "SOAP-ENV";
+    static final String NS_SOAP_ENV_URL = "http://schemas.xmlsoap.org/soap/envelope/";
+    static final String NS_XRD_PREFIX = "xrd";
+    static final String NS_XRD_URL = "http://x-road.eu/xsd/xroad.xsd";
+    static final String NS_ID_PREFIX = "id";
+    static final String NS_ID_URL = "http://x-road.eu/xsd/identifiers";
+    static final String PROTOCOL_VERSION = "4.0";
+    static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final ConsumerMember consumer;
+    private final ProducerMember producer;
+    private final boolean processingWrappers;
+    private final byte[] head;
+    private final byte[] middle;
+    private final byte[] tail;
+
+    private SOAPHeaderTemplate(ConsumerMember consumer, ProducerMember producer, boolean processingWrappers, byte[] head, byte[] middle, byte[] tail) {
+        this.consumer = consumer;
+        this.producer = producer;
+        this.processingWrappers = processingWrappers;
+        this.head = head;
+        this.middle = middle;
+        this.tail = tail;
+    }
+
+    /**
+     * Creates a new template for requests from the given consumer to the
+     * given producer.
+     *
+     * @param consumer X-Road consumer member
+     * @param producer X-Road producer member
+     * @param processingWrappers are request wrappers used
+     * @return new SOAPHeaderTemplate
+     * @throws XMLStreamException if writing the template fails
+     */
+    public static SOAPHeaderTemplate create(ConsumerMember consumer, ProducerMember producer, boolean processingWrappers) throws XMLStreamException {
+        String producerNs = producer.getNamespaceUrl();
+        String producerPrefix = producer.getNamespacePrefix();
+        boolean hasProducerNs = producerNs != null && !producerNs.isEmpty();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        writer.writeStartElement(NS_SOAP_ENV_PREFIX, "Envelope", NS_SOAP_ENV_URL);
+        writer.writeNamespace(NS_SOAP_ENV_PREFIX, NS_SOAP_ENV_URL);
+        writer.writeNamespace(NS_XRD_PREFIX, NS_XRD_URL);
+        writer.writeNamespace(NS_ID_PREFIX, NS_ID_URL);
+        if (hasProducerNs) {
+            writer.writeNamespace(producerPrefix, producerNs);
+        }
+        writer.writeStartElement(NS_SOAP_ENV_PREFIX, "Header", NS_SOAP_ENV_URL);
+        // Client
+        writer.writeStartElement(NS_XRD_PREFIX, "client", NS_XRD_URL);
+        writer.writeAttribute(NS_ID_PREFIX, NS_ID_URL, "objectType", isEmpty(consumer.getSubsystemCode()) ? "MEMBER" : "SUBSYSTEM");
+        writeIdElement(writer, "xRoadInstance", consumer.getXRoadInstance());
+        writeIdElement(writer, "memberClass", consumer.getMemberClass());
+        writeIdElement(writer, "memberCode", consumer.getMemberCode());
+        if (!isEmpty(consumer.getSubsystemCode())) {
+            writeIdElement(writer, "subsystemCode", consumer.getSubsystemCode());
+        }
+        writer.writeEndElement();
+        // Service
+        writer.writeStartElement(NS_XRD_PREFIX, "service", NS_XRD_URL);
+        writer.writeAttribute(NS_ID_PREFIX, NS_ID_URL, "objectType", "SERVICE");
+        writeIdElement(writer, "xRoadInstance", producer.getXRoadInstance());
+        writeIdElement(writer, "memberClass", producer.getMemberClass());
+        writeIdElement(writer, "memberCode", producer.getMemberCode());
+        if (!isEmpty(producer.getSubsystemCode())) {
+            writeIdElement(writer, "subsystemCode", producer.getSubsystemCode());
+        }
+        writeIdElement(writer, "serviceCode", producer.getServiceCode());
+        if (!isEmpty(producer.getServiceVersion())) {
+            writeIdElement(writer, "serviceVersion", producer.getServiceVersion());
+        }
+        writer.writeEndElement();
+        writer.flush();
+        byte[] head = out.toByteArray();
+        out.reset();
+        // userId and id are written here per request
+        writeXrdElement(writer, "protocolVersion", PROTOCOL_VERSION);
+        writer.writeEndElement();
+        writer.writeStartElement(NS_SOAP_ENV_PREFIX, "Body", NS_SOAP_ENV_URL);
+        if (hasProducerNs) {
+            writer.writeStartElement(producerPrefix, producer.getServiceCode(), producerNs);
+        } else {
+            writer.writeStartElement(producer.getServiceCode());
+        }
+        if (processingWrappers) {
+            writer.writeStartElement("request");
+        }
+        // Empty text closes the open start tag
+        writer.writeCharacters("");
+        writer.flush();
+        byte[] middle = out.toByteArray();
+        out.reset();
+        // Request parameters are written here per request
+        if (processingWrappers) {
+            writer.writeEndElement();
+        }
+        // Service element, Body and Envelope
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.flush();
+        writer.close();
+        return new SOAPHeaderTemplate(consumer, producer, processingWrappers, head, middle, out.toByteArray());
+    }
+
+    /**
+     * Creates a new template for the consumer and producer of the given
+     * request.
+     *
+     * @param request ServiceRequest
+     * @return new SOAPHeaderTemplate
+     * @throws XMLStreamException if writing the template fails
+     */
+    public static SOAPHeaderTemplate create(ServiceRequest request) throws XMLStreamException {
+        return create(request.getConsumer(), request.getProducer(), request.isProcessingWrappers());
+    }
+
+    /**
+     * Returns true if and only if this template can be used for the given
+     * request: the request has the same consumer and producer objects that
+     * the template was created for, and the same request wrapper processing.
+     *
+     * @param request ServiceRequest
+     * @return true if the template matches the request; otherwise false
+     */
+    public boolean matches(ServiceRequest request) {
+        return this.consumer == request.getConsumer() && this.producer == request.getProducer()
+                && this.processingWrappers == request.isProcessingWrappers();
+    }
+
+    /**
+     * Writes the beginning of the envelope, up to and including the service
+     * header.
+     *
+     * @param out output stream
+     * @throws IOException if writing fails
+     */
+    public void writeHead(OutputStream out) throws IOException {
+        out.write(this.head);
+    }
+
+    /**
+     * Writes the part between the per request headers and the request
+     * parameters.
+     *
+     * @param out output stream
+     * @throws IOException if writing fails
+     */
+    public void writeMiddle(OutputStream out) throws IOException {
+        out.write(this.middle);
+    }
+
+    /**
+     * Writes the end of the envelope after the request parameters.
+     *
+     * @param out output stream
+     * @throws IOException if writing fails
+     */
+    public void writeTail(OutputStream out) throws IOException {
+        out.write(this.tail);
+    }
+
+    /**
+     * Writes an X-Road header element that's set per request.
+     *
+     * @param writer StAX writer
+     * @param name local name of the element
+     * @param value value of the element
+     * @throws XMLStreamException if writing fails
+     */
+    static void writeXrdElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        writer.writeStartElement(NS_XRD_PREFIX, name, NS_XRD_URL);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+
+    private static void writeIdElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        writer.writeStartElement(NS_ID_PREFIX, name, NS_ID_URL);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+
+    static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+}
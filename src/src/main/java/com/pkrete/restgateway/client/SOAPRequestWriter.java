@@ -0,0 +1,221 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.io.RequestBody;
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * This class writes X-Road SOAP requests directly to an output stream using
+ * StAX. The envelope, X-Road headers, request parameters and attachment
+ * reference are written in the same structure as RequestSerializer builds
+ * them using SAAJ, but no DOM tree is created. The parts of the envelope that
+ * don't change between requests are copied from a SOAPHeaderTemplate. If the request has a body, it
+ * is sent as a MIME attachment and it's copied to the stream as bytes.
+ *
+ * Encrypted requests are not supported, they're always serialized using SAAJ.
+ *
+ * @author Petteri Kivimäki
+ */
+public class SOAPRequestWriter {
+
+    private static final String XML_CONTENT_TYPE = "text/xml; charset=utf-8";
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final AtomicLong BOUNDARY_COUNTER = new AtomicLong();
+
+    private final ServiceRequest<Map<String, String[]>> request;
+    private final String resourceId;
+    private final RequestBody attachment;
+    private final String attachmentContentType;
+    private final String boundary;
+    private final SOAPHeaderTemplate template;
+
+    /**
+     * Constructs and initializes a new SOAPRequestWriter object. The header
+     * template is created when the request is written.
+     *
+     * @param request ServiceRequest that contains the X-Road headers and the
+     * request parameters
+     * @param resourceId resource id or null
+     * @param attachment request body that's sent as attachment or null
+     * @param attachmentContentType content type of the request body
+     * @throws IllegalArgumentException if a request parameter name is not a
+     * valid XML element name
+     */
+    public SOAPRequestWriter(ServiceRequest<Map<String, String[]>> request, String resourceId, RequestBody attachment, String attachmentContentType) {
+        this(request, resourceId, attachment, attachmentContentType, null);
+    }
+
+    /**
+     * Constructs and initializes a new SOAPRequestWriter object that uses
+     * the given precomputed header template. If the template is null or it
+     * doesn't match the request, a new template is created when the request
+     * is written.
+     *
+     * @param request ServiceRequest that contains the X-Road headers and the
+     * request parameters
+     * @param resourceId resource id or null
+     * @param attachment request body that's sent as attachment or null
+     * @param attachmentContentType content type of the request body
+     * @param template precomputed header template or null
+     * @throws IllegalArgumentException if a request parameter name is not a
+     * valid XML element name
+     */
+    public SOAPRequestWriter(ServiceRequest<Map<String, String[]>> request, String resourceId, RequestBody attachment, String attachmentContentType, SOAPHeaderTemplate template) {
+        // Names are checked before anything is sent, StAX doesn't validate
+        // them and SAAJ would reject invalid names too
+        if (request.getRequestData() != null) {
+            for (String name : request.getRequestData().keySet()) {
+                if (!isValidName(name)) {
+                    throw new IllegalArgumentException("Invalid request parameter name : \"" + name + "\".");
+                }
+            }
+        }
+        this.request = request;
+        this.resourceId = resourceId;
+        this.attachment = attachment == null || attachment.isEmpty() ? null : attachment;
+        this.attachmentContentType = attachmentContentType;
+        this.boundary = this.attachment == null ? null : "----=_Part_" + BOUNDARY_COUNTER.incrementAndGet() + "_" + System.nanoTime();
+        this.template = template != null && template.matches(request) ? template : null;
+    }
+
+    /**
+     * Returns the ServiceRequest that's written.
+     *
+     * @return ServiceRequest
+     */
+    public ServiceRequest<Map<String, String[]>> getRequest() {
+        return request;
+    }
+
+    /**
+     * Returns the value of the Content-Type HTTP header of the request.
+     *
+     * @return content type of the request
+     */
+    public String getContentType() {
+        if (this.attachment == null) {
+            return XML_CONTENT_TYPE;
+        }
+        return "multipart/related; type=\"text/xml\"; boundary=\"" + this.boundary + "\"";
+    }
+
+    /**
+     * Writes the request to the given output stream.
+     *
+     * @param out output stream
+     * @throws IOException if writing the request fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (this.attachment == null) {
+            this.writeEnvelope(out);
+            return;
+        }
+        writeLine(out, "--" + this.boundary);
+        writeLine(out, "Content-Type: " + XML_CONTENT_TYPE);
+        out.write(CRLF);
+        this.writeEnvelope(out);
+        out.write(CRLF);
+        writeLine(out, "--" + this.boundary);
+        writeLine(out, "Content-Type: " + this.attachmentContentType);
+        writeLine(out, "Content-Transfer-Encoding: binary");
+        writeLine(out, "Content-ID: " + Constants.PARAM_REQUEST_BODY);
+        out.write(CRLF);
+        try (InputStream in = this.attachment.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+        out.write(CRLF);
+        writeLine(out, "--" + this.boundary + "--");
+    }
+
+    private void writeEnvelope(OutputStream out) throws IOException {
+        try {
+            SOAPHeaderTemplate header = this.template == null ? SOAPHeaderTemplate.create(this.request) : this.template;
+            header.writeHead(out);
+            XMLStreamWriter writer = SOAPHeaderTemplate.OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+            if (!isEmpty(this.request.getUserId())) {
+                SOAPHeaderTemplate.writeXrdElement(writer, "userId", this.request.getUserId());
+            }
+            SOAPHeaderTemplate.writeXrdElement(writer, "id", this.request.getId());
+            writer.flush();
+            header.writeMiddle(out);
+            this.writeBody(writer);
+            writer.flush();
+            header.writeTail(out);
+            writer.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException("Writing SOAP request failed.", ex);
+        }
+    }
+
+    private void writeBody(XMLStreamWriter writer) throws XMLStreamException {
+        if (!isEmpty(this.resourceId)) {
+            writeElement(writer, "resourceId", this.resourceId);
+        }
+        Map<String, String[]> params = this.request.getRequestData();
+        if (params != null) {
+            for (Map.Entry<String, String[]> entry : params.entrySet()) {
+                for (String value : entry.getValue()) {
+                    writeElement(writer, entry.getKey(), value);
+                }
+            }
+        }
+        if (this.attachment != null) {
+            // Start and end tags are used so that no tag is left open when
+            // the writer is flushed
+            writer.writeStartElement(Constants.PARAM_REQUEST_BODY);
+            writer.writeAttribute("href", Constants.PARAM_REQUEST_BODY);
+            writer.writeEndElement();
+        }
+    }
+
+    private static void writeElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Checks if the given string is a valid XML element name without a
+     * namespace prefix.
+     *
+     * @param name name to be checked
+     * @return true if the name is valid; otherwise false
+     */
+    static boolean isValidName(String name) {
+        if (name == null || name.isEmpty()) {
+            return false;
+        }
+        char first = name.charAt(0);
+        if (!Character.isLetter(first) && first != '_') {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+}
@@ -0,0 +1,989 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.xml.XMLUtil;
+import com.pkrete.xrd4j.common.message.ErrorMessage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import javax.xml.namespace.QName;
+import javax.xml.soap.SOAPException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class reads X-Road SOAP responses from an input stream using StAX.
+ * The envelope, the X-Road headers and a possible SOAP fault are parsed when
+ * the reader is created, and the reader is then positioned at the response
+ * data: the response wrapper if wrappers are processed, otherwise the first
+ * child of the SOAP body. The response data is not read until it's
+ * requested, and no DOM tree is created.
+ *
+ * The response data can be read using openBody, which returns a StAX
+ * reader that reads the response data as a document of its own directly
+ * from the input stream, so the response data is never held in memory. The
+ * input stream and the connection it's read from must stay open until the
+ * response data has been read. Alternatively the response data can be
+ * serialized to a String using readBody. Namespaces can be removed in both
+ * cases. Non-technical errors that the service returns inside the response
+ * wrapper (faultCode and faultString elements) are detected when the body is
+ * opened, if they're the first children of the wrapper, and while the
+ * response data is serialized by readBody.
+ *
+ * The SOAP part of a multipart response is read the same way, if the
+ * multipart reader of the response is set. The first attachment can then be
+ * opened using openAttachment after the response data has been read, and
+ * its content is read directly from the input stream too. Other responses
+ * that have attachments are parsed using SAAJ.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class SOAPResponseReader implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SOAPResponseReader.class);
+    private static final XMLInputFactory INPUT_FACTORY = XMLUtil.createInputFactory();
+    private static final String SOAP_ENV_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String RESPONSE = "response";
+    private static final String FAULT_CODE = "faultCode";
+    private static final String FAULT_STRING = "faultString";
+    // Number of values that are copied per attribute
+    private static final int ATTRIBUTE_FIELDS = 4;
+
+    private final XMLStreamReader reader;
+    private final Map<String, String> headers = new HashMap<>();
+    private ErrorMessage errorMessage;
+    private boolean bodyConsumed;
+    private boolean bodyOpen;
+    private boolean attachmentOpen;
+    private boolean closed;
+    // Source of the input stream that's closed with this reader
+    private Closeable source;
+    // Parts of a multipart response, the SOAP part is the current part
+    private MultipartReader parts;
+
+    private SOAPResponseReader(XMLStreamReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the envelope, the X-Road headers and a possible SOAP fault from
+     * the given input stream, and returns a reader that's positioned at the
+     * response data. The input stream is not closed.
+     *
+     * @param in input stream that contains the SOAP response
+     * @param charset character set of the response, or null if it's detected
+     * from the XML declaration
+     * @param processingWrappers is the response data inside a response
+     * wrapper
+     * @return new SOAPResponseReader object
+     * @throws SOAPException if the response is not a valid SOAP message
+     */
+    public static SOAPResponseReader read(InputStream in, String charset, boolean processingWrappers) throws SOAPException {
+        XMLStreamReader reader = null;
+        try {
+            if (charset == null) {
+                reader = INPUT_FACTORY.createXMLStreamReader(in);
+            } else {
+                reader = INPUT_FACTORY.createXMLStreamReader(in, charset);
+            }
+            SOAPResponseReader response = new SOAPResponseReader(reader);
+            response.readEnvelope(processingWrappers);
+            return response;
+        } catch (XMLStreamException ex) {
+            XMLUtil.close(reader);
+            throw new SOAPException("Parsing SOAP response failed.", ex);
+        } catch (SOAPException ex) {
+            XMLUtil.close(reader);
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the value of the given X-Road header, e.g. "id" or "userId".
+     * Only headers that contain text are available, returns null for
+     * headers that have child elements.
+     *
+     * @param localName local name of the header
+     * @return value of the header or null
+     */
+    public String getHeader(String localName) {
+        return this.headers.get(localName);
+    }
+
+    /**
+     * Returns true if the response contains a SOAP fault, or if the response
+     * data contains a non-technical error. Non-technical errors are detected
+     * only after the response data has been read using readBody.
+     *
+     * @return true if the response contains an error; otherwise false
+     */
+    public boolean hasError() {
+        return this.errorMessage != null;
+    }
+
+    /**
+     * Returns the error of the response or null.
+     *
+     * @return error message or null
+     * @see #hasError()
+     */
+    public ErrorMessage getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Reads the response data and returns it as a String. If omitNamespace
+     * is true, namespace prefixes are removed from the element names the
+     * same way as SOAPHelper.removeNamespace removes them. Returns null if
+     * the response contains a SOAP fault. The response data can be read only
+     * once.
+     *
+     * @param omitNamespace are namespace prefixes removed from the elements
+     * @return response data or null
+     * @throws SOAPException if the response data is not well-formed
+     */
+    public String readBody(boolean omitNamespace) throws SOAPException {
+        if (this.errorMessage != null) {
+            return null;
+        }
+        this.consumeBody();
+        try {
+            BodySerializer serializer = new BodySerializer(this.reader, omitNamespace);
+            String body = serializer.serialize();
+            if (serializer.faultCode != null || serializer.faultString != null) {
+                logger.debug("Response data contains a non-technical error.");
+                this.errorMessage = new ErrorMessage(serializer.faultCode, serializer.faultString);
+            }
+            return body;
+        } catch (XMLStreamException ex) {
+            throw new SOAPException("Reading SOAP response body failed.", ex);
+        }
+    }
+
+    /**
+     * Returns a reader that reads the response data as a document of its
+     * own. The reader starts at the start of the document, and the end of the
+     * document is reached after the end element of the response data. If
+     * omitNamespace is true, namespace prefixes are removed from the element
+     * names the same way as readBody removes them. Namespace declarations
+     * that the elements use, but that are declared by their ancestors, are
+     * added to the elements that use them. White space before the first
+     * child of the response data is skipped, and text is not coalesced.
+     * Returns
+     * null if the response contains a SOAP fault, or if the first children
+     * of the response data are faultCode and faultString elements. The
+     * response data can be read only once.
+     *
+     * Closing the returned reader closes this reader. If the reader is not
+     * returned, it's not open and this reader must be closed by the caller.
+     *
+     * @param omitNamespace are namespace prefixes removed from the elements
+     * @return reader of the response data or null
+     * @throws SOAPException if reading the start of the response data fails
+     */
+    public XMLStreamReader openBody(boolean omitNamespace) throws SOAPException {
+        if (this.errorMessage != null) {
+            return null;
+        }
+        this.consumeBody();
+        try {
+            BodyReader body = new BodyReader(this, omitNamespace);
+            if (body.readError()) {
+                logger.debug("Response data contains a non-technical error.");
+                return null;
+            }
+            this.bodyOpen = true;
+            return body;
+        } catch (XMLStreamException ex) {
+            throw new SOAPException("Reading SOAP response body failed.", ex);
+        }
+    }
+
+    /**
+     * Returns true if the reader returned by openBody has not been closed.
+     * The response data is read after the deserializer has returned, and the
+     * source of the response is closed when the reader is closed.
+     *
+     * @return true if the response data is being read; otherwise false
+     */
+    public boolean isBodyOpen() {
+        return this.bodyOpen && !this.closed;
+    }
+
+    /**
+     * Returns true if the response is a multipart message, and its
+     * attachments can be read using openAttachment.
+     *
+     * @return true if the response is a multipart message; otherwise false
+     */
+    public boolean isMultipart() {
+        return this.parts != null;
+    }
+
+    /**
+     * Returns the first attachment of a multipart response. The rest of the
+     * SOAP part is skipped, so the response data must be read before the
+     * attachment is opened. Returns null if the response contains an error,
+     * if the response is not a multipart message or if it doesn't have
+     * attachments. The attachment can be opened only once.
+     *
+     * Closing the returned attachment closes this reader. If the attachment
+     * is not returned, it's not open and this reader must be closed by the
+     * caller.
+     *
+     * @return first attachment or null
+     * @throws SOAPException if reading the start of the attachment fails
+     */
+    public ResponseAttachment openAttachment() throws SOAPException {
+        if (this.parts == null || this.errorMessage != null) {
+            return null;
+        }
+        if (this.attachmentOpen) {
+            throw new IllegalStateException("Attachment can be opened only once.");
+        }
+        // The rest of the SOAP part is skipped when the reader is moved to
+        // the next part
+        XMLUtil.close(this.reader);
+        try {
+            if (!this.parts.next()) {
+                logger.debug("Multipart response doesn't have attachments.");
+                return null;
+            }
+        } catch (IOException ex) {
+            throw new SOAPException("Reading SOAP attachment failed.", ex);
+        }
+        this.attachmentOpen = true;
+        return new ResponseAttachment(this.parts, this);
+    }
+
+    /**
+     * Returns true if the attachment returned by openAttachment has not been
+     * closed. The attachment is read after the deserializer has returned,
+     * and the source of the response is closed when the attachment is closed.
+     *
+     * @return true if the attachment is being read; otherwise false
+     */
+    public boolean isAttachmentOpen() {
+        return this.attachmentOpen && !this.closed;
+    }
+
+    /**
+     * Sets the parts of a multipart response. The SOAP part must be the
+     * current part, and it's the part that this reader reads.
+     *
+     * @param parts parts of the response
+     */
+    void setParts(MultipartReader parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Sets the source of the input stream that's closed when this reader is
+     * closed, e.g. the HTTP response that holds a pooled connection.
+     *
+     * @param source source of the input stream
+     */
+    void setSource(Closeable source) {
+        this.source = source;
+    }
+
+    /**
+     * Closes the stream reader and the source of the input stream, if it's
+     * set. Otherwise the underlying input stream is not closed.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        XMLUtil.close(this.reader);
+        if (this.source != null) {
+            try {
+                this.source.close();
+            } catch (IOException ex) {
+                logger.warn(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private void consumeBody() {
+        if (this.bodyConsumed) {
+            throw new IllegalStateException("Response body can be read only once.");
+        }
+        this.bodyConsumed = true;
+    }
+
+    private void readEnvelope(boolean processingWrappers) throws XMLStreamException, SOAPException {
+        if (this.reader.nextTag() != XMLStreamConstants.START_ELEMENT || !isSoapElement(this.reader, "Envelope")) {
+            throw new SOAPException("Response is not a SOAP envelope.");
+        }
+        while (this.reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (isSoapElement(this.reader, "Header")) {
+                this.readHeaders();
+            } else if (isSoapElement(this.reader, "Body")) {
+                this.readBodyStart(processingWrappers);
+                return;
+            } else {
+                XMLUtil.skipElement(this.reader);
+            }
+        }
+        throw new SOAPException("SOAP body is missing.");
+    }
+
+    private void readHeaders() throws XMLStreamException {
+        while (this.reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = this.reader.getLocalName();
+            String value = readSimpleText(this.reader);
+            if (value != null) {
+                this.headers.put(name, value);
+            }
+        }
+        logger.trace("X-Road headers : {}.", this.headers);
+    }
+
+    private void readBodyStart(boolean processingWrappers) throws XMLStreamException, SOAPException {
+        if (this.reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+            throw new SOAPException("SOAP body is empty.");
+        }
+        if (isSoapElement(this.reader, "Fault")) {
+            this.readFault();
+            return;
+        }
+        if (!processingWrappers) {
+            return;
+        }
+        // Skip the request wrapper and find the response wrapper
+        while (this.reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (RESPONSE.equals(this.reader.getLocalName())) {
+                return;
+            }
+            XMLUtil.skipElement(this.reader);
+        }
+        throw new SOAPException("Response wrapper is missing.");
+    }
+
+    private void readFault() throws XMLStreamException {
+        logger.debug("SOAP response contains SOAP fault.");
+        String faultCode = null;
+        String faultString = null;
+        String faultActor = null;
+        String detail = null;
+        while (this.reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = this.reader.getLocalName();
+            String value = readText(this.reader).trim();
+            if ("faultcode".equals(name)) {
+                faultCode = value;
+            } else if ("faultstring".equals(name)) {
+                faultString = value;
+            } else if ("faultactor".equals(name)) {
+                faultActor = value.isEmpty() ? null : value;
+            } else if ("detail".equals(name)) {
+                detail = value.isEmpty() ? null : value;
+            }
+        }
+        this.errorMessage = new ErrorMessage(faultCode, faultString, faultActor, detail);
+    }
+
+    private static boolean isSoapElement(XMLStreamReader reader, String localName) {
+        return localName.equals(reader.getLocalName()) && SOAP_ENV_NS.equals(reader.getNamespaceURI());
+    }
+
+    /**
+     * Reads the text of the current element and moves to its end element.
+     * Returns null if the element has child elements.
+     */
+    private static String readSimpleText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        boolean simple = true;
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                simple = false;
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (depth == 1 && isText(event)) {
+                text.append(reader.getText());
+            }
+        }
+        return simple ? text.toString().trim() : null;
+    }
+
+    /**
+     * Reads all the text inside the current element and moves to its end
+     * element.
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (isText(event)) {
+                text.append(reader.getText());
+            }
+        }
+        return text.toString();
+    }
+
+    private static boolean isText(int event) {
+        return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                || event == XMLStreamConstants.SPACE;
+    }
+
+    /**
+     * Reads the current element of a stream and its children as a document
+     * of its own. The start element of the response data is read before the
+     * first child, so that leading faultCode and faultString elements are
+     * found, and it's returned from a copy. Namespace declarations that the
+     * elements use, but that are declared by their ancestors, are returned
+     * with the declarations of the elements.
+     */
+    private static class BodyReader extends StreamReaderDelegate {
+
+        private final SOAPResponseReader owner;
+        private final XMLStreamReader reader;
+        private final boolean omitNamespace;
+        // Start element of the response data
+        private final Element root;
+        // Number of declarations per prefix that are in scope
+        private final Map<String, Integer> declared = new HashMap<>();
+        // Namespace declarations of each open element
+        private final Deque<List<String>> scopes = new ArrayDeque<>();
+        // Declarations of the current element, prefix and URI pairs
+        private List<String> namespaces;
+        private int event = XMLStreamConstants.START_DOCUMENT;
+        // Is the start element of the response data the current event
+        private boolean atRoot;
+        // Is the stream positioned at the next event already
+        private boolean pending;
+        private int depth;
+
+        BodyReader(SOAPResponseReader owner, boolean omitNamespace) {
+            super(owner.reader);
+            this.owner = owner;
+            this.reader = owner.reader;
+            this.omitNamespace = omitNamespace;
+            this.root = new Element(this.reader);
+            this.namespaces = this.declare();
+        }
+
+        /**
+         * Reads the leading faultCode and faultString elements of the
+         * response data, and sets the error of the response if they're
+         * found. Returns true if the response data contains an error.
+         */
+        boolean readError() throws XMLStreamException {
+            String faultCode = null;
+            String faultString = null;
+            boolean error = false;
+            int next = this.nextSignificant();
+            while (next == XMLStreamConstants.START_ELEMENT) {
+                String localName = this.reader.getLocalName();
+                if (FAULT_CODE.equals(localName)) {
+                    faultCode = readText(this.reader).trim();
+                } else if (FAULT_STRING.equals(localName)) {
+                    faultString = readText(this.reader).trim();
+                } else {
+                    break;
+                }
+                error = true;
+                next = this.nextSignificant();
+            }
+            if (error) {
+                this.owner.errorMessage = new ErrorMessage(faultCode, faultString);
+            }
+            this.pending = true;
+            return error;
+        }
+
+        /**
+         * Moves the stream to the next event that's not white space.
+         */
+        private int nextSignificant() throws XMLStreamException {
+            int next = this.reader.next();
+            while ((next == XMLStreamConstants.CHARACTERS || next == XMLStreamConstants.SPACE) && this.reader.isWhiteSpace()) {
+                next = this.reader.next();
+            }
+            return next;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            if (this.event == XMLStreamConstants.START_DOCUMENT) {
+                this.atRoot = true;
+                this.depth = 1;
+                this.scopes.push(this.namespaces);
+                return this.event = XMLStreamConstants.START_ELEMENT;
+            }
+            this.atRoot = false;
+            if (this.depth == 0) {
+                if (this.event == XMLStreamConstants.END_DOCUMENT) {
+                    throw new NoSuchElementException("End of the response data has been reached.");
+                }
+                return this.event = XMLStreamConstants.END_DOCUMENT;
+            }
+            if (this.pending) {
+                this.pending = false;
+                this.event = this.reader.getEventType();
+            } else {
+                this.event = this.reader.next();
+            }
+            if (this.event == XMLStreamConstants.START_ELEMENT) {
+                this.depth++;
+                this.namespaces = this.declare();
+                this.scopes.push(this.namespaces);
+            } else if (this.event == XMLStreamConstants.END_ELEMENT) {
+                this.depth--;
+                this.namespaces = this.scopes.pop();
+                for (int i = 0; i < this.namespaces.size(); i += 2) {
+                    String prefix = this.namespaces.get(i);
+                    this.declared.put(prefix, this.declared.get(prefix) - 1);
+                }
+            } else if (this.event == XMLStreamConstants.END_DOCUMENT) {
+                throw new XMLStreamException("Response body ended unexpectedly.");
+            }
+            return this.event;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.event != XMLStreamConstants.END_DOCUMENT;
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int next = this.next();
+            while ((next == XMLStreamConstants.CHARACTERS && this.isWhiteSpace())
+                    || (next == XMLStreamConstants.CDATA && this.isWhiteSpace())
+                    || next == XMLStreamConstants.SPACE
+                    || next == XMLStreamConstants.PROCESSING_INSTRUCTION
+                    || next == XMLStreamConstants.COMMENT) {
+                next = this.next();
+            }
+            if (next != XMLStreamConstants.START_ELEMENT && next != XMLStreamConstants.END_ELEMENT) {
+                throw new XMLStreamException("Expected start or end tag.");
+            }
+            return next;
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            if (this.event != XMLStreamConstants.START_ELEMENT) {
+                throw new XMLStreamException("Current event is not a start element.");
+            }
+            StringBuilder text = new StringBuilder();
+            int next = this.next();
+            while (next != XMLStreamConstants.END_ELEMENT) {
+                if (isText(next)) {
+                    text.append(this.getText());
+                } else if (next == XMLStreamConstants.START_ELEMENT || next == XMLStreamConstants.END_DOCUMENT) {
+                    throw new XMLStreamException("Element has child elements.");
+                }
+                next = this.next();
+            }
+            return text.toString();
+        }
+
+        @Override
+        public int getEventType() {
+            return this.event;
+        }
+
+        @Override
+        public boolean isStartElement() {
+            return this.event == XMLStreamConstants.START_ELEMENT;
+        }
+
+        @Override
+        public boolean isEndElement() {
+            return this.event == XMLStreamConstants.END_ELEMENT;
+        }
+
+        @Override
+        public boolean isCharacters() {
+            return this.event == XMLStreamConstants.CHARACTERS;
+        }
+
+        @Override
+        public boolean isWhiteSpace() {
+            return isText(this.event) && this.reader.isWhiteSpace();
+        }
+
+        @Override
+        public boolean hasName() {
+            return this.event == XMLStreamConstants.START_ELEMENT || this.event == XMLStreamConstants.END_ELEMENT;
+        }
+
+        @Override
+        public boolean hasText() {
+            return isText(this.event) || this.event == XMLStreamConstants.COMMENT;
+        }
+
+        @Override
+        public String getLocalName() {
+            return this.atRoot ? this.root.localName : this.reader.getLocalName();
+        }
+
+        @Override
+        public String getPrefix() {
+            if (this.omitNamespace) {
+                return "";
+            }
+            return this.atRoot ? this.root.prefix : this.reader.getPrefix();
+        }
+
+        @Override
+        public String getNamespaceURI() {
+            return this.atRoot ? this.root.namespaceUri : this.reader.getNamespaceURI();
+        }
+
+        @Override
+        public QName getName() {
+            return new QName(this.getNamespaceURI(), this.getLocalName(), normalize(this.getPrefix()));
+        }
+
+        @Override
+        public int getNamespaceCount() {
+            return this.namespaces.size() / 2;
+        }
+
+        @Override
+        public String getNamespacePrefix(int index) {
+            String prefix = this.namespaces.get(index * 2);
+            return prefix.isEmpty() ? null : prefix;
+        }
+
+        @Override
+        public String getNamespaceURI(int index) {
+            return this.namespaces.get(index * 2 + 1);
+        }
+
+        @Override
+        public int getAttributeCount() {
+            return this.atRoot ? this.root.attributes.length / ATTRIBUTE_FIELDS : this.reader.getAttributeCount();
+        }
+
+        @Override
+        public String getAttributePrefix(int index) {
+            return this.atRoot ? this.root.attribute(index, 0) : this.reader.getAttributePrefix(index);
+        }
+
+        @Override
+        public String getAttributeLocalName(int index) {
+            return this.atRoot ? this.root.attribute(index, 1) : this.reader.getAttributeLocalName(index);
+        }
+
+        @Override
+        public String getAttributeNamespace(int index) {
+            return this.atRoot ? this.root.attribute(index, 2) : this.reader.getAttributeNamespace(index);
+        }
+
+        @Override
+        public String getAttributeValue(int index) {
+            return this.atRoot ? this.root.attribute(index, 3) : this.reader.getAttributeValue(index);
+        }
+
+        @Override
+        public String getAttributeType(int index) {
+            return this.atRoot ? "CDATA" : this.reader.getAttributeType(index);
+        }
+
+        @Override
+        public QName getAttributeName(int index) {
+            if (!this.atRoot) {
+                return this.reader.getAttributeName(index);
+            }
+            return new QName(normalize(this.getAttributeNamespace(index)), this.getAttributeLocalName(index), normalize(this.getAttributePrefix(index)));
+        }
+
+        @Override
+        public boolean isAttributeSpecified(int index) {
+            return this.atRoot || this.reader.isAttributeSpecified(index);
+        }
+
+        @Override
+        public String getAttributeValue(String namespaceUri, String localName) {
+            if (!this.atRoot) {
+                return this.reader.getAttributeValue(namespaceUri, localName);
+            }
+            for (int i = 0; i < this.getAttributeCount(); i++) {
+                if (localName.equals(this.getAttributeLocalName(i))
+                        && (namespaceUri == null || namespaceUri.equals(normalize(this.getAttributeNamespace(i))))) {
+                    return this.getAttributeValue(i);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Closes the reader of the SOAP response and the source of the
+         * response.
+         */
+        @Override
+        public void close() {
+            this.owner.close();
+        }
+
+        /**
+         * Returns the namespace declarations of the current start element
+         * and declares them. Prefixes that the element and its attributes
+         * use, but that are not declared in the document, are declared too.
+         */
+        private List<String> declare() {
+            List<String> result = Collections.emptyList();
+            for (int i = 0; i < this.reader.getNamespaceCount(); i++) {
+                result = this.declare(result, normalize(this.reader.getNamespacePrefix(i)), this.reader.getNamespaceURI(i));
+            }
+            if (!this.omitNamespace) {
+                String prefix = normalize(this.reader.getPrefix());
+                String namespaceUri = this.reader.getNamespaceURI();
+                if (namespaceUri != null && !namespaceUri.isEmpty() && !this.isDeclared(prefix)) {
+                    result = this.declare(result, prefix, namespaceUri);
+                }
+            }
+            for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+                String attributePrefix = normalize(this.reader.getAttributePrefix(i));
+                if (!attributePrefix.isEmpty() && !"xml".equals(attributePrefix) && !this.isDeclared(attributePrefix)) {
+                    result = this.declare(result, attributePrefix, this.reader.getAttributeNamespace(i));
+                }
+            }
+            return result;
+        }
+
+        private List<String> declare(List<String> scope, String prefix, String namespaceUri) {
+            List<String> result = scope.isEmpty() ? new ArrayList<String>(4) : scope;
+            result.add(prefix);
+            result.add(namespaceUri == null ? "" : namespaceUri);
+            Integer count = this.declared.get(prefix);
+            this.declared.put(prefix, count == null ? 1 : count + 1);
+            return result;
+        }
+
+        private boolean isDeclared(String prefix) {
+            Integer count = this.declared.get(prefix);
+            return count != null && count > 0;
+        }
+
+        private static String normalize(String value) {
+            return value == null ? "" : value;
+        }
+    }
+
+    /**
+     * Copy of a start element.
+     */
+    private static class Element {
+
+        private final String prefix;
+        private final String localName;
+        private final String namespaceUri;
+        // Prefix, local name, namespace and value of each attribute
+        private final String[] attributes;
+
+        Element(XMLStreamReader reader) {
+            this.prefix = reader.getPrefix();
+            this.localName = reader.getLocalName();
+            this.namespaceUri = reader.getNamespaceURI();
+            this.attributes = new String[reader.getAttributeCount() * ATTRIBUTE_FIELDS];
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                this.attributes[i * ATTRIBUTE_FIELDS] = reader.getAttributePrefix(i);
+                this.attributes[i * ATTRIBUTE_FIELDS + 1] = reader.getAttributeLocalName(i);
+                this.attributes[i * ATTRIBUTE_FIELDS + 2] = reader.getAttributeNamespace(i);
+                this.attributes[i * ATTRIBUTE_FIELDS + 3] = reader.getAttributeValue(i);
+            }
+        }
+
+        String attribute(int index, int field) {
+            return this.attributes[index * ATTRIBUTE_FIELDS + field];
+        }
+    }
+
+    /**
+     * Serializes the current element of a stream and its children. Namespace
+     * declarations that the element uses, but that are declared by its
+     * ancestors, are added to the element, so the result is a well-formed
+     * document on its own.
+     */
+    private static class BodySerializer {
+
+        private final XMLStreamReader reader;
+        private final boolean omitNamespace;
+        private final StringBuilder out = new StringBuilder(1024);
+        // Number of declarations per prefix that are in scope in the output
+        private final Map<String, Integer> declared = new HashMap<>();
+        // Prefixes declared by each open element in the output
+        private final Deque<List<String>> scopes = new ArrayDeque<>();
+        private boolean startTagOpen;
+        private int depth;
+        // Text of the faultCode or faultString child that's being read
+        private StringBuilder faultText;
+        private String faultCode;
+        private String faultString;
+
+        BodySerializer(XMLStreamReader reader, boolean omitNamespace) {
+            this.reader = reader;
+            this.omitNamespace = omitNamespace;
+        }
+
+        String serialize() throws XMLStreamException {
+            this.writeStartElement();
+            while (this.depth > 0 && this.reader.hasNext()) {
+                switch (this.reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        this.writeStartElement();
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        this.writeEndElement();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        this.closeStartTag();
+                        if (this.faultText != null) {
+                            this.faultText.append(this.reader.getText());
+                        }
+                        XMLUtil.appendEscaped(this.out, this.reader.getText(), false);
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        this.closeStartTag();
+                        if (this.faultText != null) {
+                            this.faultText.append(this.reader.getText());
+                        }
+                        this.out.append("<![CDATA[").append(this.reader.getText()).append("]]>");
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        this.closeStartTag();
+                        this.out.append("<!--").append(this.reader.getText()).append("-->");
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        this.closeStartTag();
+                        this.out.append("<?").append(this.reader.getPITarget());
+                        if (this.reader.getPIData() != null && !this.reader.getPIData().isEmpty()) {
+                            this.out.append(' ').append(this.reader.getPIData());
+                        }
+                        this.out.append("?>");
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (this.depth > 0) {
+                throw new XMLStreamException("Response body ended unexpectedly.");
+            }
+            return this.out.toString();
+        }
+
+        private void writeStartElement() {
+            this.closeStartTag();
+            if (this.depth == 1) {
+                String localName = this.reader.getLocalName();
+                if (FAULT_CODE.equals(localName) || FAULT_STRING.equals(localName)) {
+                    this.faultText = new StringBuilder();
+                }
+            }
+            this.depth++;
+            List<String> scope = Collections.emptyList();
+            String prefix = normalize(this.reader.getPrefix());
+            this.out.append('<');
+            this.appendName(this.omitNamespace ? "" : prefix, this.reader.getLocalName());
+            for (int i = 0; i < this.reader.getNamespaceCount(); i++) {
+                scope = this.declare(scope, normalize(this.reader.getNamespacePrefix(i)), this.reader.getNamespaceURI(i));
+            }
+            if (!this.omitNamespace) {
+                String namespaceUri = this.reader.getNamespaceURI();
+                if (namespaceUri != null && !namespaceUri.isEmpty() && !this.isDeclared(prefix)) {
+                    scope = this.declare(scope, prefix, namespaceUri);
+                }
+            }
+            for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+                String attributePrefix = normalize(this.reader.getAttributePrefix(i));
+                if (!attributePrefix.isEmpty() && !"xml".equals(attributePrefix) && !this.isDeclared(attributePrefix)) {
+                    scope = this.declare(scope, attributePrefix, this.reader.getAttributeNamespace(i));
+                }
+            }
+            this.scopes.push(scope);
+            for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+                this.out.append(' ');
+                this.appendName(normalize(this.reader.getAttributePrefix(i)), this.reader.getAttributeLocalName(i));
+                this.out.append("=\"");
+                XMLUtil.appendEscaped(this.out, this.reader.getAttributeValue(i), true);
+                this.out.append('"');
+            }
+            this.startTagOpen = true;
+        }
+
+        private void writeEndElement() {
+            this.depth--;
+            if (this.depth == 1 && this.faultText != null) {
+                if (FAULT_CODE.equals(this.reader.getLocalName())) {
+                    this.faultCode = this.faultText.toString().trim();
+                } else {
+                    this.faultString = this.faultText.toString().trim();
+                }
+                this.faultText = null;
+            }
+            if (this.startTagOpen) {
+                this.out.append("/>");
+                this.startTagOpen = false;
+            } else {
+                this.out.append("</");
+                this.appendName(this.omitNamespace ? "" : normalize(this.reader.getPrefix()), this.reader.getLocalName());
+                this.out.append('>');
+            }
+            for (String prefix : this.scopes.pop()) {
+                this.declared.put(prefix, this.declared.get(prefix) - 1);
+            }
+        }
+
+        private List<String> declare(List<String> scope, String prefix, String namespaceUri) {
+            List<String> result = scope.isEmpty() ? new ArrayList<String>(2) : scope;
+            result.add(prefix);
+            Integer count = this.declared.get(prefix);
+            this.declared.put(prefix, count == null ? 1 : count + 1);
+            this.out.append(prefix.isEmpty() ? " xmlns" : " xmlns:").append(prefix).append("=\"");
+            XMLUtil.appendEscaped(this.out, namespaceUri == null ? "" : namespaceUri, true);
+            this.out.append('"');
+            return result;
+        }
+
+        private boolean isDeclared(String prefix) {
+            Integer count = this.declared.get(prefix);
+            return count != null && count > 0;
+        }
+
+        private void closeStartTag() {
+            if (this.startTagOpen) {
+                this.out.append('>');
+                this.startTagOpen = false;
+            }
+        }
+
+        private void appendName(String prefix, String localName) {
+            if (!prefix.isEmpty()) {
+                this.out.append(prefix).append(':');
+            }
+            this.out.append(localName);
+        }
+
+        private static String normalize(String prefix) {
+            return prefix == null ? "" : prefix;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.pkrete.restgateway.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents a single security server and holds its passive
+ * health information: the number of requests in progress, exponentially
+ * weighted moving average of the latency, the number of consecutive failures
+ * and the time until which the server is ejected from load balancing.
+ *
+ * All the values are updated without locking.
+ *
+ * @author Petteri Kivimäki
+ */
+public class SecurityServer {
+
+    /**
+     * Weight of the latest latency sample in the moving average.
+     */
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final String url;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong ewmaLatencyBits = new AtomicLong(Double.doubleToLongBits(0));
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long ejectedUntil;
+
+    /**
+     * Constructs and initializes a new SecurityServer object.
+     *
+     * @param url URL of the security server
+     */
+    public SecurityServer(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Returns the URL of the security server.
+     *
+     * @return URL of the security server
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns the number of requests in progress.
+     *
+     * @return number of requests in progress
+     */
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * Returns the exponentially weighted moving average of the latency in
+     * milliseconds.
+     *
+     * @return average latency in milliseconds
+     */
+    public double getEwmaLatency() {
+        return Double.longBitsToDouble(this.ewmaLatencyBits.get());
+    }
+
+    /**
+     * Returns the number of requests sent to this security server.
+     *
+     * @return number of requests
+     */
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * Returns the number of failed requests.
+     *
+     * @return number of failed requests
+     */
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    /**
+     * Returns the number of consecutive failed or slow requests.
+     *
+     * @return number of consecutive failures
+     */
+    public int getConsecutiveFailures() {
+        return this.consecutiveFailures.get();
+    }
+
+    /**
+     * Returns true if and only if the server is ejected from load balancing
+     * at the given time.
+     *
+     * @param now current time in milliseconds
+     * @return true if the server is ejected; otherwise false
+     */
+    public boolean isEjected(long now) {
+        return now < this.ejectedUntil;
+    }
+
+    long getEjectedUntil() {
+        return this.ejectedUntil;
+    }
+
+    void eject(long until) {
+        this.ejectedUntil = until;
+    }
+
+    void start() {
+        this.inFlight.incrementAndGet();
+        this.requests.incrementAndGet();
+    }
+
+    /**
+     * Updates the statistics after a request has completed.
+     *
+     * @param latency latency of the request in milliseconds
+     * @param healthy false if the request failed or it was too slow
+     * @param failed true if the request failed
+     * @return number of consecutive failures after the update
+     */
+    int finish(long latency, boolean healthy, boolean failed) {
+        this.inFlight.decrementAndGet();
+        if (failed) {
+            this.failures.incrementAndGet();
+        } else {
+            updateLatency(latency);
+        }
+        if (healthy) {
+            this.consecutiveFailures.set(0);
+            return 0;
+        }
+        return this.consecutiveFailures.incrementAndGet();
+    }
+
+    private void updateLatency(long latency) {
+        long current;
+        long next;
+        do {
+            current = this.ewmaLatencyBits.get();
+            double avg = Double.longBitsToDouble(current);
+            double value = avg == 0 ? latency : avg + EWMA_ALPHA * (latency - avg);
+            next = Double.doubleToLongBits(value);
+        } while (!this.ewmaLatencyBits.compareAndSet(current, next));
+    }
+
+    @Override
+    public String toString() {
+        return this.url + " [in-flight : " + this.getInFlight() + ", latency : " + Math.round(this.getEwmaLatency())
+                + " ms, requests : " + this.getRequests() + ", failures : " + this.getFailures()
+                + ", ejected : " + this.isEjected(System.currentTimeMillis()) + "]";
+    }
+}
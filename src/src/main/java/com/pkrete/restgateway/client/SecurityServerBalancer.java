@@ -0,0 +1,197 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.restgateway.util.RESTGatewayUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class balances the requests between one or more security servers.
+ * Each request is sent to the healthy security server that has the least
+ * requests in progress. If several servers have the same number of requests
+ * in progress, the one with the lowest average latency is selected.
+ *
+ * Health of the servers is tracked passively: a server that fails or responds
+ * slower than the slow threshold for the given number of consecutive requests
+ * is ejected from load balancing for the given time. When the time has
+ * passed, the server gets requests again and a single failure ejects it
+ * again until a request succeeds. If all the servers are ejected, the
+ * request is sent to the server whose ejection ends first.
+ *
+ * @author Petteri Kivimäki
+ */
+public class SecurityServerBalancer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SecurityServerBalancer.class);
+
+    /**
+     * Default number of consecutive failures after which a server is ejected.
+     */
+    public static final int DEFAULT_MAX_FAILURES = 3;
+    /**
+     * Default ejection time in milliseconds.
+     */
+    public static final int DEFAULT_EJECT_TIME = 30000;
+    /**
+     * Default latency in milliseconds after which a request is considered
+     * slow.
+     */
+    public static final int DEFAULT_SLOW_THRESHOLD = 30000;
+
+    private final List<SecurityServer> servers;
+    private final int maxFailures;
+    private final int ejectTime;
+    private final int slowThreshold;
+
+    /**
+     * Constructs and initializes a new SecurityServerBalancer object.
+     *
+     * @param urls URLs of the security servers
+     * @param maxFailures number of consecutive failed or slow requests after
+     * which a server is ejected
+     * @param ejectTime ejection time in milliseconds
+     * @param slowThreshold latency in milliseconds after which a request is
+     * considered slow
+     */
+    public SecurityServerBalancer(List<String> urls, int maxFailures, int ejectTime, int slowThreshold) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one security server URL is required.");
+        }
+        List<SecurityServer> list = new ArrayList<>();
+        for (String url : urls) {
+            list.add(new SecurityServer(url));
+        }
+        this.servers = Collections.unmodifiableList(list);
+        this.maxFailures = maxFailures;
+        this.ejectTime = ejectTime;
+        this.slowThreshold = slowThreshold;
+        logger.info("Security servers : {}. Max failures : {}, eject time : {} ms, slow threshold : {} ms.", urls, maxFailures, ejectTime, slowThreshold);
+    }
+
+    /**
+     * Creates a new SecurityServerBalancer that's configured using the given
+     * properties. Security server URLs are read from the ss.url property that
+     * contains a comma separated list of URLs.
+     *
+     * @param props consumer gateway properties
+     * @return new SecurityServerBalancer object
+     */
+    public static SecurityServerBalancer create(Properties props) {
+        return new SecurityServerBalancer(
+                parseUrls(props.getProperty(Constants.CONSUMER_PROPS_SECURITY_SERVER_URL)),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_SS_MAX_FAILURES, DEFAULT_MAX_FAILURES),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_SS_EJECT_TIME, DEFAULT_EJECT_TIME),
+                RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_SS_SLOW_THRESHOLD, DEFAULT_SLOW_THRESHOLD));
+    }
+
+    /**
+     * Splits the given comma separated list of URLs. Empty values are
+     * ignored.
+     *
+     * @param value comma separated list of URLs
+     * @return list of URLs
+     */
+    public static List<String> parseUrls(String value) {
+        List<String> urls = new ArrayList<>();
+        if (value == null) {
+            return urls;
+        }
+        for (String url : value.split(",")) {
+            if (!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Selects the security server for a new request. The returned server must
+     * be released by calling the release method when the request has
+     * completed.
+     *
+     * @return selected security server
+     */
+    public SecurityServer acquire() {
+        return this.acquire(System.currentTimeMillis());
+    }
+
+    SecurityServer acquire(long now) {
+        SecurityServer selected = null;
+        SecurityServer firstBack = null;
+        for (SecurityServer server : this.servers) {
+            if (server.isEjected(now)) {
+                if (firstBack == null || server.getEjectedUntil() < firstBack.getEjectedUntil()) {
+                    firstBack = server;
+                }
+            } else if (selected == null || isBetter(server, selected)) {
+                selected = server;
+            }
+        }
+        if (selected == null) {
+            logger.debug("All the security servers are ejected. Use \"{}\".", firstBack.getUrl());
+            selected = firstBack;
+        }
+        selected.start();
+        return selected;
+    }
+
+    private static boolean isBetter(SecurityServer server, SecurityServer other) {
+        int inFlight = server.getInFlight();
+        int otherInFlight = other.getInFlight();
+        if (inFlight != otherInFlight) {
+            return inFlight < otherInFlight;
+        }
+        return server.getEwmaLatency() < other.getEwmaLatency();
+    }
+
+    /**
+     * Releases the given security server after a request has completed and
+     * updates its health information.
+     *
+     * @param server security server returned by the acquire method
+     * @param latency latency of the request in milliseconds
+     * @param failed true if the request failed
+     */
+    public void release(SecurityServer server, long latency, boolean failed) {
+        this.release(server, latency, failed, System.currentTimeMillis());
+    }
+
+    void release(SecurityServer server, long latency, boolean failed, long now) {
+        boolean slow = latency > this.slowThreshold;
+        int failures = server.finish(latency, !failed && !slow, failed);
+        if (failures >= this.maxFailures && !server.isEjected(now)) {
+            server.eject(now + this.ejectTime);
+            logger.warn("Security server ejected for {} ms after {} consecutive {} requests. {}", this.ejectTime, failures, failed ? "failed" : "slow", server);
+        }
+    }
+
+    /**
+     * Returns the security servers.
+     *
+     * @return unmodifiable list of security servers
+     */
+    public List<SecurityServer> getServers() {
+        return this.servers;
+    }
+
+    /**
+     * Returns latency and in-flight statistics of all the security servers
+     * for logging.
+     *
+     * @return statistics as a string
+     */
+    public String getStats() {
+        StringBuilder builder = new StringBuilder();
+        for (SecurityServer server : this.servers) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(server);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.xrd4j.client.deserializer.ServiceResponseDeserializer;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import com.pkrete.xrd4j.common.message.ServiceResponse;
+import javax.xml.soap.SOAPException;
+
+/**
+ * This interface is implemented by deserializers that can convert SOAP
+ * responses to ServiceResponse objects from a SOAPResponseReader, without
+ * creating a SOAPMessage. PooledSOAPClient uses the reader for responses that
+ * don't have attachments, and for multipart responses if the deserializer
+ * streams attachments. The SOAPMessage based deserialize method is used for
+ * other responses that have attachments.
+ *
+ * @author Petteri Kivimäki
+ */
+public interface StreamingResponseDeserializer extends ServiceResponseDeserializer {
+
+    /**
+     * Converts the SOAP response read by the given reader to a
+     * ServiceResponse. The response data is either read before this method
+     * returns, or it's opened using SOAPResponseReader.openBody and the
+     * returned reader is set as the response data. In the latter case the
+     * reader and the connection stay open after this method returns, and
+     * the response data must be closed by the caller of the client.
+     * Otherwise the reader is closed after this method returns.
+     *
+     * @param reader reader that's positioned at the response data
+     * @param request ServiceRequest that was sent
+     * @return ServiceResponse
+     * @throws SOAPException if reading the response fails
+     */
+    ServiceResponse deserialize(SOAPResponseReader reader, ServiceRequest request) throws SOAPException;
+
+    /**
+     * Returns true if multipart responses are read using a SOAPResponseReader
+     * that reads the SOAP part, and their attachments are opened using
+     * SOAPResponseReader.openAttachment. The attachment is then read by the
+     * caller of the client the same way as the response data opened using
+     * openBody. Otherwise multipart responses are parsed using SAAJ.
+     *
+     * @return true if attachments are read from the connection by the
+     * caller; otherwise false
+     */
+    boolean isStreamingAttachments();
+}
@@ -1,5 +1,7 @@
 package com.pkrete.restgateway.endpoint;
 
+import com.pkrete.restgateway.cache.RequestCoalescer;
+import com.pkrete.restgateway.cache.ResponseCache;
 import com.pkrete.xrd4j.common.member.ConsumerMember;
 import com.pkrete.xrd4j.common.member.ProducerMember;
 
@@ -11,7 +13,9 @@ import com.pkrete.xrd4j.common.member.ProducerMember;
  * one or more resource id's that are marked as {resourceId}. E.g.
  * http://base.com/resource-path/{resourceId}/str/{resourceId}. The value
  * of the resource id variable is the rest of the URL starting from the first
- * curly bracket "{". E.g. "{resourceId}/str/{resourceId}".
+ * curly bracket "{". E.g. "{resourceId}/str/{resourceId}". The value of the
+ * resource id varies between requests, and therefore it's not stored in
+ * ConsumerEndpoint but in RouteMatch that's created for each request.
  *
  * Client id is X-Road client id that must be defined on subsystem level:
  * instance.memberClass.memberCode.subsystem. Service id is X-Road service id
@@ -31,13 +35,6 @@ public class ConsumerEndpoint extends AbstractEndpoint {
      * ConsumerEndpoint.
      */
     private String resourcePath;
-    /**
-     * Resource id is part of resource path and it identifies a single resource,
-     * and therefore it's not fixed. The value of the resource id may vary
-     * between requests even if the requests are targeted to the same endpoint
-     * and resource path.
-     */
-    private String resourceId;
     /**
      * X-Road consumer member, the client.
      */
@@ -51,6 +48,39 @@ public class ConsumerEndpoint extends AbstractEndpoint {
      * be modified to point the Consumer Endpoint instance.
      */
     private boolean modifyUrl;
+    /**
+     * Max size of the request body in bytes. Zero means no limit.
+     */
+    private long requestMaxSize;
+    /**
+     * Are responses compressed if the client accepts it.
+     */
+    private boolean compressResponse;
+    /**
+     * Time to live of the cached responses in seconds, zero means that the
+     * responses are not cached.
+     */
+    private long cacheTtl;
+    /**
+     * Max number of cached responses.
+     */
+    private int cacheMaxEntries;
+    /**
+     * Max memory use of the cached responses in bytes.
+     */
+    private long cacheMaxBytes;
+    /**
+     * Is userId part of the cache key.
+     */
+    private boolean cacheKeyByUserId;
+    /**
+     * Are identical concurrent requests coalesced.
+     */
+    private boolean coalesceRequests;
+    /**
+     * Max number of requests that wait for an identical request.
+     */
+    private int coalesceMaxWaiters;
 
     /**
      * Constructs and initializes a new ProviderEndpoint object.
@@ -63,6 +93,11 @@ public class ConsumerEndpoint extends AbstractEndpoint {
         this.clientId = clientId;
         this.resourcePath = resourcePath;
         this.modifyUrl = false;
+        this.compressResponse = true;
+        this.cacheMaxEntries = ResponseCache.DEFAULT_MAX_ENTRIES;
+        this.cacheMaxBytes = ResponseCache.DEFAULT_MAX_BYTES;
+        this.cacheKeyByUserId = true;
+        this.coalesceMaxWaiters = RequestCoalescer.DEFAULT_MAX_WAITERS;
     }
 
     /**
@@ -97,22 +132,6 @@ public class ConsumerEndpoint extends AbstractEndpoint {
         this.clientId = clientId;
     }
 
-    /**
-     * Returns the resource id value.
-     * @return resource id value
-     */
-    public String getResourceId() {
-        return resourceId;
-    }
-
-    /**
-     * Sets the resource id value.
-     * @param resourceId new value
-     */
-    public void setResourceId(String resourceId) {
-        this.resourceId = resourceId;
-    }
-
     /**
      * Returns the X-Road consumer member.
      * @return X-Road consumer member
@@ -162,4 +181,143 @@ public class ConsumerEndpoint extends AbstractEndpoint {
     public void setModifyUrl(boolean modifyUrl) {
         this.modifyUrl = modifyUrl;
     }
+
+    /**
+     * Returns the max size of the request body in bytes. Zero means that the
+     * size is not limited.
+     * @return max size of the request body in bytes
+     */
+    public long getRequestMaxSize() {
+        return requestMaxSize;
+    }
+
+    /**
+     * Sets the max size of the request body in bytes. Zero means that the
+     * size is not limited.
+     * @param requestMaxSize new value
+     */
+    public void setRequestMaxSize(long requestMaxSize) {
+        this.requestMaxSize = requestMaxSize;
+    }
+
+    /**
+     * Returns a boolean value that indicates if responses of this endpoint
+     * are compressed when the client accepts compressed responses.
+     * @return true if responses are compressed; otherwise false
+     */
+    public boolean isCompressResponse() {
+        return compressResponse;
+    }
+
+    /**
+     * Sets a boolean value that indicates if responses of this endpoint
+     * are compressed when the client accepts compressed responses.
+     * @param compressResponse new value
+     */
+    public void setCompressResponse(boolean compressResponse) {
+        this.compressResponse = compressResponse;
+    }
+
+    /**
+     * Returns the time to live of the cached responses in seconds. Zero means
+     * that the responses are not cached.
+     * @return time to live in seconds
+     */
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Sets the time to live of the cached responses in seconds. Zero means
+     * that the responses are not cached.
+     * @param cacheTtl new value
+     */
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * Returns the max number of cached responses.
+     * @return max number of cached responses
+     */
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    /**
+     * Sets the max number of cached responses.
+     * @param cacheMaxEntries new value
+     */
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    /**
+     * Returns the max memory use of the cached responses in bytes.
+     * @return max memory use in bytes
+     */
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    /**
+     * Sets the max memory use of the cached responses in bytes.
+     * @param cacheMaxBytes new value
+     */
+    public void setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    /**
+     * Returns a boolean value that indicates if userId is part of the cache
+     * key, so that the cached responses are not shared between users.
+     * @return true if userId is part of the cache key; otherwise false
+     */
+    public boolean isCacheKeyByUserId() {
+        return cacheKeyByUserId;
+    }
+
+    /**
+     * Sets a boolean value that indicates if userId is part of the cache
+     * key.
+     * @param cacheKeyByUserId new value
+     */
+    public void setCacheKeyByUserId(boolean cacheKeyByUserId) {
+        this.cacheKeyByUserId = cacheKeyByUserId;
+    }
+
+    /**
+     * Returns a boolean value that indicates if identical concurrent
+     * requests are coalesced, so that they share the response of a single
+     * security server call.
+     * @return true if requests are coalesced; otherwise false
+     */
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    /**
+     * Sets a boolean value that indicates if identical concurrent requests
+     * are coalesced.
+     * @param coalesceRequests new value
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * Returns the max number of requests that wait for an identical request.
+     * @return max number of waiting requests
+     */
+    public int getCoalesceMaxWaiters() {
+        return coalesceMaxWaiters;
+    }
+
+    /**
+     * Sets the max number of requests that wait for an identical request.
+     * @param coalesceMaxWaiters new value
+     */
+    public void setCoalesceMaxWaiters(int coalesceMaxWaiters) {
+        this.coalesceMaxWaiters = coalesceMaxWaiters;
+    }
 }
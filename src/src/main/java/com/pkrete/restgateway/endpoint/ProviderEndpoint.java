@@ -1,5 +1,7 @@
 package com.pkrete.restgateway.endpoint;
 
+import java.util.regex.Pattern;
+
 /**
  * This class represents provider endpoint and holds all the information that is
  * needed for connecting to it.
@@ -17,6 +19,8 @@ public class ProviderEndpoint extends AbstractEndpoint {
     private String reqParamNameFilterOperation;
     private String reqParamValueFilterCondition;
     private String reqParamValueFilterOperation;
+    private Pattern reqParamNameFilterPattern;
+    private Pattern reqParamValueFilterPattern;
 
     /**
      * Constructs and initializes a new ProviderEndpoint object.
@@ -140,13 +144,26 @@ public class ProviderEndpoint extends AbstractEndpoint {
     /**
      * Sets the value of the request parameter name filter condition that's used
      * for modifying request parameter names. Filtering is done using regex.
+     * The regex is compiled once here, not for each request.
      *
      * @param reqParamNameFilterCondition new value
+     * @throws java.util.regex.PatternSyntaxException if the condition is not
+     * a valid regex
      */
     public void setReqParamNameFilterCondition(String reqParamNameFilterCondition) {
+        this.reqParamNameFilterPattern = reqParamNameFilterCondition == null ? null : Pattern.compile(reqParamNameFilterCondition);
         this.reqParamNameFilterCondition = reqParamNameFilterCondition;
     }
 
+    /**
+     * Returns the compiled request parameter name filter condition.
+     *
+     * @return compiled name filter condition or null
+     */
+    public Pattern getReqParamNameFilterPattern() {
+        return this.reqParamNameFilterPattern;
+    }
+
     /**
      * Returns the value of the request parameter name filter operation that's
      * used for modifying request parameter names. Filtering is done using
@@ -185,14 +202,26 @@ public class ProviderEndpoint extends AbstractEndpoint {
     /**
      * Sets the value of the request parameter value filter condition that's
      * used for modifying request parameter values. Filtering is done using
-     * regex.
+     * regex. The regex is compiled once here, not for each request.
      *
      * @param reqParamValueFilterCondition new value
+     * @throws java.util.regex.PatternSyntaxException if the condition is not
+     * a valid regex
      */
     public void setReqParamValueFilterCondition(String reqParamValueFilterCondition) {
+        this.reqParamValueFilterPattern = reqParamValueFilterCondition == null ? null : Pattern.compile(reqParamValueFilterCondition);
         this.reqParamValueFilterCondition = reqParamValueFilterCondition;
     }
 
+    /**
+     * Returns the compiled request parameter value filter condition.
+     *
+     * @return compiled value filter condition or null
+     */
+    public Pattern getReqParamValueFilterPattern() {
+        return this.reqParamValueFilterPattern;
+    }
+
     /**
      * Returns the value of the request parameter value filter operation that's
      * used for modifying request parameter values. Filtering is done using
@@ -1,13 +1,16 @@
 package com.pkrete.restgateway.filter;
 
+import com.pkrete.restgateway.ConsumerGateway;
 import java.io.IOException;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,25 +20,67 @@ import org.slf4j.LoggerFactory;
  * then redirected to ConsumerEndpoint servlet that takes cares of processing
  * it.
  *
+ * In direct dispatch mode the request is not forwarded. Instead, the filter
+ * passes the resource path to the initialized ConsumerGateway instance that
+ * resolves the route and processes the request, or returns 404 if no route
+ * is found. This saves the second dispatch cycle that forwarding causes.
+ * Direct dispatch is enabled with "dispatchMode" init parameter that has
+ * value "direct". Requests are forwarded if ConsumerGateway is not available
+ * or the HTTP method is not supported by direct dispatch. The instance is
+ * looked up from the servlet context for each request, so a servlet that's
+ * re-initialized or destroyed is never used.
+ *
  * @author Petteri Kivimäki
  */
 public class ConsumerURIFilter implements Filter {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsumerURIFilter.class);
+    private static final String SERVLET_NAME = "Consumer";
+    private static final String PARAM_DISPATCH_MODE = "dispatchMode";
+    private static final String DISPATCH_MODE_DIRECT = "direct";
+
+    private ServletContext context;
+    private boolean directDispatch;
 
     @Override
     public void init(FilterConfig fc) throws ServletException {
-        logger.info("Consumer URI filter initialized.");
+        this.context = fc.getServletContext();
+        this.directDispatch = DISPATCH_MODE_DIRECT.equalsIgnoreCase(fc.getInitParameter(PARAM_DISPATCH_MODE));
+        logger.info("Consumer URI filter initialized. Direct dispatch : {}.", this.directDispatch);
     }
 
     @Override
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain fc) throws IOException, ServletException {
         HttpServletRequest request = (HttpServletRequest) req;
-        String servletName = "Consumer";
+        String resourcePath = getResourcePath(request);
+        if (this.directDispatch && isDirectDispatchMethod(request.getMethod())) {
+            ConsumerGateway consumerGateway = this.getGateway();
+            if (consumerGateway != null) {
+                logger.trace("Dispatch request directly to Consumer Gateway.");
+                consumerGateway.dispatch(request, (HttpServletResponse) res, resourcePath);
+                return;
+            }
+            logger.debug("Consumer Gateway is not initialized. Forward request.");
+        }
+        if (resourcePath != null) {
+            request.setAttribute("resourcePath", resourcePath);
+        }
+        req.getRequestDispatcher(SERVLET_NAME).forward(req, res);
+    }
+
+    /**
+     * Returns the resource path of the given request. Resource path is the
+     * part after "Consumer" and it always begins and ends with "/". If no
+     * valid resource path is found, null is returned.
+     *
+     * @param request HTTP servlet request
+     * @return resource path or null
+     */
+    static String getResourcePath(HttpServletRequest request) {
         String oldURI = request.getRequestURI().substring(request.getContextPath().length() + 1);
         logger.debug("Incoming request : \"{}\"", oldURI);
 
-        if (oldURI.length() > servletName.length()) {
+        if (oldURI.length() > SERVLET_NAME.length()) {
             String resourcePath = oldURI.substring(oldURI.indexOf('/'));
             if (!"/".equals(resourcePath)) {
                 // Path must end with "/"
@@ -43,18 +88,42 @@ public class ConsumerURIFilter implements Filter {
                     resourcePath += "/";
                 }
                 logger.debug("Resource path : \"{}\"", resourcePath);
-                request.setAttribute("resourcePath", resourcePath);
+                return resourcePath;
             } else {
                 logger.trace("Found resource path \"{}\" is not valid.", resourcePath);
             }
         } else {
             logger.trace("No resource path found.");
         }
-        req.getRequestDispatcher("Consumer").forward(req, res);
+        return null;
+    }
+
+    /**
+     * Returns true if and only if the given HTTP method is handled by
+     * ConsumerGateway. Other methods are forwarded to the servlet so that the
+     * container can respond to them.
+     *
+     * @param method HTTP method
+     * @return true if the method can be dispatched directly; otherwise false
+     */
+    private static boolean isDirectDispatchMethod(String method) {
+        return "GET".equals(method) || "POST".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+    }
+
+    /**
+     * Returns the ConsumerGateway instance that's currently published in the
+     * servlet context. The instance is not cached, because the servlet
+     * replaces it when it's re-initialized and removes it when it's
+     * destroyed.
+     *
+     * @return ConsumerGateway or null if it's not initialized
+     */
+    private ConsumerGateway getGateway() {
+        return (ConsumerGateway) this.context.getAttribute(ConsumerGateway.CONTEXT_ATTRIBUTE);
     }
 
     @Override
     public void destroy() {
-        // Nothing to do here.
+        // Nothing to do here
     }
 }
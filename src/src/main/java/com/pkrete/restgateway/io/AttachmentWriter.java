@@ -0,0 +1,154 @@
+package com.pkrete.restgateway.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.soap.AttachmentPart;
+import javax.xml.soap.SOAPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class writes a SOAP attachment to the HTTP response as it is. The raw
+ * content of the attachment is copied from its input stream to the servlet
+ * output stream using a fixed size buffer, so the content is never decoded
+ * to characters and binary content such as PDFs and images is passed through
+ * unmodified. The content type of the response is the content type of the
+ * attachment and Content-Length is set when the size of the attachment is
+ * known and the attachment is not compressed.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class AttachmentWriter {
+
+    /**
+     * Size of the transfer buffer in bytes.
+     */
+    public static final int BUFFER_SIZE = 8192;
+    /**
+     * Name of the MIME header that tells the transfer encoding of the
+     * attachment.
+     */
+    public static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+    private static final Logger logger = LoggerFactory.getLogger(AttachmentWriter.class);
+
+    private AttachmentWriter() {
+    }
+
+    /**
+     * Writes the given attachment to the given response. The output stream
+     * of the response is closed.
+     *
+     * @param attachment SOAP attachment
+     * @param response HTTP response
+     * @return number of bytes written
+     * @throws SOAPException if reading the attachment fails
+     * @throws IOException if writing the response fails
+     */
+    public static long write(AttachmentPart attachment, HttpServletResponse response) throws SOAPException, IOException {
+        return write(attachment, response, null, null);
+    }
+
+    /**
+     * Writes the given attachment to the given response. If content encoding
+     * is given, the attachment is compressed using it. The output stream of
+     * the response is closed.
+     *
+     * @param attachment SOAP attachment
+     * @param response HTTP response
+     * @param compression ResponseCompression object, used if content
+     * encoding is given
+     * @param contentEncoding content encoding or null
+     * @return number of bytes written before compression
+     * @throws SOAPException if reading the attachment fails
+     * @throws IOException if writing the response fails
+     */
+    public static long write(AttachmentPart attachment, HttpServletResponse response, ResponseCompression compression, String contentEncoding) throws SOAPException, IOException {
+        try (InputStream in = attachment.getRawContent()) {
+            return write(in, attachment.getContentType(), attachment.getMimeHeader(CONTENT_TRANSFER_ENCODING), attachment.getSize(), response, compression, contentEncoding);
+        }
+    }
+
+    /**
+     * Writes the raw content of an attachment that's read from the given
+     * input stream to the given response. This is used for attachments that
+     * are read directly from the connection to the security server. If
+     * content encoding is given, the attachment is compressed using it. The
+     * output stream of the response is closed, the input stream is not.
+     *
+     * @param in raw content of the attachment
+     * @param contentType content type of the attachment
+     * @param transferEncodings Content-Transfer-Encoding header values of the
+     * attachment or null
+     * @param size size of the attachment as it's received or -1
+     * @param response HTTP response
+     * @param compression ResponseCompression object, used if content
+     * encoding is given
+     * @param contentEncoding content encoding or null
+     * @return number of bytes written before compression
+     * @throws IOException if reading the attachment or writing the response
+     * fails
+     */
+    public static long write(InputStream in, String contentType, String[] transferEncodings, long size, HttpServletResponse response, ResponseCompression compression, String contentEncoding) throws IOException {
+        response.setContentType(contentType);
+        long contentLength = -1;
+        if (contentEncoding == null) {
+            // Length of the compressed content is not known
+            contentLength = getContentLength(transferEncodings, size);
+            if (contentLength >= 0) {
+                response.setHeader("Content-Length", Long.toString(contentLength));
+            }
+        }
+        logger.debug("Attachment content type : \"{}\". Content length : {}.", contentType, contentLength);
+        try (OutputStream out = contentEncoding == null ? response.getOutputStream() : compression.getOutputStream(response, contentEncoding)) {
+            return copy(in, out);
+        }
+    }
+
+    /**
+     * Returns the Content-Length of an attachment that has the given
+     * Content-Transfer-Encoding header values and size. The size is the size
+     * of the content as it was received, so it's the length of the raw content
+     * only if no transfer encoding is used. Otherwise -1 is returned.
+     *
+     * @param transferEncodings Content-Transfer-Encoding header values or
+     * null
+     * @param size size of the attachment or -1
+     * @return Content-Length or -1 if it's not known
+     */
+    static long getContentLength(String[] transferEncodings, long size) {
+        if (size < 0) {
+            return -1;
+        }
+        if (transferEncodings != null) {
+            for (String encoding : transferEncodings) {
+                String value = encoding.trim();
+                if (!"binary".equalsIgnoreCase(value) && !"8bit".equalsIgnoreCase(value) && !"7bit".equalsIgnoreCase(value)) {
+                    return -1;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copies the given input stream to the given output stream using a
+     * buffer of BUFFER_SIZE bytes.
+     *
+     * @param in input stream
+     * @param out output stream
+     * @return number of bytes copied
+     * @throws IOException if reading or writing fails
+     */
+    static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+}
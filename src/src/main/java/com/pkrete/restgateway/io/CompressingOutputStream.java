@@ -0,0 +1,146 @@
+package com.pkrete.restgateway.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class compresses the data written to it using gzip or deflate
+ * encoding, if the amount of data reaches the given minimum size. Data is
+ * buffered until the minimum size is reached, and then the target stream is
+ * opened with the content encoding and the buffered data is compressed.
+ * If the stream is closed before the minimum size is reached, the target
+ * stream is opened without content encoding and with the length of the
+ * buffered data, so the exact Content-Length can be set, and the buffered
+ * data is written to it as it is. Flushing the stream before the decision
+ * has been made does nothing.
+ *
+ * Compressed data is written using sync flush: flushing the stream
+ * compresses and writes all the data written so far, so streamed responses
+ * reach the client line by line.
+ *
+ * Deflate encoding produces the zlib format that's used by HTTP "deflate"
+ * content coding.
+ *
+ * @author Petteri Kivimäki
+ */
+abstract class CompressingOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String contentEncoding;
+    private final int minSize;
+    private byte[] buffer;
+    private int count;
+    private OutputStream out;
+    private Deflater deflater;
+    private boolean closed;
+
+    /**
+     * Constructs and initializes a new CompressingOutputStream object.
+     *
+     * @param contentEncoding content encoding, ResponseCompression.GZIP or
+     * ResponseCompression.DEFLATE
+     * @param minSize minimum number of bytes that are compressed
+     */
+    CompressingOutputStream(String contentEncoding, int minSize) {
+        this.contentEncoding = contentEncoding;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Opens the target stream. This method is called once, when it's known
+     * if the data is compressed.
+     *
+     * @param contentEncoding content encoding of the data or null, if the
+     * data is not compressed
+     * @param contentLength length of the data in bytes if the data is not
+     * compressed, otherwise -1
+     * @return target stream
+     * @throws IOException if opening the stream fails
+     */
+    protected abstract OutputStream open(String contentEncoding, int contentLength) throws IOException;
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream is closed.");
+        }
+        if (this.out == null) {
+            if (this.count + len < this.minSize) {
+                if (this.buffer == null) {
+                    this.buffer = new byte[this.minSize];
+                }
+                System.arraycopy(b, off, this.buffer, this.count, len);
+                this.count += len;
+                return;
+            }
+            // Minimum size is reached
+            this.start(true);
+        }
+        this.out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (this.out != null) {
+            this.out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            if (this.out == null) {
+                // Minimum size wasn't reached
+                this.start(false);
+            }
+            this.out.close();
+        } finally {
+            if (this.deflater != null) {
+                this.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the data is compressed. The result is known after the
+     * minimum size is reached or the stream is closed.
+     *
+     * @return true if the data is compressed; otherwise false
+     */
+    boolean isCompressed() {
+        return this.out != null && (this.out instanceof DeflaterOutputStream);
+    }
+
+    private void start(boolean compress) throws IOException {
+        if (compress) {
+            OutputStream target = this.open(this.contentEncoding, -1);
+            if (ResponseCompression.GZIP.equals(this.contentEncoding)) {
+                this.out = new GZIPOutputStream(target, BUFFER_SIZE, true);
+            } else {
+                this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+                this.out = new DeflaterOutputStream(target, this.deflater, BUFFER_SIZE, true);
+            }
+        } else {
+            // All the data is in the buffer
+            this.out = this.open(null, this.count);
+        }
+        if (this.count > 0) {
+            this.out.write(this.buffer, 0, this.count);
+        }
+        this.buffer = null;
+        this.count = 0;
+    }
+}
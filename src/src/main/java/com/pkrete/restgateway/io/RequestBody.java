@@ -0,0 +1,246 @@
+package com.pkrete.restgateway.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import javax.activation.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class holds the body of an incoming request as bytes. The body is
+ * copied from the request input stream in fixed size chunks. Bodies up to the
+ * given threshold are kept in memory and larger bodies are spilled to a
+ * temporary file, so the heap usage stays flat regardless of the body size.
+ * The body is exposed as a DataSource that can be attached to a SOAP message
+ * without converting it to a String.
+ *
+ * The temporary file, if any, is deleted when the object is closed.
+ *
+ * @author Petteri Kivimäki
+ */
+public class RequestBody implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestBody.class);
+
+    /**
+     * Default max number of bytes that are kept in memory.
+     */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 1048576;
+    private static final int CHUNK_SIZE = 8192;
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final byte[] data;
+    private final File file;
+    private final long size;
+
+    private RequestBody(byte[] data, File file, long size) {
+        this.data = data;
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Reads the given input stream to a new RequestBody object. The stream is
+     * not closed.
+     *
+     * @param in input stream to be read
+     * @param memoryThreshold max number of bytes that are kept in memory
+     * @param tempDir directory for temporary files, or null if the default
+     * temporary directory should be used
+     * @return new RequestBody object
+     * @throws IOException if reading the stream or writing the temporary file
+     * fails
+     */
+    public static RequestBody read(InputStream in, int memoryThreshold, File tempDir) throws IOException {
+        return read(in, memoryThreshold, tempDir, 0);
+    }
+
+    /**
+     * Reads the given input stream to a new RequestBody object. Reading is
+     * stopped as soon as the body exceeds the given max size, so that bodies
+     * without Content-Length are limited too. The stream is not closed.
+     *
+     * @param in input stream to be read
+     * @param memoryThreshold max number of bytes that are kept in memory
+     * @param tempDir directory for temporary files, or null if the default
+     * temporary directory should be used
+     * @param maxSize max size of the body in bytes, zero means no limit
+     * @return new RequestBody object
+     * @throws RequestBodyTooLargeException if the body exceeds the max size
+     * @throws IOException if reading the stream or writing the temporary file
+     * fails
+     */
+    public static RequestBody read(InputStream in, int memoryThreshold, File tempDir, long maxSize) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        byte[] buffer = new byte[Math.min(CHUNK_SIZE, memoryThreshold)];
+        int count = 0;
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            checkSize(count + read, maxSize);
+            if (count + read > memoryThreshold) {
+                return spill(in, buffer, count, chunk, read, tempDir, maxSize);
+            }
+            if (count + read > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(memoryThreshold, Math.max(buffer.length << 1, count + read)));
+            }
+            System.arraycopy(chunk, 0, buffer, count, read);
+            count += read;
+        }
+        return new RequestBody(count == buffer.length ? buffer : Arrays.copyOf(buffer, count), null, count);
+    }
+
+    /**
+     * Writes the bytes read so far and the rest of the stream to a temporary
+     * file.
+     */
+    private static RequestBody spill(InputStream in, byte[] buffer, int count, byte[] chunk, int read, File tempDir, long maxSize) throws IOException {
+        File tmp = File.createTempFile("rest-gateway-", ".body", tempDir);
+        logger.debug("Request body exceeds memory threshold. Write request body to temporary file \"{}\".", tmp.getAbsolutePath());
+        long total = count;
+        boolean success = false;
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(buffer, 0, count);
+            int len = read;
+            do {
+                checkSize(total + len, maxSize);
+                out.write(chunk, 0, len);
+                total += len;
+            } while ((len = in.read(chunk)) != -1);
+            success = true;
+        } finally {
+            if (!success) {
+                delete(tmp);
+            }
+        }
+        return new RequestBody(null, tmp, total);
+    }
+
+    private static void checkSize(long size, long maxSize) throws RequestBodyTooLargeException {
+        if (maxSize > 0 && size > maxSize) {
+            throw new RequestBodyTooLargeException(maxSize);
+        }
+    }
+
+    /**
+     * Returns the size of the body in bytes.
+     *
+     * @return size of the body
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns true if and only if the body is empty.
+     *
+     * @return true if the body is empty; otherwise false
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Returns true if and only if the body has been written to a temporary
+     * file.
+     *
+     * @return true if the body is stored in a file; otherwise false
+     */
+    public boolean isSpilled() {
+        return this.file != null;
+    }
+
+    /**
+     * Returns a new input stream for reading the body.
+     *
+     * @return new input stream
+     * @throws IOException if opening the temporary file fails
+     */
+    public InputStream getInputStream() throws IOException {
+        if (this.file != null) {
+            return new FileInputStream(this.file);
+        }
+        return new ByteArrayInputStream(this.data);
+    }
+
+    /**
+     * Returns the body as a DataSource with the given content type. If the
+     * content type is null, "application/octet-stream" is used.
+     *
+     * @param contentType content type of the body
+     * @return DataSource for reading the body
+     */
+    public DataSource getDataSource(final String contentType) {
+        final String type = contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+        return new DataSource() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return RequestBody.this.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                throw new IOException("Request body is read only.");
+            }
+
+            @Override
+            public String getContentType() {
+                return type;
+            }
+
+            @Override
+            public String getName() {
+                return "RequestBody";
+            }
+        };
+    }
+
+    /**
+     * Returns the body as a String decoded using the given character set. The
+     * whole body is loaded to memory, so this method should be used only when
+     * the body must be processed as a String, e.g. when it's encrypted.
+     *
+     * @param charset character set of the body
+     * @return body as a String
+     * @throws IOException if reading the temporary file fails
+     */
+    public String toString(Charset charset) throws IOException {
+        if (this.file == null) {
+            return new String(this.data, charset);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(this.size, Integer.MAX_VALUE));
+        try (InputStream in = new FileInputStream(this.file)) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), charset);
+    }
+
+    /**
+     * Deletes the temporary file if the body was written to a file.
+     */
+    @Override
+    public void close() {
+        if (this.file != null) {
+            delete(this.file);
+        }
+    }
+
+    private static void delete(File tmp) {
+        if (!tmp.delete() && tmp.exists()) {
+            logger.warn("Unable to delete temporary file \"{}\".", tmp.getAbsolutePath());
+            tmp.deleteOnExit();
+        }
+    }
+}
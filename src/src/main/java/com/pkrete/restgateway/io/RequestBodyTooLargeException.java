@@ -0,0 +1,33 @@
+package com.pkrete.restgateway.io;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown when a request body exceeds the max size that's
+ * allowed for the endpoint.
+ *
+ * @author Petteri Kivimäki
+ */
+public class RequestBodyTooLargeException extends IOException {
+
+    private final long maxSize;
+
+    /**
+     * Constructs and initializes a new RequestBodyTooLargeException object.
+     *
+     * @param maxSize max size of the body in bytes
+     */
+    public RequestBodyTooLargeException(long maxSize) {
+        super("Request body exceeds the max size of " + maxSize + " bytes.");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the max size of the body in bytes.
+     *
+     * @return max size of the body
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
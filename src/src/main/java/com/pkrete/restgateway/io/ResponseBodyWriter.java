@@ -0,0 +1,336 @@
+package com.pkrete.restgateway.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class writes the body of a response as bytes. The characters are
+ * encoded once using the character set of the response into a buffer that's
+ * taken from a shared pool, and when the writer is closed
+ * the exact Content-Length is set and the bytes are written to the output
+ * stream of the response with a single write.
+ *
+ * If the body grows larger than the max size of the buffer, the writer
+ * switches to streaming mode: the bytes encoded so far are written to the
+ * output stream and the rest of the body is written in buffer size blocks
+ * without Content-Length. Flushing the writer has no effect before the
+ * writer switches to streaming mode. Bodies that are written in parts, e.g.
+ * one line at a time, can switch to streaming mode before the first write.
+ *
+ * The pool holds at most POOL_SIZE buffers of up to RETAINED_SIZE bytes, so
+ * the retained memory doesn't depend on the number of threads. This matters
+ * when each request runs on its own virtual thread, as a buffer kept per
+ * thread would never be reused. A writer that finds the pool empty
+ * allocates a new buffer, and a buffer that doesn't fit in a full pool is
+ * left for the garbage collector. If the body is captured,
+ * a copy of the encoded body is kept after the writer is closed, unless the
+ * writer switched to streaming mode.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class ResponseBodyWriter extends Writer {
+
+    /**
+     * Default max size of the buffer in bytes.
+     */
+    public static final int DEFAULT_BUFFER_MAX_SIZE = 1048576;
+    /**
+     * Max size of a buffer that's kept for reuse in bytes.
+     */
+    static final int RETAINED_SIZE = 65536;
+    /**
+     * Max number of buffers that are kept for reuse.
+     */
+    static final int POOL_SIZE = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+    private static final int INITIAL_SIZE = 8192;
+    private static final Logger logger = LoggerFactory.getLogger(ResponseBodyWriter.class);
+    private static final BlockingQueue<Buffer> BUFFERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final HttpServletResponse response;
+    private final int bufferMaxSize;
+    private final CharsetEncoder encoder;
+    private final CharBuffer single = CharBuffer.allocate(1);
+    private final Buffer buffer;
+    private OutputStream out;
+    private ByteBuffer bytes;
+    private char pending;
+    private boolean streaming;
+    private boolean closed;
+    private boolean captureBody;
+    private byte[] body;
+
+    /**
+     * Constructs and initializes a new ResponseBodyWriter object that writes
+     * to the output stream of the given response and sets Content-Length.
+     *
+     * @param response HTTP response
+     * @param bufferMaxSize max size of the buffer in bytes
+     */
+    public ResponseBodyWriter(HttpServletResponse response, int bufferMaxSize) {
+        this(response, null, bufferMaxSize);
+    }
+
+    /**
+     * Constructs and initializes a new ResponseBodyWriter object. If output
+     * stream is given, the body is written to it and Content-Length is not
+     * set by this writer, because the stream may modify the bytes, e.g.
+     * compress them.
+     * Otherwise the body is written to the output stream of the response.
+     * The body is encoded using the character set of the response in both
+     * cases.
+     *
+     * @param response HTTP response
+     * @param out output stream or null
+     * @param bufferMaxSize max size of the buffer in bytes
+     */
+    public ResponseBodyWriter(HttpServletResponse response, OutputStream out, int bufferMaxSize) {
+        this.response = response;
+        this.out = out;
+        this.bufferMaxSize = bufferMaxSize;
+        Buffer pooled = BUFFERS.poll();
+        this.buffer = pooled == null ? new Buffer() : pooled;
+        Charset charset = Charset.forName(response.getCharacterEncoding());
+        this.encoder = this.buffer.takeEncoder(charset);
+        this.bytes = ByteBuffer.wrap(this.buffer.takeBytes());
+    }
+
+    /**
+     * Writes the given bytes to the given response and sets Content-Length.
+     * The output stream of the response is closed. This is used for bodies
+     * that are encoded in advance.
+     *
+     * @param response HTTP response
+     * @param body encoded body
+     * @throws IOException if writing the response fails
+     */
+    public static void write(HttpServletResponse response, byte[] body) throws IOException {
+        response.setContentLength(body.length);
+        try (OutputStream stream = response.getOutputStream()) {
+            stream.write(body);
+        }
+    }
+
+    /**
+     * Sets a boolean value that indicates if a copy of the encoded body is
+     * kept after the writer is closed.
+     *
+     * @param captureBody new value
+     */
+    public void setCaptureBody(boolean captureBody) {
+        this.captureBody = captureBody;
+    }
+
+    /**
+     * Returns a copy of the encoded body, if the body was captured and the
+     * writer didn't switch to streaming mode. The body is available after
+     * the writer is closed.
+     *
+     * @return encoded body or null
+     */
+    public byte[] getBody() {
+        return this.body;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        this.single.clear();
+        this.single.put((char) c);
+        this.single.flip();
+        this.encode(this.single, false);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        this.encode(CharBuffer.wrap(cbuf, off, len), false);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        // The string is not copied
+        this.encode(CharBuffer.wrap(str, off, off + len), false);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.checkClosed();
+        if (this.streaming) {
+            this.drain();
+            this.out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.encode(CharBuffer.allocate(0), true);
+            while (this.encoder.flush(this.bytes).isOverflow()) {
+                this.makeRoom();
+            }
+            this.closed = true;
+            if (!this.streaming) {
+                if (this.out == null) {
+                    this.response.setContentLength(this.bytes.position());
+                    this.out = this.response.getOutputStream();
+                }
+                logger.debug("Write response body of {} bytes.", this.bytes.position());
+                if (this.captureBody) {
+                    this.body = Arrays.copyOf(this.bytes.array(), this.bytes.position());
+                }
+            }
+            this.drain();
+            this.out.close();
+        } finally {
+            this.closed = true;
+            this.buffer.release(this.encoder, this.bytes.array());
+            this.bytes = null;
+            BUFFERS.offer(this.buffer);
+        }
+    }
+
+    /**
+     * Switches the writer to streaming mode, so that Content-Length is not set
+     * and each flush writes the bytes encoded so far to the output stream.
+     *
+     * @throws IOException if the writer is closed or writing fails
+     */
+    public void startStreaming() throws IOException {
+        this.checkClosed();
+        if (this.streaming) {
+            return;
+        }
+        this.streaming = true;
+        if (this.out == null) {
+            this.out = this.response.getOutputStream();
+        }
+        this.drain();
+    }
+
+    /**
+     * Returns true if the writer has switched to streaming mode.
+     *
+     * @return true if the body is streamed; otherwise false
+     */
+    boolean isStreaming() {
+        return this.streaming;
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        this.checkClosed();
+        // High surrogate that was left over from the previous write is
+        // encoded together with the next character
+        while (this.pending != 0 && (in.hasRemaining() || endOfInput)) {
+            CharBuffer pair = CharBuffer.allocate(2);
+            pair.put(this.pending);
+            if (in.hasRemaining()) {
+                pair.put(in.get());
+            }
+            pair.flip();
+            this.pending = 0;
+            this.encodeChars(pair, endOfInput && !in.hasRemaining());
+        }
+        this.encodeChars(in, endOfInput);
+    }
+
+    private void encodeChars(CharBuffer in, boolean endOfInput) throws IOException {
+        while (this.encoder.encode(in, this.bytes, endOfInput).isOverflow()) {
+            this.makeRoom();
+        }
+        if (in.hasRemaining()) {
+            // Only a high surrogate can be left over
+            this.pending = in.get();
+        }
+    }
+
+    private void makeRoom() throws IOException {
+        if (this.streaming) {
+            this.drain();
+            return;
+        }
+        int capacity = this.bytes.capacity();
+        if (capacity < this.bufferMaxSize) {
+            int newCapacity = (int) Math.min((long) capacity * 2, this.bufferMaxSize);
+            ByteBuffer grown = ByteBuffer.wrap(Arrays.copyOf(this.bytes.array(), newCapacity));
+            grown.position(this.bytes.position());
+            this.bytes = grown;
+            return;
+        }
+        logger.debug("Response body is larger than {} bytes, switch to streaming mode.", this.bufferMaxSize);
+        this.streaming = true;
+        if (this.out == null) {
+            this.out = this.response.getOutputStream();
+        }
+        this.drain();
+    }
+
+    private void drain() throws IOException {
+        if (this.bytes.position() > 0) {
+            this.out.write(this.bytes.array(), 0, this.bytes.position());
+            this.bytes.clear();
+        }
+    }
+
+    private void checkClosed() throws IOException {
+        if (this.closed) {
+            throw new IOException("Writer is closed.");
+        }
+    }
+
+    /**
+     * Returns the number of buffers that are currently in the pool.
+     *
+     * @return number of pooled buffers
+     */
+    static int getPooledBuffers() {
+        return BUFFERS.size();
+    }
+
+    /**
+     * Buffer and encoder that are reused by the requests. A buffer is used
+     * by one writer at a time.
+     */
+    private static class Buffer {
+
+        private byte[] bytes;
+        private CharsetEncoder encoder;
+
+        byte[] takeBytes() {
+            byte[] result = this.bytes == null ? new byte[INITIAL_SIZE] : this.bytes;
+            this.bytes = null;
+            return result;
+        }
+
+        CharsetEncoder takeEncoder(Charset charset) {
+            CharsetEncoder result = this.encoder;
+            this.encoder = null;
+            if (result == null || !result.charset().equals(charset)) {
+                result = charset.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            return result;
+        }
+
+        void release(CharsetEncoder usedEncoder, byte[] usedBytes) {
+            usedEncoder.reset();
+            this.encoder = usedEncoder;
+            if (usedBytes.length <= RETAINED_SIZE) {
+                this.bytes = usedBytes;
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.pkrete.restgateway.io;
+
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.restgateway.util.RESTGatewayUtil;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Properties;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class negotiates the content encoding of a response with the client
+ * and creates output streams that compress the response. Gzip and deflate
+ * encodings are supported and gzip is preferred if the client accepts both
+ * with the same quality. Only textual content types are compressed, and
+ * responses that are smaller than the minimum size are sent uncompressed.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class ResponseCompression {
+
+    /**
+     * Gzip content encoding.
+     */
+    public static final String GZIP = "gzip";
+    /**
+     * Deflate content encoding.
+     */
+    public static final String DEFLATE = "deflate";
+    /**
+     * Default minimum size of a compressed response in bytes.
+     */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCompression.class);
+
+    private final boolean enabled;
+    private final int minSize;
+
+    /**
+     * Constructs and initializes a new ResponseCompression object.
+     *
+     * @param enabled is compression enabled
+     * @param minSize minimum size of a compressed response in bytes
+     */
+    public ResponseCompression(boolean enabled, int minSize) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Creates a new ResponseCompression object using the given Consumer
+     * Gateway properties. Compression is enabled unless it's explicitly
+     * disabled.
+     *
+     * @param props Consumer Gateway properties
+     * @return new ResponseCompression object
+     */
+    public static ResponseCompression create(Properties props) {
+        boolean enabled = !"false".equalsIgnoreCase(props.getProperty(Constants.CONSUMER_PROPS_RESPONSE_COMPRESSION, "true").trim());
+        int minSize = RESTGatewayUtil.getPositiveIntProperty(props, Constants.CONSUMER_PROPS_RESPONSE_COMPRESSION_MIN_SIZE, DEFAULT_MIN_SIZE);
+        logger.debug("Response compression is enabled : {}. Minimum size : {} bytes.", enabled, minSize);
+        return new ResponseCompression(enabled, minSize);
+    }
+
+    /**
+     * Returns true if compression is enabled.
+     *
+     * @return true if compression is enabled; otherwise false
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the minimum size of a compressed response in bytes.
+     *
+     * @return minimum size in bytes
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Returns an output stream that writes to the output stream of the given
+     * response. If the size of the response reaches the minimum size, the
+     * response is compressed using the given encoding and Content-Encoding
+     * header is set. Otherwise the response is written as it is and
+     * Content-Length is set. The returned stream must be closed.
+     *
+     * @param response HTTP response
+     * @param contentEncoding GZIP or DEFLATE
+     * @return output stream
+     */
+    public OutputStream getOutputStream(final HttpServletResponse response, String contentEncoding) {
+        return new CompressingOutputStream(contentEncoding, this.minSize) {
+            @Override
+            protected OutputStream open(String encoding, int contentLength) throws IOException {
+                if (encoding != null) {
+                    logger.debug("Compress response using \"{}\" encoding.", encoding);
+                    response.setHeader("Content-Encoding", encoding);
+                } else {
+                    response.setContentLength(contentLength);
+                }
+                return response.getOutputStream();
+            }
+        };
+    }
+
+    /**
+     * Selects the content encoding according to the given Accept-Encoding
+     * header. Quality values are taken into account and "*" matches both
+     * supported encodings. Gzip is preferred over deflate.
+     *
+     * @param acceptEncoding value of Accept-Encoding header or null
+     * @return GZIP, DEFLATE or null, if the response must not be compressed
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            float quality = getQuality(parts);
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = Math.max(gzip, quality);
+            } else if (DEFLATE.equals(coding)) {
+                deflate = quality;
+            } else if ("*".equals(coding)) {
+                any = quality;
+            }
+        }
+        // Encodings that are not listed match "*"
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        } else if (deflate > 0) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if responses of the given content type should be
+     * compressed. Text, JSON, NDJSON, XML and JavaScript are compressed.
+     *
+     * @param contentType content type of the response or null
+     * @return true if the content type is compressible; otherwise false
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int index = contentType.indexOf(';');
+        String type = (index == -1 ? contentType : contentType.substring(0, index)).trim().toLowerCase(Locale.ENGLISH);
+        return type.startsWith("text/")
+                || "application/json".equals(type)
+                || "application/x-ndjson".equals(type)
+                || "application/xml".equals(type)
+                || "application/javascript".equals(type)
+                || type.endsWith("+xml")
+                || type.endsWith("+json");
+    }
+
+    private static float getQuality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException ex) {
+                    logger.debug("Invalid quality value \"{}\".", param);
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
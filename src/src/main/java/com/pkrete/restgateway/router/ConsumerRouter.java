@@ -0,0 +1,385 @@
+package com.pkrete.restgateway.router;
+
+import com.pkrete.restgateway.endpoint.ConsumerEndpoint;
+import com.pkrete.restgateway.util.Constants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class implements a routing index for consumer endpoints. The index is
+ * built once when Consumer Gateway is initialized and it's immutable after
+ * that, so it can be shared by all the request threads without locking. Each
+ * HTTP verb has its own trie that's built over the path segments of the
+ * configured resource paths. A path segment that consists of "{resourceId}"
+ * only is a capture that matches any single non-empty segment containing word
+ * characters and hyphens.
+ *
+ * Lookups walk the trie segment by segment without compiling regular
+ * expressions or splitting the path. Exact matches are always preferred. After
+ * that the endpoints are matched in the same order as they have always been
+ * matched in, i.e. descending by service id. Each endpoint gets a rank based
+ * on that order and the lookup returns the matching endpoint with the lowest
+ * rank. Resource paths that have "{resourceId}" inside a segment, e.g.
+ * "/path/id-{resourceId}/", can not be presented in the trie. They're compiled
+ * to regular expressions once and checked only if they rank before the trie
+ * match.
+ *
+ * @author Petteri Kivimäki
+ */
+public class ConsumerRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsumerRouter.class);
+    private static final String RESOURCE_ID_SEGMENT = "{" + Constants.PARAM_RESOURCE_ID + "}";
+
+    private final Map<String, Map<String, ConsumerEndpoint>> exactMatches;
+    private final Map<String, Node> roots;
+    private final List<PatternRoute> patternRoutes;
+
+    /**
+     * Constructs and initializes a new ConsumerRouter object. The keys of the
+     * given map are service ids that consist of HTTP verb and resource path,
+     * e.g. "GET /www.hel.fi/palvelukarttaws/rest/v2/organization/{resourceId}/".
+     *
+     * @param endpoints map containing service id - consumer endpoint key-value
+     * pairs
+     */
+    public ConsumerRouter(Map<String, ConsumerEndpoint> endpoints) {
+        this.exactMatches = new HashMap<>();
+        Map<String, NodeBuilder> builders = new HashMap<>();
+        List<PatternRoute> patterns = new ArrayList<>();
+        // Iterate in descending order so that pattern routes are checked
+        // in the same order as before
+        int rank = 0;
+        for (Map.Entry<String, ConsumerEndpoint> entry : new TreeMap<>(endpoints).descendingMap().entrySet()) {
+            rank++;
+            String key = entry.getKey();
+            int index = key.indexOf(' ');
+            if (index == -1) {
+                logger.warn("Invalid service id \"{}\". Endpoint is available by exact match only.", key);
+                continue;
+            }
+            String verb = key.substring(0, index);
+            String path = key.substring(index + 1);
+            Map<String, ConsumerEndpoint> paths = this.exactMatches.get(verb);
+            if (paths == null) {
+                paths = new HashMap<>();
+                this.exactMatches.put(verb, paths);
+            }
+            paths.put(path, entry.getValue());
+            if (!addToTrie(builders, verb, path, entry.getValue(), rank)) {
+                logger.debug("Resource path \"{}\" can't be added to routing trie. Use regular expression instead.", path);
+                patterns.add(new PatternRoute(key, entry.getValue(), rank));
+            }
+        }
+        this.roots = new HashMap<>();
+        for (Map.Entry<String, NodeBuilder> entry : builders.entrySet()) {
+            this.roots.put(entry.getKey(), entry.getValue().build());
+        }
+        this.patternRoutes = patterns;
+        logger.info("Routing index built. {} endpoints, {} HTTP verbs, {} regular expression routes.", endpoints.size(), this.roots.size(), this.patternRoutes.size());
+    }
+
+    /**
+     * Returns the endpoint matching the given HTTP verb and resource path
+     * together with the resource id parsed from the resource path. The
+     * endpoint itself is not modified. If no match is found, null is
+     * returned.
+     *
+     * @param httpVerb HTTP verb of the request
+     * @param resourcePath resource path of the request that must begin and end
+     * with "/"
+     * @return RouteMatch matching the given verb and path or null
+     */
+    public RouteMatch route(String httpVerb, String resourcePath) {
+        Map<String, ConsumerEndpoint> paths = this.exactMatches.get(httpVerb);
+        ConsumerEndpoint endpoint = paths == null ? null : paths.get(resourcePath);
+        if (endpoint != null) {
+            logger.debug("Found match by service id : \"{} {}\".", httpVerb, resourcePath);
+            return new RouteMatch(endpoint, null);
+        }
+        Node root = this.roots.get(httpVerb);
+        Node node = null;
+        if (root != null && resourcePath.length() > 0 && resourcePath.charAt(0) == '/') {
+            node = match(root, resourcePath, 1, Integer.MAX_VALUE);
+        }
+        // Regular expression routes that rank before the trie match win
+        int limit = node == null ? Integer.MAX_VALUE : node.rank;
+        String serviceId = httpVerb + " " + resourcePath;
+        for (PatternRoute route : this.patternRoutes) {
+            if (route.rank > limit) {
+                break;
+            }
+            if (route.pattern.matcher(serviceId).matches()) {
+                logger.debug("Found partial match by service id. Request value : \"{}\", matching value : \"{}\".", serviceId, route.key);
+                String resourceId = serviceId.substring(route.key.indexOf('{'));
+                if (resourceId.endsWith("/")) {
+                    resourceId = resourceId.substring(0, resourceId.length() - 1);
+                }
+                logger.trace("Parsed resource id : \"{}\"", resourceId);
+                return new RouteMatch(route.endpoint, resourceId);
+            }
+        }
+        if (node != null) {
+            logger.debug("Found partial match by service id. Request value : \"{}\", matching value : \"{}\".", serviceId, node.key);
+            String resourceId = null;
+            if (node.captureSegment != -1) {
+                resourceId = getResourceId(resourcePath, node.captureSegment);
+                logger.trace("Parsed resource id : \"{}\"", resourceId);
+            }
+            return new RouteMatch(node.endpoint, resourceId);
+        }
+        logger.debug("No match by service id was found. Service id : \"{}\".", serviceId);
+        return null;
+    }
+
+    /**
+     * Walks the trie starting from the given node and path position and
+     * returns the matching node with the lowest rank. Both capture and literal
+     * children are searched, but subtrees that can't contain an endpoint
+     * ranking before the best match found so far are skipped.
+     *
+     * @param node current node
+     * @param path resource path
+     * @param start index of the first character of the current segment
+     * @param best rank of the best match found so far
+     * @return node that holds the matching endpoint or null
+     */
+    private static Node match(Node node, String path, int start, int best) {
+        if (node.minRank >= best) {
+            return null;
+        }
+        if (start == path.length()) {
+            return node.endpoint != null && node.rank < best ? node : null;
+        }
+        int end = path.indexOf('/', start);
+        if (end == -1) {
+            // Path must end with "/"
+            return null;
+        }
+        Node result = null;
+        if (node.capture != null && isResourceId(path, start, end)) {
+            result = match(node.capture, path, end + 1, best);
+            if (result != null) {
+                best = result.rank;
+            }
+        }
+        Node child = node.findLiteral(path, start, end);
+        if (child != null) {
+            Node literal = match(child, path, end + 1, best);
+            if (literal != null) {
+                result = literal;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks that the given segment is a valid resource id. Resource id can
+     * contain word characters and hyphens.
+     *
+     * @param path resource path
+     * @param start start index of the segment
+     * @param end end index of the segment, exclusive
+     * @return true if and only if the segment is a valid resource id
+     */
+    private static boolean isResourceId(String path, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the resource id starting from the given segment. Resource id is
+     * the rest of the path starting from the first resource id segment without
+     * the trailing "/".
+     *
+     * @param path resource path
+     * @param segment index of the first resource id segment
+     * @return resource id
+     */
+    private static String getResourceId(String path, int segment) {
+        int start = 1;
+        for (int i = 0; i < segment; i++) {
+            start = path.indexOf('/', start) + 1;
+        }
+        return path.substring(start, path.length() - 1);
+    }
+
+    /**
+     * Adds the given endpoint to the trie of the given HTTP verb. Returns
+     * false if the path can't be presented in the trie.
+     *
+     * @param builders trie builders by HTTP verb
+     * @param verb HTTP verb
+     * @param path resource path
+     * @param endpoint endpoint to be added
+     * @param rank match order of the endpoint
+     * @return true if the endpoint was added; otherwise false
+     */
+    private static boolean addToTrie(Map<String, NodeBuilder> builders, String verb, String path, ConsumerEndpoint endpoint, int rank) {
+        if (!path.startsWith("/") || !path.endsWith("/")) {
+            return false;
+        }
+        List<String> segments = new ArrayList<>();
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            String segment = path.substring(start, end);
+            if (!RESOURCE_ID_SEGMENT.equals(segment) && segment.contains(RESOURCE_ID_SEGMENT)) {
+                return false;
+            }
+            segments.add(segment);
+            start = end + 1;
+        }
+        NodeBuilder node = builders.get(verb);
+        if (node == null) {
+            node = new NodeBuilder();
+            builders.put(verb, node);
+        }
+        int captureSegment = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            if (RESOURCE_ID_SEGMENT.equals(segment)) {
+                if (captureSegment == -1) {
+                    captureSegment = i;
+                }
+                if (node.capture == null) {
+                    node.capture = new NodeBuilder();
+                }
+                node = node.capture;
+            } else {
+                NodeBuilder child = node.literals.get(segment);
+                if (child == null) {
+                    child = new NodeBuilder();
+                    node.literals.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        if (node.endpoint == null) {
+            node.key = verb + " " + path;
+            node.endpoint = endpoint;
+            node.captureSegment = captureSegment;
+            node.rank = rank;
+        }
+        return true;
+    }
+
+    /**
+     * Immutable trie node. Literal children are kept in a sorted array so that
+     * they can be searched with binary search without creating substrings.
+     */
+    private static class Node {
+
+        private final String[] labels;
+        private final Node[] children;
+        private final Node capture;
+        private final ConsumerEndpoint endpoint;
+        private final String key;
+        private final int captureSegment;
+        private final int rank;
+        private final int minRank;
+
+        Node(String[] labels, Node[] children, Node capture, ConsumerEndpoint endpoint, String key, int captureSegment, int rank) {
+            this.labels = labels;
+            this.children = children;
+            this.capture = capture;
+            this.endpoint = endpoint;
+            this.key = key;
+            this.captureSegment = captureSegment;
+            this.rank = rank;
+            int min = rank;
+            for (Node child : children) {
+                min = Math.min(min, child.minRank);
+            }
+            if (capture != null) {
+                min = Math.min(min, capture.minRank);
+            }
+            // Lowest rank in the subtree
+            this.minRank = min;
+        }
+
+        Node findLiteral(String path, int start, int end) {
+            int low = 0;
+            int high = this.labels.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(this.labels[mid], path, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return this.children[mid];
+                }
+            }
+            return null;
+        }
+
+        private static int compare(String label, String path, int start, int end) {
+            int length = end - start;
+            int min = Math.min(label.length(), length);
+            for (int i = 0; i < min; i++) {
+                int diff = label.charAt(i) - path.charAt(start + i);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return label.length() - length;
+        }
+    }
+
+    /**
+     * Mutable trie node that's used while the index is being built.
+     */
+    private static class NodeBuilder {
+
+        private final Map<String, NodeBuilder> literals = new TreeMap<>();
+        private NodeBuilder capture;
+        private ConsumerEndpoint endpoint;
+        private String key;
+        private int captureSegment = -1;
+        private int rank = Integer.MAX_VALUE;
+
+        Node build() {
+            String[] labels = this.literals.keySet().toArray(new String[this.literals.size()]);
+            Node[] children = new Node[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                children[i] = this.literals.get(labels[i]).build();
+            }
+            Node captureNode = this.capture == null ? null : this.capture.build();
+            return new Node(labels, children, captureNode, this.endpoint, this.key, this.captureSegment, this.rank);
+        }
+    }
+
+    /**
+     * Route that's matched using a precompiled regular expression.
+     */
+    private static class PatternRoute {
+
+        private final String key;
+        private final Pattern pattern;
+        private final ConsumerEndpoint endpoint;
+        private final int rank;
+
+        PatternRoute(String key, ConsumerEndpoint endpoint, int rank) {
+            this.key = key;
+            this.pattern = Pattern.compile(key.replaceAll("\\{" + Constants.PARAM_RESOURCE_ID + "\\}", "([\\\\w\\\\-]+?)"));
+            this.endpoint = endpoint;
+            this.rank = rank;
+        }
+    }
+}
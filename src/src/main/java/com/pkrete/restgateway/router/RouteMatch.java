@@ -0,0 +1,102 @@
+package com.pkrete.restgateway.router;
+
+import com.pkrete.restgateway.endpoint.ConsumerEndpoint;
+import com.pkrete.restgateway.util.RESTGatewayUtil;
+import com.pkrete.xrd4j.common.member.ConsumerMember;
+import com.pkrete.xrd4j.common.member.ProducerMember;
+import com.pkrete.xrd4j.common.util.ConfigurationHelper;
+
+/**
+ * This class represents the result of routing a single request. It holds the
+ * matching ConsumerEndpoint and all the values that vary between requests
+ * targeted to the same endpoint: the resource id parsed from the resource path
+ * and the namespace and prefix received in HTTP headers.
+ *
+ * ConsumerEndpoint objects are shared between all the requests and they're
+ * never modified after initialization. RouteMatch objects are immutable and
+ * they're created per request, which is why they can be used without locking.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class RouteMatch {
+
+    private final ConsumerEndpoint endpoint;
+    private final String resourceId;
+    private final ProducerMember producer;
+
+    /**
+     * Constructs and initializes a new RouteMatch object.
+     *
+     * @param endpoint matching endpoint
+     * @param resourceId resource id parsed from the resource path or null
+     */
+    public RouteMatch(ConsumerEndpoint endpoint, String resourceId) {
+        this(endpoint, resourceId, endpoint.getProducer());
+    }
+
+    private RouteMatch(ConsumerEndpoint endpoint, String resourceId, ProducerMember producer) {
+        this.endpoint = endpoint;
+        this.resourceId = resourceId;
+        this.producer = producer;
+    }
+
+    /**
+     * Returns a RouteMatch that uses the given namespace and prefix instead of
+     * the ones defined by the endpoint. Null and empty values are ignored. The
+     * ProducerMember of the endpoint is not modified, a new ProducerMember is
+     * created instead. If both the values are null or empty, this object is
+     * returned.
+     *
+     * @param namespace namespace HTTP header value
+     * @param prefix prefix HTTP header value
+     * @return RouteMatch using the given namespace and prefix
+     */
+    public RouteMatch withNamespaceAndPrefix(String namespace, String prefix) {
+        if (RESTGatewayUtil.isNullOrEmpty(namespace) && RESTGatewayUtil.isNullOrEmpty(prefix)) {
+            return this;
+        }
+        ProducerMember copy = ConfigurationHelper.parseProducerMember(this.endpoint.getServiceId());
+        if (copy == null) {
+            return this;
+        }
+        copy.setNamespaceUrl(RESTGatewayUtil.isNullOrEmpty(namespace) ? this.producer.getNamespaceUrl() : namespace);
+        copy.setNamespacePrefix(RESTGatewayUtil.isNullOrEmpty(prefix) ? this.producer.getNamespacePrefix() : prefix);
+        return new RouteMatch(this.endpoint, this.resourceId, copy);
+    }
+
+    /**
+     * Returns the matching endpoint.
+     *
+     * @return matching endpoint
+     */
+    public ConsumerEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Returns the resource id parsed from the resource path.
+     *
+     * @return resource id or null
+     */
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    /**
+     * Returns the X-Road consumer member.
+     *
+     * @return X-Road consumer member
+     */
+    public ConsumerMember getConsumer() {
+        return this.endpoint.getConsumer();
+    }
+
+    /**
+     * Returns the X-Road producer member that's used for this request.
+     *
+     * @return X-Road producer member
+     */
+    public ProducerMember getProducer() {
+        return producer;
+    }
+}
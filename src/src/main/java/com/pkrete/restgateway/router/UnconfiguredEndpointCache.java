@@ -0,0 +1,169 @@
+package com.pkrete.restgateway.router;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class implements a bounded least recently used cache for endpoints
+ * that are created on the fly when service calls by X-Road service id are
+ * enabled. The cache is keyed by service id and it holds RouteMatch objects
+ * without resource id, which are immutable and can be shared by all the
+ * request threads. The resource id of a request is added by the caller, so
+ * that requests to different resources of the same service share the entry.
+ *
+ * All the operations are thread safe. The entries are held in a
+ * ConcurrentHashMap, so lookups don't lock, and each entry records the time
+ * it was last used. When an entry is added to a full cache, the least
+ * recently used entry is evicted. Evicting scans the entries under a lock,
+ * but it happens only when a new service is called. As concurrent additions
+ * are not serialized, the cache may briefly hold more entries than the
+ * maximum.
+ *
+ * @author Petteri Kivimäki
+ */
+public class UnconfiguredEndpointCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(UnconfiguredEndpointCache.class);
+
+    /**
+     * Default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final int maxSize;
+    private final ConcurrentMap<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructs and initializes a new UnconfiguredEndpointCache object.
+     *
+     * @param maxSize maximum number of entries, must be positive
+     */
+    public UnconfiguredEndpointCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive.");
+        }
+        this.maxSize = maxSize;
+        this.entries = new ConcurrentHashMap<>(Math.min(maxSize, DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * Returns the cached RouteMatch of the given service id. If the service
+     * id is not in the cache, null is returned.
+     *
+     * @param serviceId service id of the request
+     * @return cached RouteMatch or null
+     */
+    public RouteMatch get(String serviceId) {
+        Entry entry = this.entries.get(serviceId);
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            logger.trace("Unconfigured endpoint not found from cache. Service id : \"{}\".", serviceId);
+            return null;
+        }
+        entry.lastUsed = System.nanoTime();
+        this.hits.incrementAndGet();
+        logger.trace("Unconfigured endpoint loaded from cache. Service id : \"{}\".", serviceId);
+        return entry.match;
+    }
+
+    /**
+     * Adds the given RouteMatch to the cache. Null values are not cached.
+     *
+     * @param serviceId service id of the request
+     * @param match RouteMatch created for the service id
+     */
+    public void put(String serviceId, RouteMatch match) {
+        if (match == null) {
+            return;
+        }
+        if (this.entries.put(serviceId, new Entry(match)) == null && this.entries.size() > this.maxSize) {
+            this.evict();
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is not over
+     * its maximum size.
+     */
+    private synchronized void evict() {
+        while (this.entries.size() > this.maxSize) {
+            Map.Entry<String, Entry> eldest = null;
+            for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+                if (eldest == null || entry.getValue().lastUsed - eldest.getValue().lastUsed < 0) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            this.entries.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the maximum number of entries.
+     *
+     * @return maximum number of entries
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of lookups that were found from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that were not found from the cache.
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the current statistics of the cache as a string.
+     *
+     * @return statistics of the cache
+     */
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "entries=%d/%d, hits=%d, misses=%d",
+                this.entries.size(), this.maxSize, this.hits.get(), this.misses.get());
+    }
+
+    /**
+     * Cached RouteMatch and the time it was last used.
+     */
+    private static class Entry {
+
+        private final RouteMatch match;
+        private volatile long lastUsed;
+
+        Entry(RouteMatch match) {
+            this.match = match;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+}
@@ -38,14 +38,50 @@ public class Constants {
     public static final String PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_OPERATION = "reqParamNameFilterOperation";
     public static final String PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_CONDITION = "reqParamValueFilterCondition";
     public static final String PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_OPERATION = "reqParamValueFilterOperation";
+    public static final String PROVIDER_PROPS_BACKEND_CLIENT = "backend.client";
+    public static final String PROVIDER_PROPS_BACKEND_CLIENT_XRD4J = "xrd4j";
+    public static final String PROVIDER_PROPS_BACKEND_MAX_CONNECTIONS = "backend.maxConnections";
+    public static final String PROVIDER_PROPS_BACKEND_CONNECT_TIMEOUT = "backend.connectTimeout";
+    public static final String PROVIDER_PROPS_BACKEND_READ_TIMEOUT = "backend.readTimeout";
+    public static final String PROVIDER_PROPS_BACKEND_ACQUIRE_TIMEOUT = "backend.acquireTimeout";
+    public static final String PROVIDER_PROPS_BACKEND_IDLE_TIMEOUT = "backend.idleTimeout";
     /**
      * Consumer properties
      */
     public static final String CONSUMER_PROPS_PATH = "path";
     public static final String CONSUMER_PROPS_ID_CLIENT = "id.client";
     public static final String CONSUMER_PROPS_SECURITY_SERVER_URL = "ss.url";
+    public static final String CONSUMER_PROPS_SS_MAX_CONNECTIONS = "ss.maxConnections";
+    public static final String CONSUMER_PROPS_SS_CONNECT_TIMEOUT = "ss.connectTimeout";
+    public static final String CONSUMER_PROPS_SS_READ_TIMEOUT = "ss.readTimeout";
+    public static final String CONSUMER_PROPS_SS_ACQUIRE_TIMEOUT = "ss.acquireTimeout";
+    public static final String CONSUMER_PROPS_SS_IDLE_TIMEOUT = "ss.idleTimeout";
+    public static final String CONSUMER_PROPS_SS_MAX_FAILURES = "ss.maxFailures";
+    public static final String CONSUMER_PROPS_SS_EJECT_TIME = "ss.ejectTime";
+    public static final String CONSUMER_PROPS_SS_SLOW_THRESHOLD = "ss.slowThreshold";
+    public static final String CONSUMER_PROPS_SS_CHUNKED_REQUESTS = "ss.chunkedRequests";
     public static final String CONSUMER_PROPS_MOD_URL = "response.modurl";
     public static final String CONSUMER_PROPS_SVC_CALLS_BY_XRD_SVC_ID_ENABLED = "serviceCallsByXRdServiceId.enabled";
+    public static final String CONSUMER_PROPS_SVC_CALLS_BY_XRD_SVC_ID_CACHE_SIZE = "serviceCallsByXRdServiceId.cacheSize";
+    public static final String CONSUMER_PROPS_REQUEST_BODY_MEMORY_THRESHOLD = "request.body.memoryThreshold";
+    public static final String CONSUMER_PROPS_REQUEST_MAX_SIZE = "request.maxSize";
+    public static final String CONSUMER_PROPS_REQUEST_WRITER = "request.writer";
+    public static final String CONSUMER_PROPS_REQUEST_WRITER_SAAJ = "saaj";
+    public static final String CONSUMER_PROPS_RESPONSE_READER = "response.reader";
+    public static final String CONSUMER_PROPS_RESPONSE_READER_SAAJ = "saaj";
+    public static final String CONSUMER_PROPS_RESPONSE_COMPRESSION = "response.compression";
+    public static final String CONSUMER_PROPS_RESPONSE_COMPRESSION_MIN_SIZE = "response.compression.minSize";
+    public static final String CONSUMER_PROPS_RESPONSE_BUFFER_MAX_SIZE = "response.buffer.maxSize";
+    public static final String CONSUMER_PROPS_CACHE_TTL = "cache.ttl";
+    public static final String CONSUMER_PROPS_CACHE_MAX_ENTRIES = "cache.maxEntries";
+    public static final String CONSUMER_PROPS_CACHE_MAX_BYTES = "cache.maxBytes";
+    public static final String CONSUMER_PROPS_CACHE_KEY_BY_USER_ID = "cache.keyByUserId";
+    public static final String CONSUMER_PROPS_COALESCE = "coalesce";
+    public static final String CONSUMER_PROPS_COALESCE_MAX_WAITERS = "coalesce.maxWaiters";
+    /**
+     * Virtual thread properties, common for consumer and provider gateway
+     */
+    public static final String PROPS_VIRTUAL_THREADS = "virtualThreads";
     /**
      * Encryption properties
      */
@@ -70,6 +106,7 @@ public class Constants {
     public static final String XRD_HEADER_MESSAGE_ID = "X-XRd-MessageId";
     public static final String XRD_HEADER_NAMESPACE_SERIALIZE = "X-XRd-NamespaceSerialize";
     public static final String XRD_HEADER_NAMESPACE_PREFIX_SERIALIZE = "X-XRd-NamespacePrefixSerialize";
+    public static final String XRD_HEADER_FIELDS = "X-XRd-Fields";
     /**
      * Other constants.
      */
@@ -87,6 +124,8 @@ public class Constants {
      * HTTP error messages
      */
     public static final String ERROR_404 = "404 Not Found";
+    public static final String ERROR_413 = "413 Request Entity Too Large";
+    public static final String ERROR_417 = "417 Expectation Failed";
     public static final String ERROR_422 = "422 Unprocessable Entity. Missing request data.";
     public static final String ERROR_500 = "500 Internal Server Error";
     // HTTP Headers
@@ -102,6 +141,11 @@ public class Constants {
      * Content-Type: application/json
      */
     public static final String APPLICATION_JSON = "application/json";
+    /**
+     * Content-Type: application/x-ndjson
+     */
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+    public static final String APPLICATION_X_WWW_FORM_URLENCODED = "application/x-www-form-urlencoded";
     /**
      * Character set UTF-8
      */
@@ -4,13 +4,25 @@ import com.pkrete.xrd4j.common.member.ConsumerMember;
 import com.pkrete.xrd4j.common.member.ProducerMember;
 import com.pkrete.xrd4j.common.util.ConfigurationHelper;
 import com.pkrete.xrd4j.common.util.MessageHelper;
+import com.pkrete.restgateway.cache.RequestCoalescer;
+import com.pkrete.restgateway.cache.ResponseCache;
+import com.pkrete.restgateway.client.SOAPHeaderTemplate;
 import com.pkrete.restgateway.endpoint.ConsumerEndpoint;
+import com.pkrete.restgateway.router.RouteMatch;
+import com.pkrete.restgateway.xml.ResponseUnwrapper;
 import com.pkrete.xrd4j.common.security.Encrypter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.xml.stream.XMLStreamException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,6 +35,11 @@ public class ConsumerGatewayUtil {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsumerGatewayUtil.class);
 
+    /**
+     * Pattern for resource path and resource id of unconfigured endpoints.
+     */
+    private static final Pattern UNCONFIGURED_RESOURCE_PATH = Pattern.compile("/(.+?)/(.+)");
+
     /**
      * This a utility class providing only static methods which is why it should
      * not be initiated.
@@ -74,7 +91,7 @@ public class ConsumerGatewayUtil {
             ConsumerEndpoint endpoint = new ConsumerEndpoint(serviceId, clientId, path);
             setDefaultValues(endpoint, gatewayProperties);
 
-            // Client id, HTTP verb, modify URL's
+            // Client id, HTTP verb, modify URL's, request max size
             extractEndpoints(key, endpoints, endpoint);
             // Wrapper processing, ServiceRequest namespace,
             // ServiceResponse namespace, ServiceResponse namespace prefix
@@ -126,6 +143,50 @@ public class ConsumerGatewayUtil {
             endpoint.setModifyUrl(MessageHelper.strToBool(value));
             logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_MOD_URL, value);
         }
+        // Max size of the request body
+        if (endpoints.containsKey(key + "." + Constants.CONSUMER_PROPS_REQUEST_MAX_SIZE)) {
+            String value = endpoints.getProperty(key + "." + Constants.CONSUMER_PROPS_REQUEST_MAX_SIZE);
+            endpoint.setRequestMaxSize(parseRequestMaxSize(value));
+            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_REQUEST_MAX_SIZE, value);
+        }
+        // Response compression
+        if (endpoints.containsKey(key + "." + Constants.CONSUMER_PROPS_RESPONSE_COMPRESSION)) {
+            String value = endpoints.getProperty(key + "." + Constants.CONSUMER_PROPS_RESPONSE_COMPRESSION);
+            endpoint.setCompressResponse(MessageHelper.strToBool(value));
+            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_RESPONSE_COMPRESSION, value);
+        }
+        // Response cache
+        if (endpoints.containsKey(key + "." + Constants.CONSUMER_PROPS_CACHE_TTL)) {
+            String value = endpoints.getProperty(key + "." + Constants.CONSUMER_PROPS_CACHE_TTL);
+            endpoint.setCacheTtl(parseCacheValue(Constants.CONSUMER_PROPS_CACHE_TTL, value, 0));
+            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_CACHE_TTL, value);
+        }
+        if (endpoints.containsKey(key + "." + Constants.CONSUMER_PROPS_CACHE_MAX_ENTRIES)) {
+            String value = endpoints.getProperty(key + "." + Constants.CONSUMER_PROPS_CACHE_MAX_ENTRIES);
+            endpoint.setCacheMaxEntries((int) Math.min(Integer.MAX_VALUE, parseCacheValue(Constants.CONSUMER_PROPS_CACHE_MAX_ENTRIES, value, ResponseCache.DEFAULT_MAX_ENTRIES)));
+            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_CACHE_MAX_ENTRIES, value);
+        }
+        if (endpoints.containsKey(key + "." + Constants.CONSUMER_PROPS_CACHE_MAX_BYTES)) {
+            String value = endpoints.getProperty(key + "." + Constants.CONSUMER_PROPS_CACHE_MAX_BYTES);
+            endpoint.setCacheMaxBytes(parseCacheValue(Constants.CONSUMER_PROPS_CACHE_MAX_BYTES, value, ResponseCache.DEFAULT_MAX_BYTES));
+            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_CACHE_MAX_BYTES, value);
+        }
+        if (endpoints.containsKey(key + "." + Constants.CONSUMER_PROPS_CACHE_KEY_BY_USER_ID)) {
+            String value = endpoints.getProperty(key + "." + Constants.CONSUMER_PROPS_CACHE_KEY_BY_USER_ID);
+            endpoint.setCacheKeyByUserId(MessageHelper.strToBool(value));
+            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_CACHE_KEY_BY_USER_ID, value);
+        }
+        // Request coalescing
+        if (endpoints.containsKey(key + "." + Constants.CONSUMER_PROPS_COALESCE)) {
+            String value = endpoints.getProperty(key + "." + Constants.CONSUMER_PROPS_COALESCE);
+            endpoint.setCoalesceRequests(MessageHelper.strToBool(value));
+            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_COALESCE, value);
+        }
+        if (endpoints.containsKey(key + "." + Constants.CONSUMER_PROPS_COALESCE_MAX_WAITERS)) {
+            String value = endpoints.getProperty(key + "." + Constants.CONSUMER_PROPS_COALESCE_MAX_WAITERS);
+            endpoint.setCoalesceMaxWaiters((int) Math.min(Integer.MAX_VALUE, parseCacheValue(Constants.CONSUMER_PROPS_COALESCE_MAX_WAITERS, value, RequestCoalescer.DEFAULT_MAX_WAITERS)));
+            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.CONSUMER_PROPS_COALESCE_MAX_WAITERS, value);
+        }
     }
 
     /**
@@ -167,63 +228,59 @@ public class ConsumerGatewayUtil {
             endpoint.setProcessingWrappers(MessageHelper.strToBool(gatewayProperties.getProperty(Constants.ENDPOINT_PROPS_WRAPPERS)));
         }
 
+        endpoint.setRequestMaxSize(parseRequestMaxSize(gatewayProperties.getProperty(Constants.CONSUMER_PROPS_REQUEST_MAX_SIZE)));
+
         // Set default HTTP verb
         endpoint.setHttpVerb("GET");
     }
 
     /**
-     * Goes through the given endpoint and tries to find an endpoint which id
-     * matches the given service id. If no match is found, then tries to find a
-     * partial match.
+     * Parses the max size of the request body. Null, invalid and negative
+     * values mean that the size is not limited, and zero is returned.
      *
-     * @param serviceId service id to be looked for
-     * @param endpoints list of endpoints
-     * @return endpoint matching the given service id or null
+     * @param value max size in bytes as a String
+     * @return max size in bytes or zero
      */
-    public static ConsumerEndpoint findMatch(String serviceId, Map<String, ConsumerEndpoint> endpoints) {
-        if (endpoints.containsKey(serviceId)) {
-            logger.debug("Found match by service id : \"{}\".", serviceId);
-            return endpoints.get(serviceId);
+    public static long parseRequestMaxSize(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
         }
-        for (Map.Entry<String, ConsumerEndpoint> entry : endpoints.entrySet()) {
-            String key = entry.getKey();
-            String keyMod = key.replaceAll("\\{" + Constants.PARAM_RESOURCE_ID + "\\}", "([\\\\w\\\\-]+?)");
-            logger.trace("Modified key used for comparison : \"{}\".", keyMod);
-            if (serviceId.matches(keyMod)) {
-                logger.debug("Found partial match by service id. Request value : \"{}\", matching value : \"{}\".", serviceId, key);
-                ConsumerEndpoint endpoint = entry.getValue();
-                // Parse resource id and set it to endpoint
-                parseResourceId(key, endpoint, serviceId);
-                return endpoint;
+        try {
+            long size = Long.parseLong(value.trim());
+            if (size >= 0) {
+                return size;
             }
+        } catch (NumberFormatException ex) {
+            logger.trace(ex.getMessage(), ex);
         }
-        logger.debug("No match by service id was found. Service id : \"{}\".", serviceId);
-        return null;
+        logger.warn("Invalid request max size \"{}\". Request size is not limited.", value);
+        return 0;
     }
 
     /**
-     * Parses the resource id from the given service id and sets endpoint's
-     * resource id variable. E.g. key is "GET /myhost.com/service/{resourceId}"
-     * and service id is "GET /myhost.com/service/123". Based on these two
-     * strings we can parse the resource id "123" from the service id.
+     * Parses a positive numeric value of the response cache and request
+     * coalescing settings. Null and invalid values mean that the default
+     * value is used.
      *
-     * @param key service identifier as a String from properties
-     * @param endpoint Endpoint object representing the identifier
-     * @param serviceId service identifier as a String that has been called
+     * @param name name of the setting
+     * @param value value as a String
+     * @param defaultValue default value
+     * @return parsed value or the default value
      */
-    private static void parseResourceId(String key, ConsumerEndpoint endpoint, String serviceId) {
-        // Get the index of '{' character
-        int index = key.indexOf('{');
-        if (index != -1) {
-            // Get the resource id - starts from the first "{"
-            String resourceId = serviceId.substring(index);
-            // If the last character is "/", remove it
-            if (resourceId.endsWith("/")) {
-                resourceId = resourceId.substring(0, resourceId.length() - 1);
+    static long parseCacheValue(String name, String value, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            long result = Long.parseLong(value.trim());
+            if (result > 0) {
+                return result;
             }
-            endpoint.setResourceId(resourceId);
-            logger.trace("Set resource id : \"{}\"", resourceId);
+        } catch (NumberFormatException ex) {
+            logger.trace(ex.getMessage(), ex);
         }
+        logger.warn("Invalid value \"{}\" for \"{}\". Use default {}.", value, name, defaultValue);
+        return defaultValue;
     }
 
     /**
@@ -238,19 +295,82 @@ public class ConsumerGatewayUtil {
     public static String rewriteUrl(String servletUrl, String pathToResource, String responseStr) {
         logger.debug("Rewrite URLs in the response to point Consumer Gateway.");
         logger.debug("Consumer Gateway URL : \"{}\".", servletUrl);
-        try {
-            // Remove "/{resourceId}" from resource path, and omit
-            // first and last slash ('/') character
-            String resourcePath = pathToResource.substring(1, pathToResource.length() - 1).replaceAll("/\\{" + Constants.PARAM_RESOURCE_ID + "\\}", "");
-            logger.debug("Resourse URL that's replaced with Consumer Gateway URL : \"http(s)://{}\".", resourcePath);
-            logger.debug("New resource URL : \"{}{}\".", servletUrl, resourcePath);
-            // Modify the response
-            return responseStr.replaceAll("http(s|):\\/\\/" + resourcePath, servletUrl + resourcePath);
-        } catch (Exception ex) {
-            logger.error("Rewriting the URLs failed!");
-            logger.error(ex.getMessage(), ex);
-            return responseStr;
+        UrlRewriter rewriter = new UrlRewriter(pathToResource);
+        logger.debug("Resourse URL that's replaced with Consumer Gateway URL : \"http(s)://{}\".", rewriter.getResourcePath());
+        logger.debug("New resource URL : \"{}{}\".", servletUrl, rewriter.getResourcePath());
+        // Modify the response
+        return rewriter.rewrite(servletUrl, responseStr);
+    }
+
+    /**
+     * Compiles URL rewriters for the endpoints whose response URLs are
+     * rewritten to point the Consumer Gateway. Rewriters are compiled once
+     * and shared by all the requests.
+     *
+     * @param endpoints configured endpoints
+     * @return map of endpoints and their URL rewriters
+     */
+    public static Map<ConsumerEndpoint, UrlRewriter> createUrlRewriters(Map<String, ConsumerEndpoint> endpoints) {
+        Map<ConsumerEndpoint, UrlRewriter> rewriters = new HashMap<>();
+        for (ConsumerEndpoint endpoint : endpoints.values()) {
+            if (endpoint.isModifyUrl()) {
+                UrlRewriter rewriter = new UrlRewriter(endpoint.getResourcePath());
+                rewriters.put(endpoint, rewriter);
+                logger.debug("URLs \"http(s)://{}\" are rewritten in the responses of \"{}\".", rewriter.getResourcePath(), endpoint.getResourcePath());
+            }
         }
+        return rewriters;
+    }
+
+    /**
+     * Creates response caches for the endpoints whose responses are cached.
+     * Only GET endpoints can be cached, and responses are cached only if the
+     * time to live is set.
+     *
+     * @param endpoints configured endpoints
+     * @return map of endpoints and their response caches
+     */
+    public static Map<ConsumerEndpoint, ResponseCache> createResponseCaches(Map<String, ConsumerEndpoint> endpoints) {
+        Map<ConsumerEndpoint, ResponseCache> caches = new HashMap<>();
+        for (ConsumerEndpoint endpoint : endpoints.values()) {
+            if (endpoint.getCacheTtl() <= 0) {
+                continue;
+            }
+            if (!"GET".equals(endpoint.getHttpVerb())) {
+                logger.warn("Responses of \"{} {}\" are not cached. Only GET requests can be cached.", endpoint.getHttpVerb(), endpoint.getResourcePath());
+                continue;
+            }
+            caches.put(endpoint, new ResponseCache(endpoint.getCacheTtl() * 1000, endpoint.getCacheMaxEntries(), endpoint.getCacheMaxBytes()));
+            logger.debug("Responses of \"{}\" are cached. TTL : {} s, max entries : {}, max bytes : {}, key by userId : {}.", endpoint.getResourcePath(),
+                    endpoint.getCacheTtl(), endpoint.getCacheMaxEntries(), endpoint.getCacheMaxBytes(), endpoint.isCacheKeyByUserId());
+        }
+        return caches;
+    }
+
+    /**
+     * Creates request coalescers for the endpoints whose identical
+     * concurrent requests are coalesced. Only GET requests are coalesced.
+     *
+     * @param endpoints configured endpoints
+     * @param waitTimeout maximum time to wait for an identical request in
+     * milliseconds
+     * @return map of endpoints and their request coalescers
+     */
+    public static Map<ConsumerEndpoint, RequestCoalescer> createRequestCoalescers(Map<String, ConsumerEndpoint> endpoints, long waitTimeout) {
+        Map<ConsumerEndpoint, RequestCoalescer> coalescers = new HashMap<>();
+        for (ConsumerEndpoint endpoint : endpoints.values()) {
+            if (!endpoint.isCoalesceRequests()) {
+                continue;
+            }
+            if (!"GET".equals(endpoint.getHttpVerb())) {
+                logger.warn("Requests of \"{} {}\" are not coalesced. Only GET requests can be coalesced.", endpoint.getHttpVerb(), endpoint.getResourcePath());
+                continue;
+            }
+            coalescers.put(endpoint, new RequestCoalescer(endpoint.getCoalesceMaxWaiters(), waitTimeout));
+            logger.debug("Identical requests of \"{}\" are coalesced. Max waiters : {}, wait timeout : {} ms.", endpoint.getResourcePath(),
+                    endpoint.getCoalesceMaxWaiters(), waitTimeout);
+        }
+        return coalescers;
     }
 
     /**
@@ -293,6 +413,28 @@ public class ConsumerGatewayUtil {
         return true;
     }
 
+    /**
+     * Splits the given resource path of a service that's not in the
+     * configuration file to service id and resource id. The first element of
+     * the returned array is the service id and the second element is the
+     * resource id, or null if the path doesn't contain a resource id.
+     *
+     * @param pathToResource resource path that was called
+     * @return array that contains the service id and the resource id
+     */
+    public static String[] parseUnconfiguredResourcePath(String pathToResource) {
+        // Check if a resource id is present in the resource path.
+        Matcher m = UNCONFIGURED_RESOURCE_PATH.matcher(pathToResource);
+        // If resource id is found, split resource id and resource path
+        if (m.find()) {
+            String resourceId = m.group(2).substring(0, m.group(2).length() - 1);
+            logger.debug("Resource id detected. Resource path : \"{}\". Resource id : \"{}\".", m.group(1), resourceId);
+            return new String[]{m.group(1), resourceId};
+        }
+        // Remove slashes, they're not part of service id
+        return new String[]{pathToResource.replaceAll("/", ""), null};
+    }
+
     /**
      * Creates a ConsumerEndpoint that points to a service which configuration
      * information is not in the configuration file. Resource path is used as
@@ -301,45 +443,31 @@ public class ConsumerGatewayUtil {
      * @param props consumer gateway properties that contain default namespace
      * and prefix
      * @param pathToResource resource path that was called, used as service id
-     * @return ConsumerEndpoint object
+     * @return RouteMatch holding the new ConsumerEndpoint object and resource
+     * id, or null if parsing the ids failed
      */
-    public static ConsumerEndpoint createUnconfiguredEndpoint(Properties props, String pathToResource) {
+    public static RouteMatch createUnconfiguredEndpoint(Properties props, String pathToResource) {
         logger.debug("Create a consumer endpoint that points to a service defined by resource path.");
-        String resourceId = null;
-        String resourcePath;
-        // Check if a resource id is present in the resource path.
-        // Pattern for resource path and resource id.
-        String pattern = "/(.+?)/(.+)";
-        Pattern regex = Pattern.compile(pattern);
-        Matcher m = regex.matcher(pathToResource);
-        // If resource id is found, split resource id and resource path
-        if (m.find()) {
-            resourcePath = m.group(1);
-            resourceId = m.group(2).substring(0, m.group(2).length() - 1);
-            logger.info("Resource id detected. Resource path : \"{}\". Resource id : \"{}\".", resourcePath, resourceId);
-        } else {
-            // Remove slashes, they're not part of service id
-            resourcePath = pathToResource.replaceAll("/", "");
-        }
+        String[] ids = parseUnconfiguredResourcePath(pathToResource);
+        String resourcePath = ids[0];
+        String resourceId = ids[1];
         // Get client id
         String clientId = props.getProperty(Constants.CONSUMER_PROPS_ID_CLIENT);
         // Create new endpoint
         ConsumerEndpoint endpoint = new ConsumerEndpoint(resourcePath, clientId, "");
-        // Set resource id
-        endpoint.setResourceId(resourceId);
         // Parse consumer and producer from ids
         if (!ConsumerGatewayUtil.setConsumerMember(endpoint) || !ConsumerGatewayUtil.setProducerMember(endpoint)) {
-            // Set endpoint to null if parsing failed
-            endpoint = null;
-        } else {
-            // Get default namespace and prefix from properties
-            String ns = props.getProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_SERIALIZE);
-            String prefix = props.getProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_PREFIX_SERIALIZE);
-            // Set namespace and prefix
-            endpoint.getProducer().setNamespaceUrl(ns);
-            endpoint.getProducer().setNamespacePrefix(prefix);
-        }
-        return endpoint;
+            // Return null if parsing failed
+            return null;
+        }
+        // Get default namespace and prefix from properties
+        String ns = props.getProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_SERIALIZE);
+        String prefix = props.getProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_PREFIX_SERIALIZE);
+        // Set namespace and prefix
+        endpoint.getProducer().setNamespaceUrl(ns);
+        endpoint.getProducer().setNamespacePrefix(prefix);
+        endpoint.setRequestMaxSize(parseRequestMaxSize(props.getProperty(Constants.CONSUMER_PROPS_REQUEST_MAX_SIZE)));
+        return new RouteMatch(endpoint, resourceId);
     }
 
     /**
@@ -352,30 +480,7 @@ public class ConsumerGatewayUtil {
      * @return children of the response tag
      */
     public static String removeResponseTag(String message) {
-        String responsePrefix = "";
-        // Regex for reponse tag's namespace prefix
-        String regex = ".*<(\\w+:)*(\\w+R|r)esponse.*?>.*";
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(message);
-        if (matcher.find()) {
-            if (matcher.group(1) != null) {
-                responsePrefix = matcher.group(1);
-                logger.debug("Response tag's prefix is \"{}\".", responsePrefix);
-            } else {
-                logger.debug("No namespace prefix was found for response tag.");
-            }
-        }
-        // If content type is XML the message doesn't have to
-        // be converted, but it should be checked if there
-        // are additional <response> tags as a wrapper
-        String response = message.replaceAll("<(/)*" + responsePrefix + "(\\w+R|r)esponse.*?>", "");
-        // Remove response tag's prefixes, because otherwise
-        // the conversion to SOAP element will fail because
-        // of them
-        if (!responsePrefix.isEmpty()) {
-            response = response.replaceAll("(</{0,1})" + responsePrefix, "$1");
-        }
-        return response;
+        return ResponseUnwrapper.unwrap(message).getContent();
     }
 
     /**
@@ -429,4 +534,97 @@ public class ConsumerGatewayUtil {
         logger.info("Encryption properties checked.");
         return result && mustCheckPrivateKey;
     }
+
+    /**
+     * Returns the value of the given parameter from the given query string.
+     * The value is URL decoded using UTF-8. If the parameter is defined
+     * multiple times, the first value is returned.
+     *
+     * @param queryString query string of the request, may be null
+     * @param name name of the parameter
+     * @return value of the parameter or null
+     */
+    public static String getQueryParameter(String queryString, String name) {
+        if (queryString == null) {
+            return null;
+        }
+        for (String pair : queryString.split("&")) {
+            int index = pair.indexOf('=');
+            String key = index == -1 ? pair : pair.substring(0, index);
+            String value = index == -1 ? "" : pair.substring(index + 1);
+            try {
+                if (name.equals(URLDecoder.decode(key, StandardCharsets.UTF_8.name()))) {
+                    return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+                }
+            } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+                logger.debug("Invalid query parameter \"{}\".", pair);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the given URL encoded parameters, e.g. a query string or a form
+     * body, and adds them to the given map. If a parameter is defined
+     * multiple times, all the values are added in the order they're defined.
+     * Invalid parameters are skipped.
+     *
+     * @param parameters map where the parameters are added
+     * @param encoded URL encoded parameters, may be null
+     * @param charset character set that's used for decoding
+     */
+    public static void addParameters(Map<String, String[]> parameters, String encoded, Charset charset) {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int index = pair.indexOf('=');
+            String key = index == -1 ? pair : pair.substring(0, index);
+            String value = index == -1 ? "" : pair.substring(index + 1);
+            try {
+                key = URLDecoder.decode(key, charset.name());
+                value = URLDecoder.decode(value, charset.name());
+            } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+                logger.debug("Invalid parameter \"{}\".", pair);
+                continue;
+            }
+            String[] values = parameters.get(key);
+            if (values == null) {
+                parameters.put(key, new String[]{value});
+            } else {
+                values = Arrays.copyOf(values, values.length + 1);
+                values[values.length - 1] = value;
+                parameters.put(key, values);
+            }
+        }
+    }
+
+    /**
+     * Creates X-Road header templates for the given endpoints. Templates are
+     * not created for endpoints that require request encryption, because
+     * encrypted requests are serialized using SAAJ.
+     *
+     * @param endpoints list of configured endpoints
+     * @return header templates by endpoint
+     */
+    public static Map<ConsumerEndpoint, SOAPHeaderTemplate> createHeaderTemplates(Map<String, ConsumerEndpoint> endpoints) {
+        Map<ConsumerEndpoint, SOAPHeaderTemplate> templates = new HashMap<>();
+        for (ConsumerEndpoint endpoint : endpoints.values()) {
+            if (endpoint.isRequestEncrypted()) {
+                continue;
+            }
+            // Request wrappers are used unless they're disabled
+            boolean wrappers = endpoint.isProcessingWrappers() == null || endpoint.isProcessingWrappers();
+            try {
+                templates.put(endpoint, SOAPHeaderTemplate.create(endpoint.getConsumer(), endpoint.getProducer(), wrappers));
+            } catch (XMLStreamException ex) {
+                logger.error("Creating header template for \"{}\" failed.", endpoint.getServiceId(), ex);
+            }
+        }
+        logger.debug("{} header templates created.", templates.size());
+        return templates;
+    }
 }
@@ -3,15 +3,18 @@ package com.pkrete.restgateway.util;
 import com.pkrete.xrd4j.common.message.ServiceRequest;
 import com.pkrete.xrd4j.common.util.MessageHelper;
 import com.pkrete.xrd4j.rest.converter.JSONToXMLConverter;
+import com.pkrete.restgateway.client.PooledRESTClient;
 import com.pkrete.restgateway.endpoint.ProviderEndpoint;
 import com.pkrete.xrd4j.common.security.Decrypter;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -74,7 +77,13 @@ public class ProviderGatewayUtil {
             // condition, request parameter name filter operation,
             // request parameter value filter condition, request parameter 
             // value filter operation
-            extractEndpoints(key, endpoints, endpoint);
+            if (!extractEndpoints(key, endpoints, endpoint)) {
+                // Endpoint that can't filter its requests as configured
+                // is never used without the filter
+                logger.error("Invalid filter condition. Provider endpoint \"{}\" skipped.", id);
+                key = Integer.toString(++i);
+                continue;
+            }
 
             // Wrapper processing, ServiceRequest namespace,
             // ServiceResponse namespace, ServiceResponse namespace prefix
@@ -96,8 +105,10 @@ public class ProviderGatewayUtil {
      * @param key property key
      * @param endpoints list of configured endpoints read from properties
      * @param endpoint the endpoint object that's being initialized
+     * @return false if a request parameter filter condition is not a valid
+     * regular expression; otherwise true
      */
-    public static void extractEndpoints(String key, Properties endpoints, ProviderEndpoint endpoint) {
+    public static boolean extractEndpoints(String key, Properties endpoints, ProviderEndpoint endpoint) {
         // HTTP verb
         if (endpoints.containsKey(key + "." + Constants.ENDPOINT_PROPS_VERB)) {
             String value = endpoints.getProperty(key + "." + Constants.ENDPOINT_PROPS_VERB);
@@ -131,8 +142,13 @@ public class ProviderGatewayUtil {
         // Request parameter name filter condition
         if (endpoints.containsKey(key + "." + Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_CONDITION)) {
             String value = endpoints.getProperty(key + "." + Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_CONDITION);
-            endpoint.setReqParamNameFilterCondition(value);
-            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_CONDITION, value);
+            try {
+                endpoint.setReqParamNameFilterCondition(value);
+                logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_CONDITION, value);
+            } catch (PatternSyntaxException ex) {
+                logger.error("Invalid request parameter name filter condition. {}", ex.getMessage());
+                return false;
+            }
         }
         // Request parameter name filter operation
         if (endpoints.containsKey(key + "." + Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_OPERATION)) {
@@ -143,8 +159,13 @@ public class ProviderGatewayUtil {
         // Request parameter value filter condition
         if (endpoints.containsKey(key + "." + Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_CONDITION)) {
             String value = endpoints.getProperty(key + "." + Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_CONDITION);
-            endpoint.setReqParamValueFilterCondition(value);
-            logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_CONDITION, value);
+            try {
+                endpoint.setReqParamValueFilterCondition(value);
+                logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_CONDITION, value);
+            } catch (PatternSyntaxException ex) {
+                logger.error("Invalid request parameter value filter condition. {}", ex.getMessage());
+                return false;
+            }
         }
         // Request parameter value filter operation
         if (endpoints.containsKey(key + "." + Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_OPERATION)) {
@@ -152,6 +173,7 @@ public class ProviderGatewayUtil {
             endpoint.setReqParamValueFilterOperation(value);
             logger.info(Constants.LOG_STRING_FOR_SETTINGS, Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_OPERATION, value);
         }
+        return true;
     }
 
     /**
@@ -260,80 +282,65 @@ public class ProviderGatewayUtil {
      * Filters request parameter names and values according to the rules defined
      * by the ProviderEndpoint. Filter can be applied to only parameter name or
      * value or both of them. Filter condition and operation are defined
-     * individually for parameter name and value.
+     * individually for parameter name and value. The conditions are compiled
+     * when the endpoint is configured, and the parameters are filtered in a
+     * single pass using one matcher per condition.
      *
      * @param request request which parameters are filtered
      * @param endpoint endpoint that contains the rules for filtering
      */
     public static void filterRequestParameters(ServiceRequest request, ProviderEndpoint endpoint) {
+        Pattern nameCondition = endpoint.getReqParamNameFilterOperation() == null ? null : endpoint.getReqParamNameFilterPattern();
+        Pattern valueCondition = endpoint.getReqParamValueFilterOperation() == null ? null : endpoint.getReqParamValueFilterPattern();
+        if (nameCondition == null && valueCondition == null) {
+            logger.debug("No request parameter filters defined.");
+            return;
+        }
         logger.debug("Start filtering request parameters.");
-        // Get a list of keys in the parameters map
-        List<String> keys = new ArrayList<>(((Map<String, String>) request.getRequestData()).keySet());
-        // Loop through request parameters
-        for (String orgKey : keys) {
-            // Skip request body and resourceId parameters - all the other 
+        Matcher nameMatcher = nameCondition == null ? null : nameCondition.matcher("");
+        Matcher valueMatcher = valueCondition == null ? null : valueCondition.matcher("");
+        Map<String, List<String>> params = (Map<String, List<String>>) request.getRequestData();
+        // Parameters whose name has changed are added after the loop
+        Map<String, List<String>> renamed = null;
+        Iterator<Map.Entry<String, List<String>>> it = params.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<String>> param = it.next();
+            String orgKey = param.getKey();
+            // Skip request body and resourceId parameters - all the other
             // parameters are filtered
-            if (!orgKey.equals(Constants.PARAM_REQUEST_BODY) && !orgKey.equals(Constants.PARAM_RESOURCE_ID)) {
-                processReqParamFilters(request, endpoint, orgKey);
-            } else {
+            if (orgKey.equals(Constants.PARAM_REQUEST_BODY) || orgKey.equals(Constants.PARAM_RESOURCE_ID)) {
                 logger.trace("Skip \"{}\" and \"{}\" parameters.", Constants.PARAM_REQUEST_BODY, Constants.PARAM_RESOURCE_ID);
+                continue;
             }
-        }
-        logger.debug("Filtering request parameters done.");
-    }
-
-    /**
-     * Processes request parameter name and value filters for the parameter
-     * specified by orgKey. After processing processing the modified values are
-     * updated to the original request.
-     *
-     * @param request request which parameters are filtered
-     * @param endpoint endpoint that contains the rules for filtering
-     * @param orgKey the name of parameter to process
-     */
-    private static void processReqParamFilters(ServiceRequest request, ProviderEndpoint endpoint, String orgKey) {
-        // Variable that tells if request data must be updated
-        boolean update = false;
-        // Variable for new key value
-        String key = orgKey;
-        // Get values list
-        List<String> values = ((Map<String, List<String>>) request.getRequestData()).get(orgKey);
-
-        // Check if request parameter name filter has been defined
-        if (endpoint.getReqParamNameFilterCondition() != null && endpoint.getReqParamNameFilterOperation() != null) {
-            logger.trace("Request parameter name: \"{}\". Filter condition: \"{}\"", orgKey, endpoint.getReqParamNameFilterCondition());
-            Pattern regex = Pattern.compile(endpoint.getReqParamNameFilterCondition());
-            Matcher m = regex.matcher(orgKey);
-            if (m.find()) {
-                key = m.replaceAll(endpoint.getReqParamNameFilterOperation());
-                logger.trace("Filter condition: true. Filter operation: \"{}\". Parameter name: \"{}\" => \"{}\"", endpoint.getReqParamNameFilterOperation(), orgKey, key);
-                update = true;
+            if (valueMatcher != null) {
+                filterValues(param.getValue(), valueMatcher, endpoint.getReqParamValueFilterOperation());
             }
-        }
-        // Check if request parameter value filter has been defined
-        if (endpoint.getReqParamValueFilterCondition() != null && endpoint.getReqParamValueFilterOperation() != null) {
-            // Loop through the values
-            for (int i = 0; i < values.size(); i++) {
-                String orgValue = values.get(i);
-                logger.trace("Request parameter value: \"{}\". Filter condition: \"{}\"", orgValue, endpoint.getReqParamValueFilterCondition());
-                Pattern regex = Pattern.compile(endpoint.getReqParamValueFilterCondition());
-                Matcher m = regex.matcher(orgValue);
-                if (m.find()) {
-                    String value = m.replaceAll(endpoint.getReqParamValueFilterOperation());
-                    logger.trace("Filter condition: true. Filter operation: \"{}\". Parameter name: \"{}\" => \"{}\"", endpoint.getReqParamValueFilterOperation(), orgValue, value);
-                    values.set(i, value);
-                    update = true;
+            if (nameMatcher != null && nameMatcher.reset(orgKey).find()) {
+                String key = nameMatcher.replaceAll(endpoint.getReqParamNameFilterOperation());
+                logger.trace("Filter condition: true. Filter operation: \"{}\". Parameter name: \"{}\" => \"{}\"", endpoint.getReqParamNameFilterOperation(), orgKey, key);
+                if (!key.equals(orgKey)) {
+                    it.remove();
+                    if (renamed == null) {
+                        renamed = new LinkedHashMap<>();
+                    }
+                    renamed.put(key, param.getValue());
                 }
-
             }
         }
+        if (renamed != null) {
+            params.putAll(renamed);
+        }
+        logger.debug("Filtering request parameters done.");
+    }
 
-        // If key or value have changed, request data must be updated
-        if (update) {
-            // Remove old key - value list pair
-            ((Map<String, List<String>>) request.getRequestData()).remove(orgKey);
-            // Add modified key - value list pair
-            ((Map<String, List<String>>) request.getRequestData()).put(key, values);
+    private static void filterValues(List<String> values, Matcher matcher, String operation) {
+        for (int i = 0; i < values.size(); i++) {
+            String orgValue = values.get(i);
+            if (matcher.reset(orgValue).find()) {
+                String value = matcher.replaceAll(operation);
+                logger.trace("Filter condition: true. Filter operation: \"{}\". Parameter value: \"{}\" => \"{}\"", operation, orgValue, value);
+                values.set(i, value);
+            }
         }
     }
 
@@ -375,4 +382,34 @@ public class ProviderGatewayUtil {
         // Private key is not needed so return false
         return false;
     }
+
+    /**
+     * Creates pooled REST clients for the configured endpoints. One client
+     * is created per backend host, and the endpoints whose URLs have the same
+     * host share the same client. Endpoints that don't have a valid HTTP(S)
+     * URL don't have a client.
+     *
+     * @param endpoints configured endpoints
+     * @param props provider gateway properties
+     * @return map of endpoints and their REST clients
+     */
+    public static Map<ProviderEndpoint, PooledRESTClient> createRESTClients(Map<String, ProviderEndpoint> endpoints, Properties props) {
+        Map<String, PooledRESTClient> hosts = new HashMap<>();
+        Map<ProviderEndpoint, PooledRESTClient> clients = new HashMap<>();
+        for (ProviderEndpoint endpoint : endpoints.values()) {
+            String host = PooledRESTClient.getHost(endpoint.getUrl());
+            if (host == null) {
+                logger.warn("Connections to \"{}\" are not pooled. URL is not a valid HTTP(S) URL.", endpoint.getUrl());
+                continue;
+            }
+            PooledRESTClient client = hosts.get(host);
+            if (client == null) {
+                client = PooledRESTClient.create(host, props);
+                hosts.put(host, client);
+            }
+            clients.put(endpoint, client);
+            logger.debug("Requests to \"{}\" are sent using the connection pool of \"{}\".", endpoint.getServiceId(), host);
+        }
+        return clients;
+    }
 }
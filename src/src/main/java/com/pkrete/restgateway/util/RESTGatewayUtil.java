@@ -231,6 +231,32 @@ public class RESTGatewayUtil {
         return 128;
     }
 
+    /**
+     * Returns the value of the given integer property. If the property is
+     * not defined or its value is not a positive integer, the default value
+     * is returned.
+     *
+     * @param props properties
+     * @param key property key
+     * @param defaultValue default value
+     * @return value of the property or the default value
+     */
+    public static int getPositiveIntProperty(Properties props, String key, int defaultValue) {
+        String valueStr = props.getProperty(key);
+        if (valueStr != null && !valueStr.isEmpty()) {
+            try {
+                int value = Integer.parseInt(valueStr.trim());
+                if (value > 0) {
+                    return value;
+                }
+            } catch (NumberFormatException ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+            logger.warn("Invalid value for \"{}\" property. Use default {}.", key, defaultValue);
+        }
+        return defaultValue;
+    }
+
     /**
      * Creates a new symmetric encrypter of the given length.
      *
@@ -0,0 +1,267 @@
+package com.pkrete.restgateway.util;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * This class rewrites the URLs of a resource path to point the Consumer
+ * Gateway servlet. URLs beginning with "http://" or "https://" followed by
+ * the resource path are replaced with the servlet URL followed by the
+ * resource path. Resource path "/{resourceId}" is omitted from the path.
+ *
+ * The URLs are matched using an automaton that's compiled once per
+ * endpoint: a trie of the two URL prefixes with failure links, like in
+ * Aho-Corasick algorithm. The automaton is immutable and it's shared by all
+ * the requests. The rewriting is done while the response is written, using
+ * a Writer that keeps only the state of the automaton and never copies the
+ * response. Characters that can't start a match are passed through in
+ * blocks.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class UrlRewriter {
+
+    private final String resourcePath;
+    private final Node root;
+
+    /**
+     * Constructs and initializes a new UrlRewriter object.
+     *
+     * @param pathToResource resource path whose URLs are rewritten
+     */
+    public UrlRewriter(String pathToResource) {
+        this.resourcePath = normalize(pathToResource);
+        this.root = compile("http://" + this.resourcePath, "https://" + this.resourcePath);
+    }
+
+    /**
+     * Returns the resource path that's appended to the servlet URL, without
+     * the first and last slash and "/{resourceId}".
+     *
+     * @return resource path
+     */
+    public String getResourcePath() {
+        return resourcePath;
+    }
+
+    /**
+     * Returns a Writer that rewrites the URLs while writing to the given
+     * writer. Flushing the returned writer doesn't write a possible partial
+     * match, because the match may continue in the next write. Closing the
+     * writer writes it.
+     *
+     * @param out writer where the result is written
+     * @param servletUrl URL of Consumer Gateway servlet
+     * @return rewriting Writer
+     */
+    public Writer wrap(Writer out, String servletUrl) {
+        return new RewritingWriter(out, servletUrl + this.resourcePath);
+    }
+
+    /**
+     * Rewrites the URLs in the given string.
+     *
+     * @param servletUrl URL of Consumer Gateway servlet
+     * @param responseStr response to be modified
+     * @return modified response
+     */
+    public String rewrite(String servletUrl, String responseStr) {
+        StringWriter out = new StringWriter(responseStr.length());
+        try (Writer writer = this.wrap(out, servletUrl)) {
+            writer.write(responseStr);
+        } catch (IOException ex) {
+            // StringWriter doesn't throw IOException
+            throw new IllegalStateException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Removes "/{resourceId}", and the first and last slash from the given
+     * resource path.
+     *
+     * @param pathToResource resource path
+     * @return normalized resource path
+     */
+    static String normalize(String pathToResource) {
+        String path = pathToResource.replace("/{" + Constants.PARAM_RESOURCE_ID + "}", "");
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.endsWith("/") && path.length() > start ? path.length() - 1 : path.length();
+        return path.substring(start, end);
+    }
+
+    private static Node compile(String... patterns) {
+        Node root = new Node("");
+        // Build the trie
+        for (String pattern : patterns) {
+            Node node = root;
+            for (int i = 0; i < pattern.length(); i++) {
+                Node next = node.get(pattern.charAt(i));
+                if (next == null) {
+                    next = node.add(pattern.charAt(i), new Node(pattern.substring(0, i + 1)));
+                }
+                node = next;
+            }
+            node.terminal = true;
+        }
+        // Set failure links breadth first: failure of a node is the longest
+        // proper suffix of its text that's also in the trie
+        root.fail = root;
+        Deque<Node> queue = new ArrayDeque<>();
+        for (Node child : root.children) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (int i = 0; i < node.keys.length; i++) {
+                Node child = node.children[i];
+                Node fail = node.fail;
+                while (fail != root && fail.get(node.keys[i]) == null) {
+                    fail = fail.fail;
+                }
+                Node target = fail.get(node.keys[i]);
+                child.fail = target == null ? root : target;
+                queue.add(child);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * State of the automaton. Text of a node is the part of the input that
+     * has been matched, but not yet written.
+     */
+    private static class Node {
+
+        private final String text;
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Node fail;
+        private boolean terminal;
+
+        Node(String text) {
+            this.text = text;
+        }
+
+        Node get(char c) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] == c) {
+                    return this.children[i];
+                }
+            }
+            return null;
+        }
+
+        Node add(char c, Node child) {
+            this.keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+            this.children = Arrays.copyOf(this.children, this.children.length + 1);
+            this.keys[this.keys.length - 1] = c;
+            this.children[this.children.length - 1] = child;
+            return child;
+        }
+    }
+
+    /**
+     * Writer that rewrites the URLs using the automaton.
+     */
+    private class RewritingWriter extends FilterWriter {
+
+        private final String replacement;
+        private Node state;
+
+        RewritingWriter(Writer out, String replacement) {
+            super(out);
+            this.replacement = replacement;
+            this.state = root;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            this.step((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (this.state == root) {
+                    // Pass through the characters that can't start a match
+                    int start = i;
+                    while (i < end && root.get(cbuf[i]) == null) {
+                        i++;
+                    }
+                    if (i > start) {
+                        this.out.write(cbuf, start, i - start);
+                    }
+                    if (i == end) {
+                        break;
+                    }
+                }
+                this.step(cbuf[i++]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            // Same as above, the string is not copied to an array
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (this.state == root) {
+                    int start = i;
+                    while (i < end && root.get(str.charAt(i)) == null) {
+                        i++;
+                    }
+                    if (i > start) {
+                        this.out.write(str, start, i - start);
+                    }
+                    if (i == end) {
+                        break;
+                    }
+                }
+                this.step(str.charAt(i++));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flushState();
+            this.out.close();
+        }
+
+        private void step(char c) throws IOException {
+            Node node = this.state;
+            Node next = node.get(c);
+            while (next == null && node != root) {
+                // Write the part of the match that can't be a part of any
+                // other match and try the longest suffix
+                this.out.write(node.text, 0, node.text.length() - node.fail.text.length());
+                node = node.fail;
+                next = node.get(c);
+            }
+            if (next == null) {
+                this.out.write(c);
+                this.state = root;
+            } else if (next.terminal) {
+                this.out.write(this.replacement);
+                this.state = root;
+            } else {
+                this.state = next;
+            }
+        }
+
+        private void flushState() throws IOException {
+            if (this.state != root) {
+                this.out.write(this.state.text);
+                this.state = root;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.pkrete.restgateway.xml;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * This class selects the requested fields of a response message. The fields
+ * are given as a comma separated list of paths, e.g.
+ * "name,address/city,items/*&#47;id". Path segments are element local names
+ * separated by "/", and "*" matches any element. A name takes precedence over
+ * "*" on the same level. Paths are the same as the member paths of the
+ * response that the client receives: if the root element of the message is
+ * a response tag, the paths start from its children, otherwise they start
+ * from the root element.
+ *
+ * A selected element is kept with all its attributes and children. The
+ * elements on the path to a selected element are kept with their attributes,
+ * but their text and the children that are not on a selected path are
+ * dropped. The root element of the message is always kept, without children
+ * if no path matches it.
+ *
+ * The fields are selected by ResponseUnwrapper, XMLToJSONWriter and
+ * XMLToNDJSONWriter in the same pass that writes the response. Each pass
+ * uses its own Matcher, and unselected subtrees are skipped by the reader
+ * without writing or converting them.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class FieldProjection {
+
+    private static final String WILDCARD = "*";
+    private static final Node EMPTY = new Node();
+
+    private final Node root;
+    private final String expression;
+
+    private FieldProjection(Node root, String expression) {
+        this.root = root;
+        this.expression = expression;
+    }
+
+    /**
+     * Parses the given comma separated list of paths. Empty paths and path
+     * segments are ignored. Returns null if the list doesn't contain any
+     * paths.
+     *
+     * @param expression comma separated list of paths or null
+     * @return new FieldProjection object or null
+     */
+    public static FieldProjection parse(String expression) {
+        if (expression == null) {
+            return null;
+        }
+        // Paths are sorted, so that the same selection always has the same
+        // string representation
+        Set<String> paths = new TreeSet<>();
+        for (String path : expression.split(",")) {
+            StringBuilder normalized = new StringBuilder();
+            for (String segment : path.split("/")) {
+                segment = segment.trim();
+                if (!segment.isEmpty()) {
+                    if (normalized.length() > 0) {
+                        normalized.append('/');
+                    }
+                    normalized.append(segment);
+                }
+            }
+            if (normalized.length() > 0) {
+                paths.add(normalized.toString());
+            }
+        }
+        if (paths.isEmpty()) {
+            return null;
+        }
+        Node root = new Node();
+        for (String path : paths) {
+            root.add(path.split("/"));
+        }
+        return new FieldProjection(root, String.join(",", paths));
+    }
+
+    /**
+     * Returns a new Matcher that decides which elements of a single pass are
+     * written. If the root element of the message is a response tag, it
+     * must not be passed to the matcher.
+     *
+     * @param unwrapped is the root element of the message a response tag
+     * @return new Matcher object
+     */
+    Matcher matcher(boolean unwrapped) {
+        return new Matcher(this.root, !unwrapped);
+    }
+
+    /**
+     * Returns the normalized list of paths: empty segments are removed and
+     * the paths are sorted.
+     *
+     * @return comma separated list of paths
+     */
+    @Override
+    public String toString() {
+        return this.expression;
+    }
+
+    /**
+     * Path segment. A selected node has no children, because all the
+     * children of a selected element are selected.
+     */
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean selected;
+
+        void add(String[] segments) {
+            Node node = this;
+            for (String segment : segments) {
+                if (node.selected) {
+                    // Parent is already selected as a whole
+                    return;
+                }
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.selected = true;
+            node.children.clear();
+        }
+
+        Node get(String localName) {
+            Node child = this.children.get(localName);
+            return child == null ? this.children.get(WILDCARD) : child;
+        }
+    }
+
+    /**
+     * Decides for each element of a single pass if it's written. An element
+     * that's not written is skipped by the caller with all its children, and
+     * endElement is not called for it.
+     */
+    static final class Matcher {
+
+        // Nodes of the open elements that are on a selected path
+        private final Deque<Node> path = new ArrayDeque<>();
+        // Is the next element the root element of the message
+        private boolean root;
+        // Depth inside a selected element
+        private int selected;
+
+        private Matcher(Node node, boolean root) {
+            this.path.push(node);
+            this.root = root;
+        }
+
+        /**
+         * Returns true if the element that has the given name is written.
+         *
+         * @param localName local name of the element
+         * @return true if the element is written; otherwise false
+         */
+        boolean startElement(String localName) {
+            if (this.selected > 0) {
+                this.selected++;
+                return true;
+            }
+            Node child = this.path.peek().get(localName);
+            if (child == null && this.root) {
+                // Root element is kept without children
+                child = EMPTY;
+            }
+            this.root = false;
+            if (child == null) {
+                return false;
+            }
+            if (child.selected) {
+                this.selected = 1;
+            } else {
+                this.path.push(child);
+            }
+            return true;
+        }
+
+        /**
+         * Is called when an element that was written ends.
+         */
+        void endElement() {
+            if (this.selected > 0) {
+                this.selected--;
+            } else {
+                this.path.pop();
+            }
+        }
+
+        /**
+         * Returns true if the text of the current element is written. Only
+         * the text inside selected elements is written.
+         *
+         * @return true if the text is written; otherwise false
+         */
+        boolean isTextSelected() {
+            return this.selected > 0;
+        }
+    }
+}
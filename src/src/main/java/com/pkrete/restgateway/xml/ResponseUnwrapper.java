@@ -0,0 +1,586 @@
+package com.pkrete.restgateway.xml;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class removes the response tag and its namespace prefix from a
+ * response message in a single pass. Response tag can be simple
+ * &lt;response&gt; or prefixed with service name &lt;serviceNameResponse&gt;
+ * and it must be the root element of the message.
+ *
+ * The message is read using a StAX reader and the children of the response
+ * tag are written to a buffer while reading. The response tag's namespace
+ * prefix is removed from the children and their attributes, and the
+ * declarations of the prefix are dropped. As the message is parsed only once,
+ * it's known after the pass if the result is a well-formed XML document: the
+ * message is well-formed, the response tag has exactly one child element and
+ * no text, and the child elements don't use namespace prefixes that were
+ * declared by the response tag only.
+ *
+ * If the message is not well-formed, the response tag is removed using regular
+ * expressions as it has been done before, and the result is never considered
+ * well-formed.
+ *
+ * If fields are selected using FieldProjection, only the selected fields are
+ * written in the same pass, and the unselected subtrees are skipped.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class ResponseUnwrapper {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseUnwrapper.class);
+    private static final XMLInputFactory INPUT_FACTORY = XMLUtil.createInputFactory();
+    private static final Pattern RESPONSE_PREFIX = Pattern.compile(".*<(\\w+:)*(\\w+R|r)esponse.*?>.*");
+    private static final String RESPONSE = "response";
+    private static final String SERVICE_RESPONSE = "Response";
+    // Size of the output buffer when the message is written to a writer
+    private static final int BUFFER_SIZE = 8192;
+
+    private ResponseUnwrapper() {
+    }
+
+    /**
+     * Removes the response tag and its namespace prefix from the given
+     * message. If the root element of the message is not a response tag, the
+     * message is returned as it is.
+     *
+     * @param message response message
+     * @return Result that contains the children of the response tag
+     */
+    public static Result unwrap(String message) {
+        return unwrap(message, null);
+    }
+
+    /**
+     * Removes the response tag and its namespace prefix from the given
+     * message, and selects the given fields. If the root element of the
+     * message is not a response tag, the message is returned with the
+     * selected fields. Fields can't be selected from messages that are not
+     * well-formed.
+     *
+     * @param message response message
+     * @param projection fields that are selected or null, if all the fields
+     * are selected
+     * @return Result that contains the selected children of the response tag
+     */
+    public static Result unwrap(String message, FieldProjection projection) {
+        XMLStreamReader reader = null;
+        try {
+            reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(message));
+            return new Unwrapper(reader, message.length(), projection).unwrap(message);
+        } catch (XMLStreamException ex) {
+            logger.debug("Response is not well-formed, remove response tag using regular expressions. {}", ex.getMessage());
+            return new Result(removeWithRegex(message), false, message, null);
+        } finally {
+            XMLUtil.close(reader);
+        }
+    }
+
+    /**
+     * Removes the response tag and its namespace prefix from the message
+     * read by the given reader, selects the given fields and writes the
+     * result to the given writer. The reader must be positioned at the start
+     * of the document. The result is the same that unwrap returns: the
+     * content if the response tag can be removed, otherwise the message with
+     * the selected fields.
+     *
+     * The message is not held in memory. Only the first child of the
+     * response tag is buffered, because it's known only after the message
+     * has been read if the response tag can be removed. The first child is
+     * buffered with and without the response tag's prefix, and if a second
+     * child or text is found, the message is written with the response tag
+     * while the rest of it is read. The reader is not closed, and the writer
+     * is not flushed or closed.
+     *
+     * @param reader reader that reads the response message
+     * @param projection fields that are selected or null, if all the fields
+     * are selected
+     * @param writer writer
+     * @throws XMLStreamException if the message is not well-formed
+     * @throws IOException if writing fails
+     */
+    public static void write(XMLStreamReader reader, FieldProjection projection, Writer writer) throws XMLStreamException, IOException {
+        Unwrapper content = new Unwrapper(reader, BUFFER_SIZE, projection);
+        if (!content.readRoot()) {
+            if (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+                return;
+            }
+            logger.debug("Root element is not a response tag.");
+            content.startRoot(false);
+            content.copyEvents(writer);
+            content.flush(writer);
+            return;
+        }
+        logger.debug("Response tag's prefix is \"{}\".", content.responsePrefix);
+        if (projection != null) {
+            content.matcher = projection.matcher(true);
+        }
+        // Message with the response tag, used if the tag can't be removed
+        Unwrapper message = new Unwrapper(reader, BUFFER_SIZE, null);
+        message.startRoot(true);
+        boolean unwrapped = true;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (content.depth == 0) {
+                content.readEpilog(event);
+                continue;
+            }
+            if (content.matcher != null && !content.isSelected(event)) {
+                continue;
+            }
+            message.writeEvent(event);
+            if (!unwrapped) {
+                message.flushFull(writer);
+                continue;
+            }
+            content.writeEvent(event);
+            if (!content.wellFormed || content.rootElements > 1) {
+                logger.debug("Response tag can't be removed, write the message with the response tag.");
+                unwrapped = false;
+                message.flushFull(writer);
+            }
+        }
+        if (unwrapped && content.wellFormed && content.rootElements == 1) {
+            logger.debug("Response tag was removed from the response.");
+            content.flush(writer);
+        } else {
+            message.flush(writer);
+        }
+    }
+
+    /**
+     * Returns the whole message with the selected fields. The root element
+     * is always kept.
+     */
+    private static String select(String message, FieldProjection projection) {
+        XMLStreamReader reader = null;
+        try {
+            reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(message));
+            return new Unwrapper(reader, message.length(), projection).select();
+        } catch (XMLStreamException ex) {
+            logger.debug("Response is not well-formed, fields can't be selected. {}", ex.getMessage());
+            return message;
+        } finally {
+            XMLUtil.close(reader);
+        }
+    }
+
+    /**
+     * Returns true if the given element name is a response tag: "response" or
+     * "serviceNameResponse".
+     *
+     * @param localName local name of the element
+     * @return true if the element is a response tag; otherwise false
+     */
+    static boolean isResponseTag(String localName) {
+        return RESPONSE.equals(localName)
+                || (localName.length() > SERVICE_RESPONSE.length() && localName.endsWith(SERVICE_RESPONSE));
+    }
+
+    /**
+     * Removes the response tag and its namespace prefixes using regular
+     * expressions. This is used only if the message can't be parsed.
+     *
+     * @param message response message
+     * @return message without the response tag
+     */
+    private static String removeWithRegex(String message) {
+        String responsePrefix = "";
+        Matcher matcher = RESPONSE_PREFIX.matcher(message);
+        if (matcher.find() && matcher.group(1) != null) {
+            responsePrefix = matcher.group(1);
+        }
+        String response = message.replaceAll("<(/)*" + responsePrefix + "(\\w+R|r)esponse.*?>", "");
+        if (!responsePrefix.isEmpty()) {
+            response = response.replaceAll("(</{0,1})" + responsePrefix, "$1");
+        }
+        return response;
+    }
+
+    /**
+     * Holds the state of a single pass over the message.
+     */
+    private static class Unwrapper {
+
+        private final XMLStreamReader reader;
+        private final FieldProjection projection;
+        private final StringBuilder out;
+        // Number of declarations per prefix that are in scope in the output
+        private final Map<String, Integer> declared = new HashMap<>();
+        // Prefixes declared by each open element in the output
+        private final Deque<List<String>> scopes = new ArrayDeque<>();
+        private String responsePrefix;
+        // Selects the fields, null if all the fields are written
+        private FieldProjection.Matcher matcher;
+        private boolean startTagOpen;
+        private int depth;
+        private int rootElements;
+        private boolean wellFormed = true;
+
+        Unwrapper(XMLStreamReader reader, int capacity, FieldProjection projection) {
+            this.reader = reader;
+            this.projection = projection;
+            this.out = new StringBuilder(capacity);
+        }
+
+        Result unwrap(String message) throws XMLStreamException {
+            if (!this.readRoot()) {
+                logger.debug("Root element is not a response tag.");
+                if (this.projection == null || this.reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+                    return new Result(message, false, message, null);
+                }
+                // Whole message is written with the selected fields
+                this.writeRoot(false);
+                String selected = this.out.toString();
+                return new Result(selected, false, selected, null);
+            }
+            logger.debug("Response tag's prefix is \"{}\".", this.responsePrefix);
+            if (this.projection != null) {
+                this.matcher = this.projection.matcher(true);
+            }
+            this.copyEvents();
+            return new Result(this.out.toString(), this.wellFormed && this.rootElements == 1, message, this.projection);
+        }
+
+        /**
+         * Writes the whole message with the selected fields.
+         */
+        String select() throws XMLStreamException {
+            while (this.reader.hasNext()) {
+                if (this.reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    this.writeRoot(isResponseTag(this.reader.getLocalName()));
+                    break;
+                }
+            }
+            return this.out.toString();
+        }
+
+        /**
+         * Writes the root element where the reader is positioned and the
+         * selected fields inside it. Namespace prefixes are not removed.
+         */
+        private void writeRoot(boolean unwrapped) throws XMLStreamException {
+            this.startRoot(unwrapped);
+            this.copyEvents();
+        }
+
+        /**
+         * Writes the start element of the root element where the reader is
+         * positioned. Namespace prefixes are not removed.
+         */
+        private void startRoot(boolean unwrapped) {
+            if (this.projection != null) {
+                this.matcher = this.projection.matcher(unwrapped);
+                if (!unwrapped) {
+                    this.matcher.startElement(this.reader.getLocalName());
+                }
+            }
+            // Root element is written like a child of a response tag that
+            // has no prefix
+            this.responsePrefix = "";
+            this.depth = 1;
+            this.writeStartElement();
+        }
+
+        private void copyEvents() throws XMLStreamException {
+            while (this.reader.hasNext()) {
+                int event = this.reader.next();
+                if (this.depth == 0) {
+                    // Response tag is closed, check the rest of the message
+                    this.readEpilog(event);
+                    continue;
+                }
+                if (this.matcher != null && !this.isSelected(event)) {
+                    continue;
+                }
+                this.writeEvent(event);
+            }
+        }
+
+        /**
+         * Writes the rest of the message to the given writer while it's read.
+         */
+        private void copyEvents(Writer writer) throws XMLStreamException, IOException {
+            while (this.reader.hasNext()) {
+                int event = this.reader.next();
+                if (this.matcher != null && !this.isSelected(event)) {
+                    continue;
+                }
+                this.writeEvent(event);
+                this.flushFull(writer);
+            }
+        }
+
+        /**
+         * Writes the current event of the reader.
+         */
+        private void writeEvent(int event) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    this.writeStartElement();
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    this.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    this.writeCharacters();
+                    break;
+                case XMLStreamConstants.CDATA:
+                    this.closeStartTag();
+                    this.checkTopLevelText(false);
+                    this.out.append("<![CDATA[").append(this.reader.getText()).append("]]>");
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    this.closeStartTag();
+                    this.out.append("<!--").append(this.reader.getText()).append("-->");
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    this.closeStartTag();
+                    this.out.append("<?").append(this.reader.getPITarget());
+                    if (this.reader.getPIData() != null && !this.reader.getPIData().isEmpty()) {
+                        this.out.append(' ').append(this.reader.getPIData());
+                    }
+                    this.out.append("?>");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Writes the output to the given writer, if the buffer is full.
+         */
+        private void flushFull(Writer writer) throws IOException {
+            if (this.out.length() >= BUFFER_SIZE) {
+                this.flush(writer);
+            }
+        }
+
+        /**
+         * Writes the output written so far to the given writer and clears
+         * the buffer.
+         */
+        private void flush(Writer writer) throws IOException {
+            if (this.out.length() > 0) {
+                writer.append(this.out);
+                this.out.setLength(0);
+            }
+        }
+
+        /**
+         * Returns true if the current event is written. Unselected elements
+         * are skipped with their children.
+         */
+        private boolean isSelected(int event) throws XMLStreamException {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (this.matcher.startElement(this.reader.getLocalName())) {
+                        return true;
+                    }
+                    XMLUtil.skipElement(this.reader);
+                    return false;
+                case XMLStreamConstants.END_ELEMENT:
+                    this.matcher.endElement();
+                    return true;
+                default:
+                    return this.matcher.isTextSelected();
+            }
+        }
+
+        private boolean readRoot() throws XMLStreamException {
+            while (this.reader.hasNext()) {
+                if (this.reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    if (!isResponseTag(this.reader.getLocalName())) {
+                        return false;
+                    }
+                    String prefix = this.reader.getPrefix();
+                    this.responsePrefix = prefix == null ? "" : prefix;
+                    this.depth = 1;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void readEpilog(int event) {
+            if (event == XMLStreamConstants.START_ELEMENT
+                    || (event == XMLStreamConstants.CHARACTERS && !this.reader.isWhiteSpace())) {
+                // Never happens with a conforming parser
+                this.wellFormed = false;
+            }
+        }
+
+        private void writeStartElement() {
+            this.closeStartTag();
+            if (this.depth == 1) {
+                this.rootElements++;
+            }
+            this.depth++;
+            List<String> scope = Collections.emptyList();
+            this.out.append('<');
+            this.appendName(this.reader.getPrefix(), this.reader.getLocalName());
+            for (int i = 0; i < this.reader.getNamespaceCount(); i++) {
+                String prefix = this.reader.getNamespacePrefix(i);
+                prefix = prefix == null ? "" : prefix;
+                if (!prefix.isEmpty() && prefix.equals(this.responsePrefix)) {
+                    // Response tag's prefix is removed, so it's not needed
+                    continue;
+                }
+                if (scope.isEmpty()) {
+                    scope = new ArrayList<>(2);
+                }
+                scope.add(prefix);
+                Integer count = this.declared.get(prefix);
+                this.declared.put(prefix, count == null ? 1 : count + 1);
+                this.out.append(prefix.isEmpty() ? " xmlns" : " xmlns:").append(prefix).append("=\"");
+                XMLUtil.appendEscaped(this.out, this.reader.getNamespaceURI(i), true);
+                this.out.append('"');
+            }
+            this.scopes.push(scope);
+            this.checkPrefix(this.reader.getPrefix());
+            for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+                String prefix = this.reader.getAttributePrefix(i);
+                this.checkPrefix(prefix);
+                this.out.append(' ');
+                this.appendName(prefix, this.reader.getAttributeLocalName(i));
+                this.out.append("=\"");
+                XMLUtil.appendEscaped(this.out, this.reader.getAttributeValue(i), true);
+                this.out.append('"');
+            }
+            this.startTagOpen = true;
+        }
+
+        private void writeEndElement() {
+            this.depth--;
+            if (this.depth == 0) {
+                // End of the response tag
+                return;
+            }
+            if (this.startTagOpen) {
+                this.out.append("/>");
+                this.startTagOpen = false;
+            } else {
+                this.out.append("</");
+                this.appendName(this.reader.getPrefix(), this.reader.getLocalName());
+                this.out.append('>');
+            }
+            for (String prefix : this.scopes.pop()) {
+                this.declared.put(prefix, this.declared.get(prefix) - 1);
+            }
+        }
+
+        private void writeCharacters() {
+            this.closeStartTag();
+            this.checkTopLevelText(this.reader.isWhiteSpace());
+            XMLUtil.appendEscaped(this.out, this.reader.getText(), false);
+        }
+
+        private void closeStartTag() {
+            if (this.startTagOpen) {
+                this.out.append('>');
+                this.startTagOpen = false;
+            }
+        }
+
+        private void checkTopLevelText(boolean whiteSpace) {
+            if (this.depth == 1 && !whiteSpace) {
+                // Text directly inside the response tag
+                this.wellFormed = false;
+            }
+        }
+
+        private void checkPrefix(String prefix) {
+            if (prefix == null || prefix.isEmpty() || prefix.equals(this.responsePrefix) || "xml".equals(prefix)) {
+                return;
+            }
+            Integer count = this.declared.get(prefix);
+            if (count == null || count == 0) {
+                // Prefix was declared by the response tag and it's unbound
+                // in the result
+                this.wellFormed = false;
+            }
+        }
+
+        private void appendName(String prefix, String localName) {
+            if (prefix != null && !prefix.isEmpty() && !prefix.equals(this.responsePrefix)) {
+                this.out.append(prefix).append(':');
+            }
+            this.out.append(localName);
+        }
+    }
+
+    /**
+     * This class represents the result of removing the response tag.
+     */
+    public static final class Result {
+
+        private final String content;
+        private final boolean wellFormed;
+        private final String message;
+        // Fields that are selected from the children of the response tag
+        private final FieldProjection projection;
+
+        private Result(String content, boolean wellFormed, String message, FieldProjection projection) {
+            this.content = content;
+            this.wellFormed = wellFormed;
+            this.message = message;
+            this.projection = projection;
+        }
+
+        /**
+         * Returns the children of the response tag, or the message as it is
+         * if its root element is not a response tag.
+         *
+         * @return message without the response tag
+         */
+        public String getContent() {
+            return content;
+        }
+
+        /**
+         * Returns true if the response tag was removed and the content is a
+         * well-formed XML document with a single root element. If false is
+         * returned, the response tag is the only root element of the message
+         * and it can't be removed.
+         *
+         * @return true if the content is a well-formed XML document;
+         * otherwise false
+         */
+        public boolean isWellFormed() {
+            return wellFormed;
+        }
+
+        /**
+         * Returns the message with the response tag and the selected fields.
+         * This is used when the response tag can't be removed. If the root
+         * element is a response tag and fields are selected, the message is
+         * read again to write the response tag.
+         *
+         * @return message with the selected fields
+         */
+        public String getMessage() {
+            if (this.projection == null) {
+                return this.message;
+            }
+            return select(this.message, this.projection);
+        }
+    }
+}
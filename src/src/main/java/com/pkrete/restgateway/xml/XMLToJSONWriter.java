@@ -0,0 +1,631 @@
+package com.pkrete.restgateway.xml;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class converts XML responses to JSON and writes the result directly to
+ * a Writer. The response tag and its namespace prefix are removed during the
+ * conversion the same way as ResponseUnwrapper removes them, and the JSON
+ * structure is the same that XMLToJSONConverter produces: elements and
+ * attributes are object members, repeated elements are arrays, text of an
+ * element that has attributes or children is in "content" member, and text
+ * values that are booleans, null or numbers are written as JSON literals.
+ *
+ * The message is read once using a StAX reader, so it can be read directly
+ * from the response stream. The children of the response tag are the records
+ * of the message. Repeated elements can be anywhere inside a record, so each
+ * record is read to a tree of maps and lists and written from it, and only a
+ * single record is kept in memory. The first record of a run is held until
+ * the next record starts, because an array is started if the next record has
+ * the same name. If the root element is not a response tag, it's the only
+ * record. Members are written in the order of their first occurrence.
+ *
+ * Records that have the same name, but that are not next to each other, are
+ * written as separate members with the same name, because the members that
+ * have been written can't be changed anymore.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class XMLToJSONWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(XMLToJSONWriter.class);
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+    private static final String CONTENT = "content";
+
+    private XMLToJSONWriter() {
+    }
+
+    /**
+     * Converts the given XML response to JSON and writes it to the given
+     * writer. The writer is not flushed or closed.
+     *
+     * @param xml XML response
+     * @param out writer
+     * @throws IOException if writing fails or the response is not
+     * well-formed
+     */
+    public static void write(String xml, Writer out) throws IOException {
+        write(xml, null, out);
+    }
+
+    /**
+     * Converts the given XML response to JSON and writes the given fields to
+     * the given writer. Unselected elements are skipped, so the arrays are
+     * detected from the selected elements only. The writer is not flushed or
+     * closed.
+     *
+     * @param xml XML response
+     * @param projection fields that are written or null, if all the fields
+     * are written
+     * @param out writer
+     * @throws IOException if writing fails or the response is not
+     * well-formed
+     */
+    public static void write(String xml, FieldProjection projection, Writer out) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = createReader(xml);
+            write(reader, projection, out);
+        } catch (XMLStreamException ex) {
+            throw new IOException("Converting response to JSON failed.", ex);
+        } finally {
+            XMLUtil.close(reader);
+        }
+    }
+
+    /**
+     * Converts the XML response read by the given reader to JSON and writes
+     * the given fields to the given writer. The reader must be positioned at
+     * the start of the document, and it's read until the end of the document.
+     * The reader is not closed, and the writer is not flushed or closed. If
+     * the response is not well-formed, the JSON written before the error is
+     * incomplete.
+     *
+     * @param reader reader that reads the XML response
+     * @param projection fields that are written or null, if all the fields
+     * are written
+     * @param out writer
+     * @throws XMLStreamException if the response is not well-formed
+     * @throws IOException if writing fails
+     */
+    public static void write(XMLStreamReader reader, FieldProjection projection, Writer out) throws XMLStreamException, IOException {
+        Events events = new Events(reader, projection);
+        out.write('{');
+        boolean first = true;
+        // First record of a run, held until the next record starts
+        String heldName = null;
+        Object held = null;
+        // Name of the records of the array that's open
+        String arrayName = null;
+        Set<String> names = new HashSet<>();
+        int event;
+        while ((event = events.next()) != XMLStreamConstants.END_DOCUMENT) {
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = events.getName();
+            if (name.equals(arrayName)) {
+                // Next item of an array
+                out.write(',');
+                writeTree(readElement(events), out);
+                continue;
+            }
+            if (arrayName != null) {
+                out.write(']');
+                arrayName = null;
+            }
+            if (name.equals(heldName)) {
+                // Second record of a run starts an array
+                first = writeName(heldName, first, out);
+                out.write('[');
+                writeTree(held, out);
+                out.write(',');
+                writeTree(readElement(events), out);
+                arrayName = name;
+                heldName = null;
+                held = null;
+                continue;
+            }
+            if (heldName != null) {
+                first = writeName(heldName, first, out);
+                writeTree(held, out);
+            }
+            if (!names.add(name)) {
+                logger.debug("Element \"{}\" is repeated, but not in a row. It's written as a separate member.", name);
+            }
+            heldName = name;
+            held = readElement(events);
+        }
+        if (arrayName != null) {
+            out.write(']');
+        }
+        if (heldName != null) {
+            writeName(heldName, first, out);
+            writeTree(held, out);
+        }
+        out.write('}');
+    }
+
+    /**
+     * Converts the record element where the given reader is positioned to
+     * JSON and writes its value to the given writer, without the element
+     * name. The reader must be positioned at the start element of the record,
+     * which must be a child of a response tag, and it's positioned at the end
+     * element of the record when this method returns. The record is read to
+     * a tree of maps and lists, which keeps only that record in memory, and
+     * written from it. The reader is not closed.
+     *
+     * @param reader reader that's positioned at the start element of the
+     * record
+     * @param responsePrefix namespace prefix of the response tag
+     * @param matcher matcher that has accepted the record or null, if all
+     * the fields are written
+     * @param out writer
+     * @throws XMLStreamException if the record is not well-formed
+     * @throws IOException if writing fails
+     */
+    static void writeRecord(XMLStreamReader reader, String responsePrefix, FieldProjection.Matcher matcher, Writer out) throws XMLStreamException, IOException {
+        Events events = new Events(reader, responsePrefix, matcher);
+        events.next();
+        writeTree(readElement(events), out);
+    }
+
+    /**
+     * Converts the root element where the given reader is positioned to JSON
+     * and writes it to the given writer as an object that has the element
+     * as its only member. The root element must not be a response tag, and
+     * the paths of the fields start from it. The reader is positioned at the
+     * end element of the root when this method returns. The reader is not
+     * closed.
+     *
+     * @param reader reader that's positioned at the start element of the
+     * root
+     * @param projection fields that are written or null, if all the fields
+     * are written
+     * @param out writer
+     * @throws XMLStreamException if the root element is not well-formed
+     * @throws IOException if writing fails
+     */
+    static void writeRoot(XMLStreamReader reader, FieldProjection projection, Writer out) throws XMLStreamException, IOException {
+        FieldProjection.Matcher matcher = projection == null ? null : projection.matcher(false);
+        out.write('{');
+        if (matcher == null || matcher.startElement(reader.getLocalName())) {
+            // Prefixes are removed only from the children of a response tag
+            Events events = new Events(reader, "", matcher);
+            events.next();
+            writeName(events.getName(), true, out);
+            writeTree(readElement(events), out);
+        } else {
+            XMLUtil.skipElement(reader);
+        }
+        out.write('}');
+    }
+
+    /**
+     * Creates a new StAX reader that reads the given message. Text of an
+     * element is returned as a single event.
+     *
+     * @param xml XML message
+     * @return new XMLStreamReader object
+     * @throws XMLStreamException if creating the reader fails
+     */
+    static XMLStreamReader createReader(String xml) throws XMLStreamException {
+        return INPUT_FACTORY.createXMLStreamReader(new StringReader(xml));
+    }
+
+    private static boolean writeName(String name, boolean first, Writer out) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        writeString(name, out);
+        out.write(':');
+        return false;
+    }
+
+    /**
+     * Reads the current element and its children to a tree. Members of an
+     * element are kept in a map in document order, repeated members are
+     * collected to a list, and an element that has text only is a string.
+     */
+    private static Object readElement(Events events) throws XMLStreamException {
+        Map<String, Object> members = new LinkedHashMap<>();
+        List<String> names = events.getAttributeNames();
+        List<String> values = events.getAttributeValues();
+        for (int i = 0; i < names.size(); i++) {
+            addMember(members, names.get(i), values.get(i));
+        }
+        // Text that's split to several events is joined
+        StringBuilder text = null;
+        int event;
+        while ((event = events.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                addText(members, text);
+                text = null;
+                String name = events.getName();
+                addMember(members, name, readElement(events));
+            } else if (event == XMLStreamConstants.CHARACTERS) {
+                if (text == null) {
+                    text = new StringBuilder(events.getText());
+                } else {
+                    text.append(events.getText());
+                }
+            } else {
+                throw new XMLStreamException("Element ended unexpectedly.");
+            }
+        }
+        addText(members, text);
+        if (members.isEmpty()) {
+            return "";
+        }
+        Object content = members.get(CONTENT);
+        if (members.size() == 1 && content instanceof String) {
+            return content;
+        }
+        return members;
+    }
+
+    private static void addText(Map<String, Object> members, StringBuilder text) {
+        if (text != null) {
+            String value = text.toString().trim();
+            if (!value.isEmpty()) {
+                addMember(members, CONTENT, value);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addMember(Map<String, Object> members, String name, Object value) {
+        Object current = members.get(name);
+        if (current == null) {
+            members.put(name, value);
+        } else if (current instanceof List) {
+            ((List<Object>) current).add(value);
+        } else {
+            List<Object> list = new ArrayList<>();
+            list.add(current);
+            list.add(value);
+            members.put(name, list);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeTree(Object value, Writer out) throws IOException {
+        if (value instanceof String) {
+            writeValue((String) value, out);
+        } else if (value instanceof List) {
+            out.write('[');
+            boolean first = true;
+            for (Object item : (List<Object>) value) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeTree(item, out);
+            }
+            out.write(']');
+        } else {
+            out.write('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> member : ((Map<String, Object>) value).entrySet()) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeString(member.getKey(), out);
+                out.write(':');
+                writeTree(member.getValue(), out);
+            }
+            out.write('}');
+        }
+    }
+
+    /**
+     * Writes the given text value as a JSON literal if it's a boolean, null
+     * or a number that's written the same way in JSON, otherwise as a JSON
+     * string.
+     *
+     * @param value text value
+     * @param out writer
+     * @throws IOException if writing fails
+     */
+    static void writeValue(String value, Writer out) throws IOException {
+        String literal = toLiteral(value);
+        if (literal == null) {
+            writeString(value, out);
+        } else {
+            out.write(literal);
+        }
+    }
+
+    /**
+     * Returns the JSON literal matching the given text, or null if the text is
+     * written as a string.
+     *
+     * @param value text value
+     * @return JSON literal or null
+     */
+    static String toLiteral(String value) {
+        if ("true".equalsIgnoreCase(value)) {
+            return "true";
+        } else if ("false".equalsIgnoreCase(value)) {
+            return "false";
+        } else if ("null".equalsIgnoreCase(value)) {
+            return "null";
+        } else if (value.isEmpty()) {
+            return null;
+        }
+        char initial = value.charAt(0);
+        if (initial != '-' && (initial < '0' || initial > '9')) {
+            return null;
+        }
+        try {
+            // Only values that don't change when parsed are numbers
+            return Long.toString(Long.parseLong(value)).equals(value) ? value : null;
+        } catch (NumberFormatException ex) {
+            try {
+                double number = Double.parseDouble(value);
+                if (Double.isInfinite(number) || Double.isNaN(number) || !Double.toString(number).equals(value)) {
+                    return null;
+                }
+                return numberToString(value);
+            } catch (NumberFormatException ex2) {
+                return null;
+            }
+        }
+    }
+
+    private static String numberToString(String number) {
+        if (number.indexOf('.') <= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+            return number;
+        }
+        // Remove trailing zeros and decimal point
+        int end = number.length();
+        while (number.charAt(end - 1) == '0') {
+            end--;
+        }
+        if (number.charAt(end - 1) == '.') {
+            end--;
+        }
+        return number.substring(0, end);
+    }
+
+    /**
+     * Writes the given value as a quoted and escaped JSON string.
+     *
+     * @param value string value
+     * @param out writer
+     * @throws IOException if writing fails
+     */
+    static void writeString(String value, Writer out) throws IOException {
+        out.write('"');
+        char previous;
+        char c = 0;
+        for (int i = 0; i < value.length(); i++) {
+            previous = c;
+            c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    out.write('\\');
+                    out.write(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        out.write('\\');
+                    }
+                    out.write(c);
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        String hex = Integer.toHexString(c);
+                        out.write("\\u");
+                        out.write("0000", 0, 4 - hex.length());
+                        out.write(hex);
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+            }
+        }
+        out.write('"');
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLUtil.createInputFactory();
+        // Text of an element is returned as a single event
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Reads the elements and text of a message. The response tag and the text
+     * outside the elements are skipped, and the response tag's prefix is
+     * removed from the names. If fields are selected, the unselected
+     * elements are skipped by the reader and their events are not returned.
+     */
+    private static class Events {
+
+        private final XMLStreamReader reader;
+        // Is the reader positioned at the start element of a record
+        private final boolean record;
+        private final FieldProjection projection;
+        private FieldProjection.Matcher matcher;
+        private String responsePrefix;
+        private boolean unwrap;
+        private boolean pending;
+        private boolean ended;
+        private int depth;
+
+        /**
+         * Reads a whole message.
+         */
+        Events(XMLStreamReader reader, FieldProjection projection) {
+            this.reader = reader;
+            this.record = false;
+            this.projection = projection;
+        }
+
+        /**
+         * Reads the record element where the reader is positioned. The
+         * record is a child of a response tag that has the given prefix, and
+         * it has been accepted by the given matcher.
+         */
+        Events(XMLStreamReader reader, String responsePrefix, FieldProjection.Matcher matcher) {
+            this.reader = reader;
+            this.record = true;
+            this.projection = null;
+            this.matcher = matcher;
+            this.responsePrefix = responsePrefix;
+            this.unwrap = true;
+            this.pending = true;
+        }
+
+        /**
+         * Returns the next START_ELEMENT, END_ELEMENT or CHARACTERS event, or
+         * END_DOCUMENT.
+         */
+        int next() throws XMLStreamException {
+            if (this.pending) {
+                this.pending = false;
+                this.depth++;
+                return XMLStreamConstants.START_ELEMENT;
+            }
+            while (!this.ended && this.reader.hasNext()) {
+                int event = this.reader.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if (this.depth == 0 && this.responsePrefix == null) {
+                            String prefix = this.reader.getPrefix();
+                            this.responsePrefix = prefix == null ? "" : prefix;
+                            this.unwrap = ResponseUnwrapper.isResponseTag(this.reader.getLocalName());
+                            if (this.projection != null) {
+                                this.matcher = this.projection.matcher(this.unwrap);
+                            }
+                            if (this.unwrap) {
+                                continue;
+                            }
+                            // Prefix is removed only from the children of
+                            // a response tag
+                            this.responsePrefix = "";
+                        }
+                        if (this.matcher != null && !this.matcher.startElement(this.reader.getLocalName())) {
+                            XMLUtil.skipElement(this.reader);
+                            continue;
+                        }
+                        this.depth++;
+                        return event;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (this.depth == 0) {
+                            // End of the response tag
+                            continue;
+                        }
+                        this.depth--;
+                        if (this.matcher != null && !(this.record && this.depth == 0)) {
+                            // End of a record is passed to the matcher by
+                            // the caller
+                            this.matcher.endElement();
+                        }
+                        // End of the record
+                        this.ended = this.record && this.depth == 0;
+                        return event;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (this.depth > 0 && (this.matcher == null || this.matcher.isTextSelected())) {
+                            return XMLStreamConstants.CHARACTERS;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return XMLStreamConstants.END_DOCUMENT;
+        }
+
+        String getName() {
+            return this.getName(this.reader.getPrefix(), this.reader.getLocalName());
+        }
+
+        String getText() {
+            return this.reader.getText();
+        }
+
+        /**
+         * Returns the names of the namespace declarations and attributes of
+         * the current element.
+         */
+        List<String> getAttributeNames() {
+            List<String> names = new ArrayList<>(this.reader.getNamespaceCount() + this.reader.getAttributeCount());
+            for (int i = 0; i < this.reader.getNamespaceCount(); i++) {
+                String prefix = this.reader.getNamespacePrefix(i);
+                if (prefix == null || prefix.isEmpty()) {
+                    names.add("xmlns");
+                } else if (!this.isRemoved(prefix)) {
+                    names.add("xmlns:" + prefix);
+                }
+            }
+            for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+                names.add(this.getName(this.reader.getAttributePrefix(i), this.reader.getAttributeLocalName(i)));
+            }
+            return names;
+        }
+
+        /**
+         * Returns the values of the namespace declarations and attributes of
+         * the current element in the same order as getAttributeNames.
+         */
+        List<String> getAttributeValues() {
+            List<String> values = new ArrayList<>(this.reader.getNamespaceCount() + this.reader.getAttributeCount());
+            for (int i = 0; i < this.reader.getNamespaceCount(); i++) {
+                String prefix = this.reader.getNamespacePrefix(i);
+                if (prefix == null || prefix.isEmpty() || !this.isRemoved(prefix)) {
+                    values.add(this.reader.getNamespaceURI(i));
+                }
+            }
+            for (int i = 0; i < this.reader.getAttributeCount(); i++) {
+                values.add(this.reader.getAttributeValue(i));
+            }
+            return values;
+        }
+
+        private boolean isRemoved(String prefix) {
+            return this.unwrap && !this.responsePrefix.isEmpty() && this.responsePrefix.equals(prefix);
+        }
+
+        private String getName(String prefix, String localName) {
+            if (prefix == null || prefix.isEmpty() || this.isRemoved(prefix)) {
+                return localName;
+            }
+            return prefix + ":" + localName;
+        }
+    }
+}
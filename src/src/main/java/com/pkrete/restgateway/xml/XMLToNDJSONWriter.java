@@ -0,0 +1,143 @@
+package com.pkrete.restgateway.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class converts XML responses to newline delimited JSON (NDJSON) and
+ * writes the result to a Writer. Each child element of the response tag is
+ * a record that's converted using XMLToJSONWriter and written on its own
+ * line, and the writer is flushed after each line. The element names of the
+ * records are not written, so the lines contain the values only, e.g.
+ * "&lt;response&gt;&lt;item&gt;&lt;id&gt;1&lt;/id&gt;&lt;/item&gt;&lt;item&gt;&lt;id&gt;2&lt;/id&gt;&lt;/item&gt;&lt;/response&gt;"
+ * is written as two lines: {"id":1} and {"id":2}. If the root element is not
+ * a response tag, the whole message is written as a single line.
+ *
+ * The message is read once using a StAX reader that's moved forward record
+ * by record, so the records can be written while the response is read from
+ * a stream. Each record is read to a tree and written from it using
+ * XMLToJSONWriter, so only a single record is kept in memory. Namespaces
+ * declared by the response tag are in scope and the prefixes are removed the
+ * same way as in JSON responses.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class XMLToNDJSONWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(XMLToNDJSONWriter.class);
+    private static final char NEW_LINE = '\n';
+
+    private XMLToNDJSONWriter() {
+    }
+
+    /**
+     * Converts the given XML response to NDJSON and writes it to the given
+     * writer. The writer is flushed after each line, but it's not closed.
+     *
+     * @param xml XML response
+     * @param out writer
+     * @return number of lines written
+     * @throws IOException if writing fails or the message is not well-formed
+     */
+    public static int write(String xml, Writer out) throws IOException {
+        return write(xml, null, out);
+    }
+
+    /**
+     * Converts the given XML response to NDJSON and writes the given fields
+     * to the given writer. Paths of the fields start from the records. If
+     * the root element is not a response tag, the paths start from it.
+     * Records that are not selected are skipped.
+     *
+     * @param xml XML response
+     * @param projection fields that are written or null, if all the fields
+     * are written
+     * @param out writer
+     * @return number of lines written
+     * @throws IOException if writing fails or the message is not well-formed
+     */
+    public static int write(String xml, FieldProjection projection, Writer out) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XMLToJSONWriter.createReader(xml);
+            return write(reader, projection, out);
+        } catch (XMLStreamException ex) {
+            throw new IOException("Response is not well-formed. " + ex.getMessage(), ex);
+        } finally {
+            XMLUtil.close(reader);
+        }
+    }
+
+    /**
+     * Converts the XML response read by the given reader to NDJSON and writes
+     * the given fields to the given writer. The reader must be positioned at
+     * the start of the document, and the records are read one at a time
+     * while the lines are written. A record is read before it's written, so
+     * if the response is not well-formed, the lines written before the
+     * record that failed are complete. The reader is not closed, and the
+     * writer is flushed after each line, but it's not closed.
+     *
+     * @param reader reader that reads the XML response
+     * @param projection fields that are written or null, if all the fields
+     * are written
+     * @param out writer
+     * @return number of lines written
+     * @throws XMLStreamException if the response is not well-formed
+     * @throws IOException if writing fails
+     */
+    public static int write(XMLStreamReader reader, FieldProjection projection, Writer out) throws XMLStreamException, IOException {
+        if (!nextElement(reader)) {
+            return 0;
+        }
+        if (!ResponseUnwrapper.isResponseTag(reader.getLocalName())) {
+            logger.debug("Root element is not a response tag, write the response as a single line.");
+            XMLToJSONWriter.writeRoot(reader, projection, out);
+            writeNewLine(out);
+            return 1;
+        }
+        FieldProjection.Matcher matcher = projection == null ? null : projection.matcher(true);
+        String responsePrefix = reader.getPrefix() == null ? "" : reader.getPrefix();
+        int lines = 0;
+        // Text and comments between the records are skipped
+        while (nextElement(reader)) {
+            if (matcher != null && !matcher.startElement(reader.getLocalName())) {
+                XMLUtil.skipElement(reader);
+                continue;
+            }
+            XMLToJSONWriter.writeRecord(reader, responsePrefix, matcher, out);
+            if (matcher != null) {
+                matcher.endElement();
+            }
+            writeNewLine(out);
+            lines++;
+        }
+        logger.debug("Response written as {} NDJSON lines.", lines);
+        return lines;
+    }
+
+    /**
+     * Moves the reader to the next start element. Returns false, if an end
+     * element or the end of the document is reached first.
+     */
+    private static boolean nextElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static void writeNewLine(Writer out) throws IOException {
+        out.write(NEW_LINE);
+        out.flush();
+    }
+}
@@ -0,0 +1,102 @@
+package com.pkrete.restgateway.xml;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class offers helper methods for the StAX readers and writers of the
+ * responses.
+ *
+ * @author Petteri Kivimäki
+ */
+public final class XMLUtil {
+
+    private static final Logger logger = LoggerFactory.getLogger(XMLUtil.class);
+
+    private XMLUtil() {
+    }
+
+    /**
+     * Creates a new namespace aware XMLInputFactory that doesn't support DTDs
+     * or external entities.
+     *
+     * @return new XMLInputFactory object
+     */
+    public static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+
+    /**
+     * Appends the given text to the given builder and escapes the characters
+     * that can't be written in XML as they are. Quotation marks are escaped
+     * only in attribute values.
+     *
+     * @param out builder
+     * @param value text
+     * @param attribute is the text an attribute value
+     */
+    public static void appendEscaped(StringBuilder out, String value, boolean attribute) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append(attribute ? "&quot;" : "\"");
+                    break;
+                default:
+                    out.append(c);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Moves the given reader from the start element of an element to its
+     * end element. The children of the element are not read as objects.
+     *
+     * @param reader reader that's positioned at a start element
+     * @throws XMLStreamException if the element is not well-formed
+     */
+    public static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Closes the given reader and logs the possible error.
+     *
+     * @param reader reader or null
+     */
+    public static void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ex) {
+                logger.warn(ex.getMessage(), ex);
+            }
+        }
+    }
+}
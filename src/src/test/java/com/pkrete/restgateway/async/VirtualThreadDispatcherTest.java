@@ -0,0 +1,119 @@
+package com.pkrete.restgateway.async;
+
+import com.pkrete.restgateway.util.Constants;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for VirtualThreadDispatcher class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class VirtualThreadDispatcherTest extends TestCase {
+
+    private CountDownLatch completed;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    /**
+     * Initializes instance variables for test cases.
+     *
+     * @throws Exception
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.completed = new CountDownLatch(1);
+        this.response = proxy(HttpServletResponse.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "isCommitted".equals(method.getName()) ? Boolean.FALSE : null;
+            }
+        });
+        final AsyncContext context = proxy(AsyncContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("complete".equals(method.getName())) {
+                    completed.countDown();
+                } else if ("getRequest".equals(method.getName())) {
+                    return request;
+                } else if ("getResponse".equals(method.getName())) {
+                    return response;
+                }
+                return null;
+            }
+        });
+        this.request = proxy(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "startAsync".equals(method.getName()) ? context : null;
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(VirtualThreadDispatcherTest.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    /**
+     * Request is processed in another thread and async context is
+     * completed.
+     *
+     * @throws InterruptedException
+     */
+    public void testDispatch1() throws InterruptedException {
+        VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(Executors.newSingleThreadExecutor());
+        final AtomicReference<Thread> worker = new AtomicReference<>();
+        dispatcher.dispatch(this.request, this.response, new VirtualThreadDispatcher.Task() {
+            @Override
+            public void run(HttpServletRequest req, HttpServletResponse res) {
+                worker.set(Thread.currentThread());
+            }
+        });
+        assertEquals(true, this.completed.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), worker.get());
+        assertEquals(0, dispatcher.getInFlight());
+        dispatcher.close();
+    }
+
+    /**
+     * Async context is completed even if the task fails.
+     *
+     * @throws InterruptedException
+     */
+    public void testDispatch2() throws InterruptedException {
+        VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(Executors.newSingleThreadExecutor());
+        dispatcher.dispatch(this.request, this.response, new VirtualThreadDispatcher.Task() {
+            @Override
+            public void run(HttpServletRequest req, HttpServletResponse res) {
+                throw new IllegalStateException("Failure");
+            }
+        });
+        assertEquals(true, this.completed.await(5, TimeUnit.SECONDS));
+        dispatcher.close();
+    }
+
+    /**
+     * Virtual threads are not used unless they're enabled and supported.
+     */
+    public void testCreate() {
+        Properties props = new Properties();
+        assertEquals(null, VirtualThreadDispatcher.create(props, "test-"));
+        props.setProperty(Constants.PROPS_VIRTUAL_THREADS, "true");
+        VirtualThreadDispatcher dispatcher = VirtualThreadDispatcher.create(props, "test-");
+        assertEquals(WorkerExecutors.isVirtualThreadSupported(), dispatcher != null);
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.pkrete.restgateway.async;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for WorkerExecutors class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class WorkerExecutorsTest extends TestCase {
+
+    private static Thread getWorker(ExecutorService executor) throws InterruptedException, ExecutionException {
+        Thread worker = executor.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get();
+        executor.shutdown();
+        return worker;
+    }
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+    /**
+     * Virtual threads are used if the runtime supports them. Otherwise null
+     * is returned.
+     *
+     * @throws Exception
+     */
+    public void testNewVirtualThreadExecutor() throws Exception {
+        ExecutorService executor = WorkerExecutors.newVirtualThreadExecutor("test-");
+        if (!WorkerExecutors.isVirtualThreadSupported()) {
+            assertEquals(null, executor);
+            return;
+        }
+        Thread worker = getWorker(executor);
+        assertEquals("test-1", worker.getName());
+        assertEquals(true, isVirtual(worker));
+    }
+}
@@ -0,0 +1,130 @@
+package com.pkrete.restgateway.benchmark;
+
+import com.pkrete.restgateway.client.SOAPHeaderTemplate;
+import com.pkrete.restgateway.client.SOAPRequestWriter;
+import com.pkrete.xrd4j.client.serializer.AbstractServiceRequestSerializer;
+import com.pkrete.xrd4j.common.exception.XRd4JException;
+import com.pkrete.xrd4j.common.member.ConsumerMember;
+import com.pkrete.xrd4j.common.member.ProducerMember;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.soap.SOAPElement;
+import javax.xml.soap.SOAPEnvelope;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.stream.XMLStreamException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of writing a SOAP request with a header template that's
+ * precomputed for the endpoint. The baseline is the SAAJ path that was used
+ * before SOAPRequestWriter: the request is serialized to a SOAPMessage by an
+ * AbstractServiceRequestSerializer that adds the parameters like
+ * ConsumerGateway's RequestSerializer, and the message is written to the
+ * stream. SOAPRequestWriter without a template, which writes the X-Road
+ * headers for every request, is measured too. Use -prof gc to see the
+ * allocation per message. Run with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.pkrete.restgateway.benchmark.HeaderTemplateBenchmark
+ *
+ * @author Petteri Kivimäki
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HeaderTemplateBenchmark {
+
+    private ServiceRequest<Map<String, String[]>> request;
+    private SOAPHeaderTemplate template;
+    private ByteArrayOutputStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws XRd4JException, XMLStreamException {
+        ConsumerMember consumer = new ConsumerMember("FI", "GOV", "1234567-8", "ConsumerService");
+        ProducerMember producer = new ProducerMember("FI", "COM", "8765432-1", "ProviderService", "getOrganizationList", "v1");
+        producer.setNamespaceUrl("http://test.x-road.fi/producer");
+        producer.setNamespacePrefix("ts1");
+        this.request = new ServiceRequest<>(consumer, producer, "ID-1234");
+        this.request.setUserId("EE1234567890");
+        Map<String, String[]> params = new HashMap<>();
+        params.put("name", new String[]{"value"});
+        this.request.setRequestData(params);
+        this.template = SOAPHeaderTemplate.create(consumer, producer, this.request.isProcessingWrappers());
+        this.out = new ByteArrayOutputStream(4096);
+    }
+
+    @Benchmark
+    public int precomputedHeader() throws IOException {
+        this.out.reset();
+        new SOAPRequestWriter(this.request, "123", null, null, this.template).writeTo(this.out);
+        return this.out.size();
+    }
+
+    @Benchmark
+    public int headerPerRequest() throws IOException {
+        this.out.reset();
+        new SOAPRequestWriter(this.request, "123", null, null).writeTo(this.out);
+        return this.out.size();
+    }
+
+    @Benchmark
+    public int saajSerializer() throws SOAPException, IOException {
+        this.out.reset();
+        SOAPMessage message = new ParamSerializer("123").serialize(this.request);
+        if (message.saveRequired()) {
+            message.saveChanges();
+        }
+        message.writeTo(this.out);
+        return this.out.size();
+    }
+
+    /**
+     * Serializes the resource id and the parameters to the request element
+     * using SAAJ, like ConsumerGateway's RequestSerializer does for requests
+     * without a body.
+     */
+    private static class ParamSerializer extends AbstractServiceRequestSerializer {
+
+        private final String resourceId;
+
+        ParamSerializer(String resourceId) {
+            this.resourceId = resourceId;
+        }
+
+        @Override
+        protected void serializeRequest(ServiceRequest request, SOAPElement soapRequest, SOAPEnvelope envelope) throws SOAPException {
+            soapRequest.addChildElement("resourceId").addTextNode(this.resourceId);
+            Map<String, String[]> params = (Map<String, String[]>) request.getRequestData();
+            for (Map.Entry<String, String[]> entry : params.entrySet()) {
+                for (String value : entry.getValue()) {
+                    soapRequest.addChildElement(entry.getKey()).addTextNode(value);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(HeaderTemplateBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,120 @@
+package com.pkrete.restgateway.benchmark;
+
+import com.pkrete.restgateway.endpoint.ProviderEndpoint;
+import com.pkrete.restgateway.util.ProviderGatewayUtil;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of filtering request parameter names and values with
+ * the filter conditions that are compiled when the endpoint is configured,
+ * compared to compiling the conditions for every parameter and value. Half
+ * of the parameter names and values match the conditions. Both benchmarks
+ * copy the parameters first, because filtering modifies them. Use -prof gc
+ * to see the allocation per request. Run with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.pkrete.restgateway.benchmark.ParamFilterBenchmark
+ *
+ * @author Petteri Kivimäki
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParamFilterBenchmark {
+
+    @Param({"5", "20", "50"})
+    private int parameters;
+
+    private ProviderEndpoint endpoint;
+    private Map<String, List<String>> params;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.endpoint = new ProviderEndpoint("FI.GOV.1234567-8.SearchService.search.v1", "http://localhost/search");
+        this.endpoint.setReqParamNameFilterCondition("^x-(\\w+)$");
+        this.endpoint.setReqParamNameFilterOperation("$1");
+        this.endpoint.setReqParamValueFilterCondition("\\s+");
+        this.endpoint.setReqParamValueFilterOperation("+");
+        this.params = new HashMap<>();
+        for (int i = 0; i < this.parameters; i++) {
+            String name = (i % 2 == 0 ? "x-param" : "param") + i;
+            String value = i % 2 == 0 ? "value " + i : "value" + i;
+            this.params.put(name, Arrays.asList(value));
+        }
+    }
+
+    @Benchmark
+    public Object precompiled() {
+        ServiceRequest<Map<String, List<String>>> request = this.createRequest();
+        ProviderGatewayUtil.filterRequestParameters(request, this.endpoint);
+        return request.getRequestData();
+    }
+
+    @Benchmark
+    public Object compilePerParameter() {
+        ServiceRequest<Map<String, List<String>>> request = this.createRequest();
+        Map<String, List<String>> data = request.getRequestData();
+        for (String orgKey : new ArrayList<>(data.keySet())) {
+            String key = orgKey;
+            boolean update = false;
+            List<String> values = data.get(orgKey);
+            Matcher m = Pattern.compile(this.endpoint.getReqParamNameFilterCondition()).matcher(orgKey);
+            if (m.find()) {
+                key = m.replaceAll(this.endpoint.getReqParamNameFilterOperation());
+                update = true;
+            }
+            for (int i = 0; i < values.size(); i++) {
+                m = Pattern.compile(this.endpoint.getReqParamValueFilterCondition()).matcher(values.get(i));
+                if (m.find()) {
+                    values.set(i, m.replaceAll(this.endpoint.getReqParamValueFilterOperation()));
+                    update = true;
+                }
+            }
+            if (update) {
+                data.remove(orgKey);
+                data.put(key, values);
+            }
+        }
+        return data;
+    }
+
+    private ServiceRequest<Map<String, List<String>>> createRequest() {
+        Map<String, List<String>> data = new HashMap<>();
+        for (Map.Entry<String, List<String>> param : this.params.entrySet()) {
+            data.put(param.getKey(), new ArrayList<>(param.getValue()));
+        }
+        ServiceRequest<Map<String, List<String>>> request = new ServiceRequest<>();
+        request.setRequestData(data);
+        return request;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ParamFilterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
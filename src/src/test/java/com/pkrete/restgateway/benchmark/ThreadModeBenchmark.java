@@ -0,0 +1,512 @@
+package com.pkrete.restgateway.benchmark;
+
+import com.pkrete.restgateway.ConsumerGateway;
+import com.pkrete.restgateway.ProviderGateway;
+import com.pkrete.restgateway.util.Constants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares processing the requests in container threads and in virtual
+ * threads. Each benchmark invocation sends the given number of concurrent
+ * requests through the dispatch path of ConsumerGateway or ProviderGateway,
+ * and waits until all the responses have been written. ConsumerGateway calls
+ * an in-process security server stub and ProviderGateway calls an in-process
+ * REST backend stub. The stubs respond after the given latency without
+ * holding a thread, so the gateways block on the socket read like they do
+ * when the security server or the REST backend is slow.
+ *
+ * The requests are handed to the servlet by a pool of platform threads that
+ * has the default size of the Tomcat thread pool. In platform mode the
+ * request is processed in that thread. In virtual mode the gateway processes
+ * the request in a virtual thread of its own and the container thread
+ * returns right away. The clients of the gateways have a connection per
+ * concurrent request, so the connection pools don't limit the concurrency.
+ * Virtual threads require Java 21 or later, on older runtimes the virtual
+ * mode falls back to the container threads. 10000 concurrent requests need
+ * a higher open files limit than the usual default. Run with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.pkrete.restgateway.benchmark.ThreadModeBenchmark
+ *
+ * @author Petteri Kivimäki
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ThreadModeBenchmark {
+
+    private static final int CONTAINER_THREADS = 200;
+    private static final String NAMESPACE = "http://test.x-road.fi/producer";
+    private static final String ENVELOPE_START = "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+            + "xmlns:xrd=\"http://x-road.eu/xsd/xroad.xsd\" xmlns:id=\"http://x-road.eu/xsd/identifiers\">"
+            + "<SOAP-ENV:Header>"
+            + "<xrd:client id:objectType=\"SUBSYSTEM\"><id:xRoadInstance>FI</id:xRoadInstance><id:memberClass>GOV</id:memberClass>"
+            + "<id:memberCode>1234567-8</id:memberCode><id:subsystemCode>ConsumerService</id:subsystemCode></xrd:client>"
+            + "<xrd:service id:objectType=\"SERVICE\"><id:xRoadInstance>FI</id:xRoadInstance><id:memberClass>COM</id:memberClass>"
+            + "<id:memberCode>7654321-0</id:memberCode><id:subsystemCode>ProviderService</id:subsystemCode>"
+            + "<id:serviceCode>getData</id:serviceCode><id:serviceVersion>v1</id:serviceVersion></xrd:service>"
+            + "<xrd:userId>EE1234567890</xrd:userId><xrd:id>ID-1234</xrd:id><xrd:protocolVersion>4.0</xrd:protocolVersion>"
+            + "</SOAP-ENV:Header><SOAP-ENV:Body>";
+    private static final String ENVELOPE_END = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+    private static final byte[] SOAP_REQUEST = (ENVELOPE_START
+            + "<ts1:getData xmlns:ts1=\"" + NAMESPACE + "\"><ts1:request/></ts1:getData>"
+            + ENVELOPE_END).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SOAP_RESPONSE = (ENVELOPE_START
+            + "<ts1:getDataResponse xmlns:ts1=\"" + NAMESPACE + "\"><ts1:request/>"
+            + "<ts1:response><id>1</id><name>Test</name></ts1:response></ts1:getDataResponse>"
+            + ENVELOPE_END).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] JSON_RESPONSE = "{\"id\":1,\"name\":\"Test\"}".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"1000", "10000"})
+    private int concurrency;
+
+    @Param({"platform", "virtual"})
+    private String mode;
+
+    @Param({"consumer", "provider"})
+    private String gateway;
+
+    @Param({"20"})
+    private int latencyMs;
+
+    private HttpServer server;
+    private ScheduledExecutorService responder;
+    private File propertiesDir;
+    private Servlet servlet;
+    private ExecutorService containerThreads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ServletException {
+        this.responder = Executors.newSingleThreadScheduledExecutor();
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), this.concurrency);
+        this.server.createContext("/ss", new StubHandler("text/xml; charset=UTF-8", SOAP_RESPONSE));
+        this.server.createContext("/api", new StubHandler("application/json", JSON_RESPONSE));
+        this.server.start();
+        String url = "http://localhost:" + this.server.getAddress().getPort();
+        this.propertiesDir = Files.createTempDirectory("thread-mode-benchmark").toFile();
+        String virtualThreads = Boolean.toString("virtual".equals(this.mode));
+        String maxConnections = Integer.toString(this.concurrency);
+
+        Properties consumerGateway = new Properties();
+        consumerGateway.setProperty(Constants.CONSUMER_PROPS_SECURITY_SERVER_URL, url + "/ss");
+        consumerGateway.setProperty(Constants.CONSUMER_PROPS_ID_CLIENT, "FI.GOV.1234567-8.ConsumerService");
+        consumerGateway.setProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_SERIALIZE, NAMESPACE);
+        consumerGateway.setProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_PREFIX_SERIALIZE, "ts1");
+        consumerGateway.setProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_DESERIALIZE, NAMESPACE);
+        consumerGateway.setProperty(Constants.CONSUMER_PROPS_SS_MAX_CONNECTIONS, maxConnections);
+        consumerGateway.setProperty(Constants.CONSUMER_PROPS_SS_ACQUIRE_TIMEOUT, "60000");
+        consumerGateway.setProperty(Constants.PROPS_VIRTUAL_THREADS, virtualThreads);
+        store(consumerGateway, Constants.PROPERTIES_FILE_CONSUMER_GATEWAY);
+        Properties consumers = new Properties();
+        consumers.setProperty("0." + Constants.ENDPOINT_PROPS_ID, "FI.COM.7654321-0.ProviderService.getData.v1");
+        consumers.setProperty("0." + Constants.CONSUMER_PROPS_PATH, "/data/");
+        consumers.setProperty("0." + Constants.ENDPOINT_PROPS_VERB, "get");
+        store(consumers, Constants.PROPERTIES_FILE_CONSUMERS);
+
+        Properties providerGateway = new Properties();
+        providerGateway.setProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_SERIALIZE, NAMESPACE);
+        providerGateway.setProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_PREFIX_SERIALIZE, "ts1");
+        providerGateway.setProperty(Constants.ENDPOINT_PROPS_SERVICE_NAMESPACE_DESERIALIZE, NAMESPACE);
+        providerGateway.setProperty(Constants.PROVIDER_PROPS_BACKEND_MAX_CONNECTIONS, maxConnections);
+        providerGateway.setProperty(Constants.PROVIDER_PROPS_BACKEND_ACQUIRE_TIMEOUT, "60000");
+        providerGateway.setProperty(Constants.PROPS_VIRTUAL_THREADS, virtualThreads);
+        store(providerGateway, Constants.PROPERTIES_FILE_PROVIDER_GATEWAY);
+        Properties providers = new Properties();
+        providers.setProperty("0." + Constants.ENDPOINT_PROPS_ID, "FI.COM.7654321-0.ProviderService.getData.v1");
+        providers.setProperty("0." + Constants.PROVIDER_PROPS_URL, url + "/api");
+        store(providers, Constants.PROPERTIES_FILE_PROVIDERS);
+
+        // The gateways read the properties in init()
+        System.setProperty(Constants.PROPERTIES_DIR_PARAM_NAME, this.propertiesDir.getAbsolutePath());
+        this.servlet = "consumer".equals(this.gateway) ? new ConsumerGateway() : new ProviderGateway();
+        this.servlet.init(createConfig());
+        this.containerThreads = Executors.newFixedThreadPool(CONTAINER_THREADS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.containerThreads.shutdownNow();
+        this.servlet.destroy();
+        this.server.stop(0);
+        this.responder.shutdownNow();
+        System.clearProperty(Constants.PROPERTIES_DIR_PARAM_NAME);
+        for (File file : this.propertiesDir.listFiles()) {
+            file.delete();
+        }
+        this.propertiesDir.delete();
+    }
+
+    @Benchmark
+    public void concurrentRequests() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(this.concurrency);
+        final AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < this.concurrency; i++) {
+            final Exchange exchange = "consumer".equals(this.gateway) ? Exchange.consumer(done, failed) : Exchange.provider(done, failed);
+            this.containerThreads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        servlet.service(exchange.request, exchange.response);
+                    } catch (Exception ex) {
+                        exchange.status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+                    }
+                    // In virtual mode the response is completed later by
+                    // the virtual thread
+                    if (!exchange.async) {
+                        exchange.complete();
+                    }
+                }
+            });
+        }
+        done.await();
+        if (failed.get() > 0) {
+            throw new IllegalStateException(failed.get() + " requests failed.");
+        }
+    }
+
+    private void store(Properties props, String fileName) throws IOException {
+        try (OutputStream out = new FileOutputStream(new File(this.propertiesDir, fileName.substring(1)))) {
+            props.store(out, null);
+        }
+    }
+
+    private static ServletConfig createConfig() {
+        final Map<String, Object> attributes = new HashMap<>();
+        final ServletContext context = proxy(ServletContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getAttribute".equals(name)) {
+                    return attributes.get((String) args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    attributes.put((String) args[0], args[1]);
+                } else if ("removeAttribute".equals(name)) {
+                    attributes.remove((String) args[0]);
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+        return proxy(ServletConfig.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getServletContext".equals(method.getName())) {
+                    return context;
+                } else if ("getServletName".equals(method.getName())) {
+                    return "ThreadModeBenchmark";
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ThreadModeBenchmark.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == Enumeration.class) {
+            return Collections.emptyEnumeration();
+        }
+        return null;
+    }
+
+    /**
+     * Stub backend that reads the request and sends the given response
+     * later, so the handler doesn't block.
+     */
+    private class StubHandler implements HttpHandler {
+
+        private final String contentType;
+        private final byte[] body;
+
+        StubHandler(String contentType, byte[] body) {
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) != -1) {
+                    // Request is discarded
+                }
+            }
+            responder.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    respond(exchange);
+                }
+            }, latencyMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void respond(HttpExchange exchange) {
+            try {
+                exchange.getResponseHeaders().set("Content-Type", this.contentType);
+                exchange.sendResponseHeaders(200, this.body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(this.body);
+                }
+            } catch (IOException ex) {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Servlet request and response of a single benchmark request. The
+     * response body is discarded.
+     */
+    private static final class Exchange {
+
+        private final CountDownLatch done;
+        private final AtomicInteger failed;
+        private final String method;
+        private final String resourcePath;
+        private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final byte[] body;
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final AsyncContext context;
+        private volatile boolean async;
+        private volatile int status = HttpServletResponse.SC_OK;
+        private volatile String contentType;
+
+        private Exchange(CountDownLatch done, AtomicInteger failed, String method, String resourcePath, byte[] body) {
+            this.done = done;
+            this.failed = failed;
+            this.method = method;
+            this.resourcePath = resourcePath;
+            this.body = body;
+            this.request = proxy(HttpServletRequest.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method m, Object[] args) {
+                    return handleRequest(m, args);
+                }
+            });
+            this.response = proxy(HttpServletResponse.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method m, Object[] args) {
+                    return handleResponse(m, args);
+                }
+            });
+            this.context = proxy(AsyncContext.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method m, Object[] args) {
+                    return handleContext(m);
+                }
+            });
+        }
+
+        static Exchange consumer(CountDownLatch done, AtomicInteger failed) {
+            Exchange exchange = new Exchange(done, failed, "GET", "/data/", new byte[0]);
+            exchange.headers.put(Constants.HTTP_HEADER_ACCEPT, "application/json");
+            return exchange;
+        }
+
+        static Exchange provider(CountDownLatch done, AtomicInteger failed) {
+            Exchange exchange = new Exchange(done, failed, "POST", null, SOAP_REQUEST);
+            exchange.headers.put(Constants.HTTP_HEADER_CONTENT_TYPE, "text/xml; charset=UTF-8");
+            exchange.headers.put("Content-Length", Integer.toString(SOAP_REQUEST.length));
+            return exchange;
+        }
+
+        void complete() {
+            if (this.status != HttpServletResponse.SC_OK) {
+                this.failed.incrementAndGet();
+            }
+            this.done.countDown();
+        }
+
+        private Object handleRequest(Method m, Object[] args) {
+            String name = m.getName();
+            switch (name) {
+                case "getMethod":
+                    return this.method;
+                case "getAttribute":
+                    return "resourcePath".equals(args[0]) ? this.resourcePath : null;
+                case "getHeader":
+                    return this.headers.get((String) args[0]);
+                case "getHeaders":
+                    String value = this.headers.get((String) args[0]);
+                    return value == null ? Collections.emptyEnumeration() : Collections.enumeration(Collections.singletonList(value));
+                case "getHeaderNames":
+                    return Collections.enumeration(this.headers.keySet());
+                case "getContentType":
+                    return this.headers.get(Constants.HTTP_HEADER_CONTENT_TYPE);
+                case "getContentLength":
+                    return this.body.length;
+                case "getCharacterEncoding":
+                    return StandardCharsets.UTF_8.name();
+                case "getInputStream":
+                    return new BodyInputStream(this.body);
+                case "getRequestURI":
+                    return "/Provider";
+                case "getRequestURL":
+                    return new StringBuffer("http://localhost/Provider");
+                case "getContextPath":
+                    return "";
+                case "getServletPath":
+                    return "/Provider";
+                case "getProtocol":
+                    return "HTTP/1.1";
+                case "getScheme":
+                    return "http";
+                case "isAsyncSupported":
+                    return Boolean.TRUE;
+                case "isAsyncStarted":
+                    return this.async;
+                case "startAsync":
+                    this.async = true;
+                    return this.context;
+                case "getAsyncContext":
+                    return this.context;
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+
+        private Object handleResponse(Method m, Object[] args) {
+            String name = m.getName();
+            switch (name) {
+                case "setStatus":
+                case "sendError":
+                    this.status = (Integer) args[0];
+                    return null;
+                case "getStatus":
+                    return this.status;
+                case "setContentType":
+                    this.contentType = (String) args[0];
+                    return null;
+                case "getContentType":
+                    return this.contentType;
+                case "getCharacterEncoding":
+                    return StandardCharsets.UTF_8.name();
+                case "getOutputStream":
+                    return new DiscardingOutputStream();
+                case "getWriter":
+                    return new PrintWriter(new OutputStreamWriter(new DiscardingOutputStream(), StandardCharsets.UTF_8));
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+
+        private Object handleContext(Method m) {
+            switch (m.getName()) {
+                case "getRequest":
+                    return this.request;
+                case "getResponse":
+                    return this.response;
+                case "complete":
+                    this.complete();
+                    return null;
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+    }
+
+    /**
+     * Servlet input stream that reads the given bytes.
+     */
+    private static final class BodyInputStream extends ServletInputStream {
+
+        private final InputStream in;
+
+        BodyInputStream(byte[] body) {
+            this.in = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return this.in.read(b, off, len);
+        }
+    }
+
+    /**
+     * Servlet output stream that discards everything that's written to it.
+     */
+    private static final class DiscardingOutputStream extends ServletOutputStream {
+
+        @Override
+        public void write(int b) {
+            // Discarded
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // Discarded
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ThreadModeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
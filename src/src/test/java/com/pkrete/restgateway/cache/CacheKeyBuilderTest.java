@@ -0,0 +1,53 @@
+package com.pkrete.restgateway.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for CacheKeyBuilder class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class CacheKeyBuilderTest extends TestCase {
+
+    /**
+     * Parameters are sorted by name.
+     */
+    public void testParameterOrder() {
+        Map<String, String[]> params1 = new LinkedHashMap<>();
+        params1.put("b", new String[]{"2"});
+        params1.put("a", new String[]{"1", "3"});
+        Map<String, String[]> params2 = new LinkedHashMap<>();
+        params2.put("a", new String[]{"1", "3"});
+        params2.put("b", new String[]{"2"});
+        assertEquals(new CacheKeyBuilder().append("id").append(params1).build(), new CacheKeyBuilder().append("id").append(params2).build());
+    }
+
+    /**
+     * Order of the values of a parameter matters.
+     */
+    public void testValueOrder() {
+        Map<String, String[]> params1 = new HashMap<>();
+        params1.put("a", new String[]{"1", "3"});
+        Map<String, String[]> params2 = new HashMap<>();
+        params2.put("a", new String[]{"3", "1"});
+        assertEquals(false, new CacheKeyBuilder().append(params1).build().equals(new CacheKeyBuilder().append(params2).build()));
+    }
+
+    /**
+     * Parts that contain separators don't collide.
+     */
+    public void testUnambiguous() {
+        assertEquals(false, new CacheKeyBuilder().append("a:b").append("c").build().equals(new CacheKeyBuilder().append("a").append("b:c").build()));
+        assertEquals(false, new CacheKeyBuilder().append((String) null).build().equals(new CacheKeyBuilder().append("").build()));
+        Map<String, String[]> params1 = new HashMap<>();
+        params1.put("a", new String[]{"1"});
+        params1.put("b", new String[]{});
+        Map<String, String[]> params2 = new HashMap<>();
+        params2.put("a", new String[]{"1", "b"});
+        assertEquals(false, new CacheKeyBuilder().append(params1).build().equals(new CacheKeyBuilder().append(params2).build()));
+        assertEquals(new CacheKeyBuilder().append((Map<String, String[]>) null).build(), new CacheKeyBuilder().append(new HashMap<String, String[]>()).build());
+    }
+}
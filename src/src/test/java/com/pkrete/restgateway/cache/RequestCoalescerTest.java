@@ -0,0 +1,105 @@
+package com.pkrete.restgateway.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for RequestCoalescer class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class RequestCoalescerTest extends TestCase {
+
+    private static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    /**
+     * First request is the leader and the identical requests share its
+     * response.
+     *
+     * @throws Exception
+     */
+    public void testShareResponse() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer(10, 10000);
+        RequestCoalescer.Call leader = coalescer.join("a");
+        assertEquals(true, leader.isLeader());
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<CachedResponse>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                final RequestCoalescer.Call call = coalescer.join("a");
+                assertEquals(false, call.isLeader());
+                results.add(executor.submit(new Callable<CachedResponse>() {
+                    @Override
+                    public CachedResponse call() {
+                        return call.await();
+                    }
+                }));
+            }
+            // Different key has its own leader
+            RequestCoalescer.Call other = coalescer.join("b");
+            assertEquals(true, other.isLeader());
+            coalescer.complete(other, CONTENT_TYPE, null);
+            assertEquals(1, coalescer.getInFlight());
+            coalescer.complete(leader, CONTENT_TYPE, new byte[]{1, 2});
+            for (Future<CachedResponse> result : results) {
+                CachedResponse response = result.get();
+                assertEquals(CONTENT_TYPE, response.getContentType());
+                assertEquals(2, response.getBody().length);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, coalescer.getInFlight());
+        assertEquals(2, coalescer.getLeaders());
+        assertEquals(5, coalescer.getCollapsed());
+        // Next request is a new leader
+        assertEquals(true, coalescer.join("a").isLeader());
+    }
+
+    /**
+     * Requests exceeding the waiter limit are not coalesced.
+     */
+    public void testMaxWaiters() {
+        RequestCoalescer coalescer = new RequestCoalescer(2, 10000);
+        RequestCoalescer.Call leader = coalescer.join("a");
+        assertNotNull(coalescer.join("a"));
+        assertNotNull(coalescer.join("a"));
+        assertEquals(null, coalescer.join("a"));
+        assertEquals(1, coalescer.getRejected());
+        coalescer.complete(leader, CONTENT_TYPE, new byte[1]);
+    }
+
+    /**
+     * Waiting requests are processed independently if the leader fails.
+     */
+    public void testLeaderFails() {
+        RequestCoalescer coalescer = new RequestCoalescer(10, 10000);
+        RequestCoalescer.Call leader = coalescer.join("a");
+        RequestCoalescer.Call call = coalescer.join("a");
+        // Completing a waiting request has no effect
+        coalescer.complete(call, CONTENT_TYPE, new byte[1]);
+        assertEquals(1, coalescer.getInFlight());
+        coalescer.complete(leader, CONTENT_TYPE, null);
+        assertEquals(null, call.await());
+        assertEquals(1, coalescer.getFallbacks());
+        assertEquals(0, coalescer.getCollapsed());
+    }
+
+    /**
+     * Waiting requests are processed independently if the leader doesn't
+     * complete in time.
+     */
+    public void testTimeout() {
+        RequestCoalescer coalescer = new RequestCoalescer(10, 50);
+        RequestCoalescer.Call leader = coalescer.join("a");
+        assertEquals(null, coalescer.join("a").await());
+        assertEquals(1, coalescer.getFallbacks());
+        assertEquals(true, coalescer.getStats().contains("fallbacks=1"));
+        coalescer.complete(leader, CONTENT_TYPE, new byte[1]);
+    }
+}
@@ -0,0 +1,159 @@
+package com.pkrete.restgateway.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for ResponseCache class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class ResponseCacheTest extends TestCase {
+
+    private static final String CONTENT_TYPE = "text/xml; charset=UTF-8";
+
+    /**
+     * Cached response is returned until it expires.
+     */
+    public void testTtl() {
+        TestCache cache = new TestCache(1000, 10, 100000);
+        assertEquals(null, cache.get("a"));
+        assertEquals(true, cache.put("a", CONTENT_TYPE, new byte[]{1, 2, 3}));
+        CachedResponse response = cache.get("a");
+        assertEquals(CONTENT_TYPE, response.getContentType());
+        assertEquals(3, response.getBody().length);
+        cache.now += 999;
+        assertEquals(response, cache.get("a"));
+        cache.now += 1;
+        assertEquals(null, cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getExpirations());
+        assertEquals(50, Math.round(cache.getHitRatio() * 100));
+    }
+
+    /**
+     * Entries that are requested only once are evicted before the protected
+     * entries.
+     */
+    public void testSegmentedLru() {
+        TestCache cache = new TestCache(1000, 5, 100000);
+        cache.put("a", CONTENT_TYPE, new byte[1]);
+        cache.put("b", CONTENT_TYPE, new byte[1]);
+        // "a" and "b" are protected
+        cache.get("a");
+        cache.get("b");
+        assertEquals(2, cache.getProtectedSize());
+        // One time requests don't evict the protected entries
+        for (int i = 0; i < 10; i++) {
+            cache.put("x" + i, CONTENT_TYPE, new byte[1]);
+        }
+        assertEquals(5, cache.size());
+        assertEquals(7, cache.getEvictions());
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertNotNull(cache.get("x9"));
+        assertEquals(null, cache.get("x0"));
+    }
+
+    /**
+     * Protected segment is limited and its least recently used entry is
+     * moved back to the probationary segment.
+     */
+    public void testDemote() {
+        TestCache cache = new TestCache(1000, 5, 100000);
+        for (String key : new String[]{"a", "b", "c", "d", "e"}) {
+            cache.put(key, CONTENT_TYPE, new byte[1]);
+            cache.get(key);
+        }
+        // 80 % of 5 entries
+        assertEquals(4, cache.getProtectedSize());
+        assertEquals(5, cache.size());
+        // "a" was demoted and it's evicted first
+        cache.put("f", CONTENT_TYPE, new byte[1]);
+        assertEquals(null, cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    /**
+     * Cache is bounded by the memory use and too large responses are not
+     * cached.
+     */
+    public void testMaxBytes() {
+        TestCache cache = new TestCache(1000, 100, 3000);
+        assertEquals(false, cache.put("large", CONTENT_TYPE, new byte[3000]));
+        assertEquals(true, cache.put("a", CONTENT_TYPE, new byte[1000]));
+        assertEquals(true, cache.put("b", CONTENT_TYPE, new byte[1000]));
+        assertEquals(true, cache.put("c", CONTENT_TYPE, new byte[1000]));
+        assertEquals(2, cache.size());
+        assertEquals(true, cache.getBytes() <= 3000);
+        assertEquals(null, cache.get("a"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    /**
+     * Replacing an entry updates the memory use.
+     */
+    public void testReplace() {
+        TestCache cache = new TestCache(1000, 10, 100000);
+        cache.put("a", CONTENT_TYPE, new byte[100]);
+        cache.get("a");
+        long bytes = cache.getBytes();
+        cache.put("a", CONTENT_TYPE, new byte[200]);
+        assertEquals(1, cache.size());
+        assertEquals(bytes + 100, cache.getBytes());
+        assertEquals(200, cache.get("a").getBody().length);
+        assertEquals(false, cache.put("b", CONTENT_TYPE, null));
+    }
+
+    /**
+     * Invalid settings.
+     */
+    public void testInvalidSettings() {
+        try {
+            new ResponseCache(0, 10, 100);
+            fail("IllegalArgumentException expected.");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        try {
+            new ResponseCache(1000, 0, 100);
+            fail("IllegalArgumentException expected.");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Statistics contain the hit ratio, evictions and memory use.
+     */
+    public void testStats() {
+        TestCache cache = new TestCache(1000, 10, 100000);
+        cache.put("a", CONTENT_TYPE, new byte[10]);
+        cache.get("a");
+        cache.get("b");
+        String stats = cache.getStats();
+        assertEquals(true, stats.contains("entries=1/10"));
+        assertEquals(true, stats.contains("hitRatio=0.500"));
+        assertEquals(true, stats.contains("evictions=0"));
+        assertEquals(true, stats.contains("bytes=" + cache.getBytes() + "/100000"));
+    }
+
+    /**
+     * Cache whose time can be set by the tests.
+     */
+    private static class TestCache extends ResponseCache {
+
+        private long now = 1000000;
+
+        TestCache(long ttl, int maxEntries, long maxBytes) {
+            super(ttl, maxEntries, maxBytes);
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return this.now;
+        }
+    }
+}
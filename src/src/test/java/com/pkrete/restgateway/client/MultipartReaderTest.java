@@ -0,0 +1,106 @@
+package com.pkrete.restgateway.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for MultipartReader class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class MultipartReaderTest extends TestCase {
+
+    private static InputStream toStream(String message) {
+        return new ByteArrayInputStream(message.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Preamble and epilogue are skipped, and the headers and content of each
+     * part are read.
+     *
+     * @throws IOException
+     */
+    public void testReadParts() throws IOException {
+        MultipartReader reader = new MultipartReader(toStream("preamble\r\n--abc \r\n"
+                + "Content-Type: text/xml;\r\n charset=UTF-8\r\ncontent-id: <1>\r\n\r\n<a/>\r\n"
+                + "--abc\r\nContent-Type: text/plain\r\n\r\nline 1\r\n--ab\r\nline 2\r\n"
+                + "--abc--\r\nepilogue"), "abc");
+        assertEquals(true, reader.next());
+        assertEquals("text/xml; charset=UTF-8", reader.getHeader("content-type"));
+        assertEquals("<1>", reader.getHeader("Content-ID"));
+        assertEquals(null, reader.getHeader("Content-Length"));
+        assertEquals("<a/>", new String(readAll(reader.getContent()), StandardCharsets.ISO_8859_1));
+        assertEquals(true, reader.next());
+        assertEquals("text/plain", reader.getHeader("Content-Type"));
+        assertEquals("line 1\r\n--ab\r\nline 2", new String(readAll(reader.getContent()), StandardCharsets.ISO_8859_1));
+        assertEquals(false, reader.next());
+        assertEquals(false, reader.next());
+    }
+
+    /**
+     * Rest of the current part is skipped when the reader is moved to the
+     * next part, and binary content larger than the buffer is not modified.
+     *
+     * @throws IOException
+     */
+    public void testBinaryContent() throws IOException {
+        byte[] data = new byte[MultipartReader.BUFFER_SIZE * 2 + 3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write("--abc\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        message.write(data);
+        message.write("\r\n--abc\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        message.write(data);
+        message.write("\r\n--abc--".getBytes(StandardCharsets.ISO_8859_1));
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(message.toByteArray()), "abc");
+        assertEquals(true, reader.next());
+        assertEquals(0, reader.getContent().read());
+        assertEquals(true, reader.next());
+        assertEquals(true, Arrays.equals(data, readAll(reader.getContent())));
+        assertEquals(false, reader.next());
+    }
+
+    /**
+     * Message that ends before the closing delimiter fails.
+     */
+    public void testTruncatedMessage() {
+        MultipartReader reader = new MultipartReader(toStream("--abc\r\nContent-Type: text/plain\r\n\r\ncontent"), "abc");
+        try {
+            assertEquals(true, reader.next());
+            readAll(reader.getContent());
+            fail("IOException expected.");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Content is available only when the reader is at a part.
+     */
+    public void testContentBeforeFirstPart() {
+        MultipartReader reader = new MultipartReader(toStream("--abc--\r\n"), "abc");
+        try {
+            reader.getContent();
+            fail("IllegalStateException expected.");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+}
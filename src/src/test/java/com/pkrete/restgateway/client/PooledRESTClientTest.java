@@ -0,0 +1,147 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.xrd4j.rest.ClientResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for PooledRESTClient class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class PooledRESTClientTest extends TestCase {
+
+    /**
+     * Default values are used when properties are not defined.
+     */
+    public void testCreate1() {
+        PooledRESTClient client = PooledRESTClient.create("http://localhost:80", new Properties());
+        assertEquals("http://localhost:80", client.getHost());
+        assertEquals(PooledRESTClient.DEFAULT_MAX_CONNECTIONS, client.getMaxConnections());
+        assertEquals(PooledRESTClient.DEFAULT_CONNECT_TIMEOUT, client.getConnectTimeout());
+        assertEquals(PooledRESTClient.DEFAULT_READ_TIMEOUT, client.getReadTimeout());
+        assertEquals(PooledRESTClient.DEFAULT_ACQUIRE_TIMEOUT, client.getAcquireTimeout());
+        assertEquals(PooledRESTClient.DEFAULT_IDLE_TIMEOUT, client.getIdleTimeout());
+        client.close();
+    }
+
+    /**
+     * Values are read from properties.
+     */
+    public void testCreate2() {
+        Properties props = new Properties();
+        props.setProperty(Constants.PROVIDER_PROPS_BACKEND_MAX_CONNECTIONS, "20");
+        props.setProperty(Constants.PROVIDER_PROPS_BACKEND_CONNECT_TIMEOUT, "1000");
+        props.setProperty(Constants.PROVIDER_PROPS_BACKEND_READ_TIMEOUT, "2000");
+        props.setProperty(Constants.PROVIDER_PROPS_BACKEND_ACQUIRE_TIMEOUT, "3000");
+        props.setProperty(Constants.PROVIDER_PROPS_BACKEND_IDLE_TIMEOUT, "4000");
+        PooledRESTClient client = PooledRESTClient.create("https://example.com:443", props);
+        assertEquals(20, client.getMaxConnections());
+        assertEquals(1000, client.getConnectTimeout());
+        assertEquals(2000, client.getReadTimeout());
+        assertEquals(3000, client.getAcquireTimeout());
+        assertEquals(4000, client.getIdleTimeout());
+        assertEquals(20, client.getPoolStats().getMax());
+        assertEquals(0, client.getPoolStats().getLeased());
+        assertEquals(0, client.getRequests());
+        assertEquals(0, client.getSaturated());
+        assertEquals(0, client.getAcquireTimeouts());
+        client.close();
+    }
+
+    /**
+     * Host includes the scheme and the port.
+     */
+    public void testGetHost() {
+        assertEquals("http://example.com:80", PooledRESTClient.getHost("http://Example.com/api/1"));
+        assertEquals("https://example.com:443", PooledRESTClient.getHost("HTTPS://example.com?a=b"));
+        assertEquals("https://example.com:8443", PooledRESTClient.getHost("https://example.com:8443/"));
+        assertEquals(null, PooledRESTClient.getHost("ftp://example.com/file"));
+        assertEquals(null, PooledRESTClient.getHost("/api/1"));
+        assertEquals(null, PooledRESTClient.getHost("http://exa mple.com/"));
+    }
+
+    /**
+     * Resource id is appended to the path and the other parameters are
+     * added to the query string.
+     */
+    public void testBuildUrl() {
+        assertEquals("http://example.com/api", PooledRESTClient.buildUrl("http://example.com/api", null));
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        params.put(Constants.PARAM_RESOURCE_ID, Arrays.asList("123"));
+        params.put("q", Arrays.asList("a b", "ä&"));
+        params.put("page", Arrays.asList("1"));
+        assertEquals("http://example.com/api/123?q=a+b&q=%C3%A4%26&page=1", PooledRESTClient.buildUrl("http://example.com/api", params));
+        assertEquals(false, params.containsKey(Constants.PARAM_RESOURCE_ID));
+        params = new HashMap<>();
+        params.put("page", Arrays.asList("2"));
+        assertEquals("http://example.com/api/?a=b&page=2", PooledRESTClient.buildUrl("http://example.com/api/?a=b", params));
+    }
+
+    /**
+     * Compressed responses are decoded and the connection is reused.
+     *
+     * @throws IOException
+     */
+    public void testSend() throws IOException {
+        final List<Integer> remotePorts = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (remotePorts) {
+                    remotePorts.add(exchange.getRemoteAddress().getPort());
+                }
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    String body = "{\"method\":\"" + exchange.getRequestMethod() + "\",\"uri\":\"" + exchange.getRequestURI() + "\"}";
+                    gzip.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, compressed.size());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    compressed.writeTo(out);
+                }
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/api";
+        PooledRESTClient client = new PooledRESTClient(PooledRESTClient.getHost(url), 2, 1000, 2000, 1000, 30000);
+        try {
+            Map<String, String> headers = new HashMap<>();
+            headers.put(Constants.HTTP_HEADER_CONTENT_TYPE, "application/json");
+            Map<String, List<String>> params = new HashMap<>();
+            params.put(Constants.PARAM_RESOURCE_ID, Arrays.asList("1"));
+            ClientResponse response = client.send("get", url, null, params, headers);
+            assertEquals(200, response.getStatusCode());
+            assertEquals("application/json", response.getContentType());
+            assertEquals("{\"method\":\"GET\",\"uri\":\"/api/1\"}", response.getData());
+            response = client.send("post", url, "{}", new HashMap<String, List<String>>(), headers);
+            assertEquals("{\"method\":\"POST\",\"uri\":\"/api\"}", response.getData());
+            assertEquals(2, client.getRequests());
+            assertEquals(0, client.getPoolStats().getLeased());
+            assertEquals(1, client.getPoolStats().getAvailable());
+            assertEquals(remotePorts.get(0), remotePorts.get(1));
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.xrd4j.common.exception.XRd4JException;
+import com.pkrete.xrd4j.common.member.ConsumerMember;
+import com.pkrete.xrd4j.common.member.ProducerMember;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import com.pkrete.xrd4j.common.message.ServiceResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for PooledSOAPClient class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class PooledSOAPClientTest extends TestCase {
+
+    /**
+     * Default values are used when properties are not defined.
+     *
+     * @throws SOAPException
+     */
+    public void testCreate1() throws SOAPException {
+        PooledSOAPClient client = PooledSOAPClient.create(new Properties());
+        assertEquals(PooledSOAPClient.DEFAULT_MAX_CONNECTIONS, client.getMaxConnections());
+        assertEquals(PooledSOAPClient.DEFAULT_CONNECT_TIMEOUT, client.getConnectTimeout());
+        assertEquals(PooledSOAPClient.DEFAULT_READ_TIMEOUT, client.getReadTimeout());
+        assertEquals(PooledSOAPClient.DEFAULT_ACQUIRE_TIMEOUT, client.getAcquireTimeout());
+        assertEquals(PooledSOAPClient.DEFAULT_IDLE_TIMEOUT, client.getIdleTimeout());
+        assertEquals(false, client.isChunkedRequests());
+        client.close();
+    }
+
+    /**
+     * Values are read from properties.
+     *
+     * @throws SOAPException
+     */
+    public void testCreate2() throws SOAPException {
+        Properties props = new Properties();
+        props.setProperty(Constants.CONSUMER_PROPS_SS_MAX_CONNECTIONS, "20");
+        props.setProperty(Constants.CONSUMER_PROPS_SS_CONNECT_TIMEOUT, "1000");
+        props.setProperty(Constants.CONSUMER_PROPS_SS_READ_TIMEOUT, "2000");
+        props.setProperty(Constants.CONSUMER_PROPS_SS_ACQUIRE_TIMEOUT, "3000");
+        props.setProperty(Constants.CONSUMER_PROPS_SS_IDLE_TIMEOUT, "4000");
+        props.setProperty(Constants.CONSUMER_PROPS_SS_CHUNKED_REQUESTS, "true");
+        PooledSOAPClient client = PooledSOAPClient.create(props);
+        assertEquals(20, client.getMaxConnections());
+        assertEquals(1000, client.getConnectTimeout());
+        assertEquals(2000, client.getReadTimeout());
+        assertEquals(3000, client.getAcquireTimeout());
+        assertEquals(4000, client.getIdleTimeout());
+        assertEquals(true, client.isChunkedRequests());
+        assertEquals(20, client.getPoolStats().getMax());
+        assertEquals(0, client.getPoolStats().getLeased());
+        assertEquals(0, client.getRequests());
+        assertEquals(0, client.getSaturated());
+        assertEquals(0, client.getAcquireTimeouts());
+        client.close();
+    }
+
+    /**
+     * Requests are sent with Content-Length, unless chunked requests are
+     * enabled.
+     *
+     * @throws Exception
+     */
+    public void testSendContentLength() throws Exception {
+        final List<String> lengths = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ss", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                String encoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+                synchronized (lengths) {
+                    lengths.add(length != null ? "length" : encoding);
+                }
+                byte[] body = RESPONSE.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/ss";
+        try {
+            for (boolean chunked : new boolean[]{false, true}) {
+                PooledSOAPClient client = new PooledSOAPClient(2, 1000, 2000, 1000, 30000, chunked);
+                try {
+                    client.send(new SOAPRequestWriter(createRequest(), null, null, null), url, new NullDeserializer());
+                } finally {
+                    client.close();
+                }
+            }
+        } finally {
+            server.stop(0);
+        }
+        assertEquals(Arrays.asList("length", "chunked"), lengths);
+    }
+
+    /**
+     * Only the SOAP part of a multipart response is parsed, and the
+     * connection stays leased until the attachment has been read and closed.
+     *
+     * @throws Exception
+     */
+    public void testSendMultipart() throws Exception {
+        final byte[] data = new byte[MultipartReader.BUFFER_SIZE * 3 + 5];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ss", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                body.write(("--part\r\nContent-Type: text/xml; charset=UTF-8\r\n\r\n" + RESPONSE
+                        + "\r\n--part\r\nContent-Type: application/pdf\r\nContent-Transfer-Encoding: binary\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                body.write(data);
+                body.write("\r\n--part--\r\n".getBytes(StandardCharsets.UTF_8));
+                exchange.getResponseHeaders().set("Content-Type", "multipart/related; type=\"text/xml\"; boundary=part");
+                exchange.sendResponseHeaders(200, body.size());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    body.writeTo(out);
+                }
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/ss";
+        PooledSOAPClient client = new PooledSOAPClient(2, 1000, 2000, 1000, 30000, false);
+        try {
+            AttachmentDeserializer deserializer = new AttachmentDeserializer();
+            client.send(new SOAPRequestWriter(createRequest(), null, null, null), url, deserializer);
+            assertEquals(1, client.getPoolStats().getLeased());
+            try (ResponseAttachment attachment = deserializer.attachment) {
+                assertEquals("application/pdf", attachment.getContentType());
+                assertEquals("binary", attachment.getMimeHeader("content-transfer-encoding")[0]);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1000];
+                int count;
+                while ((count = attachment.getRawContent().read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                assertEquals(true, Arrays.equals(data, out.toByteArray()));
+            }
+            assertEquals(0, client.getPoolStats().getLeased());
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+
+    private static ServiceRequest<Map<String, String[]>> createRequest() throws XRd4JException {
+        ConsumerMember consumer = new ConsumerMember("FI", "GOV", "1234567-8", "ConsumerService");
+        ProducerMember producer = new ProducerMember("FI", "COM", "8765432-1", "ProviderService", "getOrganizationList", "v1");
+        ServiceRequest<Map<String, String[]>> request = new ServiceRequest<>(consumer, producer, "ID-1234");
+        request.setRequestData(new HashMap<String, String[]>());
+        return request;
+    }
+
+    private static final String RESPONSE = "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<SOAP-ENV:Body><ts:getOrganizationListResponse xmlns:ts=\"http://test.x-road.fi/producer\">"
+            + "<ts:request/><ts:response/></ts:getOrganizationListResponse></SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+    /**
+     * Deserializer that reads the response and returns null.
+     */
+    private static class NullDeserializer implements StreamingResponseDeserializer {
+
+        @Override
+        public ServiceResponse deserialize(SOAPResponseReader reader, ServiceRequest request) {
+            return null;
+        }
+
+        @Override
+        public ServiceResponse deserialize(SOAPMessage message, String producerNamespaceURI, boolean processingWrappers) {
+            return null;
+        }
+
+        @Override
+        public boolean isStreamingAttachments() {
+            return false;
+        }
+    }
+
+    /**
+     * Deserializer that opens the attachment of a multipart response.
+     */
+    private static class AttachmentDeserializer implements StreamingResponseDeserializer {
+
+        private ResponseAttachment attachment;
+
+        @Override
+        public ServiceResponse deserialize(SOAPResponseReader reader, ServiceRequest request) throws SOAPException {
+            ServiceResponse<Map, ResponseAttachment> response = new ServiceResponse<>(request.getConsumer(), request.getProducer(), reader.getHeader("id"));
+            reader.readBody(true);
+            this.attachment = reader.openAttachment();
+            response.setResponseData(this.attachment);
+            return response;
+        }
+
+        @Override
+        public ServiceResponse deserialize(SOAPMessage message, String producerNamespaceURI, boolean processingWrappers) {
+            return null;
+        }
+
+        @Override
+        public boolean isStreamingAttachments() {
+            return true;
+        }
+    }
+}
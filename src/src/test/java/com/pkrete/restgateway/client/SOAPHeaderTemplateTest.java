@@ -0,0 +1,91 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.xrd4j.common.member.ConsumerMember;
+import com.pkrete.xrd4j.common.member.ProducerMember;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for SOAPHeaderTemplate class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class SOAPHeaderTemplateTest extends TestCase {
+
+    private ConsumerMember consumer;
+    private ProducerMember producer;
+
+    /**
+     * Set up instance variables used in test cases.
+     *
+     * @throws Exception
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.consumer = new ConsumerMember("FI", "GOV", "1234567-8");
+        this.producer = new ProducerMember("FI", "COM", "8765432-1", "ProviderService", "getOrganizationList", "v1");
+    }
+
+    private static String write(SOAPHeaderTemplate template) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.writeHead(out);
+        out.write('|');
+        template.writeMiddle(out);
+        out.write('|');
+        template.writeTail(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Template is split before the per request headers and around the
+     * request parameters. Consumer without subsystem and producer without
+     * namespace.
+     *
+     * @throws Exception
+     */
+    public void testCreate1() throws Exception {
+        String[] parts = write(SOAPHeaderTemplate.create(this.consumer, this.producer, false)).split("\\|");
+        assertEquals(3, parts.length);
+        assertEquals(true, parts[0].contains("<xrd:client id:objectType=\"MEMBER\">"));
+        assertEquals(true, parts[0].contains("<xrd:service id:objectType=\"SERVICE\"><id:xRoadInstance>FI</id:xRoadInstance>"));
+        assertEquals(true, parts[0].contains("<id:serviceVersion>v1</id:serviceVersion>"));
+        assertEquals(true, parts[0].endsWith("</xrd:service>"));
+        assertEquals("<xrd:protocolVersion>4.0</xrd:protocolVersion></SOAP-ENV:Header><SOAP-ENV:Body><getOrganizationList>", parts[1]);
+        assertEquals("</getOrganizationList></SOAP-ENV:Body></SOAP-ENV:Envelope>", parts[2]);
+    }
+
+    /**
+     * Producer namespace and request wrapper.
+     *
+     * @throws Exception
+     */
+    public void testCreate2() throws Exception {
+        this.producer.setNamespaceUrl("http://test.x-road.fi/producer");
+        this.producer.setNamespacePrefix("ts1");
+        String[] parts = write(SOAPHeaderTemplate.create(this.consumer, this.producer, true)).split("\\|");
+        assertEquals(true, parts[0].contains("xmlns:ts1=\"http://test.x-road.fi/producer\""));
+        assertEquals(true, parts[1].endsWith("<SOAP-ENV:Body><ts1:getOrganizationList><request>"));
+        assertEquals("</request></ts1:getOrganizationList></SOAP-ENV:Body></SOAP-ENV:Envelope>", parts[2]);
+    }
+
+    /**
+     * Template matches only requests with the same members and wrapper
+     * processing.
+     *
+     * @throws Exception
+     */
+    public void testMatches() throws Exception {
+        SOAPHeaderTemplate template = SOAPHeaderTemplate.create(this.consumer, this.producer, true);
+        ServiceRequest request = new ServiceRequest(this.consumer, this.producer, "ID-1");
+        request.setProcessingWrappers(true);
+        assertEquals(true, template.matches(request));
+        request.setProcessingWrappers(false);
+        assertEquals(false, template.matches(request));
+        ProducerMember copy = new ProducerMember("FI", "COM", "8765432-1", "ProviderService", "getOrganizationList", "v1");
+        assertEquals(false, template.matches(new ServiceRequest(this.consumer, copy, "ID-1")));
+    }
+}
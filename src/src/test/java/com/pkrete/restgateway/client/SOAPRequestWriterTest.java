@@ -0,0 +1,183 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.io.RequestBody;
+import com.pkrete.restgateway.util.Constants;
+import com.pkrete.xrd4j.common.member.ConsumerMember;
+import com.pkrete.xrd4j.common.member.ProducerMember;
+import com.pkrete.xrd4j.common.message.ServiceRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Test cases for SOAPRequestWriter class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class SOAPRequestWriterTest extends TestCase {
+
+    private static final String NS_XRD = "http://x-road.eu/xsd/xroad.xsd";
+    private static final String NS_ID = "http://x-road.eu/xsd/identifiers";
+    private static final String NS_PRODUCER = "http://test.x-road.fi/producer";
+
+    private ServiceRequest<Map<String, String[]>> request;
+    private Map<String, String[]> params;
+
+    /**
+     * Set up instance variables used in test cases.
+     *
+     * @throws Exception
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ConsumerMember consumer = new ConsumerMember("FI", "GOV", "1234567-8", "ConsumerService");
+        ProducerMember producer = new ProducerMember("FI", "COM", "8765432-1", "ProviderService", "getOrganizationList", "v1");
+        producer.setNamespaceUrl(NS_PRODUCER);
+        producer.setNamespacePrefix("ts1");
+        this.request = new ServiceRequest<>(consumer, producer, "ID-1234");
+        this.request.setUserId("EE1234567890");
+        this.params = new LinkedHashMap<>();
+        this.params.put("name", new String[]{"a & b"});
+        this.params.put("tag", new String[]{"x", "<y>"});
+        this.request.setRequestData(this.params);
+    }
+
+    private static String write(SOAPRequestWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String text(Document doc, String ns, String name, int index) {
+        return doc.getElementsByTagNameNS(ns, name).item(index).getTextContent();
+    }
+
+    /**
+     * Request without body: X-Road headers, resource id and parameters are
+     * written and values are escaped.
+     *
+     * @throws Exception
+     */
+    public void testWriteTo1() throws Exception {
+        SOAPRequestWriter writer = new SOAPRequestWriter(this.request, "123", null, null);
+        assertEquals("text/xml; charset=utf-8", writer.getContentType());
+        Document doc = parse(write(writer));
+        Element client = (Element) doc.getElementsByTagNameNS(NS_XRD, "client").item(0);
+        assertEquals("SUBSYSTEM", client.getAttributeNS(NS_ID, "objectType"));
+        Element service = (Element) doc.getElementsByTagNameNS(NS_XRD, "service").item(0);
+        assertEquals("SERVICE", service.getAttributeNS(NS_ID, "objectType"));
+        assertEquals("FI", text(doc, NS_ID, "xRoadInstance", 0));
+        assertEquals("1234567-8", text(doc, NS_ID, "memberCode", 0));
+        assertEquals("8765432-1", text(doc, NS_ID, "memberCode", 1));
+        assertEquals("ProviderService", text(doc, NS_ID, "subsystemCode", 1));
+        assertEquals("getOrganizationList", text(doc, NS_ID, "serviceCode", 0));
+        assertEquals("v1", text(doc, NS_ID, "serviceVersion", 0));
+        assertEquals("EE1234567890", text(doc, NS_XRD, "userId", 0));
+        assertEquals("ID-1234", text(doc, NS_XRD, "id", 0));
+        assertEquals("4.0", text(doc, NS_XRD, "protocolVersion", 0));
+        Element payload = (Element) doc.getElementsByTagNameNS(NS_PRODUCER, "getOrganizationList").item(0);
+        assertEquals("ts1", payload.getPrefix());
+        Element wrapper = (Element) payload.getFirstChild();
+        assertEquals("request", wrapper.getLocalName());
+        assertEquals(null, wrapper.getNamespaceURI());
+        assertEquals("123", text(doc, null, "resourceId", 0));
+        assertEquals("a & b", text(doc, null, "name", 0));
+        assertEquals("x", text(doc, null, "tag", 0));
+        assertEquals("<y>", text(doc, null, "tag", 1));
+        assertEquals(0, doc.getElementsByTagName(Constants.PARAM_REQUEST_BODY).getLength());
+    }
+
+    /**
+     * Request without wrappers, user id and resource id.
+     *
+     * @throws Exception
+     */
+    public void testWriteTo2() throws Exception {
+        this.request.setProcessingWrappers(false);
+        this.request.setUserId(null);
+        Document doc = parse(write(new SOAPRequestWriter(this.request, null, null, null)));
+        Element payload = (Element) doc.getElementsByTagNameNS(NS_PRODUCER, "getOrganizationList").item(0);
+        assertEquals("name", payload.getFirstChild().getNodeName());
+        assertEquals(0, doc.getElementsByTagNameNS(NS_XRD, "userId").getLength());
+        assertEquals(0, doc.getElementsByTagName("resourceId").getLength());
+    }
+
+    /**
+     * Request body is sent as MIME attachment and it's referenced from the
+     * SOAP body.
+     *
+     * @throws Exception
+     */
+    public void testWriteTo3() throws Exception {
+        byte[] data = "{\"key\":\"value\"}".getBytes(StandardCharsets.UTF_8);
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(data), 100, null);
+        SOAPRequestWriter writer = new SOAPRequestWriter(this.request, null, body, "application/json");
+        String contentType = writer.getContentType();
+        assertEquals(true, contentType.startsWith("multipart/related; type=\"text/xml\"; boundary=\""));
+        String boundary = contentType.substring(contentType.indexOf("boundary=\"") + 10, contentType.length() - 1);
+        String result = write(writer);
+        String[] parts = result.split("--" + boundary);
+        assertEquals(4, parts.length);
+        assertEquals("--\r\n", parts[3]);
+        String envelope = parts[1].substring(parts[1].indexOf("\r\n\r\n") + 4, parts[1].length() - 2);
+        Element ref = (Element) parse(envelope).getElementsByTagName(Constants.PARAM_REQUEST_BODY).item(0);
+        assertEquals(Constants.PARAM_REQUEST_BODY, ref.getAttribute("href"));
+        assertEquals(true, parts[2].contains("Content-Type: application/json\r\n"));
+        assertEquals(true, parts[2].contains("Content-ID: " + Constants.PARAM_REQUEST_BODY + "\r\n"));
+        assertEquals(true, parts[2].endsWith("\r\n\r\n{\"key\":\"value\"}\r\n"));
+    }
+
+    /**
+     * Precomputed header template produces the same output as a template
+     * that's created per request.
+     *
+     * @throws Exception
+     */
+    public void testWriteTo4() throws Exception {
+        SOAPHeaderTemplate template = SOAPHeaderTemplate.create(this.request.getConsumer(), this.request.getProducer(), true);
+        String expected = write(new SOAPRequestWriter(this.request, "123", null, null));
+        assertEquals(expected, write(new SOAPRequestWriter(this.request, "123", null, null, template)));
+        this.request.setUserId("user2");
+        assertEquals(true, write(new SOAPRequestWriter(this.request, "123", null, null, template)).contains("<xrd:userId>user2</xrd:userId><xrd:id>ID-1234</xrd:id>"));
+    }
+
+    /**
+     * Invalid parameter name fails before anything is written.
+     */
+    public void testInvalidName() {
+        this.params.put("1 invalid", new String[]{"value"});
+        try {
+            new SOAPRequestWriter(this.request, null, null, null);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Valid and invalid element names.
+     */
+    public void testIsValidName() {
+        assertEquals(true, SOAPRequestWriter.isValidName("name"));
+        assertEquals(true, SOAPRequestWriter.isValidName("_a-b.c1"));
+        assertEquals(false, SOAPRequestWriter.isValidName(""));
+        assertEquals(false, SOAPRequestWriter.isValidName(null));
+        assertEquals(false, SOAPRequestWriter.isValidName("1a"));
+        assertEquals(false, SOAPRequestWriter.isValidName("a b"));
+        assertEquals(false, SOAPRequestWriter.isValidName("ns:a"));
+    }
+}
@@ -0,0 +1,302 @@
+package com.pkrete.restgateway.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import javax.xml.soap.SOAPException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for SOAPResponseReader class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class SOAPResponseReaderTest extends TestCase {
+
+    private static final String ENVELOPE_START = "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+            + "xmlns:xrd=\"http://x-road.eu/xsd/xroad.xsd\" xmlns:id=\"http://x-road.eu/xsd/identifiers\">"
+            + "<SOAP-ENV:Header>"
+            + "<xrd:client id:objectType=\"SUBSYSTEM\"><id:xRoadInstance>FI</id:xRoadInstance></xrd:client>"
+            + "<xrd:id>ID-1234</xrd:id><xrd:userId>EE1234567890</xrd:userId>"
+            + "<xrd:protocolVersion>4.0</xrd:protocolVersion>"
+            + "</SOAP-ENV:Header><SOAP-ENV:Body>";
+    private static final String ENVELOPE_END = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+    private static InputStream toStream(String body) {
+        return new ByteArrayInputStream((ENVELOPE_START + body + ENVELOPE_END).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Headers are parsed and the response wrapper is serialized with the
+     * namespaces declared by its ancestors.
+     *
+     * @throws SOAPException
+     */
+    public void testReadWrapped() throws SOAPException {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:request><ts1:param>1</ts1:param></ts1:request>"
+                + "<ts1:response><ts1:data a=\"x &amp; &quot;y&quot;\">1 &lt; 2</ts1:data><empty/></ts1:response>"
+                + "</ts1:getRandomResponse>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            assertEquals("ID-1234", reader.getHeader("id"));
+            assertEquals("EE1234567890", reader.getHeader("userId"));
+            assertEquals("4.0", reader.getHeader("protocolVersion"));
+            // Header that has child elements
+            assertEquals(null, reader.getHeader("client"));
+            assertEquals(false, reader.hasError());
+            assertEquals("<ts1:response xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                    + "<ts1:data a=\"x &amp; &quot;y&quot;\">1 &lt; 2</ts1:data><empty/></ts1:response>", reader.readBody(false));
+        }
+    }
+
+    /**
+     * Without wrappers the first child of the body is the response data.
+     *
+     * @throws SOAPException
+     */
+    public void testReadWithoutWrappers() throws SOAPException {
+        String body = "<getRandomResponse xmlns=\"http://test.x-road.fi/producer\"><data>abc</data></getRandomResponse>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), "UTF-8", false)) {
+            assertEquals(body, reader.readBody(false));
+        }
+    }
+
+    /**
+     * Namespace prefixes are removed from the elements.
+     *
+     * @throws SOAPException
+     */
+    public void testOmitNamespace() throws SOAPException {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:response><ts1:data><ts1:value>1</ts1:value><ts1:value>2</ts1:value></ts1:data></ts1:response>"
+                + "</ts1:getRandomResponse>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            assertEquals("<response><data><value>1</value><value>2</value></data></response>", reader.readBody(true));
+        }
+    }
+
+    /**
+     * SOAP fault is parsed before the body is read.
+     *
+     * @throws SOAPException
+     */
+    public void testSoapFault() throws SOAPException {
+        String body = "<SOAP-ENV:Fault><faultcode>Server.ServerProxy.ServiceFailed</faultcode>"
+                + "<faultstring>Service failed</faultstring><detail><faultDetail>1234</faultDetail></detail>"
+                + "</SOAP-ENV:Fault>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            assertEquals(true, reader.hasError());
+            assertEquals("Server.ServerProxy.ServiceFailed", reader.getErrorMessage().getFaultCode());
+            assertEquals("Service failed", reader.getErrorMessage().getFaultString());
+            assertEquals(null, reader.getErrorMessage().getFaultActor());
+            assertEquals("1234", reader.getErrorMessage().getDetail());
+            assertEquals(null, reader.readBody(false));
+        }
+    }
+
+    /**
+     * Non-technical error inside the response wrapper is detected while the
+     * body is read.
+     *
+     * @throws SOAPException
+     */
+    public void testNonTechnicalError() throws SOAPException {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:response><faultCode>ERROR-1</faultCode><faultString>Not found</faultString></ts1:response>"
+                + "</ts1:getRandomResponse>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            assertEquals(false, reader.hasError());
+            reader.readBody(true);
+            assertEquals(true, reader.hasError());
+            assertEquals("ERROR-1", reader.getErrorMessage().getFaultCode());
+            assertEquals("Not found", reader.getErrorMessage().getFaultString());
+        }
+    }
+
+    /**
+     * Body can be read only once.
+     *
+     * @throws SOAPException
+     */
+    public void testReadBodyOnce() throws SOAPException {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:response><data>1</data></ts1:response></ts1:getRandomResponse>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            assertEquals("<response><data>1</data></response>", reader.readBody(true));
+            try {
+                reader.readBody(false);
+                fail("IllegalStateException expected.");
+            } catch (IllegalStateException ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Invalid responses.
+     */
+    public void testInvalidResponse() {
+        String[] responses = new String[]{
+            "<html><body>Error</body></html>",
+            ENVELOPE_START + ENVELOPE_END,
+            ENVELOPE_START + "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\"><ts1:request/></ts1:getRandomResponse>" + ENVELOPE_END,
+            ENVELOPE_START + "<ts1:getRandomResponse"
+        };
+        for (String response : responses) {
+            try {
+                SOAPResponseReader.read(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), null, true).close();
+                fail("SOAPException expected.");
+            } catch (SOAPException ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Truncated body fails when it's read.
+     *
+     * @throws SOAPException
+     */
+    public void testTruncatedBody() throws SOAPException {
+        String response = ENVELOPE_START + "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\"><ts1:response><data>1";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), null, true)) {
+            reader.readBody(false);
+            fail("SOAPException expected.");
+        } catch (SOAPException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Opened body is read as events, and the namespaces declared by the
+     * ancestors of the response wrapper are declared by the root element.
+     *
+     * @throws SOAPException
+     * @throws XMLStreamException
+     */
+    public void testOpenBody() throws SOAPException, XMLStreamException {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:request><ts1:param>1</ts1:param></ts1:request>"
+                + "<ts1:response a=\"x\"><ts1:data>1</ts1:data></ts1:response>"
+                + "</ts1:getRandomResponse>";
+        SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true);
+        XMLStreamReader events = reader.openBody(false);
+        assertEquals(true, reader.isBodyOpen());
+        assertEquals(XMLStreamConstants.START_DOCUMENT, events.getEventType());
+        assertEquals(XMLStreamConstants.START_ELEMENT, events.next());
+        assertEquals("response", events.getLocalName());
+        assertEquals("ts1", events.getPrefix());
+        assertEquals(1, events.getNamespaceCount());
+        assertEquals("http://test.x-road.fi/producer", events.getNamespaceURI(0));
+        assertEquals(1, events.getAttributeCount());
+        assertEquals("x", events.getAttributeValue(0));
+        assertEquals(XMLStreamConstants.START_ELEMENT, events.next());
+        assertEquals("data", events.getLocalName());
+        assertEquals("1", events.getElementText());
+        assertEquals(XMLStreamConstants.END_ELEMENT, events.next());
+        assertEquals("response", events.getLocalName());
+        assertEquals(XMLStreamConstants.END_DOCUMENT, events.next());
+        assertEquals(false, events.hasNext());
+        events.close();
+    }
+
+    /**
+     * Namespace prefixes are removed from the elements of the opened body.
+     *
+     * @throws SOAPException
+     * @throws XMLStreamException
+     */
+    public void testOpenBodyOmitNamespace() throws SOAPException, XMLStreamException {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:response><ts1:data>1</ts1:data></ts1:response></ts1:getRandomResponse>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            XMLStreamReader events = reader.openBody(true);
+            assertEquals(XMLStreamConstants.START_ELEMENT, events.nextTag());
+            assertEquals("", events.getPrefix());
+            assertEquals(0, events.getNamespaceCount());
+            assertEquals(XMLStreamConstants.START_ELEMENT, events.nextTag());
+            assertEquals("", events.getPrefix());
+            assertEquals("data", events.getLocalName());
+        }
+    }
+
+    /**
+     * Non-technical error at the start of the response wrapper is detected
+     * when the body is opened.
+     *
+     * @throws SOAPException
+     */
+    public void testOpenBodyNonTechnicalError() throws SOAPException {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:response> <faultCode>ERROR-1</faultCode><faultString>Not found</faultString></ts1:response>"
+                + "</ts1:getRandomResponse>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            assertEquals(null, reader.openBody(true));
+            assertEquals(false, reader.isBodyOpen());
+            assertEquals(true, reader.hasError());
+            assertEquals("ERROR-1", reader.getErrorMessage().getFaultCode());
+            assertEquals("Not found", reader.getErrorMessage().getFaultString());
+        }
+    }
+
+    /**
+     * Body of a SOAP fault is not opened.
+     *
+     * @throws SOAPException
+     */
+    public void testOpenBodySoapFault() throws SOAPException {
+        String body = "<SOAP-ENV:Fault><faultcode>Server.ServerProxy.ServiceFailed</faultcode>"
+                + "<faultstring>Service failed</faultstring></SOAP-ENV:Fault>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            assertEquals(null, reader.openBody(false));
+            assertEquals(false, reader.isBodyOpen());
+            assertEquals(true, reader.hasError());
+        }
+    }
+
+    /**
+     * SOAP part of a multipart response is read before the attachment is
+     * opened, and the attachment is read from the same stream.
+     *
+     * @throws Exception
+     */
+    public void testOpenAttachment() throws Exception {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:response><data>1</data></ts1:response></ts1:getRandomResponse>";
+        String message = "--abc\r\nContent-Type: text/xml\r\n\r\n" + ENVELOPE_START + body + ENVELOPE_END
+                + "\r\n--abc\r\nContent-Type: application/octet-stream\r\nContent-Length: 3\r\n\r\nxyz\r\n--abc--\r\n";
+        MultipartReader parts = new MultipartReader(new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8)), "abc");
+        assertEquals(true, parts.next());
+        SOAPResponseReader reader = SOAPResponseReader.read(parts.getContent(), null, true);
+        reader.setParts(parts);
+        assertEquals(true, reader.isMultipart());
+        assertEquals("<response><data>1</data></response>", reader.readBody(true));
+        ResponseAttachment attachment = reader.openAttachment();
+        assertEquals(true, reader.isAttachmentOpen());
+        assertEquals("application/octet-stream", attachment.getContentType());
+        assertEquals(3, attachment.getSize());
+        byte[] content = new byte[10];
+        assertEquals(3, attachment.getRawContent().read(content));
+        assertEquals("xyz", new String(content, 0, 3, StandardCharsets.UTF_8));
+        assertEquals(-1, attachment.getRawContent().read(content));
+        attachment.close();
+        assertEquals(false, reader.isAttachmentOpen());
+    }
+
+    /**
+     * Responses that are not multipart messages don't have attachments.
+     *
+     * @throws SOAPException
+     */
+    public void testOpenAttachmentNotMultipart() throws SOAPException {
+        String body = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:response><data>1</data></ts1:response></ts1:getRandomResponse>";
+        try (SOAPResponseReader reader = SOAPResponseReader.read(toStream(body), null, true)) {
+            assertEquals(false, reader.isMultipart());
+            assertEquals(null, reader.openAttachment());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.pkrete.restgateway.client;
+
+import com.pkrete.restgateway.util.Constants;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for SecurityServerBalancer class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class SecurityServerBalancerTest extends TestCase {
+
+    private static final String URL_1 = "http://ss1.example.com/";
+    private static final String URL_2 = "http://ss2.example.com/";
+
+    private SecurityServerBalancer balancer;
+
+    /**
+     * Set up instance variables used in test cases.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.balancer = new SecurityServerBalancer(Arrays.asList(URL_1, URL_2), 2, 1000, 500);
+    }
+
+    /**
+     * Parse comma separated list of URLs.
+     */
+    public void testParseUrls1() {
+        List<String> urls = SecurityServerBalancer.parseUrls(" " + URL_1 + " ,, " + URL_2 + ",");
+        assertEquals(Arrays.asList(URL_1, URL_2), urls);
+    }
+
+    /**
+     * Parse single URL and null value.
+     */
+    public void testParseUrls2() {
+        assertEquals(Arrays.asList(URL_1), SecurityServerBalancer.parseUrls(URL_1));
+        assertEquals(0, SecurityServerBalancer.parseUrls(null).size());
+    }
+
+    /**
+     * Create balancer from properties.
+     */
+    public void testCreate1() {
+        Properties props = new Properties();
+        props.setProperty(Constants.CONSUMER_PROPS_SECURITY_SERVER_URL, URL_1 + "," + URL_2);
+        SecurityServerBalancer result = SecurityServerBalancer.create(props);
+        assertEquals(2, result.getServers().size());
+        assertEquals(URL_2, result.getServers().get(1).getUrl());
+    }
+
+    /**
+     * Creating balancer without URLs fails.
+     */
+    public void testCreate2() {
+        try {
+            SecurityServerBalancer.create(new Properties());
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Server with the least requests in progress is selected.
+     */
+    public void testAcquire1() {
+        SecurityServer first = this.balancer.acquire(0);
+        SecurityServer second = this.balancer.acquire(0);
+        assertEquals(URL_1, first.getUrl());
+        assertEquals(URL_2, second.getUrl());
+        assertEquals(1, first.getInFlight());
+        assertEquals(1, second.getInFlight());
+        this.balancer.release(first, 10, false, 0);
+        assertEquals(0, first.getInFlight());
+        assertEquals(URL_1, this.balancer.acquire(0).getUrl());
+    }
+
+    /**
+     * Server with the lowest latency is selected if the number of requests in
+     * progress is the same.
+     */
+    public void testAcquire2() {
+        SecurityServer first = this.balancer.acquire(0);
+        SecurityServer second = this.balancer.acquire(0);
+        this.balancer.release(first, 200, false, 0);
+        this.balancer.release(second, 100, false, 0);
+        assertEquals(200, Math.round(first.getEwmaLatency()));
+        assertEquals(100, Math.round(second.getEwmaLatency()));
+        assertEquals(URL_2, this.balancer.acquire(0).getUrl());
+    }
+
+    /**
+     * Latency is an exponentially weighted moving average.
+     */
+    public void testEwmaLatency() {
+        SecurityServer server = this.balancer.getServers().get(0);
+        server.start();
+        this.balancer.release(server, 100, false, 0);
+        server.start();
+        this.balancer.release(server, 200, false, 0);
+        assertEquals(120, Math.round(server.getEwmaLatency()));
+    }
+
+    /**
+     * Server is ejected after consecutive failures and it gets requests again
+     * when the eject time has passed.
+     */
+    public void testEject1() {
+        SecurityServer server = this.balancer.getServers().get(0);
+        this.balancer.release(this.balancer.acquire(0), 10, true, 0);
+        assertEquals(false, server.isEjected(0));
+        this.balancer.release(this.balancer.acquire(0), 10, true, 0);
+        assertEquals(true, server.isEjected(0));
+        assertEquals(2, server.getFailures());
+        assertEquals(URL_2, this.balancer.acquire(500).getUrl());
+        assertEquals(URL_2, this.balancer.acquire(500).getUrl());
+        // Eject time has passed
+        assertEquals(false, server.isEjected(1000));
+        assertEquals(URL_1, this.balancer.acquire(1000).getUrl());
+    }
+
+    /**
+     * Slow requests are counted as failures and a successful request resets
+     * the count.
+     */
+    public void testEject2() {
+        SecurityServerBalancer single = new SecurityServerBalancer(Arrays.asList(URL_1), 2, 1000, 500);
+        SecurityServer server = single.getServers().get(0);
+        single.release(single.acquire(0), 600, false, 0);
+        assertEquals(1, server.getConsecutiveFailures());
+        single.release(single.acquire(0), 100, false, 0);
+        assertEquals(0, server.getConsecutiveFailures());
+        single.release(single.acquire(0), 600, false, 0);
+        single.release(single.acquire(0), 600, false, 0);
+        assertEquals(true, server.isEjected(0));
+        assertEquals(0, server.getFailures());
+    }
+
+    /**
+     * If all the servers are ejected, the server whose ejection ends first is
+     * used.
+     */
+    public void testEject3() {
+        SecurityServer first = this.balancer.getServers().get(0);
+        SecurityServer second = this.balancer.getServers().get(1);
+        this.balancer.release(this.balancer.acquire(0), 10, true, 0);
+        this.balancer.release(this.balancer.acquire(0), 10, true, 0);
+        assertEquals(true, first.isEjected(0));
+        this.balancer.release(this.balancer.acquire(100), 10, true, 100);
+        this.balancer.release(this.balancer.acquire(100), 10, true, 100);
+        assertEquals(true, second.isEjected(100));
+        assertEquals(URL_1, this.balancer.acquire(200).getUrl());
+    }
+}
@@ -0,0 +1,42 @@
+package com.pkrete.restgateway.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for AttachmentWriter class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class AttachmentWriterTest extends TestCase {
+
+    /**
+     * Content length is known only if no transfer encoding is used.
+     */
+    public void testGetContentLength() {
+        assertEquals(100, AttachmentWriter.getContentLength(null, 100));
+        assertEquals(100, AttachmentWriter.getContentLength(new String[]{"binary"}, 100));
+        assertEquals(100, AttachmentWriter.getContentLength(new String[]{" 8BIT "}, 100));
+        assertEquals(-1, AttachmentWriter.getContentLength(new String[]{"base64"}, 100));
+        assertEquals(-1, AttachmentWriter.getContentLength(new String[]{"quoted-printable"}, 100));
+        assertEquals(-1, AttachmentWriter.getContentLength(null, -1));
+    }
+
+    /**
+     * Binary content larger than the buffer is copied unmodified.
+     *
+     * @throws IOException
+     */
+    public void testCopy() throws IOException {
+        byte[] data = new byte[AttachmentWriter.BUFFER_SIZE * 2 + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length, AttachmentWriter.copy(new ByteArrayInputStream(data), out));
+        assertEquals(true, Arrays.equals(data, out.toByteArray()));
+    }
+}
@@ -0,0 +1,130 @@
+package com.pkrete.restgateway.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for RequestBody class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class RequestBodyTest extends TestCase {
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    /**
+     * Empty body.
+     *
+     * @throws IOException
+     */
+    public void testRead1() throws IOException {
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(new byte[0]), 100, null);
+        assertEquals(true, body.isEmpty());
+        assertEquals(false, body.isSpilled());
+        assertEquals(0, readAll(body.getInputStream()).length);
+    }
+
+    /**
+     * Body below the threshold is kept in memory. Line breaks are preserved.
+     *
+     * @throws IOException
+     */
+    public void testRead2() throws IOException {
+        String str = "{\n  \"key\": \"ä\"\n}\n";
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(data), 100, null);
+        assertEquals(data.length, body.getSize());
+        assertEquals(false, body.isSpilled());
+        assertEquals(str, body.toString(StandardCharsets.UTF_8));
+        assertEquals(str, new String(readAll(body.getDataSource("application/json").getInputStream()), StandardCharsets.UTF_8));
+        assertEquals("application/json", body.getDataSource("application/json").getContentType());
+        body.close();
+    }
+
+    /**
+     * Body above the threshold is written to a temporary file that's deleted
+     * on close.
+     *
+     * @throws IOException
+     */
+    public void testRead3() throws IOException {
+        byte[] data = createData(50000);
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(data), 10000, null);
+        assertEquals(data.length, body.getSize());
+        assertEquals(true, body.isSpilled());
+        byte[] result = readAll(body.getInputStream());
+        assertEquals(true, Arrays.equals(data, result));
+        // Body can be read more than once
+        result = readAll(body.getDataSource(null).getInputStream());
+        assertEquals(true, Arrays.equals(data, result));
+        assertEquals("application/octet-stream", body.getDataSource(null).getContentType());
+        body.close();
+        try {
+            body.getInputStream();
+            fail("Temporary file should have been deleted.");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Body that's exactly the size of the threshold is kept in memory.
+     *
+     * @throws IOException
+     */
+    public void testRead4() throws IOException {
+        byte[] data = createData(10000);
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(data), 10000, null);
+        assertEquals(false, body.isSpilled());
+        assertEquals(true, Arrays.equals(data, readAll(body.getInputStream())));
+    }
+
+    /**
+     * Body that exceeds the max size is rejected, both in memory and when
+     * spilled to disk. Body that's exactly the max size is accepted.
+     *
+     * @throws IOException
+     */
+    public void testReadMaxSize() throws IOException {
+        byte[] data = createData(20000);
+        try {
+            RequestBody.read(new ByteArrayInputStream(data), 100000, null, 19999);
+            fail("RequestBodyTooLargeException expected");
+        } catch (RequestBodyTooLargeException ex) {
+            assertEquals(19999, ex.getMaxSize());
+        }
+        try {
+            RequestBody.read(new ByteArrayInputStream(data), 10000, null, 19999);
+            fail("RequestBodyTooLargeException expected");
+        } catch (RequestBodyTooLargeException ex) {
+            assertEquals(19999, ex.getMaxSize());
+        }
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(data), 10000, null, 20000);
+        assertEquals(20000, body.getSize());
+        body.close();
+        // Zero means no limit
+        assertEquals(20000, RequestBody.read(new ByteArrayInputStream(data), 100000, null, 0).getSize());
+    }
+}
@@ -0,0 +1,219 @@
+package com.pkrete.restgateway.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for ResponseBodyWriter class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class ResponseBodyWriterTest extends TestCase {
+
+    /**
+     * Small body is written with Content-Length and without a newline.
+     *
+     * @throws IOException
+     */
+    public void testBuffered() throws IOException {
+        TestResponse response = new TestResponse("UTF-8");
+        ResponseBodyWriter writer = new ResponseBodyWriter(response.proxy, 1024);
+        writer.write("<a>ääkköset €</a>");
+        writer.flush();
+        assertEquals(-1, response.contentLength);
+        assertEquals(0, response.body.size());
+        writer.close();
+        assertEquals(false, writer.isStreaming());
+        byte[] expected = "<a>ääkköset €</a>".getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, response.contentLength);
+        assertEquals(true, Arrays.equals(expected, response.body.toByteArray()));
+        assertEquals(true, response.closed);
+    }
+
+    /**
+     * Body larger than the buffer max size is streamed without
+     * Content-Length.
+     *
+     * @throws IOException
+     */
+    public void testStreaming() throws IOException {
+        TestResponse response = new TestResponse("UTF-8");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append("<value>").append(i).append("ä</value>");
+        }
+        String body = builder.toString();
+        try (ResponseBodyWriter writer = new ResponseBodyWriter(response.proxy, 16384)) {
+            for (int i = 0; i < body.length(); i += 100) {
+                writer.write(body, i, Math.min(100, body.length() - i));
+            }
+            assertEquals(true, writer.isStreaming());
+        }
+        assertEquals(-1, response.contentLength);
+        assertEquals(body, new String(response.body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writer that's switched to streaming mode writes the body on each flush
+     * and doesn't capture it.
+     *
+     * @throws IOException
+     */
+    public void testStartStreaming() throws IOException {
+        TestResponse response = new TestResponse("UTF-8");
+        ResponseBodyWriter writer = new ResponseBodyWriter(response.proxy, 1024);
+        writer.setCaptureBody(true);
+        writer.write("{\"id\":1}\n");
+        writer.startStreaming();
+        assertEquals(true, writer.isStreaming());
+        assertEquals("{\"id\":1}\n", new String(response.body.toByteArray(), StandardCharsets.UTF_8));
+        writer.write("{\"id\":2}\n");
+        writer.flush();
+        assertEquals("{\"id\":1}\n{\"id\":2}\n", new String(response.body.toByteArray(), StandardCharsets.UTF_8));
+        writer.close();
+        assertEquals(-1, response.contentLength);
+        assertEquals(null, writer.getBody());
+        assertEquals(true, response.closed);
+    }
+
+    /**
+     * Surrogate pair that's split between two writes is encoded correctly.
+     *
+     * @throws IOException
+     */
+    public void testSurrogatePair() throws IOException {
+        TestResponse response = new TestResponse("UTF-8");
+        String str = "a\uD83D\uDE00b";
+        try (Writer writer = new ResponseBodyWriter(response.proxy, 1024)) {
+            writer.write(str, 0, 2);
+            writer.write(str.charAt(2));
+            writer.write(str, 3, 1);
+        }
+        assertEquals(str, new String(response.body.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(6, response.contentLength);
+    }
+
+    /**
+     * Character set of the response is used and the buffer is reused.
+     *
+     * @throws IOException
+     */
+    public void testCharset() throws IOException {
+        TestResponse response = new TestResponse("ISO-8859-1");
+        try (Writer writer = new ResponseBodyWriter(response.proxy, 1024)) {
+            writer.write("äö");
+        }
+        assertEquals(true, Arrays.equals(new byte[]{(byte) 0xe4, (byte) 0xf6}, response.body.toByteArray()));
+        response = new TestResponse("UTF-8");
+        try (Writer writer = new ResponseBodyWriter(response.proxy, 1024)) {
+            writer.write("äö");
+        }
+        assertEquals(4, response.contentLength);
+    }
+
+    /**
+     * Buffers of closed writers are returned to the pool and the pool is
+     * bounded, regardless of the number of concurrent writers.
+     *
+     * @throws IOException
+     */
+    public void testPool() throws IOException {
+        List<ResponseBodyWriter> writers = new ArrayList<>();
+        for (int i = 0; i < ResponseBodyWriter.POOL_SIZE + 10; i++) {
+            writers.add(new ResponseBodyWriter(new TestResponse("UTF-8").proxy, 1024));
+        }
+        assertEquals(0, ResponseBodyWriter.getPooledBuffers());
+        for (ResponseBodyWriter writer : writers) {
+            writer.write("test");
+            writer.close();
+        }
+        assertEquals(ResponseBodyWriter.POOL_SIZE, ResponseBodyWriter.getPooledBuffers());
+    }
+
+    /**
+     * Content-Length is not set if an output stream is given.
+     *
+     * @throws IOException
+     */
+    public void testOutputStream() throws IOException {
+        TestResponse response = new TestResponse("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Writer writer = new ResponseBodyWriter(response.proxy, out, 1024)) {
+            writer.write("test");
+        }
+        assertEquals(-1, response.contentLength);
+        assertEquals("test", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encoded body is written with Content-Length.
+     *
+     * @throws IOException
+     */
+    public void testWriteBytes() throws IOException {
+        TestResponse response = new TestResponse("UTF-8");
+        byte[] body = "{\"error\":\"404 Not Found\"}".getBytes(StandardCharsets.UTF_8);
+        ResponseBodyWriter.write(response.proxy, body);
+        assertEquals(body.length, response.contentLength);
+        assertEquals(true, Arrays.equals(body, response.body.toByteArray()));
+    }
+
+    /**
+     * HttpServletResponse that records the Content-Length and the body.
+     */
+    private static class TestResponse implements InvocationHandler {
+
+        private final String charset;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final HttpServletResponse proxy;
+        private int contentLength = -1;
+        private boolean closed;
+
+        TestResponse(String charset) {
+            this.charset = charset;
+            this.proxy = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getCharacterEncoding":
+                    return this.charset;
+                case "setContentLength":
+                    assertEquals(0, this.body.size());
+                    this.contentLength = (Integer) args[0];
+                    return null;
+                case "getOutputStream":
+                    return new ServletOutputStream() {
+                        @Override
+                        public void write(int b) {
+                            body.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                            body.write(b, off, len);
+                        }
+
+                        @Override
+                        public void close() {
+                            closed = true;
+                        }
+                    };
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.pkrete.restgateway.io;
+
+import com.pkrete.restgateway.util.Constants;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for ResponseCompression and CompressingOutputStream classes.
+ *
+ * @author Petteri Kivimäki
+ */
+public class ResponseCompressionTest extends TestCase {
+
+    /**
+     * No Accept-Encoding header or identity only.
+     */
+    public void testNegotiate1() {
+        assertEquals(null, ResponseCompression.negotiate(null));
+        assertEquals(null, ResponseCompression.negotiate(""));
+        assertEquals(null, ResponseCompression.negotiate("identity"));
+        assertEquals(null, ResponseCompression.negotiate("br"));
+    }
+
+    /**
+     * Gzip is preferred over deflate.
+     */
+    public void testNegotiate2() {
+        assertEquals(ResponseCompression.GZIP, ResponseCompression.negotiate("gzip"));
+        assertEquals(ResponseCompression.GZIP, ResponseCompression.negotiate("deflate, gzip"));
+        assertEquals(ResponseCompression.GZIP, ResponseCompression.negotiate("gzip, deflate, br"));
+        assertEquals(ResponseCompression.GZIP, ResponseCompression.negotiate("x-gzip"));
+        assertEquals(ResponseCompression.DEFLATE, ResponseCompression.negotiate("deflate"));
+    }
+
+    /**
+     * Quality values.
+     */
+    public void testNegotiate3() {
+        assertEquals(ResponseCompression.DEFLATE, ResponseCompression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(ResponseCompression.GZIP, ResponseCompression.negotiate("gzip;q=0.8, deflate;q=0.7"));
+        assertEquals(ResponseCompression.DEFLATE, ResponseCompression.negotiate("gzip;q=0, deflate"));
+        assertEquals(null, ResponseCompression.negotiate("gzip;q=0, deflate;q=0"));
+        assertEquals(null, ResponseCompression.negotiate("gzip;q=abc"));
+        assertEquals(ResponseCompression.GZIP, ResponseCompression.negotiate("GZIP ; Q=1.0"));
+    }
+
+    /**
+     * Wildcard matches the encodings that are not listed.
+     */
+    public void testNegotiate4() {
+        assertEquals(ResponseCompression.GZIP, ResponseCompression.negotiate("*"));
+        assertEquals(ResponseCompression.DEFLATE, ResponseCompression.negotiate("gzip;q=0, *"));
+        assertEquals(null, ResponseCompression.negotiate("*;q=0"));
+        assertEquals(ResponseCompression.DEFLATE, ResponseCompression.negotiate("deflate, *;q=0"));
+    }
+
+    /**
+     * Only textual content types are compressed.
+     */
+    public void testIsCompressible() {
+        assertEquals(true, ResponseCompression.isCompressible("text/xml; charset=UTF-8"));
+        assertEquals(true, ResponseCompression.isCompressible("text/plain"));
+        assertEquals(true, ResponseCompression.isCompressible("application/json;charset=UTF-8"));
+        assertEquals(true, ResponseCompression.isCompressible("Application/XML"));
+        assertEquals(true, ResponseCompression.isCompressible("application/soap+xml"));
+        assertEquals(true, ResponseCompression.isCompressible("application/hal+json"));
+        assertEquals(true, ResponseCompression.isCompressible("application/x-ndjson; charset=UTF-8"));
+        assertEquals(false, ResponseCompression.isCompressible("application/pdf"));
+        assertEquals(false, ResponseCompression.isCompressible("image/png"));
+        assertEquals(false, ResponseCompression.isCompressible(null));
+    }
+
+    /**
+     * Default and configured values.
+     */
+    public void testCreate() {
+        Properties props = new Properties();
+        ResponseCompression compression = ResponseCompression.create(props);
+        assertEquals(true, compression.isEnabled());
+        assertEquals(ResponseCompression.DEFAULT_MIN_SIZE, compression.getMinSize());
+        props.setProperty(Constants.CONSUMER_PROPS_RESPONSE_COMPRESSION, "false");
+        props.setProperty(Constants.CONSUMER_PROPS_RESPONSE_COMPRESSION_MIN_SIZE, "2048");
+        compression = ResponseCompression.create(props);
+        assertEquals(false, compression.isEnabled());
+        assertEquals(2048, compression.getMinSize());
+    }
+
+    /**
+     * Data smaller than the minimum size is not compressed.
+     *
+     * @throws IOException
+     */
+    public void testBelowMinSize() throws IOException {
+        TestStream out = new TestStream(ResponseCompression.GZIP, 100);
+        byte[] data = createData(99);
+        out.write(data, 0, 50);
+        out.flush();
+        assertEquals(false, out.opened);
+        out.write(data, 50, 49);
+        out.close();
+        assertEquals(true, out.opened);
+        assertEquals(null, out.encoding);
+        assertEquals(99, out.contentLength);
+        assertEquals(false, out.isCompressed());
+        assertEquals(true, Arrays.equals(data, out.target.toByteArray()));
+    }
+
+    /**
+     * Data that reaches the minimum size is compressed using gzip.
+     *
+     * @throws IOException
+     */
+    public void testGzip() throws IOException {
+        TestStream out = new TestStream(ResponseCompression.GZIP, 100);
+        byte[] data = createData(100000);
+        out.write(data[0]);
+        out.write(data, 1, 98);
+        assertEquals(false, out.opened);
+        out.write(data, 99, data.length - 99);
+        assertEquals(true, out.isCompressed());
+        out.close();
+        assertEquals(ResponseCompression.GZIP, out.encoding);
+        assertEquals(-1, out.contentLength);
+        assertEquals(true, out.target.size() < data.length);
+        assertEquals(true, Arrays.equals(data, read(new GZIPInputStream(new ByteArrayInputStream(out.target.toByteArray())))));
+    }
+
+    /**
+     * Data that reaches the minimum size is compressed using deflate.
+     *
+     * @throws IOException
+     */
+    public void testDeflate() throws IOException {
+        TestStream out = new TestStream(ResponseCompression.DEFLATE, 100);
+        byte[] data = createData(100);
+        out.write(data, 0, data.length);
+        out.close();
+        out.close();
+        assertEquals(ResponseCompression.DEFLATE, out.encoding);
+        assertEquals(true, Arrays.equals(data, read(new InflaterInputStream(new ByteArrayInputStream(out.target.toByteArray())))));
+    }
+
+    /**
+     * Flushing compressed data writes all the data written so far.
+     *
+     * @throws Exception
+     */
+    public void testSyncFlush() throws Exception {
+        TestStream out = new TestStream(ResponseCompression.DEFLATE, 100);
+        byte[] data = createData(1000);
+        out.write(data, 0, data.length);
+        out.flush();
+        Inflater inflater = new Inflater();
+        inflater.setInput(out.target.toByteArray());
+        byte[] result = new byte[2000];
+        assertEquals(data.length, inflater.inflate(result));
+        inflater.end();
+        assertEquals(true, Arrays.equals(data, Arrays.copyOf(result, data.length)));
+        out.close();
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + (i % 26));
+        }
+        return data;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AttachmentWriter.copy(in, out);
+        return out.toByteArray();
+    }
+
+    private static class TestStream extends CompressingOutputStream {
+
+        private final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        private boolean opened;
+        private String encoding;
+        private int contentLength;
+
+        TestStream(String contentEncoding, int minSize) {
+            super(contentEncoding, minSize);
+        }
+
+        @Override
+        protected OutputStream open(String contentEncoding, int contentLength) {
+            assertEquals(false, this.opened);
+            this.opened = true;
+            this.encoding = contentEncoding;
+            this.contentLength = contentLength;
+            return this.target;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.pkrete.restgateway.router;
+
+import com.pkrete.restgateway.endpoint.ConsumerEndpoint;
+import java.util.Map;
+import java.util.TreeMap;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for ConsumerRouter class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class ConsumerRouterTest extends TestCase {
+
+    private ConsumerRouter router;
+
+    /**
+     * Initializes instance variables for test cases.
+     *
+     * @throws Exception
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Map<String, ConsumerEndpoint> endpoints = new TreeMap<>();
+        add(endpoints, "GET", "/example.com/api/", "list");
+        add(endpoints, "GET", "/example.com/api/{resourceId}/", "single");
+        add(endpoints, "POST", "/example.com/api/", "create");
+        add(endpoints, "GET", "/example.com/api/{resourceId}/items/{resourceId}/", "item");
+        add(endpoints, "GET", "/example.com/api/special/items/", "special");
+        add(endpoints, "GET", "/example.com/api/special/items/{resourceId}/", "specialItem");
+        add(endpoints, "GET", "/example.com/orders/{resourceId}/", "orderCapture");
+        add(endpoints, "GET", "/example.com/orders/latest/", "orderLatest");
+        add(endpoints, "GET", "/example.com/{resourceId}/history/", "history");
+        add(endpoints, "GET", "/example.com/docs/id-{resourceId}/", "document");
+        add(endpoints, "GET", "/example.com/{resourceId}_v2/history/", "historyV2");
+        add(endpoints, "GET", "/example.com/orders/id-{resourceId}/", "orderId");
+        this.router = new ConsumerRouter(endpoints);
+    }
+
+    private static void add(Map<String, ConsumerEndpoint> endpoints, String verb, String path, String serviceId) {
+        endpoints.put(verb + " " + path, new ConsumerEndpoint(serviceId, null, path));
+    }
+
+    /**
+     * Exact match without resource id.
+     */
+    public void testRoute1() {
+        RouteMatch match = this.router.route("GET", "/example.com/api/");
+        assertEquals("list", match.getEndpoint().getServiceId());
+        assertEquals(null, match.getResourceId());
+    }
+
+    /**
+     * Match with a single resource id.
+     */
+    public void testRoute2() {
+        RouteMatch match = this.router.route("GET", "/example.com/api/12345-6/");
+        assertEquals("single", match.getEndpoint().getServiceId());
+        assertEquals("12345-6", match.getResourceId());
+    }
+
+    /**
+     * Match with two resource ids. Resource id is the rest of the path starting
+     * from the first resource id.
+     */
+    public void testRoute3() {
+        RouteMatch match = this.router.route("GET", "/example.com/api/123/items/456/");
+        assertEquals("item", match.getEndpoint().getServiceId());
+        assertEquals("123/items/456", match.getResourceId());
+    }
+
+    /**
+     * HTTP verb must match.
+     */
+    public void testRoute4() {
+        assertEquals("create", this.router.route("POST", "/example.com/api/").getEndpoint().getServiceId());
+        assertEquals(null, this.router.route("POST", "/example.com/api/123/"));
+        assertEquals(null, this.router.route("DELETE", "/example.com/api/"));
+    }
+
+    /**
+     * Resource id can contain only word characters and hyphens.
+     */
+    public void testRoute5() {
+        assertEquals(null, this.router.route("GET", "/example.com/api/12.3/"));
+        assertEquals(null, this.router.route("GET", "/example.com/api/12%203/"));
+    }
+
+    /**
+     * Resource id can't be empty.
+     */
+    public void testRoute6() {
+        assertEquals(null, this.router.route("GET", "/example.com/api//"));
+    }
+
+    /**
+     * Resource id capture is preferred over literal segment, if both match.
+     */
+    public void testRoute7() {
+        RouteMatch match = this.router.route("GET", "/example.com/api/special/items/7/");
+        assertEquals("item", match.getEndpoint().getServiceId());
+        assertEquals("special/items/7", match.getResourceId());
+    }
+
+    /**
+     * Exact match is preferred over resource id capture.
+     */
+    public void testRoute8() {
+        RouteMatch match = this.router.route("GET", "/example.com/orders/latest/");
+        assertEquals("orderLatest", match.getEndpoint().getServiceId());
+        match = this.router.route("GET", "/example.com/api/special/items/");
+        assertEquals("special", match.getEndpoint().getServiceId());
+    }
+
+    /**
+     * Search backtracks to literal segment if resource id capture does not
+     * lead to an endpoint.
+     */
+    public void testRoute9() {
+        RouteMatch match = this.router.route("GET", "/example.com/orders/history/");
+        assertEquals("history", match.getEndpoint().getServiceId());
+        assertEquals("orders/history", match.getResourceId());
+        match = this.router.route("GET", "/example.com/orders/99/");
+        assertEquals("orderCapture", match.getEndpoint().getServiceId());
+        assertEquals("99", match.getResourceId());
+    }
+
+    /**
+     * Resource id inside a segment is matched using regular expression.
+     */
+    public void testRoute10() {
+        RouteMatch match = this.router.route("GET", "/example.com/docs/id-abc/");
+        assertEquals("document", match.getEndpoint().getServiceId());
+        assertEquals("abc", match.getResourceId());
+    }
+
+    /**
+     * Trie routes and regular expression routes are matched in descending
+     * order by service id.
+     */
+    public void testRoute12() {
+        RouteMatch match = this.router.route("GET", "/example.com/abc_v2/history/");
+        assertEquals("historyV2", match.getEndpoint().getServiceId());
+        match = this.router.route("GET", "/example.com/abc/history/");
+        assertEquals("history", match.getEndpoint().getServiceId());
+        assertEquals("abc/history", match.getResourceId());
+        match = this.router.route("GET", "/example.com/orders/id-5/");
+        assertEquals("orderCapture", match.getEndpoint().getServiceId());
+        assertEquals("id-5", match.getResourceId());
+    }
+
+    /**
+     * No match.
+     */
+    public void testRoute11() {
+        assertEquals(null, this.router.route("GET", "/example.com/"));
+        assertEquals(null, this.router.route("GET", "/unknown.com/api/"));
+        assertEquals(null, this.router.route("GET", "/example.com/api/1/items/"));
+    }
+}
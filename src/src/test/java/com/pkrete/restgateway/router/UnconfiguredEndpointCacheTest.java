@@ -0,0 +1,87 @@
+package com.pkrete.restgateway.router;
+
+import com.pkrete.restgateway.endpoint.ConsumerEndpoint;
+import com.pkrete.restgateway.util.ConsumerGatewayUtil;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for UnconfiguredEndpointCache class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class UnconfiguredEndpointCacheTest extends TestCase {
+
+    private static RouteMatch createMatch(String serviceId) {
+        return new RouteMatch(new ConsumerEndpoint(serviceId, null, ""), null);
+    }
+
+    /**
+     * Hits and misses are counted.
+     */
+    public void testGet1() {
+        UnconfiguredEndpointCache cache = new UnconfiguredEndpointCache(10);
+        RouteMatch match = createMatch("a");
+        assertEquals(null, cache.get("a"));
+        cache.put("a", match);
+        assertSame(match, cache.get("a"));
+        assertSame(match, cache.get("a"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+        assertEquals("entries=1/10, hits=2, misses=1", cache.getStats());
+    }
+
+    /**
+     * Null values are not cached.
+     */
+    public void testPut1() {
+        UnconfiguredEndpointCache cache = new UnconfiguredEndpointCache(10);
+        cache.put("a", null);
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Least recently used entry is evicted when the cache is full.
+     */
+    public void testEviction1() {
+        UnconfiguredEndpointCache cache = new UnconfiguredEndpointCache(2);
+        cache.put("a", createMatch("a"));
+        cache.put("b", createMatch("b"));
+        // Access "a" so that "b" becomes the least recently used entry
+        assertNotNull(cache.get("a"));
+        cache.put("c", createMatch("c"));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    /**
+     * Requests to different resources of the same service share the cached
+     * endpoint, and the resource id is parsed per request.
+     */
+    public void testResourceId1() {
+        String[] ids = ConsumerGatewayUtil.parseUnconfiguredResourcePath("/FI_PILOT.GOV.1019125-0.Demo2Service.getOrganizationList.v1/123/");
+        assertEquals("FI_PILOT.GOV.1019125-0.Demo2Service.getOrganizationList.v1", ids[0]);
+        assertEquals("123", ids[1]);
+        ids = ConsumerGatewayUtil.parseUnconfiguredResourcePath("/FI_PILOT.GOV.1019125-0.Demo2Service.getOrganizationList.v1/");
+        assertEquals("FI_PILOT.GOV.1019125-0.Demo2Service.getOrganizationList.v1", ids[0]);
+        assertEquals(null, ids[1]);
+        UnconfiguredEndpointCache cache = new UnconfiguredEndpointCache(10);
+        cache.put(ids[0], createMatch(ids[0]));
+        assertNotNull(cache.get(ConsumerGatewayUtil.parseUnconfiguredResourcePath("/" + ids[0] + "/456/")[0]));
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Size must be positive.
+     */
+    public void testConstructor1() {
+        try {
+            new UnconfiguredEndpointCache(0);
+            fail("IllegalArgumentException expected.");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}
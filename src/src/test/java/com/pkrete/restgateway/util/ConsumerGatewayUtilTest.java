@@ -5,7 +5,11 @@ import com.pkrete.xrd4j.common.member.ConsumerMember;
 import com.pkrete.xrd4j.common.member.ProducerMember;
 import com.pkrete.xrd4j.common.util.SOAPHelper;
 import com.pkrete.restgateway.endpoint.ConsumerEndpoint;
+import com.pkrete.restgateway.router.ConsumerRouter;
+import com.pkrete.restgateway.router.RouteMatch;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import junit.framework.TestCase;
@@ -24,7 +28,7 @@ import junit.framework.TestCase;
 public class ConsumerGatewayUtilTest extends TestCase {
 
     private String servletUrl;
-    private Map<String, ConsumerEndpoint> map;
+    private ConsumerRouter router;
 
     /**
      * Initializes instance variables for test cases.
@@ -72,7 +76,9 @@ public class ConsumerGatewayUtilTest extends TestCase {
         endpoints.put("4." + Constants.CONSUMER_PROPS_PATH, "/example.com/api");
         endpoints.put("4." + Constants.CONSUMER_PROPS_ID_CLIENT, "FI_PILOT.GOV0245437-2");
         // Extract endpoints
-        this.map = ConsumerGatewayUtil.extractConsumers(endpoints, props);
+        Map<String, ConsumerEndpoint> map = ConsumerGatewayUtil.extractConsumers(endpoints, props);
+        // Build routing index
+        this.router = new ConsumerRouter(map);
     }
 
     /**
@@ -258,12 +264,13 @@ public class ConsumerGatewayUtilTest extends TestCase {
      * @throws XRd4JException if there's a XRd4J error
      */
     public void testExtractConsumer0() throws XRd4JException {
-        ConsumerEndpoint temp = ConsumerGatewayUtil.findMatch("GET /www.hel.fi/palvelukarttaws/rest/v2/organization/", map);
+        RouteMatch match = router.route("GET", "/www.hel.fi/palvelukarttaws/rest/v2/organization/");
+        ConsumerEndpoint temp = match.getEndpoint();
         assertEquals(false, temp == null);
         assertEquals("FI_PILOT.GOV.0245437-2.ConsumerService", temp.getClientId());
         assertEquals("FI_PILOT.GOV.1019125-0.Demo2Service.getOrganizationList.v1", temp.getServiceId());
         assertEquals("/www.hel.fi/palvelukarttaws/rest/v2/organization/", temp.getResourcePath());
-        assertEquals(null, temp.getResourceId());
+        assertEquals(null, match.getResourceId());
         assertEquals(false, temp.isModifyUrl());
         assertEquals("http://serialize.com", temp.getNamespaceSerialize());
         assertEquals("ts1", temp.getPrefix());
@@ -280,12 +287,13 @@ public class ConsumerGatewayUtilTest extends TestCase {
      * @throws XRd4JException if there's a XRd4J error
      */
     public void testExtractConsumer1() throws XRd4JException {
-        ConsumerEndpoint temp = ConsumerGatewayUtil.findMatch("GET /www.hel.fi/palvelukarttaws/rest/v2/organization/49/", map);
+        RouteMatch match = router.route("GET", "/www.hel.fi/palvelukarttaws/rest/v2/organization/49/");
+        ConsumerEndpoint temp = match.getEndpoint();
         assertEquals(false, temp == null);
         assertEquals("FI_PILOT.GOV.0245437-2.TestService", temp.getClientId());
         assertEquals("FI_PILOT.GOV.1019125-0.Demo2Service.getOrganization.v1", temp.getServiceId());
         assertEquals("/www.hel.fi/palvelukarttaws/rest/v2/organization/{resourceId}/", temp.getResourcePath());
-        assertEquals("49", temp.getResourceId());
+        assertEquals("49", match.getResourceId());
         assertEquals(false, temp.isModifyUrl());
         assertEquals("http://serialize.com/custom", temp.getNamespaceSerialize());
         assertEquals("test", temp.getPrefix());
@@ -302,12 +310,13 @@ public class ConsumerGatewayUtilTest extends TestCase {
      * @throws XRd4JException if there's a XRd4J error
      */
     public void testExtractConsumer2() throws XRd4JException {
-        ConsumerEndpoint temp = ConsumerGatewayUtil.findMatch("GET /avoindata.prh.fi/opendata/bis/v1/12345-6/", map);
+        RouteMatch match = router.route("GET", "/avoindata.prh.fi/opendata/bis/v1/12345-6/");
+        ConsumerEndpoint temp = match.getEndpoint();
         assertEquals(false, temp == null);
         assertEquals("FI_PILOT.GOV.0245437-2.ConsumerService", temp.getClientId());
         assertEquals("FI_PILOT.GOV.1019125-0.Demo2Service.getCompany.v1", temp.getServiceId());
         assertEquals("/avoindata.prh.fi/opendata/bis/v1/{resourceId}/", temp.getResourcePath());
-        assertEquals("12345-6", temp.getResourceId());
+        assertEquals("12345-6", match.getResourceId());
         assertEquals(true, temp.isModifyUrl());
         assertEquals("http://serialize.com", temp.getNamespaceSerialize());
         assertEquals("ts1", temp.getPrefix());
@@ -325,12 +334,13 @@ public class ConsumerGatewayUtilTest extends TestCase {
      * @throws XRd4JException if there's a XRd4J error
      */
     public void testExtractConsumer4() throws XRd4JException {
-        ConsumerEndpoint temp = ConsumerGatewayUtil.findMatch("GET /test.com/api/", map);
+        RouteMatch match = router.route("GET", "/test.com/api/");
+        ConsumerEndpoint temp = match.getEndpoint();
         assertEquals(false, temp == null);
         assertEquals("FI_PILOT.GOV.0245437-2.ConsumerService", temp.getClientId());
         assertEquals("FI_PILOT.GOV.1019125-0.testApi.v1", temp.getServiceId());
         assertEquals("/test.com/api/", temp.getResourcePath());
-        assertEquals(null, temp.getResourceId());
+        assertEquals(null, match.getResourceId());
         assertEquals(false, temp.isModifyUrl());
         assertEquals("http://serialize.com", temp.getNamespaceSerialize());
         assertEquals("ts1", temp.getPrefix());
@@ -350,8 +360,8 @@ public class ConsumerGatewayUtilTest extends TestCase {
      * @throws XRd4JException if there's a XRd4J error
      */
     public void testExtractConsumer5() throws XRd4JException {
-        ConsumerEndpoint temp = ConsumerGatewayUtil.findMatch("GET /example.com/api/", map);
-        assertEquals(true, temp == null);
+        RouteMatch match = router.route("GET", "/example.com/api/");
+        assertEquals(true, match == null);
     }
 
     /**
@@ -639,4 +649,46 @@ public class ConsumerGatewayUtilTest extends TestCase {
             fail("Response can't be null");
         }
     }
+
+    /**
+     * Parse request max size.
+     */
+    public void testParseRequestMaxSize() {
+        assertEquals(1024, ConsumerGatewayUtil.parseRequestMaxSize("1024"));
+        assertEquals(1024, ConsumerGatewayUtil.parseRequestMaxSize(" 1024 "));
+        assertEquals(0, ConsumerGatewayUtil.parseRequestMaxSize(null));
+        assertEquals(0, ConsumerGatewayUtil.parseRequestMaxSize(""));
+        assertEquals(0, ConsumerGatewayUtil.parseRequestMaxSize("-1"));
+        assertEquals(0, ConsumerGatewayUtil.parseRequestMaxSize("1MB"));
+    }
+
+    /**
+     * Read parameter from query string.
+     */
+    public void testGetQueryParameter() {
+        String query = "a=1&X-XRd-UserId=EE%201234&empty&X-XRd-UserId=second";
+        assertEquals("EE 1234", ConsumerGatewayUtil.getQueryParameter(query, "X-XRd-UserId"));
+        assertEquals("1", ConsumerGatewayUtil.getQueryParameter(query, "a"));
+        assertEquals("", ConsumerGatewayUtil.getQueryParameter(query, "empty"));
+        assertEquals(null, ConsumerGatewayUtil.getQueryParameter(query, "b"));
+        assertEquals(null, ConsumerGatewayUtil.getQueryParameter(null, "a"));
+    }
+
+    /**
+     * Parse parameters from query string and form body.
+     */
+    public void testAddParameters() {
+        Map<String, String[]> params = new HashMap<>();
+        ConsumerGatewayUtil.addParameters(params, "a=1&b=x%20y&&empty", StandardCharsets.UTF_8);
+        ConsumerGatewayUtil.addParameters(params, "a=2&c=%E4&bad=%zz", StandardCharsets.ISO_8859_1);
+        ConsumerGatewayUtil.addParameters(params, null, StandardCharsets.UTF_8);
+        assertEquals(4, params.size());
+        assertEquals(2, params.get("a").length);
+        assertEquals("1", params.get("a")[0]);
+        assertEquals("2", params.get("a")[1]);
+        assertEquals("x y", params.get("b")[0]);
+        assertEquals("", params.get("empty")[0]);
+        assertEquals("\u00e4", params.get("c")[0]);
+        assertEquals(null, params.get("bad"));
+    }
 }
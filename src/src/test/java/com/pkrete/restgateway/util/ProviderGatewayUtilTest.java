@@ -5,6 +5,10 @@ import com.pkrete.xrd4j.common.member.ConsumerMember;
 import com.pkrete.xrd4j.common.member.ProducerMember;
 import com.pkrete.xrd4j.common.message.ServiceRequest;
 import com.pkrete.restgateway.endpoint.ProviderEndpoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import junit.framework.TestCase;
@@ -58,6 +62,26 @@ public class ProviderGatewayUtilTest extends TestCase {
 
         endpoints.put("4." + Constants.ENDPOINT_PROPS_ID, "FI_PILOT.GOV.1019125-0.Demo2Service.testService.v1");
 
+        endpoints.put("5." + Constants.ENDPOINT_PROPS_ID, "FI_PILOT.GOV.1019125-0.Demo2Service.search.v1");
+        endpoints.put("5." + Constants.PROVIDER_PROPS_URL, "http://search.com/");
+        endpoints.put("5." + Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_CONDITION, "^old_");
+        endpoints.put("5." + Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_OPERATION, "new_");
+        endpoints.put("5." + Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_CONDITION, "\\s+");
+        endpoints.put("5." + Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_OPERATION, "+");
+
+        endpoints.put("6." + Constants.ENDPOINT_PROPS_ID, "FI_PILOT.GOV.1019125-0.Demo2Service.invalidFilter.v1");
+        endpoints.put("6." + Constants.PROVIDER_PROPS_URL, "http://search.com/");
+        endpoints.put("6." + Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_CONDITION, "[");
+        endpoints.put("6." + Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_OPERATION, "x");
+
+        endpoints.put("7." + Constants.ENDPOINT_PROPS_ID, "FI_PILOT.GOV.1019125-0.Demo2Service.invalidValueFilter.v1");
+        endpoints.put("7." + Constants.PROVIDER_PROPS_URL, "http://search.com/");
+        endpoints.put("7." + Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_CONDITION, "(");
+        endpoints.put("7." + Constants.PROVIDER_PROPS_REQUEST_PARAM_VALUE_FILTER_OPERATION, "x");
+
+        endpoints.put("8." + Constants.ENDPOINT_PROPS_ID, "FI_PILOT.GOV.1019125-0.Demo2Service.afterInvalid.v1");
+        endpoints.put("8." + Constants.PROVIDER_PROPS_URL, "http://search.com/");
+
         // Extract endpoints
         this.map = ProviderGatewayUtil.extractProviders(endpoints, props);
     }
@@ -185,4 +209,45 @@ public class ProviderGatewayUtilTest extends TestCase {
         assertEquals(Constants.APPLICATION_JSON, headers.get(Constants.HTTP_HEADER_CONTENT_TYPE));
         assertEquals(Constants.APPLICATION_JSON, headers.get(Constants.HTTP_HEADER_ACCEPT));
     }
+
+    /**
+     * Filter conditions are compiled when the endpoint is extracted, and
+     * parameter names and values are filtered. Request body and resource id
+     * are not filtered.
+     *
+     * @throws XRd4JException if there's a XRd4J error
+     */
+    public void testFilterRequestParameters1() throws XRd4JException {
+        ProviderEndpoint endpoint = this.map.get("FI_PILOT.GOV.1019125-0.Demo2Service.search.v1");
+        assertEquals("^old_", endpoint.getReqParamNameFilterPattern().pattern());
+        assertEquals("\\s+", endpoint.getReqParamValueFilterPattern().pattern());
+        ServiceRequest<Map<String, List<String>>> request = new ServiceRequest<>();
+        Map<String, List<String>> params = new HashMap<>();
+        params.put("old_name", new ArrayList<>(Arrays.asList("a b", "c")));
+        params.put("query", new ArrayList<>(Arrays.asList("x  y")));
+        params.put(Constants.PARAM_RESOURCE_ID, new ArrayList<>(Arrays.asList("old_ 1")));
+        params.put(Constants.PARAM_REQUEST_BODY, new ArrayList<>(Arrays.asList("{ }")));
+        request.setRequestData(params);
+        ProviderGatewayUtil.filterRequestParameters(request, endpoint);
+        assertEquals(4, params.size());
+        assertEquals(false, params.containsKey("old_name"));
+        assertEquals(Arrays.asList("a+b", "c"), params.get("new_name"));
+        assertEquals(Arrays.asList("x+y"), params.get("query"));
+        assertEquals(Arrays.asList("old_ 1"), params.get(Constants.PARAM_RESOURCE_ID));
+        assertEquals(Arrays.asList("{ }"), params.get(Constants.PARAM_REQUEST_BODY));
+    }
+
+    /**
+     * Endpoint with an invalid filter condition is rejected, so it's never
+     * used without the filter. The following endpoints are extracted.
+     */
+    public void testFilterRequestParameters2() {
+        assertEquals(false, this.map.containsKey("FI_PILOT.GOV.1019125-0.Demo2Service.invalidFilter.v1"));
+        assertEquals(false, this.map.containsKey("FI_PILOT.GOV.1019125-0.Demo2Service.invalidValueFilter.v1"));
+        assertEquals(true, this.map.containsKey("FI_PILOT.GOV.1019125-0.Demo2Service.afterInvalid.v1"));
+        Properties endpoints = new Properties();
+        endpoints.put("0." + Constants.PROVIDER_PROPS_REQUEST_PARAM_NAME_FILTER_CONDITION, "[");
+        ProviderEndpoint endpoint = new ProviderEndpoint("FI_PILOT.GOV.1019125-0.Demo2Service.invalidFilter.v1", "http://search.com/");
+        assertEquals(false, ProviderGatewayUtil.extractEndpoints("0", endpoints, endpoint));
+    }
 }
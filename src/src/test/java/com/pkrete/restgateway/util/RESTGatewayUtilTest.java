@@ -1,5 +1,6 @@
 package com.pkrete.restgateway.util;
 
+import java.util.Properties;
 import junit.framework.TestCase;
 
 /**
@@ -50,4 +51,27 @@ public class RESTGatewayUtilTest extends TestCase {
     public void testIsXml6() {
         assertEquals(false, RESTGatewayUtil.isXml("text/html"));
     }
+
+    /**
+     * Test for a valid integer property.
+     */
+    public void testGetPositiveIntProperty1() {
+        Properties props = new Properties();
+        props.setProperty("size", "250");
+        assertEquals(250, RESTGatewayUtil.getPositiveIntProperty(props, "size", 10));
+    }
+
+    /**
+     * Test for a missing, invalid, zero and negative integer property.
+     */
+    public void testGetPositiveIntProperty2() {
+        Properties props = new Properties();
+        assertEquals(10, RESTGatewayUtil.getPositiveIntProperty(props, "size", 10));
+        props.setProperty("size", "abc");
+        assertEquals(10, RESTGatewayUtil.getPositiveIntProperty(props, "size", 10));
+        props.setProperty("size", "0");
+        assertEquals(10, RESTGatewayUtil.getPositiveIntProperty(props, "size", 10));
+        props.setProperty("size", "-5");
+        assertEquals(10, RESTGatewayUtil.getPositiveIntProperty(props, "size", 10));
+    }
 }
@@ -0,0 +1,63 @@
+package com.pkrete.restgateway.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for UrlRewriter class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class UrlRewriterTest extends TestCase {
+
+    private static final String SERVLET_URL = "http://localhost:8080/RESTGateway/Consumer/";
+
+    /**
+     * Resource path is normalized.
+     */
+    public void testNormalize() {
+        assertEquals("example.com/second", UrlRewriter.normalize("/example.com/second/"));
+        assertEquals("example.com/second", UrlRewriter.normalize("/example.com/second/{resourceId}/"));
+        assertEquals("example.com/second", UrlRewriter.normalize("/example.com/second/{resourceId}"));
+        assertEquals("example.com", UrlRewriter.normalize("example.com"));
+    }
+
+    /**
+     * Partial matches and overlapping prefixes are written as they are.
+     */
+    public void testRewrite1() {
+        UrlRewriter rewriter = new UrlRewriter("/example.com/api/");
+        String source = "hhttp://example.com/api/1 http://example.com/ap https://example.com/api http:/example.com/api httphttps://example.com/api/2 http://example.com/ap";
+        String result = "h" + SERVLET_URL + "example.com/api/1 http://example.com/ap " + SERVLET_URL + "example.com/api http:/example.com/api http" + SERVLET_URL + "example.com/api/2 http://example.com/ap";
+        assertEquals(result, rewriter.rewrite(SERVLET_URL, source));
+    }
+
+    /**
+     * Dots in the resource path are matched literally.
+     */
+    public void testRewrite2() {
+        UrlRewriter rewriter = new UrlRewriter("/example.com/api/");
+        assertEquals("http://exampleXcom/api", rewriter.rewrite(SERVLET_URL, "http://exampleXcom/api"));
+    }
+
+    /**
+     * URL that's split between writes is rewritten, flushing doesn't break
+     * the match.
+     *
+     * @throws IOException
+     */
+    public void testWrap() throws IOException {
+        UrlRewriter rewriter = new UrlRewriter("/example.com/api/");
+        StringWriter out = new StringWriter();
+        Writer writer = rewriter.wrap(out, SERVLET_URL);
+        writer.write("{\"url\":\"htt");
+        writer.flush();
+        writer.write("p://example.com/a".toCharArray());
+        writer.write('p');
+        writer.write("i/1\"} http://exa");
+        writer.close();
+        assertEquals("{\"url\":\"" + SERVLET_URL + "example.com/api/1\"} http://exa", out.toString());
+    }
+}
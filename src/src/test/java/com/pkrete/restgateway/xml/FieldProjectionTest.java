@@ -0,0 +1,140 @@
+package com.pkrete.restgateway.xml;
+
+import java.io.StringWriter;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for FieldProjection class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class FieldProjectionTest extends TestCase {
+
+    private static final String RESPONSE = "<ts1:response xmlns:ts1=\"http://test.x-road.fi/producer\">"
+            + "<ts1:person id=\"1\">\n"
+            + "<ts1:name>Jane</ts1:name>\n"
+            + "<ts1:address><ts1:street>Main 1</ts1:street><ts1:city>Helsinki</ts1:city></ts1:address>\n"
+            + "<ts1:phones><ts1:phone><ts1:type>home</ts1:type><ts1:number>123</ts1:number></ts1:phone>"
+            + "<ts1:phone><ts1:type>work</ts1:type><ts1:number>456</ts1:number></ts1:phone></ts1:phones>\n"
+            + "</ts1:person></ts1:response>";
+
+    /**
+     * No paths.
+     */
+    public void testParseEmpty() {
+        assertEquals(null, FieldProjection.parse(null));
+        assertEquals(null, FieldProjection.parse(""));
+        assertEquals(null, FieldProjection.parse(" , /,"));
+    }
+
+    /**
+     * Paths are normalized and sorted.
+     */
+    public void testParse() {
+        assertEquals("a/b,c", FieldProjection.parse(" c ,/a//b/").toString());
+        assertEquals(FieldProjection.parse("x,y/z").toString(), FieldProjection.parse("y/z,x").toString());
+    }
+
+    /**
+     * Selected elements are kept with their children, elements on the path
+     * with their attributes.
+     */
+    public void testUnwrap() {
+        FieldProjection projection = FieldProjection.parse("person/name,person/address/city");
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap(RESPONSE, projection);
+        assertEquals("<person id=\"1\"><name>Jane</name><address><city>Helsinki</city></address></person>", result.getContent());
+        assertEquals(true, result.isWellFormed());
+    }
+
+    /**
+     * Selected subtree is kept as a whole.
+     */
+    public void testUnwrapSubtree() {
+        FieldProjection projection = FieldProjection.parse("person/address,person/address/city");
+        assertEquals("<person id=\"1\"><address><street>Main 1</street><city>Helsinki</city></address></person>",
+                ResponseUnwrapper.unwrap(RESPONSE, projection).getContent());
+    }
+
+    /**
+     * Path is applied to all the repeated elements and "*" matches any
+     * element.
+     */
+    public void testUnwrapRepeatedAndWildcard() {
+        FieldProjection projection = FieldProjection.parse("*/phones/phone/number");
+        assertEquals("<person id=\"1\"><phones><phone><number>123</number></phone><phone><number>456</number></phone></phones></person>",
+                ResponseUnwrapper.unwrap(RESPONSE, projection).getContent());
+    }
+
+    /**
+     * Nothing matches, the response tag is kept without children.
+     */
+    public void testUnwrapNoMatch() {
+        FieldProjection projection = FieldProjection.parse("unknown");
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap(RESPONSE, projection);
+        assertEquals("", result.getContent());
+        assertEquals(false, result.isWellFormed());
+        assertEquals("<ts1:response xmlns:ts1=\"http://test.x-road.fi/producer\"/>", result.getMessage());
+    }
+
+    /**
+     * Paths start from the root element, if it's not a response tag.
+     */
+    public void testUnwrapNoResponseTag() {
+        FieldProjection projection = FieldProjection.parse("data/value");
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap("<data><value>1</value><other>2</other></data>", projection);
+        assertEquals("<data><value>1</value></data>", result.getContent());
+        assertEquals("<data><value>1</value></data>", result.getMessage());
+        projection = FieldProjection.parse("value");
+        assertEquals("<data/>", ResponseUnwrapper.unwrap("<data><value>1</value></data>", projection).getContent());
+    }
+
+    /**
+     * Fields are selected while the response is converted to JSON.
+     *
+     * @throws Exception
+     */
+    public void testWriteJson() throws Exception {
+        FieldProjection projection = FieldProjection.parse("person/name,person/phones/phone/type");
+        StringWriter out = new StringWriter();
+        XMLToJSONWriter.write(RESPONSE, projection, out);
+        assertEquals("{\"person\":{\"id\":1,\"name\":\"Jane\",\"phones\":{\"phone\":[{\"type\":\"home\"},{\"type\":\"work\"}]}}}", out.toString());
+    }
+
+    /**
+     * Paths start from the root element when the response is converted to
+     * JSON, if it's not a response tag.
+     *
+     * @throws Exception
+     */
+    public void testWriteJsonNoResponseTag() throws Exception {
+        FieldProjection projection = FieldProjection.parse("data/value");
+        StringWriter out = new StringWriter();
+        XMLToJSONWriter.write("<data><value>1</value><other>2</other></data>", projection, out);
+        assertEquals("{\"data\":{\"value\":1}}", out.toString());
+    }
+
+    /**
+     * Fields are selected from each record of an NDJSON response and
+     * unselected records are skipped.
+     *
+     * @throws Exception
+     */
+    public void testWriteNdjson() throws Exception {
+        FieldProjection projection = FieldProjection.parse("item/id");
+        StringWriter out = new StringWriter();
+        int lines = XMLToNDJSONWriter.write("<response><item><id>1</id><name>a</name></item><other>x</other>"
+                + "<item><id>2</id><name>b</name></item></response>", projection, out);
+        assertEquals(2, lines);
+        assertEquals("{\"id\":1}\n{\"id\":2}\n", out.toString());
+    }
+
+    /**
+     * Fields can't be selected from messages that are not well-formed.
+     */
+    public void testUnwrapNotWellFormed() {
+        FieldProjection projection = FieldProjection.parse("a");
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap("<response><a>1</b></response>", projection);
+        assertEquals(false, result.isWellFormed());
+        assertEquals("<response><a>1</b></response>", result.getMessage());
+    }
+}
@@ -0,0 +1,133 @@
+package com.pkrete.restgateway.xml;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import javax.xml.stream.XMLStreamException;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for ResponseUnwrapper class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class ResponseUnwrapperTest extends TestCase {
+
+    /**
+     * Response tag with a single child is removed and the result is
+     * well-formed.
+     */
+    public void testUnwrap1() {
+        String source = "<ts1:response xmlns:ts1=\"http://test.com/ns\"><ts1:wrapper><ts1:param1>value1</ts1:param1><param2/></ts1:wrapper></ts1:response>";
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap(source);
+        assertEquals("<wrapper><param1>value1</param1><param2/></wrapper>", result.getContent());
+        assertEquals(true, result.isWellFormed());
+    }
+
+    /**
+     * Response tag with multiple children is removed, but the result is not
+     * a well-formed document.
+     */
+    public void testUnwrap2() {
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap("<response>\n  <param1>1</param1>\n  <param2>2</param2>\n</response>");
+        assertEquals("\n  <param1>1</param1>\n  <param2>2</param2>\n", result.getContent());
+        assertEquals(false, result.isWellFormed());
+    }
+
+    /**
+     * Text directly inside the response tag can't be a document.
+     */
+    public void testUnwrap3() {
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap("<response>text<param1>1</param1></response>");
+        assertEquals("text<param1>1</param1>", result.getContent());
+        assertEquals(false, result.isWellFormed());
+    }
+
+    /**
+     * Prefix declared only by the response tag is unbound in the result.
+     */
+    public void testUnwrap4() {
+        String source = "<ts1:testResponse xmlns:ts1=\"http://test.com/ns\" xmlns:ts2=\"http://test.com/ns2\"><ts2:param1>1</ts2:param1></ts1:testResponse>";
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap(source);
+        assertEquals("<ts2:param1>1</ts2:param1>", result.getContent());
+        assertEquals(false, result.isWellFormed());
+    }
+
+    /**
+     * Special characters, attributes, comments and CDATA are preserved.
+     */
+    public void testUnwrap5() {
+        String source = "<ts1:response xmlns:ts1=\"http://test.com/ns\"><item ts1:id=\"a&quot;b\" type=\"x\"><!-- c -->a &amp; b &lt; c<![CDATA[<d>]]></item></ts1:response>";
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap(source);
+        String content = result.getContent();
+        assertEquals(true, content.startsWith("<item id=\"a&quot;b\" type=\"x\"><!-- c -->a &amp; b &lt; c"));
+        assertEquals(true, content.endsWith("</item>"));
+        assertEquals(true, content.contains("<d>]]>") || content.contains("&lt;d&gt;"));
+        assertEquals(true, result.isWellFormed());
+    }
+
+    /**
+     * Message whose root element is not a response tag is returned as it is.
+     */
+    public void testUnwrap6() {
+        String source = "<data><response>1</response></data>";
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap(source);
+        assertSame(source, result.getContent());
+        assertEquals(false, result.isWellFormed());
+    }
+
+    /**
+     * Message that is not well-formed is handled using regular expressions.
+     */
+    public void testUnwrap7() {
+        ResponseUnwrapper.Result result = ResponseUnwrapper.unwrap("<ts1:response xmlns:ts1=\"http://test.com/ns\"><ts1:param1>1</ts1:value1></ts1:response>");
+        assertEquals("<param1>1</value1>", result.getContent());
+        assertEquals(false, result.isWellFormed());
+    }
+
+    /**
+     * Response tag names.
+     */
+    public void testIsResponseTag() {
+        assertEquals(true, ResponseUnwrapper.isResponseTag("response"));
+        assertEquals(true, ResponseUnwrapper.isResponseTag("getOrganizationListResponse"));
+        assertEquals(false, ResponseUnwrapper.isResponseTag("Response"));
+        assertEquals(false, ResponseUnwrapper.isResponseTag("responses"));
+        assertEquals(false, ResponseUnwrapper.isResponseTag("data"));
+    }
+
+    /**
+     * Response tag with a single child is removed while the message is read.
+     *
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    public void testWrite1() throws XMLStreamException, IOException {
+        StringWriter writer = new StringWriter();
+        ResponseUnwrapper.write(XMLToJSONWriter.createReader("<ts1:response xmlns:ts1=\"http://test.com/ns\"><ts1:wrapper><ts1:param1>value1</ts1:param1><param2/></ts1:wrapper></ts1:response>"), null, writer);
+        assertEquals("<wrapper><param1>value1</param1><param2/></wrapper>", writer.toString());
+    }
+
+    /**
+     * Response tag with multiple children is kept while the message is read.
+     *
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    public void testWrite2() throws XMLStreamException, IOException {
+        StringWriter writer = new StringWriter();
+        ResponseUnwrapper.write(XMLToJSONWriter.createReader("<response><param1>1</param1><param2>2</param2><param3>3</param3></response>"), null, writer);
+        assertEquals("<response><param1>1</param1><param2>2</param2><param3>3</param3></response>", writer.toString());
+    }
+
+    /**
+     * Message whose root element is not a response tag is written as it is.
+     *
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    public void testWrite3() throws XMLStreamException, IOException {
+        StringWriter writer = new StringWriter();
+        ResponseUnwrapper.write(XMLToJSONWriter.createReader("<data><response>1</response></data>"), null, writer);
+        assertEquals("<data><response>1</response></data>", writer.toString());
+    }
+}
@@ -0,0 +1,138 @@
+package com.pkrete.restgateway.xml;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for XMLToJSONWriter class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class XMLToJSONWriterTest extends TestCase {
+
+    private static String write(String xml) throws IOException {
+        StringWriter out = new StringWriter();
+        XMLToJSONWriter.write(xml, out);
+        return out.toString();
+    }
+
+    /**
+     * Response tag is removed and simple values are converted.
+     *
+     * @throws IOException
+     */
+    public void testWrite1() throws IOException {
+        String source = "<response><name>Test</name><count>12</count><valid>true</valid><empty/></response>";
+        assertEquals("{\"name\":\"Test\",\"count\":12,\"valid\":true,\"empty\":\"\"}", write(source));
+    }
+
+    /**
+     * Repeated elements are arrays.
+     *
+     * @throws IOException
+     */
+    public void testWrite2() throws IOException {
+        String source = "<ts1:listResponse xmlns:ts1=\"http://test.com/ns\"><ts1:list><ts1:item>a</ts1:item>\n<ts1:item>b</ts1:item><ts1:item><id>1</id></ts1:item><other>c</other></ts1:list></ts1:listResponse>";
+        assertEquals("{\"list\":{\"item\":[\"a\",\"b\",{\"id\":1}],\"other\":\"c\"}}", write(source));
+    }
+
+    /**
+     * Repeated root elements after the response tag is removed.
+     *
+     * @throws IOException
+     */
+    public void testWrite3() throws IOException {
+        assertEquals("{\"item\":[1,2]}", write("<response><item>1</item><item>2</item></response>"));
+    }
+
+    /**
+     * Attributes and text of elements with attributes.
+     *
+     * @throws IOException
+     */
+    public void testWrite4() throws IOException {
+        String source = "<data xmlns:ts2=\"http://test.com/ns2\"><value unit=\"cm\" ts2:id=\"007\">1.50</value><ref href=\"http://test.com/a?b=1&amp;c=2\"/></data>";
+        assertEquals("{\"data\":{\"xmlns:ts2\":\"http://test.com/ns2\",\"value\":{\"unit\":\"cm\",\"ts2:id\":\"007\",\"content\":\"1.50\"},\"ref\":{\"href\":\"http://test.com/a?b=1&c=2\"}}}", write(source));
+    }
+
+    /**
+     * Strings are escaped.
+     *
+     * @throws IOException
+     */
+    public void testWrite5() throws IOException {
+        String source = "<response><text>\"a\"\\b\n</text><html><![CDATA[<b>x</b>]]></html></response>";
+        assertEquals("{\"text\":\"\\\"a\\\"\\\\b\",\"html\":\"<b>x<\\/b>\"}", write(source));
+    }
+
+    /**
+     * Repeated elements that are not next to each other, attributes that
+     * clash with child elements and text that's split by children are
+     * collected inside a record.
+     *
+     * @throws IOException
+     */
+    public void testWriteRecord() throws IOException {
+        assertEquals("{\"data\":{\"id\":[1,2],\"a\":[1,2],\"b\":\"x\",\"content\":[\"text\",\"more\"]}}",
+                write("<data id=\"1\"><id>2</id><a>1</a><b>x</b>text<a>2</a>more</data>"));
+        assertEquals("{\"data\":\"ab\"}", write("<data>a<!-- comment -->b</data>"));
+    }
+
+    /**
+     * Records that are repeated, but not in a row, are written as separate
+     * members.
+     *
+     * @throws IOException
+     */
+    public void testWriteRepeatedRecords() throws IOException {
+        assertEquals("{\"a\":[1,2],\"b\":\"\",\"a\":3}", write("<response><a>1</a><a>2</a><b/><a>3</a></response>"));
+    }
+
+    /**
+     * Response is read from a stream reader that's positioned at the start of
+     * the document.
+     *
+     * @throws Exception
+     */
+    public void testWriteReader() throws Exception {
+        XMLStreamReader reader = XMLToJSONWriter.createReader("<response><item>1</item><item>2</item><total>2</total></response>");
+        StringWriter out = new StringWriter();
+        XMLToJSONWriter.write(reader, null, out);
+        assertEquals("{\"item\":[1,2],\"total\":2}", out.toString());
+        assertEquals(XMLStreamConstants.END_DOCUMENT, reader.getEventType());
+    }
+
+    /**
+     * Response that is not well-formed fails.
+     */
+    public void testWriteNotWellFormed() {
+        try {
+            write("<response><a>1</b></response>");
+            fail("IOException expected.");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Text values that are JSON literals.
+     */
+    public void testToLiteral() {
+        assertEquals("true", XMLToJSONWriter.toLiteral("TRUE"));
+        assertEquals("false", XMLToJSONWriter.toLiteral("false"));
+        assertEquals("null", XMLToJSONWriter.toLiteral("null"));
+        assertEquals("-15", XMLToJSONWriter.toLiteral("-15"));
+        assertEquals("1.5", XMLToJSONWriter.toLiteral("1.5"));
+        assertEquals("2", XMLToJSONWriter.toLiteral("2.0"));
+        assertEquals("1.0E10", XMLToJSONWriter.toLiteral("1.0E10"));
+        assertEquals(null, XMLToJSONWriter.toLiteral("007"));
+        assertEquals(null, XMLToJSONWriter.toLiteral("1.50"));
+        assertEquals(null, XMLToJSONWriter.toLiteral("-0"));
+        assertEquals(null, XMLToJSONWriter.toLiteral("12345678901234567890"));
+        assertEquals(null, XMLToJSONWriter.toLiteral("abc"));
+        assertEquals(null, XMLToJSONWriter.toLiteral(""));
+    }
+}
@@ -0,0 +1,110 @@
+package com.pkrete.restgateway.xml;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for XMLToNDJSONWriter class.
+ *
+ * @author Petteri Kivimäki
+ */
+public class XMLToNDJSONWriterTest extends TestCase {
+
+    /**
+     * Each child of the response tag is written on its own line.
+     *
+     * @throws IOException
+     */
+    public void testWriteRecords() throws IOException {
+        String xml = "<response>\n<item id=\"1\"><name>A</name><tags><tag>x</tag><tag>y</tag></tags></item>\n"
+                + "<item id=\"2\"><name>B</name></item>\n<!-- comment --><item/></response>";
+        StringWriter out = new StringWriter();
+        assertEquals(3, XMLToNDJSONWriter.write(xml, out));
+        assertEquals("{\"id\":1,\"name\":\"A\",\"tags\":{\"tag\":[\"x\",\"y\"]}}\n"
+                + "{\"id\":2,\"name\":\"B\"}\n"
+                + "\"\"\n", out.toString());
+    }
+
+    /**
+     * Namespaces declared by the response tag are available to the records.
+     *
+     * @throws IOException
+     */
+    public void testWriteNamespaces() throws IOException {
+        String xml = "<ts1:getRandomResponse xmlns:ts1=\"http://test.x-road.fi/producer\">"
+                + "<ts1:value>1</ts1:value><ts1:value>2</ts1:value>"
+                + "<ts1:person xmlns:a=\"http://a\"><a:name>Jane</a:name></ts1:person>"
+                + "</ts1:getRandomResponse>";
+        StringWriter out = new StringWriter();
+        assertEquals(3, XMLToNDJSONWriter.write(xml, out));
+        assertEquals("1\n2\n{\"xmlns:a\":\"http://a\",\"a:name\":\"Jane\"}\n", out.toString());
+    }
+
+    /**
+     * Record that can't be written in document order is written from a
+     * tree, and the following records are written normally.
+     *
+     * @throws IOException
+     */
+    public void testWriteUnordered() throws IOException {
+        String xml = "<response><item id=\"1\"><a>1</a><b>x</b><a>2</a>text</item>"
+                + "<item><c>y</c></item></response>";
+        StringWriter out = new StringWriter();
+        assertEquals(2, XMLToNDJSONWriter.write(xml, out));
+        assertEquals("{\"id\":1,\"a\":[1,2],\"b\":\"x\",\"content\":\"text\"}\n"
+                + "{\"c\":\"y\"}\n", out.toString());
+    }
+
+    /**
+     * Message without a response tag is written as a single line.
+     *
+     * @throws IOException
+     */
+    public void testWriteSingleLine() throws IOException {
+        StringWriter out = new StringWriter();
+        assertEquals(1, XMLToNDJSONWriter.write("<data><value>1</value><value>2</value></data>", out));
+        assertEquals("{\"data\":{\"value\":[1,2]}}\n", out.toString());
+    }
+
+    /**
+     * Records are read from a stream reader one at a time. The reader is
+     * positioned at the end of the response tag after the last record.
+     *
+     * @throws Exception
+     */
+    public void testWriteReader() throws Exception {
+        XMLStreamReader reader = XMLToJSONWriter.createReader("<response><item><id>1</id></item><item><id>2</id></item></response>");
+        StringWriter out = new StringWriter();
+        assertEquals(2, XMLToNDJSONWriter.write(reader, null, out));
+        assertEquals("{\"id\":1}\n{\"id\":2}\n", out.toString());
+        assertEquals(XMLStreamConstants.END_ELEMENT, reader.getEventType());
+        assertEquals("response", reader.getLocalName());
+    }
+
+    /**
+     * Response without records.
+     *
+     * @throws IOException
+     */
+    public void testWriteEmpty() throws IOException {
+        StringWriter out = new StringWriter();
+        assertEquals(0, XMLToNDJSONWriter.write("<response/>", out));
+        assertEquals("", out.toString());
+    }
+
+    /**
+     * Message that is not well-formed fails after the first line.
+     */
+    public void testWriteNotWellFormed() {
+        StringWriter out = new StringWriter();
+        try {
+            XMLToNDJSONWriter.write("<response><item>1</item><item>2</b></response>", out);
+            fail("IOException expected.");
+        } catch (IOException ex) {
+            assertEquals("1\n", out.toString());
+        }
+    }
+}